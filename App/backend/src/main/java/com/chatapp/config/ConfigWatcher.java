@@ -0,0 +1,122 @@
+package com.chatapp.config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * =====================================================
+ * ConfigWatcher Class
+ * =====================================================
+ * Hot reload of the configuration file.
+ *
+ * The file's modification time is checked periodically.
+ * When it changes, the file is loaded and validated again:
+ * - invalid file: the error is logged and the running
+ *   configuration is kept
+ * - valid file: every listener receives the new snapshot
+ *   and re-applies the hot-reloadable settings; changed
+ *   restart-only settings are logged as ignored
+ *
+ * Connections are never touched by a reload.
+ * =====================================================
+ */
+public class ConfigWatcher {
+    private final List<Consumer<ServerConfig>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private volatile ServerConfig current;
+    private long lastModified;
+
+    /**
+     * Constructor
+     *
+     * @param initial The configuration loaded at startup
+     */
+    public ConfigWatcher(ServerConfig initial) {
+        this.current = initial;
+        this.lastModified = modificationTime();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "config-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registers a listener called with every successfully reloaded configuration
+     */
+    public void addListener(Consumer<ServerConfig> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts watching the file (no-op if the reload interval is 0)
+     */
+    public void start() {
+        int interval = current.getInt(ServerConfig.RELOAD_INTERVAL_SECONDS);
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(this::checkForChanges, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops watching the file
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return the configuration currently in effect
+     */
+    public ServerConfig getCurrent() {
+        return current;
+    }
+
+    /**
+     * Reloads the file if it has been modified since the last check
+     */
+    void checkForChanges() {
+        long modified = modificationTime();
+        if (modified == lastModified) {
+            return;
+        }
+        lastModified = modified;
+
+        ServerConfig newer;
+        try {
+            newer = current.reload();
+        } catch (IllegalArgumentException e) {
+            System.err.println("[ConfigWatcher] Reload rejected, keeping current configuration: " + e.getMessage());
+            return;
+        }
+
+        for (String key : current.restartRequiredChanges(newer)) {
+            System.out.println("[ConfigWatcher] '" + key + "' changed but needs a restart; ignored for now");
+        }
+
+        current = newer;
+        for (Consumer<ServerConfig> listener : listeners) {
+            try {
+                listener.accept(newer);
+            } catch (Exception e) {
+                System.err.println("[ConfigWatcher] Error applying configuration: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        System.out.println("[ConfigWatcher] Configuration reloaded from " + newer.getFile());
+    }
+
+    private long modificationTime() {
+        try {
+            return Files.exists(current.getFile()) ? Files.getLastModifiedTime(current.getFile()).toMillis() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
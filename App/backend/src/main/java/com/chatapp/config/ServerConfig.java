@@ -0,0 +1,387 @@
+package com.chatapp.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * =====================================================
+ * ServerConfig Class
+ * =====================================================
+ * Immutable snapshot of the server configuration.
+ *
+ * Every value is resolved from (lowest to highest priority):
+ * 1. The default declared below
+ * 2. The properties file (config/chat-server.properties,
+ *    or the path in -Dchat.config / CHAT_CONFIG)
+ * 3. Environment variables: CHAT_ + key in upper case with
+ *    dots replaced by underscores (db.password -> CHAT_DB_PASSWORD)
+ * 4. System properties: "chat." + key (-Dchat.db.password=...)
+ *
+ * Values are type- and range-checked when loaded; an invalid
+ * value makes load() fail instead of silently using a default.
+ *
+ * Rate limits are written as "ratelimit.<LIMIT>=<perSecond>,<burst>"
+ * (for example ratelimit.SEARCH_USER=2,5).
+ *
+ * Settings marked hot-reloadable are re-applied by the
+ * ConfigWatcher when the file changes; the others need a
+ * restart.
+ * =====================================================
+ */
+public class ServerConfig {
+    private static final String ENV_PREFIX = "CHAT_";
+    private static final String PROPERTY_PREFIX = "chat.";
+    private static final String RATE_LIMIT_PREFIX = "ratelimit.";
+
+    // ---------- Settings that need a restart ----------
+    public static final Setting SERVER_PORT = Setting.intSetting(
+        "server.port", 8080, 1, 65535, false, "WebSocket port");
+    public static final Setting DECODER_THREADS = Setting.intSetting(
+        "server.decoderThreads", Runtime.getRuntime().availableProcessors(), 1, 256, false,
+        "Worker threads decoding and handling frames");
+    public static final Setting REQUEST_THREADS = Setting.intSetting(
+        "server.requestThreads", 2 * Runtime.getRuntime().availableProcessors(), 1, 1024, false,
+        "Worker threads running pipelined requests (those with a requestId)");
+    public static final Setting DB_URL = Setting.stringSetting(
+        "db.url", "jdbc:mysql://localhost:3306/chat_app?rewriteBatchedStatements=true", false, "JDBC URL");
+    public static final Setting DB_USER = Setting.stringSetting(
+        "db.user", "root", false, "Database user");
+    public static final Setting DB_PASSWORD = Setting.stringSetting(
+        "db.password", "", false, "Database password");
+    public static final Setting DB_POOL_SIZE = Setting.intSetting(
+        "db.poolSize", 16, 1, 256, false, "Connections to the primary shared by the request handlers");
+    public static final Setting DB_CONNECT_ATTEMPTS = Setting.intSetting(
+        "db.connectAttempts", 5, 1, 100, false, "Connection attempts at startup before giving up");
+    public static final Setting DB_CONNECT_RETRY_MS = Setting.longSetting(
+        "db.connectRetryMs", 1000, 0, 60000, false, "Delay before the first retry (doubles each time)");
+    public static final Setting DB_REPLICA_URLS = Setting.stringSetting(
+        "db.replicaUrls", "", false, "JDBC URLs of the read replicas, comma-separated (empty = none)");
+    public static final Setting DB_REPLICA_CHECK_MS = Setting.longSetting(
+        "db.replicaCheckMs", 1000, 100, 60000, false, "Interval of the replica lag checks");
+    public static final Setting HEALTH_PORT = Setting.intSetting(
+        "health.port", 8081, 0, 65535, false, "HTTP port of /health/live and /health/ready (0 = off)");
+    public static final Setting RELOAD_INTERVAL_SECONDS = Setting.intSetting(
+        "config.reloadIntervalSeconds", 10, 0, 3600, false, "How often the file is checked (0 = never)");
+    public static final Setting WAL_DIR = Setting.stringSetting(
+        "wal.dir", "wal", false, "Directory of the message log segments");
+    public static final Setting WAL_SEGMENT_MB = Setting.intSetting(
+        "wal.segmentMb", 64, 1, 1024, false, "Size of a message log segment file");
+    public static final Setting WAL_GROUP_COMMIT_WAIT_MICROS = Setting.longSetting(
+        "wal.groupCommitWaitMicros", 200, 0, 100000, false, "Wait for more messages before each fsync");
+    public static final Setting WAL_INDEX_BATCH_SIZE = Setting.intSetting(
+        "wal.indexBatchSize", 500, 1, 10000, false, "Messages per MySQL transaction of the indexer");
+    public static final Setting RETENTION_ENABLED = Setting.booleanSetting(
+        "retention.enabled", true, false, "Manage message partitions, archival and expiry");
+    public static final Setting RETENTION_PARTITION_DAYS = Setting.intSetting(
+        "retention.partitionDays", 7, 1, 366, false, "Time range of one messages partition");
+    public static final Setting RETENTION_HOT_DAYS = Setting.intSetting(
+        "retention.hotDays", 30, 1, 36500, false, "Older partitions are moved to the archive");
+    public static final Setting RETENTION_DEFAULT_DAYS = Setting.intSetting(
+        "retention.defaultDays", 0, 0, 36500, false, "Messages older than this are deleted (0 = keep)");
+    public static final Setting RETENTION_ARCHIVE_DIR = Setting.stringSetting(
+        "retention.archiveDir", "archive", false, "Directory of the archive segment files");
+    public static final Setting RETENTION_CHECK_INTERVAL_MINUTES = Setting.intSetting(
+        "retention.checkIntervalMinutes", 60, 1, 1440, false, "How often retention runs");
+    public static final Setting ATTACHMENTS_DIR = Setting.stringSetting(
+        "attachments.dir", "attachments", false, "Directory of the attachment store");
+    public static final Setting ATTACHMENTS_PORT = Setting.intSetting(
+        "attachments.port", 8082, 0, 65535, false, "HTTP port of attachment downloads (0 = off)");
+    public static final Setting ATTACHMENTS_URL_SECRET = Setting.stringSetting(
+        "attachments.urlSecret", "", false, "Secret signing the download URLs (empty = random per run)");
+    public static final Setting SEARCH_ENABLED = Setting.booleanSetting(
+        "search.enabled", true, false, "Index message content for SEARCH_MESSAGES");
+    public static final Setting SEARCH_DIR = Setting.stringSetting(
+        "search.dir", "search", false, "Directory of the search index segments");
+    public static final Setting SEARCH_FLUSH_MESSAGES = Setting.intSetting(
+        "search.flushMessages", 50000, 100, 10000000, false, "Messages buffered before a segment is written");
+    public static final Setting SEARCH_FLUSH_INTERVAL_SECONDS = Setting.intSetting(
+        "search.flushIntervalSeconds", 60, 1, 3600, false, "Maximum time a message stays in the buffer only");
+    public static final Setting SEARCH_MERGE_MB_PER_SECOND = Setting.intSetting(
+        "search.mergeMbPerSecond", 20, 0, 10000, false, "Write rate of segment merges (0 = unlimited)");
+    public static final Setting SEARCH_MAX_SEGMENT_MB = Setting.intSetting(
+        "search.maxSegmentMb", 1024, 1, 2047, false, "Segments are not merged beyond this size");
+    public static final Setting CAPTURE_DIR = Setting.stringSetting(
+        "capture.dir", "captures", false, "Directory of the traffic capture files");
+
+    // ---------- Hot-reloadable settings ----------
+    public static final Setting HEARTBEAT_SECONDS = Setting.intSetting(
+        "connection.heartbeatSeconds", 30, 0, 3600, true, "Ping interval, no pong => closed (0 = off)");
+    public static final Setting LOGIN_TIMEOUT_MS = Setting.longSetting(
+        "connection.loginTimeoutMs", 15000, 1000, 600000, true, "Time allowed to send LOGIN");
+    public static final Setting IDLE_TIMEOUT_MS = Setting.longSetting(
+        "connection.idleTimeoutMs", 1800000, 10000, 86400000, true, "Authenticated but silent sessions");
+    public static final Setting CONVERSATIONS_PAGE_SIZE = Setting.intSetting(
+        "conversations.defaultPageSize", 50, 1, 1000, true, "GET_CONVERSATIONS default page size");
+    public static final Setting CONVERSATIONS_MAX_PAGE_SIZE = Setting.intSetting(
+        "conversations.maxPageSize", 200, 1, 1000, true, "GET_CONVERSATIONS maximum page size");
+    public static final Setting HISTORY_PAGE_SIZE = Setting.intSetting(
+        "history.defaultPageSize", 50, 1, 1000, true, "GET_HISTORY default page size");
+    public static final Setting HISTORY_MAX_PAGE_SIZE = Setting.intSetting(
+        "history.maxPageSize", 200, 1, 1000, true, "GET_HISTORY maximum page size");
+    public static final Setting SEARCH_PAGE_SIZE = Setting.intSetting(
+        "search.defaultPageSize", 20, 1, 1000, true, "SEARCH_MESSAGES default page size");
+    public static final Setting SEARCH_MAX_PAGE_SIZE = Setting.intSetting(
+        "search.maxPageSize", 100, 1, 1000, true, "SEARCH_MESSAGES maximum page size");
+    public static final Setting DB_REPLICA_MAX_LAG_SECONDS = Setting.intSetting(
+        "db.replicaMaxLagSeconds", 5, 0, 3600, true, "Replicas further behind are not read from");
+    public static final Setting LOG_FRAME_SAMPLE_RATE = Setting.intSetting(
+        "log.frameSampleRate", 1, 0, 1000000, true, "Log 1 in N frames (0 = none, 1 = all)");
+    public static final Setting CAPTURE_ENABLED = Setting.booleanSetting(
+        "capture.enabled", false, true, "Record inbound traffic for replay (new file each time)");
+    public static final Setting CAPTURE_MAX_MB = Setting.intSetting(
+        "capture.maxMb", 1024, 1, 1000000, true, "A capture stops at this size");
+    public static final Setting CONVERSATION_CACHE_SIZE = Setting.intSetting(
+        "cache.conversations.maxEntries", 100000, 100, 10000000, true, "Cached conversation descriptors");
+    public static final Setting MESSAGES_MAX_BYTES = Setting.intSetting(
+        "messages.maxBytes", 16384, 1, 65535, true, "Largest message content accepted (UTF-8 bytes)");
+    public static final Setting GROUPS_LARGE_THRESHOLD = Setting.intSetting(
+        "groups.largeGroupThreshold", 1000, 2, 10000000, true, "Members above which a group is 'large'");
+    public static final Setting GROUPS_MAX_USERS_PER_REQUEST = Setting.intSetting(
+        "groups.maxUsersPerRequest", 10000, 1, 100000, true, "Users per ADD_MEMBERS / REMOVE_MEMBERS");
+    public static final Setting OVERLOAD_ENABLED = Setting.booleanSetting(
+        "overload.enabled", true, true, "Shed requests by priority when the server falls behind");
+    public static final Setting OVERLOAD_LATENCY_TARGET_MS = Setting.longSetting(
+        "overload.latencyTargetMs", 250, 1, 60000, true, "Average request time above which load is shed");
+    public static final Setting OVERLOAD_QUEUE_TARGET = Setting.intSetting(
+        "overload.queueTarget", 1000, 1, 1000000, true, "Waiting pipelined requests above which load is shed");
+    public static final Setting OVERLOAD_INDEXER_LAG_TARGET_MB = Setting.intSetting(
+        "overload.indexerLagTargetMb", 64, 1, 100000, true, "Message log behind MySQL above which load is shed");
+    public static final Setting OVERLOAD_POOL_WAIT_TARGET_MS = Setting.longSetting(
+        "overload.poolWaitTargetMs", 50, 1, 60000, true, "Connection pool wait above which load is shed");
+    public static final Setting OVERLOAD_MAX_CONNECTIONS = Setting.intSetting(
+        "overload.maxConnections", 0, 0, 100000000, true, "Open connections accepted at most (0 = no limit)");
+    public static final Setting ATTACHMENTS_MAX_FILE_MB = Setting.intSetting(
+        "attachments.maxFileMb", 100, 1, 100000, true, "Largest attachment accepted");
+    public static final Setting ATTACHMENTS_URL_TTL_SECONDS = Setting.intSetting(
+        "attachments.urlTtlSeconds", 300, 10, 86400, true, "Validity of a signed download URL");
+    public static final Setting ATTACHMENTS_BASE_URL = Setting.stringSetting(
+        "attachments.baseUrl", "http://localhost:8082", true, "Public base URL of the download port");
+    public static final Setting ATTACHMENTS_PARTIAL_EXPIRY_HOURS = Setting.intSetting(
+        "attachments.partialExpiryHours", 24, 1, 720, true, "Unfinished uploads are deleted after this");
+    public static final Setting SHUTDOWN_DRAIN_MS = Setting.longSetting(
+        "shutdown.drainMs", 10000, 0, 600000, true, "Window over which connections are closed at shutdown");
+    public static final Setting SHUTDOWN_RECONNECT_SPREAD_MS = Setting.longSetting(
+        "shutdown.reconnectSpreadMs", 30000, 0, 600000, true, "Clients reconnect after a random delay up to this");
+    public static final Setting SHUTDOWN_DB_CLOSE_TIMEOUT_MS = Setting.longSetting(
+        "shutdown.dbCloseTimeoutMs", 5000, 100, 60000, true, "Maximum wait for the database to close");
+
+    // All declared settings
+    public static final List<Setting> SETTINGS = Collections.unmodifiableList(Arrays.asList(
+        SERVER_PORT, DECODER_THREADS, REQUEST_THREADS, DB_URL, DB_USER, DB_PASSWORD, DB_POOL_SIZE, DB_CONNECT_ATTEMPTS,
+        DB_CONNECT_RETRY_MS, DB_REPLICA_URLS, DB_REPLICA_CHECK_MS, HEALTH_PORT, RELOAD_INTERVAL_SECONDS,
+        WAL_DIR, WAL_SEGMENT_MB, WAL_GROUP_COMMIT_WAIT_MICROS, WAL_INDEX_BATCH_SIZE,
+        RETENTION_ENABLED, RETENTION_PARTITION_DAYS, RETENTION_HOT_DAYS, RETENTION_DEFAULT_DAYS,
+        RETENTION_ARCHIVE_DIR, RETENTION_CHECK_INTERVAL_MINUTES, ATTACHMENTS_DIR, ATTACHMENTS_PORT,
+        ATTACHMENTS_URL_SECRET,
+        SEARCH_ENABLED, SEARCH_DIR, SEARCH_FLUSH_MESSAGES, SEARCH_FLUSH_INTERVAL_SECONDS, SEARCH_MERGE_MB_PER_SECOND,
+        SEARCH_MAX_SEGMENT_MB, CAPTURE_DIR,
+        HEARTBEAT_SECONDS, LOGIN_TIMEOUT_MS, IDLE_TIMEOUT_MS,
+        CONVERSATIONS_PAGE_SIZE, CONVERSATIONS_MAX_PAGE_SIZE, HISTORY_PAGE_SIZE, HISTORY_MAX_PAGE_SIZE,
+        SEARCH_PAGE_SIZE, SEARCH_MAX_PAGE_SIZE, DB_REPLICA_MAX_LAG_SECONDS, LOG_FRAME_SAMPLE_RATE, CAPTURE_ENABLED, CAPTURE_MAX_MB,
+        CONVERSATION_CACHE_SIZE, MESSAGES_MAX_BYTES, GROUPS_LARGE_THRESHOLD, GROUPS_MAX_USERS_PER_REQUEST,
+        OVERLOAD_ENABLED, OVERLOAD_LATENCY_TARGET_MS, OVERLOAD_QUEUE_TARGET, OVERLOAD_INDEXER_LAG_TARGET_MB,
+        OVERLOAD_POOL_WAIT_TARGET_MS, OVERLOAD_MAX_CONNECTIONS,
+        ATTACHMENTS_MAX_FILE_MB, ATTACHMENTS_URL_TTL_SECONDS, ATTACHMENTS_BASE_URL, ATTACHMENTS_PARTIAL_EXPIRY_HOURS,
+        SHUTDOWN_DRAIN_MS, SHUTDOWN_RECONNECT_SPREAD_MS, SHUTDOWN_DB_CLOSE_TIMEOUT_MS));
+
+    private final Path file;                           // Properties file (may not exist)
+    private final Map<String, Object> values;         // Setting key -> typed value
+    private final Map<String, double[]> rateLimits;   // Limit name -> {perSecond, burst}
+
+    private ServerConfig(Path file, Map<String, Object> values, Map<String, double[]> rateLimits) {
+        this.file = file;
+        this.values = values;
+        this.rateLimits = rateLimits;
+    }
+
+    /**
+     * Path of the properties file: -Dchat.config, then CHAT_CONFIG, then config/chat-server.properties
+     */
+    public static Path defaultPath() {
+        String path = System.getProperty(PROPERTY_PREFIX + "config");
+        if (path == null) {
+            path = System.getenv(ENV_PREFIX + "CONFIG");
+        }
+        return Paths.get(path != null ? path : "config/chat-server.properties");
+    }
+
+    /**
+     * Loads and validates the configuration
+     *
+     * @param file The properties file (a missing file means "defaults only")
+     * @return The configuration snapshot
+     * @throws IllegalArgumentException if any value is invalid (all problems are listed)
+     */
+    public static ServerConfig load(Path file) {
+        Properties fileProperties = new Properties();
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                fileProperties.load(in);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read " + file + ": " + e.getMessage());
+            }
+        }
+
+        List<String> errors = new ArrayList<>();
+        Map<String, Object> values = new HashMap<>();
+        for (Setting setting : SETTINGS) {
+            String raw = resolve(setting.getKey(), fileProperties);
+            try {
+                values.put(setting.getKey(), raw != null ? setting.parse(raw) : setting.getDefaultValue());
+            } catch (IllegalArgumentException e) {
+                errors.add(e.getMessage());
+            }
+        }
+
+        Map<String, double[]> rateLimits = new HashMap<>();
+        for (String key : rateLimitKeys(fileProperties)) {
+            String raw = resolve(key, fileProperties);
+            try {
+                rateLimits.put(key.substring(RATE_LIMIT_PREFIX.length()).toUpperCase(Locale.ROOT),
+                               parseRateLimit(key, raw));
+            } catch (IllegalArgumentException e) {
+                errors.add(e.getMessage());
+            }
+        }
+
+        if ((int) values.getOrDefault(CONVERSATIONS_PAGE_SIZE.getKey(), 0) >
+                (int) values.getOrDefault(CONVERSATIONS_MAX_PAGE_SIZE.getKey(), Integer.MAX_VALUE)) {
+            errors.add(CONVERSATIONS_PAGE_SIZE.getKey() + " must not exceed " + CONVERSATIONS_MAX_PAGE_SIZE.getKey());
+        }
+        if ((int) values.getOrDefault(HISTORY_PAGE_SIZE.getKey(), 0) >
+                (int) values.getOrDefault(HISTORY_MAX_PAGE_SIZE.getKey(), Integer.MAX_VALUE)) {
+            errors.add(HISTORY_PAGE_SIZE.getKey() + " must not exceed " + HISTORY_MAX_PAGE_SIZE.getKey());
+        }
+        if ((int) values.getOrDefault(SEARCH_PAGE_SIZE.getKey(), 0) >
+                (int) values.getOrDefault(SEARCH_MAX_PAGE_SIZE.getKey(), Integer.MAX_VALUE)) {
+            errors.add(SEARCH_PAGE_SIZE.getKey() + " must not exceed " + SEARCH_MAX_PAGE_SIZE.getKey());
+        }
+
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid configuration: " + String.join("; ", errors));
+        }
+        return new ServerConfig(file, values, rateLimits);
+    }
+
+    /**
+     * Resolves the raw value of a key (system property > environment > file)
+     */
+    private static String resolve(String key, Properties fileProperties) {
+        String value = System.getProperty(PROPERTY_PREFIX + key);
+        if (value == null) {
+            value = System.getenv(envName(key));
+        }
+        if (value == null) {
+            value = fileProperties.getProperty(key);
+        }
+        return value;
+    }
+
+    private static String envName(String key) {
+        return ENV_PREFIX + key.toUpperCase(Locale.ROOT).replace('.', '_');
+    }
+
+    /**
+     * Collects every ratelimit.* key from the file, environment and system properties
+     */
+    private static List<String> rateLimitKeys(Properties fileProperties) {
+        List<String> keys = new ArrayList<>();
+        for (String name : fileProperties.stringPropertyNames()) {
+            if (name.startsWith(RATE_LIMIT_PREFIX)) {
+                keys.add(name);
+            }
+        }
+        String envPrefix = envName(RATE_LIMIT_PREFIX);
+        for (String name : System.getenv().keySet()) {
+            if (name.startsWith(envPrefix)) {
+                keys.add(RATE_LIMIT_PREFIX + name.substring(envPrefix.length()));
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_PREFIX + RATE_LIMIT_PREFIX)) {
+                keys.add(name.substring(PROPERTY_PREFIX.length()));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Parses "perSecond,burst" (both positive numbers)
+     */
+    private static double[] parseRateLimit(String key, String raw) {
+        String[] parts = raw.split(",");
+        try {
+            if (parts.length == 2) {
+                double perSecond = Double.parseDouble(parts[0].trim());
+                double burst = Double.parseDouble(parts[1].trim());
+                if (perSecond > 0 && burst >= 1) {
+                    return new double[] {perSecond, burst};
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(key + ": expected '<perSecond>,<burst>' with perSecond > 0 " +
+                                           "and burst >= 1, got '" + raw + "'");
+    }
+
+    /**
+     * Reloads the same file
+     */
+    public ServerConfig reload() {
+        return load(file);
+    }
+
+    /**
+     * Lists the restart-only settings whose value differs in a newer configuration
+     */
+    public List<String> restartRequiredChanges(ServerConfig newer) {
+        List<String> changed = new ArrayList<>();
+        for (Setting setting : SETTINGS) {
+            if (!setting.isHotReloadable() &&
+                    !values.get(setting.getKey()).equals(newer.values.get(setting.getKey()))) {
+                changed.add(setting.getKey());
+            }
+        }
+        return changed;
+    }
+
+    // Typed getters
+    public int getInt(Setting setting) {
+        return (Integer) values.get(setting.getKey());
+    }
+
+    public long getLong(Setting setting) {
+        return (Long) values.get(setting.getKey());
+    }
+
+    public boolean getBoolean(Setting setting) {
+        return (Boolean) values.get(setting.getKey());
+    }
+
+    public String getString(Setting setting) {
+        return (String) values.get(setting.getKey());
+    }
+
+    /**
+     * @return configured rate limits, limit name (upper case) -> {perSecond, burst}
+     */
+    public Map<String, double[]> getRateLimits() {
+        return Collections.unmodifiableMap(rateLimits);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,127 @@
+package com.chatapp.config;
+
+/**
+ * =====================================================
+ * Setting Class
+ * =====================================================
+ * Declaration of one configuration setting: key, type,
+ * default value, allowed range, and whether it can be
+ * changed while the server is running (hot reload).
+ *
+ * All settings are declared in ServerConfig.
+ * =====================================================
+ */
+public final class Setting {
+    /**
+     * Value types
+     */
+    public enum Type { INT, LONG, DOUBLE, BOOLEAN, STRING }
+
+    private final String key;
+    private final Type type;
+    private final Object defaultValue;
+    private final double min;
+    private final double max;
+    private final boolean hotReloadable;
+    private final String description;
+
+    private Setting(String key, Type type, Object defaultValue, double min, double max,
+                    boolean hotReloadable, String description) {
+        this.key = key;
+        this.type = type;
+        this.defaultValue = defaultValue;
+        this.min = min;
+        this.max = max;
+        this.hotReloadable = hotReloadable;
+        this.description = description;
+    }
+
+    static Setting intSetting(String key, int defaultValue, int min, int max,
+                              boolean hotReloadable, String description) {
+        return new Setting(key, Type.INT, defaultValue, min, max, hotReloadable, description);
+    }
+
+    static Setting longSetting(String key, long defaultValue, long min, long max,
+                               boolean hotReloadable, String description) {
+        return new Setting(key, Type.LONG, defaultValue, min, max, hotReloadable, description);
+    }
+
+    static Setting booleanSetting(String key, boolean defaultValue, boolean hotReloadable, String description) {
+        return new Setting(key, Type.BOOLEAN, defaultValue, 0, 0, hotReloadable, description);
+    }
+
+    static Setting stringSetting(String key, String defaultValue, boolean hotReloadable, String description) {
+        return new Setting(key, Type.STRING, defaultValue, 0, 0, hotReloadable, description);
+    }
+
+    /**
+     * Parses and validates a raw value
+     *
+     * @param raw The value as written in the file / environment / system property
+     * @return The typed value
+     * @throws IllegalArgumentException if the value has the wrong type or is out of range
+     */
+    Object parse(String raw) {
+        String value = raw.trim();
+        try {
+            switch (type) {
+                case INT: {
+                    int parsed = Integer.parseInt(value);
+                    checkRange(parsed);
+                    return parsed;
+                }
+                case LONG: {
+                    long parsed = Long.parseLong(value);
+                    checkRange(parsed);
+                    return parsed;
+                }
+                case DOUBLE: {
+                    double parsed = Double.parseDouble(value);
+                    checkRange(parsed);
+                    return parsed;
+                }
+                case BOOLEAN:
+                    if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+                        throw new IllegalArgumentException(key + ": expected true or false, got '" + raw + "'");
+                    }
+                    return Boolean.parseBoolean(value);
+                default:
+                    return raw;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + ": expected a " + type.name().toLowerCase() +
+                                               ", got '" + raw + "'");
+        }
+    }
+
+    private void checkRange(double value) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(key + ": " + value + " is outside [" +
+                                               formatBound(min) + ", " + formatBound(max) + "]");
+        }
+    }
+
+    private static String formatBound(double bound) {
+        return bound == Math.rint(bound) ? String.valueOf((long) bound) : String.valueOf(bound);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Object getDefaultValue() {
+        return defaultValue;
+    }
+
+    public boolean isHotReloadable() {
+        return hotReloadable;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,43 @@
+package com.chatapp.database;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * =====================================================
+ * DatabaseCallEvent Class
+ * =====================================================
+ * JDK Flight Recorder event: one SQL statement (or commit,
+ * rollback) run by the DatabaseManager, with the method
+ * that ran it, its duration and the rows it returned or
+ * changed. Emitted by TracedConnection; costs nothing
+ * unless a recording enables it (config/chatapp.jfc).
+ * =====================================================
+ */
+@Name("com.chatapp.DatabaseCall")
+@Label("Database Call")
+@Category({"Chat Server", "Database"})
+@Description("A statement run by the DatabaseManager")
+@StackTrace(false)
+public final class DatabaseCallEvent extends jdk.jfr.Event {
+    @Label("Method")
+    @Description("DatabaseManager method that ran the statement")
+    String method;
+
+    @Label("Operation")
+    @Description("query, update, batch, execute, commit or rollback")
+    String operation;
+
+    @Label("SQL")
+    String sql;
+
+    @Label("Rows")
+    @Description("Rows read (query) or changed (update, batch)")
+    long rows;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
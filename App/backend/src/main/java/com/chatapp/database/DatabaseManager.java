@@ -1,8 +1,26 @@
 package com.chatapp.database;
 
+import com.chatapp.config.ServerConfig;
+import com.chatapp.models.ChannelEntry;
+import com.chatapp.models.ConversationDescriptor;
+import com.chatapp.models.InboxEntry;
+import com.chatapp.models.ReadCursor;
+import com.chatapp.models.StoredMessage;
+
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * =====================================================
@@ -12,82 +30,382 @@ import java.util.List;
  * chat application using JDBC.
  * 
  * Responsibilities:
- * - Managing MySQL connection
+ * - Managing a pool of MySQL connections
  * - User authentication (login)
  * - User search functionality
  * - Conversation creation and retrieval
+ * - Per-user inbox (conversation list) maintenance
+ * - Read cursors and unread counters
+ * - Message history, its partitions and retention policies
  * - Enforcing the rule: "Two users can share only ONE
  *   individual conversation channel"
+ * 
+ * Read/write split: writes, and the reads that must see
+ * the latest state (inbox, history, sequences, cursors),
+ * use a primary connection. Each method that tolerates
+ * a few seconds of staleness declares it by reading from
+ * readConnection() instead (its comment says so): user
+ * lookups, and memberships and conversations, which stay
+ * on the primary for a while after this server wrote them
+ * (see ReplicaPool).
+ * 
+ * Connection pool: a JDBC connection must not be used by
+ * two threads at once, and requests are handled
+ * concurrently (pipelining, decoder threads). Every method
+ * takes a connection from the pool for its duration and
+ * gives it back, waiting up to ACQUIRE_TIMEOUT_MS when all
+ * of them are busy (db.poolSize).
  * =====================================================
  */
 public class DatabaseManager {
-    // Database connection parameters
-    private static final String DB_URL = "jdbc:mysql://localhost:3306/chat_app";
-    private static final String DB_USER = "root";  // Change this to your MySQL username
-    private static final String DB_PASSWORD = "";  // Change this to your MySQL password
+    // Maximum length of the last message preview stored in the inbox
+    private static final int INBOX_PREVIEW_LENGTH = 100;
+    
+    // Preview of a message that is only an attachment (no caption)
+    private static final String ATTACHMENT_PREVIEW = "[Attachment]";
+    
+    // Most recent messages of a conversation recounted when a read cursor is
+    // saved (a recount caps the counter at this value)
+    private static final int UNREAD_RECOUNT_LIMIT = 1000;
+    
+    // Rows per JDBC batch / names per IN list in bulk operations
+    private static final int BULK_CHUNK_SIZE = 1000;
+    
+    // Timeout of the connection check used by the readiness probe
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    
+    // Longest wait for a free pooled connection before a method gives up
+    private static final long ACQUIRE_TIMEOUT_MS = 5000;
+    
+    // Partition names are concatenated into DDL, so only plain identifiers are accepted
+    private static final String PARTITION_NAME_PATTERN = "[A-Za-z0-9_]+";
+    
+    private final ServerConfig config;
+    private final ReplicaPool replicas;     // null: everything is read from the primary
+    private final int poolSize;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();  // every pooled connection
+    private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();  // pooled connections not in use
+    private final LongAdder acquireWaitNanos = new LongAdder();   // Since the last sampleAcquireWait()
+    private final LongAdder acquireCount = new LongAdder();
+    
+    /**
+     * Constructor - does not connect yet (see connect())
+     * 
+     * Connection parameters come from the server configuration
+     * (db.url, db.user, db.password). The default URL enables
+     * rewriteBatchedStatements, which lets the driver send a
+     * JDBC batch in a single round-trip.
+     * 
+     * A single connection: for a component whose calls are never
+     * concurrent (the indexer, the maintenance jobs)
+     * 
+     * @param config The server configuration
+     */
+    public DatabaseManager(ServerConfig config) {
+        this(config, 1, null);
+    }
+    
+    /**
+     * Constructor with a connection pool and read replicas
+     * 
+     * @param config The server configuration
+     * @param poolSize Number of primary connections (db.poolSize)
+     * @param replicas Replicas for the reads that allow it (null for none)
+     */
+    public DatabaseManager(ServerConfig config, int poolSize, ReplicaPool replicas) {
+        this.config = config;
+        this.poolSize = Math.max(1, poolSize);
+        this.replicas = replicas;
+    }
+    
+    /**
+     * Takes a primary connection from the pool; give it back with release()
+     * 
+     * @return The connection, or null if not connected or none got free in time
+     */
+    private Connection acquire() {
+        if (connections.isEmpty()) {
+            System.err.println("[DatabaseManager] No database connection!");
+            return null;
+        }
+        long started = System.nanoTime();
+        try {
+            Connection conn = idle.poll(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            acquireWaitNanos.add(System.nanoTime() - started);
+            acquireCount.increment();
+            if (conn == null) {
+                System.err.println("[DatabaseManager] No free connection after " + ACQUIRE_TIMEOUT_MS + " ms");
+                return null;
+            }
+            return conn.isClosed() ? reopen(conn) : conn;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Replaces a pooled connection the driver closed after an error (MySQL
+     * restarted, wait_timeout), so the pool heals without a server restart
+     * 
+     * @return the new connection, or null if the database cannot be reached
+     *         (the closed one goes back to the pool, to be retried later)
+     */
+    private Connection reopen(Connection closed) {
+        try {
+            Connection conn = openConnection();
+            for (int i = 0; i < connections.size(); i++) {
+                if (connections.get(i) == closed) {
+                    connections.set(i, conn);
+                }
+            }
+            System.out.println("[DatabaseManager] Reopened a closed database connection");
+            return conn;
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Cannot reopen database connection: " + e.getMessage());
+            idle.offer(closed);
+            return null;
+        }
+    }
+    
+    /**
+     * Average wait for a pooled connection since the previous call (overload
+     * signal: handlers queue here when MySQL slows down)
+     * 
+     * @return the average wait in nanoseconds, 0 if nothing was acquired
+     */
+    public long sampleAcquireWait() {
+        long count = acquireCount.sumThenReset();
+        long sum = acquireWaitNanos.sumThenReset();
+        return count > 0 ? sum / count : 0;
+    }
+    
+    /**
+     * Gives a connection back to the pool, or to its replica's pool
+     */
+    private void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        if (isPooled(conn)) {
+            idle.offer(conn);
+        } else if (replicas != null) {
+            replicas.release(conn);
+        }
+    }
+    
+    private boolean isPooled(Connection conn) {
+        for (Connection pooled : connections) {
+            if (pooled == conn) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Connection for a read that tolerates a few seconds of staleness
+     * 
+     * @param key What the read is about (ReplicaPool.userKey, conversationKey
+     *            or NO_KEY): recently written keys are read from the primary
+     * @return a replica connection, or a pooled primary connection
+     *         (null if none is available); give it back with release()
+     */
+    private Connection readConnection(long key) {
+        Connection replica = replicas != null ? replicas.acquire(key) : null;
+        return replica != null ? replica : acquire();
+    }
+    
+    /**
+     * Takes a replica whose query failed out of rotation (no-op for the primary)
+     */
+    private void readFailed(Connection conn) {
+        if (replicas != null && !isPooled(conn)) {
+            replicas.failed(conn);
+        }
+    }
     
-    private Connection connection;
+    /**
+     * Keeps the reads about these keys on the primary while replicas catch up
+     */
+    private void wrote(long... keys) {
+        if (replicas != null) {
+            replicas.wrote(keys);
+        }
+    }
+    
+    /**
+     * Records a membership change of a group (the group and every user)
+     */
+    private void wroteMembers(int groupId, List<Integer> userIds) {
+        if (replicas == null) {
+            return;
+        }
+        long[] keys = new long[userIds.size() + 1];
+        keys[0] = ReplicaPool.conversationKey(groupId);
+        for (int i = 0; i < userIds.size(); i++) {
+            keys[i + 1] = ReplicaPool.userKey(userIds.get(i));
+        }
+        replicas.wrote(keys);
+    }
     
     /**
-     * Constructor - Establishes database connection
+     * Establishes the pooled connections, retrying the first one with
+     * exponential backoff (db.connectAttempts, db.connectRetryMs).
+     * Called once by the server at startup, before clients are accepted.
+     * 
+     * @throws SQLException if the driver is missing or every attempt failed
      */
-    public DatabaseManager() {
+    public void connect() throws SQLException {
         try {
             // Load MySQL JDBC driver
             Class.forName("com.mysql.cj.jdbc.Driver");
-            
-            // Establish connection
-            connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-            System.out.println("[DatabaseManager] Connected to MySQL database successfully!");
         } catch (ClassNotFoundException e) {
-            System.err.println("[DatabaseManager] MySQL JDBC Driver not found!");
-            e.printStackTrace();
+            throw new SQLException("MySQL JDBC Driver not found", e);
+        }
+        
+        int attempts = config.getInt(ServerConfig.DB_CONNECT_ATTEMPTS);
+        long retryMs = config.getLong(ServerConfig.DB_CONNECT_RETRY_MS);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                // Once the database answers, the rest of the pool is opened without retries
+                addConnection();
+                while (connections.size() < poolSize) {
+                    addConnection();
+                }
+                System.out.println("[DatabaseManager] Connected to MySQL database successfully! (" +
+                                   poolSize + " connections)");
+                return;
+            } catch (SQLException e) {
+                if (attempt >= attempts || !connections.isEmpty()) {
+                    close();
+                    throw e;
+                }
+                System.err.println("[DatabaseManager] Connection attempt " + attempt + "/" + attempts +
+                                   " failed (" + e.getMessage() + "), retrying in " + retryMs + " ms");
+            }
+            try {
+                Thread.sleep(retryMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while connecting", e);
+            }
+            retryMs *= 2;
+        }
+    }
+    
+    /**
+     * Opens one connection and adds it to the pool
+     */
+    private void addConnection() throws SQLException {
+        Connection conn = openConnection();
+        connections.add(conn);
+        idle.offer(conn);
+    }
+    
+    private Connection openConnection() throws SQLException {
+        // Every statement is traced with JFR, see TracedConnection
+        return TracedConnection.wrap(
+            DriverManager.getConnection(config.getString(ServerConfig.DB_URL),
+                                        config.getString(ServerConfig.DB_USER),
+                                        config.getString(ServerConfig.DB_PASSWORD)));
+    }
+    
+    /**
+     * Pings an idle connection; if all of them are busy, the pool is
+     * serving queries and counts as valid
+     * 
+     * @return true if connected and the connection answers a ping
+     */
+    public boolean isConnectionValid() {
+        if (connections.isEmpty()) {
+            return false;
+        }
+        Connection current = idle.poll();
+        if (current == null) {
+            return true;
+        }
+        try {
+            return current.isValid(VALIDATION_TIMEOUT_SECONDS);
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Failed to connect to database!");
-            e.printStackTrace();
+            return false;
+        } finally {
+            release(current);
         }
     }
     
     /**
      * Authenticates a user with username and password
      * 
+     * Read from a replica, then from the primary if not found there
+     * 
      * @param username The username to authenticate
      * @param password The password to verify
      * @return User ID if authentication succeeds, -1 if it fails
      */
     public int login(String username, String password) {
-        if (connection == null) {
-            System.err.println("[DatabaseManager] No database connection!");
+        // Read from a replica; a user it does not know yet may have just been
+        // created on the primary, so a miss is checked there
+        Connection conn = readConnection(ReplicaPool.NO_KEY);
+        if (conn == null) {
             return -1;
         }
+        int userId;
+        try {
+            userId = findLogin(conn, username, password);
+        } finally {
+            release(conn);
+        }
+        if (userId < 0 && !isPooled(conn)) {
+            Connection primary = acquire();
+            if (primary == null) {
+                return -1;
+            }
+            try {
+                userId = findLogin(primary, username, password);
+            } finally {
+                release(primary);
+            }
+        }
         
+        if (userId > 0) {
+            System.out.println("[DatabaseManager] User '" + username + "' logged in successfully (ID: " + userId + ")");
+        } else if (userId == -1) {
+            System.out.println("[DatabaseManager] Login failed for user '" + username + "'");
+        }
+        return userId > 0 ? userId : -1;
+    }
+    
+    /**
+     * @return the user ID, -1 if the credentials do not match, -2 on error
+     */
+    private int findLogin(Connection conn, String username, String password) {
         try {
             // Prepare SQL query to find user by username and password
             String sql = "SELECT id FROM users WHERE username = ? AND password = ?";
-            PreparedStatement stmt = connection.prepareStatement(sql);
-            stmt.setString(1, username);
-            stmt.setString(2, password); // In production, use hashed passwords!
-            
-            ResultSet rs = stmt.executeQuery();
-            
-            if (rs.next()) {
-                int userId = rs.getInt("id");
-                System.out.println("[DatabaseManager] User '" + username + "' logged in successfully (ID: " + userId + ")");
-                return userId;
-            } else {
-                System.out.println("[DatabaseManager] Login failed for user '" + username + "'");
-                return -1;
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, username);
+                stmt.setString(2, password); // In production, use hashed passwords!
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getInt("id") : -1;
+                }
             }
         } catch (SQLException e) {
+            readFailed(conn);
             System.err.println("[DatabaseManager] Error during login: " + e.getMessage());
             e.printStackTrace();
-            return -1;
+            return -2;
         }
     }
     
     /**
      * Searches for users by username (partial match)
      * 
+     * Read from a replica: users are never written by the server
+     * 
      * @param searchTerm The search term (can be partial username)
      * @param excludeUserId User ID to exclude from results (usually the current user)
      * @return List of usernames matching the search term
@@ -95,29 +413,32 @@ public class DatabaseManager {
     public List<String> searchUsers(String searchTerm, int excludeUserId) {
         List<String> users = new ArrayList<>();
         
-        if (connection == null) {
-            System.err.println("[DatabaseManager] No database connection!");
+        Connection conn = readConnection(ReplicaPool.NO_KEY);
+        if (conn == null) {
             return users;
         }
-        
         try {
             // Search for users whose username contains the search term
             // Exclude the current user from results
             String sql = "SELECT username FROM users WHERE username LIKE ? AND id != ?";
-            PreparedStatement stmt = connection.prepareStatement(sql);
-            stmt.setString(1, "%" + searchTerm + "%"); // % allows partial matching
-            stmt.setInt(2, excludeUserId);
-            
-            ResultSet rs = stmt.executeQuery();
-            
-            while (rs.next()) {
-                users.add(rs.getString("username"));
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, "%" + searchTerm + "%"); // % allows partial matching
+                stmt.setInt(2, excludeUserId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        users.add(rs.getString("username"));
+                    }
+                }
             }
             
             System.out.println("[DatabaseManager] Found " + users.size() + " users matching '" + searchTerm + "'");
         } catch (SQLException e) {
+            readFailed(conn);
             System.err.println("[DatabaseManager] Error during user search: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            release(conn);
         }
         
         return users;
@@ -129,42 +450,33 @@ public class DatabaseManager {
      * CRUCIAL LOGIC: This method enforces the rule that
      * "Two users can share only ONE individual conversation channel"
      * 
-     * Steps:
-     * 1. Check if a 'single' type conversation already exists
-     *    between the two users
-     * 2. If exists, return the existing conversation ID
-     * 3. If not, create a new conversation and add both users
-     *    as participants
+     * The pair is stored canonically in conversations
+     * (pair_min_user_id, pair_max_user_id), which has a UNIQUE key:
+     * 1. Look the pair up with one indexed probe
+     * 2. If not found, INSERT IGNORE the conversation. If another
+     *    request created the same pair concurrently, the unique key
+     *    makes this insert a no-op (it waits for the other transaction)
+     *    and the winner's conversation is read back instead
+     * 3. Only the request that inserted the row adds the participants
+     *    and inbox entries
      * 
      * @param userId1 ID of the first user
      * @param userId2 ID of the second user
      * @return Conversation ID (existing or newly created), or -1 on error
      */
     public int getOrCreateConversation(int userId1, int userId2) {
+        Connection connection = acquire();
         if (connection == null) {
-            System.err.println("[DatabaseManager] No database connection!");
             return -1;
         }
         
+        int minUserId = Math.min(userId1, userId2);
+        int maxUserId = Math.max(userId1, userId2);
+        
         try {
             // First, check if a conversation already exists between these two users
-            // We need to find a 'single' type conversation where both users are participants
-            String checkSql = "SELECT c.id FROM conversations c " +
-                             "INNER JOIN participants p1 ON c.id = p1.conversation_id " +
-                             "INNER JOIN participants p2 ON c.id = p2.conversation_id " +
-                             "WHERE c.type = 'single' " +
-                             "AND p1.user_id = ? AND p2.user_id = ? " +
-                             "AND p1.user_id != p2.user_id";
-            
-            PreparedStatement checkStmt = connection.prepareStatement(checkSql);
-            checkStmt.setInt(1, userId1);
-            checkStmt.setInt(2, userId2);
-            
-            ResultSet rs = checkStmt.executeQuery();
-            
-            if (rs.next()) {
-                // Conversation already exists
-                int existingConversationId = rs.getInt("id");
+            int existingConversationId = findDirectConversation(connection, minUserId, maxUserId);
+            if (existingConversationId != -1) {
                 System.out.println("[DatabaseManager] Found existing conversation (ID: " + existingConversationId + 
                                  ") between users " + userId1 + " and " + userId2);
                 return existingConversationId;
@@ -175,42 +487,62 @@ public class DatabaseManager {
             connection.setAutoCommit(false);
             
             try {
-                // Step 1: Create a new 'single' type conversation
-                String insertConversationSql = "INSERT INTO conversations (type) VALUES ('single')";
-                PreparedStatement insertConvStmt = connection.prepareStatement(
-                    insertConversationSql, Statement.RETURN_GENERATED_KEYS);
-                insertConvStmt.executeUpdate();
-                
-                // Get the generated conversation ID
-                ResultSet generatedKeys = insertConvStmt.getGeneratedKeys();
-                int newConversationId = -1;
-                if (generatedKeys.next()) {
-                    newConversationId = generatedKeys.getInt(1);
+                // Step 1: Create a new 'single' type conversation (no-op if the pair exists)
+                String insertConversationSql = "INSERT IGNORE INTO conversations " +
+                                              "(type, member_count, pair_min_user_id, pair_max_user_id) " +
+                                              "VALUES ('single', 2, ?, ?)";
+                try (PreparedStatement insertConvStmt = connection.prepareStatement(
+                        insertConversationSql, Statement.RETURN_GENERATED_KEYS)) {
+                    insertConvStmt.setInt(1, minUserId);
+                    insertConvStmt.setInt(2, maxUserId);
+                    
+                    if (insertConvStmt.executeUpdate() == 0) {
+                        // Lost the race: the other request's conversation is committed now
+                        connection.commit();
+                        connection.setAutoCommit(true);
+                        int winnerId = findDirectConversation(connection, minUserId, maxUserId);
+                        System.out.println("[DatabaseManager] Conversation between users " + userId1 + " and " +
+                                         userId2 + " was created concurrently (ID: " + winnerId + ")");
+                        return winnerId;
+                    }
+                    
+                    // Get the generated conversation ID
+                    int newConversationId = -1;
+                    try (ResultSet generatedKeys = insertConvStmt.getGeneratedKeys()) {
+                        if (generatedKeys.next()) {
+                            newConversationId = generatedKeys.getInt(1);
+                        }
+                    }
+                    
+                    // Step 2: Add both users as participants
+                    String insertParticipantSql = "INSERT INTO participants (conversation_id, user_id) VALUES (?, ?)";
+                    try (PreparedStatement insertPartStmt = connection.prepareStatement(insertParticipantSql)) {
+                        insertPartStmt.setInt(1, newConversationId);
+                        insertPartStmt.setInt(2, userId1);
+                        insertPartStmt.addBatch();
+                        insertPartStmt.setInt(1, newConversationId);
+                        insertPartStmt.setInt(2, userId2);
+                        insertPartStmt.addBatch();
+                        insertPartStmt.executeBatch();
+                    }
+                    
+                    // Step 3: Create an inbox entry for each user.
+                    // The title of a single conversation is the other user's name.
+                    long now = System.currentTimeMillis();
+                    insertSingleInboxEntry(connection, newConversationId, userId1, userId2, now);
+                    insertSingleInboxEntry(connection, newConversationId, userId2, userId1, now);
+                    
+                    // Commit the transaction
+                    connection.commit();
+                    connection.setAutoCommit(true);
+                    wrote(ReplicaPool.conversationKey(newConversationId), ReplicaPool.userKey(userId1),
+                          ReplicaPool.userKey(userId2));
+                    
+                    System.out.println("[DatabaseManager] Created new conversation (ID: " + newConversationId + 
+                                     ") between users " + userId1 + " and " + userId2);
+                    return newConversationId;
                 }
                 
-                // Step 2: Add both users as participants
-                String insertParticipantSql = "INSERT INTO participants (conversation_id, user_id) VALUES (?, ?)";
-                
-                // Add first user
-                PreparedStatement insertPartStmt1 = connection.prepareStatement(insertParticipantSql);
-                insertPartStmt1.setInt(1, newConversationId);
-                insertPartStmt1.setInt(2, userId1);
-                insertPartStmt1.executeUpdate();
-                
-                // Add second user
-                PreparedStatement insertPartStmt2 = connection.prepareStatement(insertParticipantSql);
-                insertPartStmt2.setInt(1, newConversationId);
-                insertPartStmt2.setInt(2, userId2);
-                insertPartStmt2.executeUpdate();
-                
-                // Commit the transaction
-                connection.commit();
-                connection.setAutoCommit(true);
-                
-                System.out.println("[DatabaseManager] Created new conversation (ID: " + newConversationId + 
-                                 ") between users " + userId1 + " and " + userId2);
-                return newConversationId;
-                
             } catch (SQLException e) {
                 // Rollback on error
                 connection.rollback();
@@ -222,32 +554,57 @@ public class DatabaseManager {
             System.err.println("[DatabaseManager] Error getting/creating conversation: " + e.getMessage());
             e.printStackTrace();
             return -1;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Looks up the direct conversation of a canonical pair (unique key probe)
+     * 
+     * @return The conversation ID, or -1 if there is none
+     */
+    private int findDirectConversation(Connection connection, int minUserId, int maxUserId) throws SQLException {
+        String sql = "SELECT id FROM conversations WHERE pair_min_user_id = ? AND pair_max_user_id = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setInt(1, minUserId);
+            stmt.setInt(2, maxUserId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt("id") : -1;
+            }
         }
     }
     
     /**
      * Gets the username by user ID
      * 
+     * Read from a replica: users are never written by the server
+     * 
      * @param userId The user ID
      * @return Username or null if not found
      */
     public String getUsernameById(int userId) {
-        if (connection == null) {
+        Connection conn = readConnection(ReplicaPool.NO_KEY);
+        if (conn == null) {
             return null;
         }
-        
         try {
             String sql = "SELECT username FROM users WHERE id = ?";
-            PreparedStatement stmt = connection.prepareStatement(sql);
-            stmt.setInt(1, userId);
-            
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("username");
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, userId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getString("username");
+                    }
+                }
             }
         } catch (SQLException e) {
+            readFailed(conn);
             System.err.println("[DatabaseManager] Error getting username: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            release(conn);
         }
         
         return null;
@@ -256,24 +613,50 @@ public class DatabaseManager {
     /**
      * Gets the user ID by username
      * 
+     * Read from a replica, then from the primary if not found there
+     * 
      * @param username The username
      * @return User ID or -1 if not found
      */
     public int getUserIdByUsername(String username) {
-        if (connection == null) {
+        Connection conn = readConnection(ReplicaPool.NO_KEY);
+        if (conn == null) {
             return -1;
         }
-        
+        int userId;
+        try {
+            userId = findUserId(conn, username);
+        } finally {
+            release(conn);
+        }
+        if (userId == -1 && !isPooled(conn)) {
+            Connection primary = acquire();
+            if (primary == null) {
+                return -1;
+            }
+            try {
+                userId = findUserId(primary, username);
+            } finally {
+                release(primary);
+            }
+        }
+        return userId;
+    }
+    
+    private int findUserId(Connection conn, String username) {
         try {
             String sql = "SELECT id FROM users WHERE username = ?";
-            PreparedStatement stmt = connection.prepareStatement(sql);
-            stmt.setString(1, username);
-            
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("id");
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, username);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getInt("id");
+                    }
+                }
             }
         } catch (SQLException e) {
+            readFailed(conn);
             System.err.println("[DatabaseManager] Error getting user ID: " + e.getMessage());
             e.printStackTrace();
         }
@@ -281,6 +664,54 @@ public class DatabaseManager {
         return -1;
     }
     
+    /**
+     * Resolves many usernames at once (IN queries of BULK_CHUNK_SIZE names)
+     * 
+     * Read from a replica: users are never written by the server
+     * 
+     * @param usernames The usernames
+     * @return username -> user ID, for the usernames that exist
+     */
+    public Map<String, Integer> getUserIdsByUsernames(Collection<String> usernames) {
+        Map<String, Integer> ids = new HashMap<>();
+        
+        if (usernames.isEmpty()) {
+            return ids;
+        }
+        
+        List<String> names = new ArrayList<>(usernames);
+        Connection conn = readConnection(ReplicaPool.NO_KEY);
+        if (conn == null) {
+            return ids;
+        }
+        try {
+            for (int from = 0; from < names.size(); from += BULK_CHUNK_SIZE) {
+                List<String> chunk = names.subList(from, Math.min(from + BULK_CHUNK_SIZE, names.size()));
+                String sql = "SELECT id, username FROM users WHERE username IN (" +
+                            String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        stmt.setString(i + 1, chunk.get(i));
+                    }
+                    
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            ids.put(rs.getString("username"), rs.getInt("id"));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            readFailed(conn);
+            System.err.println("[DatabaseManager] Error getting user IDs: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            release(conn);
+        }
+        
+        return ids;
+    }
+    
     /**
      * Gets the other participant's user ID in a conversation
      * 
@@ -289,36 +720,42 @@ public class DatabaseManager {
      * @return The other participant's user ID, or -1 if not found
      */
     public int getOtherParticipantId(int conversationId, int currentUserId) {
+        Connection connection = acquire();
         if (connection == null) {
             return -1;
         }
         
         try {
             String sql = "SELECT user_id FROM participants WHERE conversation_id = ? AND user_id != ?";
-            PreparedStatement stmt = connection.prepareStatement(sql);
-            stmt.setInt(1, conversationId);
-            stmt.setInt(2, currentUserId);
-            
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("user_id");
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setInt(1, conversationId);
+                stmt.setInt(2, currentUserId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getInt("user_id");
+                    }
+                }
             }
         } catch (SQLException e) {
             System.err.println("[DatabaseManager] Error getting other participant: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            release(connection);
         }
         
         return -1;
     }
     
     /**
-     * Creates a new group conversation
+     * Creates a new group conversation; the creator is its first admin
      * 
      * @param creatorUserId The user ID of the group creator
      * @param groupName The name of the group
      * @return Group conversation ID, or -1 on error
      */
     public int createGroup(int creatorUserId, String groupName) {
+        Connection connection = acquire();
         if (connection == null) {
             return -1;
         }
@@ -327,27 +764,45 @@ public class DatabaseManager {
             connection.setAutoCommit(false);
             
             // Create a new 'group' type conversation
-            String insertConversationSql = "INSERT INTO conversations (type) VALUES ('group')";
-            PreparedStatement insertConvStmt = connection.prepareStatement(
-                insertConversationSql, Statement.RETURN_GENERATED_KEYS);
-            insertConvStmt.executeUpdate();
-            
-            // Get the generated conversation ID
-            ResultSet generatedKeys = insertConvStmt.getGeneratedKeys();
+            String insertConversationSql = "INSERT INTO conversations (type, name, member_count) " +
+                                          "VALUES ('group', ?, 1)";
             int groupId = -1;
-            if (generatedKeys.next()) {
-                groupId = generatedKeys.getInt(1);
+            try (PreparedStatement insertConvStmt = connection.prepareStatement(
+                    insertConversationSql, Statement.RETURN_GENERATED_KEYS)) {
+                insertConvStmt.setString(1, groupName);
+                insertConvStmt.executeUpdate();
+                
+                // Get the generated conversation ID
+                try (ResultSet generatedKeys = insertConvStmt.getGeneratedKeys()) {
+                    if (generatedKeys.next()) {
+                        groupId = generatedKeys.getInt(1);
+                    }
+                }
+            }
+            
+            // Add creator as participant (admin: may remove other members)
+            String insertParticipantSql = "INSERT INTO participants (conversation_id, user_id, role) " +
+                                         "VALUES (?, ?, 'admin')";
+            try (PreparedStatement insertPartStmt = connection.prepareStatement(insertParticipantSql)) {
+                insertPartStmt.setInt(1, groupId);
+                insertPartStmt.setInt(2, creatorUserId);
+                insertPartStmt.executeUpdate();
             }
             
-            // Add creator as participant
-            String insertParticipantSql = "INSERT INTO participants (conversation_id, user_id) VALUES (?, ?)";
-            PreparedStatement insertPartStmt = connection.prepareStatement(insertParticipantSql);
-            insertPartStmt.setInt(1, groupId);
-            insertPartStmt.setInt(2, creatorUserId);
-            insertPartStmt.executeUpdate();
+            // Create the creator's inbox entry (title = group name)
+            String insertInboxSql = "INSERT INTO inbox (user_id, conversation_id, type, title, last_activity) " +
+                                   "VALUES (?, ?, 'group', ?, ?)";
+            try (PreparedStatement insertInboxStmt = connection.prepareStatement(insertInboxSql)) {
+                insertInboxStmt.setInt(1, creatorUserId);
+                insertInboxStmt.setInt(2, groupId);
+                insertInboxStmt.setString(3, groupName);
+                insertInboxStmt.setLong(4, System.currentTimeMillis());
+                insertInboxStmt.executeUpdate();
+            }
             
             connection.commit();
             connection.setAutoCommit(true);
+            wrote(ReplicaPool.conversationKey(groupId), ReplicaPool.userKey(creatorUserId));
             
             System.out.println("[DatabaseManager] Created group (ID: " + groupId + ") by user " + creatorUserId);
             return groupId;
@@ -362,142 +817,1531 @@ public class DatabaseManager {
             System.err.println("[DatabaseManager] Error creating group: " + e.getMessage());
             e.printStackTrace();
             return -1;
+        } finally {
+            release(connection);
         }
     }
     
     /**
-     * Adds a user to a group conversation
+     * Creates a broadcast channel; the creator is its first admin.
+     * No inbox entry is created: channels are listed from participants.
      * 
-     * @param groupId The group conversation ID
-     * @param userId The user ID to add
-     * @return true if successful, false otherwise
+     * @param creatorUserId The user creating the channel
+     * @param channelName The channel name
+     * @return The channel (conversation) ID, or -1 on error
      */
-    public boolean joinGroup(int groupId, int userId) {
+    public int createChannel(int creatorUserId, String channelName) {
+        Connection connection = acquire();
         if (connection == null) {
-            return false;
+            return -1;
         }
         
         try {
-            // Check if conversation is a group
-            String checkSql = "SELECT type FROM conversations WHERE id = ? AND type = 'group'";
-            PreparedStatement checkStmt = connection.prepareStatement(checkSql);
-            checkStmt.setInt(1, groupId);
-            ResultSet rs = checkStmt.executeQuery();
+            connection.setAutoCommit(false);
             
-            if (!rs.next()) {
-                System.out.println("[DatabaseManager] Conversation " + groupId + " is not a group");
-                return false;
+            String insertConversationSql = "INSERT INTO conversations (type, name, member_count) " +
+                                          "VALUES ('channel', ?, 1)";
+            int channelId = -1;
+            try (PreparedStatement insertConvStmt = connection.prepareStatement(
+                    insertConversationSql, Statement.RETURN_GENERATED_KEYS)) {
+                insertConvStmt.setString(1, channelName);
+                insertConvStmt.executeUpdate();
+                
+                try (ResultSet generatedKeys = insertConvStmt.getGeneratedKeys()) {
+                    if (generatedKeys.next()) {
+                        channelId = generatedKeys.getInt(1);
+                    }
+                }
             }
             
-            // Check if user is already a member
-            String checkMemberSql = "SELECT user_id FROM participants WHERE conversation_id = ? AND user_id = ?";
-            PreparedStatement checkMemberStmt = connection.prepareStatement(checkMemberSql);
-            checkMemberStmt.setInt(1, groupId);
-            checkMemberStmt.setInt(2, userId);
-            ResultSet memberRs = checkMemberStmt.executeQuery();
-            
-            if (memberRs.next()) {
-                System.out.println("[DatabaseManager] User " + userId + " is already a member of group " + groupId);
-                return true; // Already a member, consider it success
+            String insertParticipantSql = "INSERT INTO participants (conversation_id, user_id, role) " +
+                                         "VALUES (?, ?, 'admin')";
+            try (PreparedStatement insertPartStmt = connection.prepareStatement(insertParticipantSql)) {
+                insertPartStmt.setInt(1, channelId);
+                insertPartStmt.setInt(2, creatorUserId);
+                insertPartStmt.executeUpdate();
             }
             
-            // Add user to group
-            String insertSql = "INSERT INTO participants (conversation_id, user_id) VALUES (?, ?)";
-            PreparedStatement insertStmt = connection.prepareStatement(insertSql);
-            insertStmt.setInt(1, groupId);
-            insertStmt.setInt(2, userId);
-            insertStmt.executeUpdate();
+            connection.commit();
+            connection.setAutoCommit(true);
+            wrote(ReplicaPool.conversationKey(channelId), ReplicaPool.userKey(creatorUserId));
             
-            System.out.println("[DatabaseManager] User " + userId + " joined group " + groupId);
-            return true;
+            System.out.println("[DatabaseManager] Created channel (ID: " + channelId + ") by user " + creatorUserId);
+            return channelId;
             
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error joining group: " + e.getMessage());
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException rollbackEx) {
+                System.err.println("[DatabaseManager] Error during rollback: " + rollbackEx.getMessage());
+            }
+            System.err.println("[DatabaseManager] Error creating channel: " + e.getMessage());
             e.printStackTrace();
-            return false;
+            return -1;
+        } finally {
+            release(connection);
         }
     }
     
     /**
-     * Gets all members of a group conversation
+     * Subscribes a user to a channel as a reader. The read cursor starts at
+     * the channel's current head: past messages are history, not unread.
      * 
-     * @param groupId The group conversation ID
-     * @return List of user IDs in the group, or empty list on error
+     * @param channelId The channel (conversation) ID
+     * @param userId The user ID
+     * @return true if subscribed (or already subscribed), false if the
+     *         conversation is not a channel or on error
      */
-    public List<Integer> getGroupMembers(int groupId) {
-        List<Integer> members = new ArrayList<>();
-        
+    public boolean subscribeChannel(int channelId, int userId) {
+        Connection connection = acquire();
         if (connection == null) {
-            return members;
+            return false;
         }
         
         try {
-            String sql = "SELECT user_id FROM participants WHERE conversation_id = ?";
-            PreparedStatement stmt = connection.prepareStatement(sql);
-            stmt.setInt(1, groupId);
+            connection.setAutoCommit(false);
             
-            ResultSet rs = stmt.executeQuery();
+            String insertSql = "INSERT IGNORE INTO participants (conversation_id, user_id, role, last_read_seq) " +
+                              "SELECT id, ?, 'member', last_seq FROM conversations WHERE id = ? AND type = 'channel'";
+            int inserted;
+            try (PreparedStatement insertStmt = connection.prepareStatement(insertSql)) {
+                insertStmt.setInt(1, userId);
+                insertStmt.setInt(2, channelId);
+                inserted = insertStmt.executeUpdate();
+            }
             
-            while (rs.next()) {
-                members.add(rs.getInt("user_id"));
+            if (inserted > 0) {
+                String countSql = "UPDATE conversations SET member_count = member_count + 1 WHERE id = ?";
+                try (PreparedStatement countStmt = connection.prepareStatement(countSql)) {
+                    countStmt.setInt(1, channelId);
+                    countStmt.executeUpdate();
+                }
+            } else if (!isChannelParticipant(connection, channelId, userId)) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+                System.out.println("[DatabaseManager] Conversation " + channelId + " is not a channel");
+                return false;
             }
             
-            System.out.println("[DatabaseManager] Group " + groupId + " has " + members.size() + " members");
+            connection.commit();
+            connection.setAutoCommit(true);
+            wrote(ReplicaPool.conversationKey(channelId), ReplicaPool.userKey(userId));
+            return true;
+            
         } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error getting group members: " + e.getMessage());
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException rollbackEx) {
+                System.err.println("[DatabaseManager] Error during rollback: " + rollbackEx.getMessage());
+            }
+            System.err.println("[DatabaseManager] Error subscribing to channel: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * @return true if the user is already in the participants of the channel
+     */
+    private boolean isChannelParticipant(Connection connection, int channelId, int userId) throws SQLException {
+        String sql = "SELECT 1 FROM participants p INNER JOIN conversations c ON c.id = p.conversation_id " +
+                    "WHERE p.conversation_id = ? AND p.user_id = ? AND c.type = 'channel'";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setInt(1, channelId);
+            stmt.setInt(2, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+    
+    /**
+     * Adds a user to a group conversation
+     * 
+     * @param groupId The group conversation ID
+     * @param userId The user ID to add
+     * @return true if successful (or already a member), false otherwise
+     */
+    public boolean joinGroup(int groupId, int userId) {
+        return addGroupMembers(groupId, Collections.singletonList(userId)) != -1;
+    }
+    
+    /**
+     * Adds users to a group in one transaction
+     * 
+     * Participants and inbox entries are written with batched
+     * INSERT IGNORE statements (BULK_CHUNK_SIZE rows per round-trip),
+     * so users that are already members are skipped without a
+     * per-user membership check. New inbox entries copy the group
+     * title and last message preview from an existing member's entry.
+     * 
+     * @param groupId The group conversation ID
+     * @param userIds The users to add (existing user IDs)
+     * @return Number of users actually added, or -1 if the conversation
+     *         is not a group or on error
+     */
+    public int addGroupMembers(int groupId, List<Integer> userIds) {
+        Connection connection = acquire();
+        if (connection == null) {
+            return -1;
+        }
+        
+        try {
+            connection.setAutoCommit(false);
+            
+            // Lock the group row: concurrent bulk changes to one group are serialized
+            if (!lockGroup(connection, groupId)) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+                System.out.println("[DatabaseManager] Conversation " + groupId + " is not a group");
+                return -1;
+            }
+            int before = countParticipants(connection, groupId);
+            
+            String title = "Group " + groupId;
+            String preview = null;
+            String titleSql = "SELECT title, last_message_preview FROM inbox WHERE conversation_id = ? LIMIT 1";
+            try (PreparedStatement titleStmt = connection.prepareStatement(titleSql)) {
+                titleStmt.setInt(1, groupId);
+                try (ResultSet titleRs = titleStmt.executeQuery()) {
+                    if (titleRs.next()) {
+                        title = titleRs.getString("title");
+                        preview = titleRs.getString("last_message_preview");
+                    }
+                }
+            }
+            
+            String insertParticipantSql = "INSERT IGNORE INTO participants (conversation_id, user_id) VALUES (?, ?)";
+            String insertInboxSql = "INSERT IGNORE INTO inbox " +
+                                   "(user_id, conversation_id, type, title, last_message_preview, last_activity) " +
+                                   "VALUES (?, ?, 'group', ?, ?, ?)";
+            try (PreparedStatement insertPartStmt = connection.prepareStatement(insertParticipantSql);
+                 PreparedStatement insertInboxStmt = connection.prepareStatement(insertInboxSql)) {
+                long now = System.currentTimeMillis();
+                int pending = 0;
+                for (Integer userId : userIds) {
+                    insertPartStmt.setInt(1, groupId);
+                    insertPartStmt.setInt(2, userId);
+                    insertPartStmt.addBatch();
+                    
+                    insertInboxStmt.setInt(1, userId);
+                    insertInboxStmt.setInt(2, groupId);
+                    insertInboxStmt.setString(3, title);
+                    insertInboxStmt.setString(4, preview);
+                    insertInboxStmt.setLong(5, now);
+                    insertInboxStmt.addBatch();
+                    
+                    if (++pending == BULK_CHUNK_SIZE) {
+                        insertPartStmt.executeBatch();
+                        insertInboxStmt.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    insertPartStmt.executeBatch();
+                    insertInboxStmt.executeBatch();
+                }
+            }
+            
+            // Batched INSERT IGNORE does not report per-row counts reliably; count instead
+            int after = countParticipants(connection, groupId);
+            int added = after - before;
+            updateMemberCount(connection, groupId, after);
+            
+            connection.commit();
+            connection.setAutoCommit(true);
+            wroteMembers(groupId, userIds);
+            
+            System.out.println("[DatabaseManager] Added " + added + " of " + userIds.size() +
+                             " users to group " + groupId);
+            return added;
+            
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException rollbackEx) {
+                System.err.println("[DatabaseManager] Error during rollback: " + rollbackEx.getMessage());
+            }
+            System.err.println("[DatabaseManager] Error adding group members: " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Removes users from a group in one transaction (batched deletes of
+     * their participant rows and inbox entries; non-members are ignored)
+     * 
+     * @param groupId The group conversation ID
+     * @param userIds The users to remove
+     * @return Number of users actually removed, or -1 if the conversation
+     *         is not a group or on error
+     */
+    public int removeGroupMembers(int groupId, List<Integer> userIds) {
+        Connection connection = acquire();
+        if (connection == null) {
+            return -1;
+        }
+        
+        try {
+            connection.setAutoCommit(false);
+            
+            if (!lockGroup(connection, groupId)) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+                System.out.println("[DatabaseManager] Conversation " + groupId + " is not a group");
+                return -1;
+            }
+            int before = countParticipants(connection, groupId);
+            
+            String deleteParticipantSql = "DELETE FROM participants WHERE conversation_id = ? AND user_id = ?";
+            String deleteInboxSql = "DELETE FROM inbox WHERE user_id = ? AND conversation_id = ?";
+            try (PreparedStatement deletePartStmt = connection.prepareStatement(deleteParticipantSql);
+                 PreparedStatement deleteInboxStmt = connection.prepareStatement(deleteInboxSql)) {
+                int pending = 0;
+                for (Integer userId : userIds) {
+                    deletePartStmt.setInt(1, groupId);
+                    deletePartStmt.setInt(2, userId);
+                    deletePartStmt.addBatch();
+                    
+                    deleteInboxStmt.setInt(1, userId);
+                    deleteInboxStmt.setInt(2, groupId);
+                    deleteInboxStmt.addBatch();
+                    
+                    if (++pending == BULK_CHUNK_SIZE) {
+                        deletePartStmt.executeBatch();
+                        deleteInboxStmt.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    deletePartStmt.executeBatch();
+                    deleteInboxStmt.executeBatch();
+                }
+            }
+            
+            int after = countParticipants(connection, groupId);
+            int removed = before - after;
+            updateMemberCount(connection, groupId, after);
+            
+            connection.commit();
+            connection.setAutoCommit(true);
+            wroteMembers(groupId, userIds);
+            
+            System.out.println("[DatabaseManager] Removed " + removed + " of " + userIds.size() +
+                             " users from group " + groupId);
+            return removed;
+            
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException rollbackEx) {
+                System.err.println("[DatabaseManager] Error during rollback: " + rollbackEx.getMessage());
+            }
+            System.err.println("[DatabaseManager] Error removing group members: " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Locks a group's conversation row for the current transaction
+     * 
+     * @return false if the conversation does not exist or is not a group
+     */
+    private boolean lockGroup(Connection connection, int groupId) throws SQLException {
+        String sql = "SELECT id FROM conversations WHERE id = ? AND type = 'group' FOR UPDATE";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setInt(1, groupId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+    
+    private int countParticipants(Connection connection, int conversationId) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM participants WHERE conversation_id = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setInt(1, conversationId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+    
+    private void updateMemberCount(Connection connection, int conversationId, int memberCount) throws SQLException {
+        String sql = "UPDATE conversations SET member_count = ? WHERE id = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setInt(1, memberCount);
+            stmt.setInt(2, conversationId);
+            stmt.executeUpdate();
+        }
+    }
+    
+    /**
+     * Loads a conversation's type, name and members in one query
+     * 
+     * Read from a replica, unless the conversation was just written
+     * 
+     * @param conversationId The conversation ID
+     * @return The descriptor, or null if the conversation does not exist (or on error)
+     */
+    public ConversationDescriptor getConversationDescriptor(int conversationId) {
+        Connection conn = readConnection(ReplicaPool.conversationKey(conversationId));
+        if (conn == null) {
+            return null;
+        }
+        try {
+            // Channels: admins only, the readers are counted (member_count), not loaded
+            String sql = "SELECT c.type, c.name, c.member_count, p.user_id, u.username FROM conversations c " +
+                        "INNER JOIN participants p ON p.conversation_id = c.id " +
+                        "INNER JOIN users u ON u.id = p.user_id " +
+                        "WHERE c.id = ? AND (c.type <> 'channel' OR p.role = 'admin')";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, conversationId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    String type = null;
+                    String name = null;
+                    int memberCount = 0;
+                    List<Integer> memberIds = new ArrayList<>();
+                    List<String> memberNames = new ArrayList<>();
+                    while (rs.next()) {
+                        type = rs.getString("type");
+                        name = rs.getString("name");
+                        memberCount = rs.getInt("member_count");
+                        memberIds.add(rs.getInt("user_id"));
+                        memberNames.add(rs.getString("username"));
+                    }
+                    
+                    if (type == null) {
+                        return null;
+                    }
+                    
+                    boolean group = ConversationDescriptor.TYPE_GROUP.equals(type);
+                    if (group && name == null) {
+                        name = "Group " + conversationId; // Created before names were stored
+                    }
+                    if (ConversationDescriptor.TYPE_CHANNEL.equals(type)) {
+                        return new ConversationDescriptor(conversationId, type, name, memberIds, null, memberCount);
+                    }
+                    return new ConversationDescriptor(conversationId, type, name, memberIds, group ? null : memberNames);
+                }
+            }
+        } catch (SQLException e) {
+            readFailed(conn);
+            System.err.println("[DatabaseManager] Error loading conversation: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } finally {
+            release(conn);
+        }
+    }
+    
+    /**
+     * Gets all members of a group conversation
+     * 
+     * Read from a replica, unless the group was just written
+     * 
+     * @param groupId The group conversation ID
+     * @return List of user IDs in the group, or empty list on error
+     */
+    public List<Integer> getGroupMembers(int groupId) {
+        List<Integer> members = new ArrayList<>();
+        
+        Connection conn = readConnection(ReplicaPool.conversationKey(groupId));
+        if (conn == null) {
+            return members;
+        }
+        try {
+            String sql = "SELECT user_id FROM participants WHERE conversation_id = ?";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, groupId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        members.add(rs.getInt("user_id"));
+                    }
+                }
+            }
+            
+            System.out.println("[DatabaseManager] Group " + groupId + " has " + members.size() + " members");
+        } catch (SQLException e) {
+            readFailed(conn);
+            System.err.println("[DatabaseManager] Error getting group members: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            release(conn);
         }
         
         return members;
     }
     
     /**
-     * Gets all groups that a user is a member of
+     * Checks whether a user is an admin of a group
+     * 
+     * Read from a replica, unless the group was just written
+     * 
+     * @param groupId The group conversation ID
+     * @param userId The user ID
+     * @return true if the user is an admin of the group, false otherwise or on error
+     */
+    public boolean isGroupAdmin(int groupId, int userId) {
+        Connection conn = readConnection(ReplicaPool.conversationKey(groupId));
+        if (conn == null) {
+            return false;
+        }
+        try {
+            String sql = "SELECT 1 FROM participants WHERE conversation_id = ? AND user_id = ? AND role = 'admin'";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, groupId);
+                stmt.setInt(2, userId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next();
+                }
+            }
+        } catch (SQLException e) {
+            readFailed(conn);
+            System.err.println("[DatabaseManager] Error checking group admin: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            release(conn);
+        }
+    }
+    
+    /**
+     * Gets all conversations (single and group) that a user is a member of.
+     * Channels are not included (see getUserChannelIds).
+     * 
+     * Read from a replica, unless the user's memberships were just written
+     * 
+     * @param userId The user ID
+     * @return List of conversation IDs, or empty list on error
+     */
+    public List<Integer> getUserConversationIds(int userId) {
+        List<Integer> conversations = new ArrayList<>();
+        
+        Connection conn = readConnection(ReplicaPool.userKey(userId));
+        if (conn == null) {
+            return conversations;
+        }
+        try {
+            String sql = "SELECT p.conversation_id FROM participants p " +
+                        "INNER JOIN conversations c ON c.id = p.conversation_id " +
+                        "WHERE p.user_id = ? AND c.type <> 'channel'";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, userId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        conversations.add(rs.getInt("conversation_id"));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            readFailed(conn);
+            System.err.println("[DatabaseManager] Error getting user conversations: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            release(conn);
+        }
+        
+        return conversations;
+    }
+    
+    /**
+     * Gets all channels that a user is subscribed to (admin or reader)
+     * 
+     * Read from a replica, unless the user's memberships were just written
+     * 
+     * @param userId The user ID
+     * @return List of channel IDs, or empty list on error
+     */
+    public List<Integer> getUserChannelIds(int userId) {
+        List<Integer> channels = new ArrayList<>();
+        
+        Connection conn = readConnection(ReplicaPool.userKey(userId));
+        if (conn == null) {
+            return channels;
+        }
+        try {
+            String sql = "SELECT p.conversation_id FROM participants p " +
+                        "INNER JOIN conversations c ON c.id = p.conversation_id " +
+                        "WHERE p.user_id = ? AND c.type = 'channel'";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, userId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        channels.add(rs.getInt("conversation_id"));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            readFailed(conn);
+            System.err.println("[DatabaseManager] Error getting user channels: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            release(conn);
+        }
+        
+        return channels;
+    }
+    
+    /**
+     * Gets the channel list of a user: each channel's head and the user's
+     * unread count, computed from the read cursor (no per-reader rows are
+     * written when a channel gets a message)
      * 
      * @param userId The user ID
-     * @return List of group conversation IDs
+     * @return List of channel entries, most recent activity first, or empty list on error
      */
-    public List<Integer> getUserGroups(int userId) {
-        List<Integer> groups = new ArrayList<>();
+    public List<ChannelEntry> getUserChannels(int userId) {
+        List<ChannelEntry> channels = new ArrayList<>();
         
+        Connection connection = acquire();
         if (connection == null) {
-            return groups;
+            return channels;
+        }
+        
+        try {
+            String sql = "SELECT c.id, COALESCE(c.name, CONCAT('Channel ', c.id)) AS name, p.role, c.member_count, " +
+                        "c.last_message_preview, c.last_activity, c.last_seq, " +
+                        "GREATEST(c.last_seq - p.last_read_seq, 0) AS unread_count " +
+                        "FROM participants p INNER JOIN conversations c ON c.id = p.conversation_id " +
+                        "WHERE p.user_id = ? AND c.type = 'channel' " +
+                        "ORDER BY c.last_activity DESC, c.id DESC";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setInt(1, userId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        channels.add(new ChannelEntry(
+                            rs.getInt("id"),
+                            rs.getString("name"),
+                            rs.getString("role"),
+                            rs.getInt("member_count"),
+                            rs.getString("last_message_preview"),
+                            rs.getLong("last_activity"),
+                            rs.getLong("last_seq"),
+                            rs.getLong("unread_count")));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error getting user channels: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            release(connection);
         }
         
+        return channels;
+    }
+    
+    /**
+     * Gets all groups that a user is a member of, with their names
+     * 
+     * Read from a replica, unless the user's memberships were just written
+     * 
+     * @param userId The user ID
+     * @return Map of group ID -> group name, or empty map on error
+     */
+    public Map<Integer, String> getUserGroups(int userId) {
+        Map<Integer, String> groups = new HashMap<>();
+        
+        Connection conn = readConnection(ReplicaPool.userKey(userId));
+        if (conn == null) {
+            return groups;
+        }
         try {
-            String sql = "SELECT DISTINCT p.conversation_id FROM participants p " +
+            String sql = "SELECT c.id, COALESCE(c.name, CONCAT('Group ', c.id)) AS name FROM participants p " +
                         "INNER JOIN conversations c ON p.conversation_id = c.id " +
                         "WHERE p.user_id = ? AND c.type = 'group'";
-            PreparedStatement stmt = connection.prepareStatement(sql);
-            stmt.setInt(1, userId);
-            
-            ResultSet rs = stmt.executeQuery();
-            
-            while (rs.next()) {
-                groups.add(rs.getInt("conversation_id"));
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, userId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        groups.put(rs.getInt("id"), rs.getString("name"));
+                    }
+                }
             }
             
             System.out.println("[DatabaseManager] User " + userId + " is member of " + groups.size() + " groups");
         } catch (SQLException e) {
+            readFailed(conn);
             System.err.println("[DatabaseManager] Error getting user groups: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            release(conn);
         }
         
         return groups;
     }
     
     /**
-     * Closes the database connection
+     * Inserts the inbox entry of one user for a 'single' conversation.
+     * The title is looked up from the users table in the same statement.
+     * Must be called inside the transaction that creates the conversation.
+     * 
+     * @param conversationId The conversation ID
+     * @param ownerUserId The user who owns the inbox entry
+     * @param otherUserId The other participant (used as the title)
+     * @param now Creation time (epoch millis)
      */
-    public void close() {
+    private void insertSingleInboxEntry(Connection connection, int conversationId, int ownerUserId, int otherUserId, long now)
+            throws SQLException {
+        String sql = "INSERT IGNORE INTO inbox (user_id, conversation_id, type, title, last_activity) " +
+                    "SELECT ?, ?, 'single', username, ? FROM users WHERE id = ?";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setInt(1, ownerUserId);
+            stmt.setInt(2, conversationId);
+            stmt.setLong(3, now);
+            stmt.setInt(4, otherUserId);
+            stmt.executeUpdate();
+        }
+    }
+    
+    /**
+     * Stores a batch of messages from the message log, in one transaction:
+     * - the messages themselves (INSERT IGNORE: a replayed message is skipped)
+     * - the inbox of every participant, per message: preview, last activity
+     *   and last message ID are replaced, and the unread counter is
+     *   incremented for everyone except the sender (whose read cursor moves
+     *   to the new message instead) and the members who already read past
+     *   it (MARK_READ can arrive before the message is stored)
+     * - for channels, the head in conversations instead (channels have no
+     *   inbox: one row per message, whatever the number of readers)
+     * - the indexer position, so the batch is never applied twice
+     * 
+     * @param messages The messages, in log order
+     * @param indexedLsn Log position after the last message of the batch
+     * @return true if the batch was written, false otherwise
+     */
+    public boolean storeMessages(List<StoredMessage> messages, long indexedLsn) {
+        Connection connection = acquire();
+        if (connection == null) {
+            return false;
+        }
+        
         try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-                System.out.println("[DatabaseManager] Database connection closed.");
+            connection.setAutoCommit(false);
+            
+            String insertSql = "INSERT IGNORE INTO messages " +
+                              "(conversation_id, seq, message_id, sender_id, content, attachment_id, sent_at) " +
+                              "VALUES (?, ?, ?, ?, ?, ?, ?)";
+            
+            // A conversation's messages reach the log in seq order (see SequenceAllocator);
+            // last_seq still uses GREATEST so that it never moves back
+            String inboxSql = "UPDATE inbox SET last_message_preview = ?, last_activity = ?, last_message_id = ?, " +
+                             "last_seq = GREATEST(last_seq, ?), " +
+                             "unread_count = unread_count + IF(user_id = ? OR last_read_message_id >= ?, 0, 1), " +
+                             "last_read_message_id = IF(user_id = ?, ?, last_read_message_id) " +
+                             "WHERE conversation_id = ?";
+            
+            // Matches nothing for other types. The head only moves forward:
+            // preview and activity are compared with last_seq before it is updated
+            String headSql = "UPDATE conversations SET " +
+                            "last_message_preview = IF(? > last_seq, ?, last_message_preview), " +
+                            "last_activity = IF(? > last_seq, ?, last_activity), " +
+                            "last_message_id = IF(? > last_seq, ?, last_message_id), " +
+                            "last_seq = GREATEST(last_seq, ?) " +
+                            "WHERE id = ? AND type = 'channel'";
+            
+            try (PreparedStatement insertStmt = connection.prepareStatement(insertSql);
+                 PreparedStatement inboxStmt = connection.prepareStatement(inboxSql);
+                 PreparedStatement headStmt = connection.prepareStatement(headSql)) {
+                for (StoredMessage message : messages) {
+                    insertStmt.setInt(1, message.getConversationId());
+                    insertStmt.setLong(2, message.getSeq());
+                    insertStmt.setLong(3, message.getMessageId());
+                    insertStmt.setInt(4, message.getSenderId());
+                    insertStmt.setString(5, message.getContent());
+                    insertStmt.setString(6, message.getAttachmentId());
+                    insertStmt.setLong(7, message.getSentAt());
+                    insertStmt.addBatch();
+                    
+                    String preview = message.getContent();
+                    if (preview.isEmpty() && message.getAttachmentId() != null) {
+                        preview = ATTACHMENT_PREVIEW;
+                    }
+                    if (preview.length() > INBOX_PREVIEW_LENGTH) {
+                        preview = preview.substring(0, INBOX_PREVIEW_LENGTH);
+                    }
+                    inboxStmt.setString(1, preview);
+                    inboxStmt.setLong(2, message.getSentAt());
+                    inboxStmt.setLong(3, message.getMessageId());
+                    inboxStmt.setLong(4, message.getSeq());
+                    inboxStmt.setInt(5, message.getSenderId());
+                    inboxStmt.setLong(6, message.getMessageId());
+                    inboxStmt.setInt(7, message.getSenderId());
+                    inboxStmt.setLong(8, message.getMessageId());
+                    inboxStmt.setInt(9, message.getConversationId());
+                    inboxStmt.addBatch();
+                    
+                    headStmt.setLong(1, message.getSeq());
+                    headStmt.setString(2, preview);
+                    headStmt.setLong(3, message.getSeq());
+                    headStmt.setLong(4, message.getSentAt());
+                    headStmt.setLong(5, message.getSeq());
+                    headStmt.setLong(6, message.getMessageId());
+                    headStmt.setLong(7, message.getSeq());
+                    headStmt.setInt(8, message.getConversationId());
+                    headStmt.addBatch();
+                }
+                insertStmt.executeBatch();
+                inboxStmt.executeBatch();
+                headStmt.executeBatch();
+            }
+            
+            String checkpointSql = "INSERT INTO message_log_checkpoint (id, indexed_lsn) VALUES (1, ?) " +
+                                  "ON DUPLICATE KEY UPDATE indexed_lsn = VALUES(indexed_lsn)";
+            try (PreparedStatement checkpointStmt = connection.prepareStatement(checkpointSql)) {
+                checkpointStmt.setLong(1, indexedLsn);
+                checkpointStmt.executeUpdate();
+            }
+            
+            connection.commit();
+            connection.setAutoCommit(true);
+            return true;
+            
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException rollbackEx) {
+                System.err.println("[DatabaseManager] Error during rollback: " + rollbackEx.getMessage());
+            }
+            System.err.println("[DatabaseManager] Error storing messages: " + e.getMessage());
+            return false;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Gets the message log position up to which messages are stored
+     * 
+     * @return The position (0 if nothing was stored yet), or -1 on error
+     */
+    public long getIndexedLsn() {
+        Connection connection = acquire();
+        if (connection == null) {
+            return -1;
+        }
+        
+        try {
+            String sql = "SELECT indexed_lsn FROM message_log_checkpoint WHERE id = 1";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getLong("indexed_lsn") : 0;
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error reading message log checkpoint: " + e.getMessage());
+            return -1;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Gets the highest sequence number stored for a conversation
+     * (used to seed the in-memory sequence counter)
+     * 
+     * @param conversationId The conversation ID
+     * @return The last sequence number (0 if no message yet), or -1 on error
+     */
+    public long getLastSequence(int conversationId) {
+        Connection connection = acquire();
+        if (connection == null) {
+            return -1;
+        }
+        
+        try {
+            // Channels keep their last seq in conversations (no inbox)
+            String sql = "SELECT GREATEST(" +
+                        "(SELECT COALESCE(MAX(last_seq), 0) FROM inbox WHERE conversation_id = ?), " +
+                        "COALESCE((SELECT last_seq FROM conversations WHERE id = ?), 0)) AS last_seq";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setInt(1, conversationId);
+                stmt.setInt(2, conversationId);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getLong("last_seq");
+                    }
+                }
+            }
+            return 0;
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error getting last sequence: " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Saves a batch of read cursors in a single transaction.
+     * 
+     * Cursors only move forward. The unread counter is recounted from the
+     * cursor: the other members' messages after it, among the last
+     * UNREAD_RECOUNT_LIMIT of the conversation (a primary key range). Messages
+     * not stored yet are counted by the indexer, which only counts those
+     * after the cursor.
+     * 
+     * @param cursors The read cursors to save (already coalesced, one per user/conversation)
+     * @return true if the batch was written, false otherwise
+     */
+    public boolean saveReadCursors(List<ReadCursor> cursors) {
+        if (cursors.isEmpty()) {
+            return false;
+        }
+        
+        Connection connection = acquire();
+        if (connection == null) {
+            return false;
+        }
+        
+        try {
+            connection.setAutoCommit(false);
+            
+            // unread_count first: MySQL assigns left to right, and the count
+            // must use the new cursor whichever of the two is higher
+            String sql = "UPDATE inbox SET unread_count = (SELECT COUNT(*) FROM messages m " +
+                        "WHERE m.conversation_id = inbox.conversation_id AND m.seq > inbox.last_seq - ? " +
+                        "AND m.message_id > GREATEST(inbox.last_read_message_id, ?) " +
+                        "AND m.sender_id <> inbox.user_id), " +
+                        "last_read_message_id = GREATEST(last_read_message_id, ?) " +
+                        "WHERE user_id = ? AND conversation_id = ?";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                for (ReadCursor cursor : cursors) {
+                    stmt.setInt(1, UNREAD_RECOUNT_LIMIT);
+                    stmt.setLong(2, cursor.getLastReadMessageId());
+                    stmt.setLong(3, cursor.getLastReadMessageId());
+                    stmt.setInt(4, cursor.getUserId());
+                    stmt.setInt(5, cursor.getConversationId());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            
+            connection.commit();
+            connection.setAutoCommit(true);
+            
+            System.out.println("[DatabaseManager] Saved " + cursors.size() + " read cursors");
+            return true;
+            
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException rollbackEx) {
+                System.err.println("[DatabaseManager] Error during rollback: " + rollbackEx.getMessage());
+            }
+            System.err.println("[DatabaseManager] Error saving read cursors: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Saves a batch of channel read cursors in a single transaction.
+     * Cursors only move forward.
+     * 
+     * @param cursors The cursors to save; getLastReadMessageId() is the highest seq read
+     * @return true if the batch was written, false otherwise
+     */
+    public boolean saveChannelCursors(List<ReadCursor> cursors) {
+        if (cursors.isEmpty()) {
+            return false;
+        }
+        
+        Connection connection = acquire();
+        if (connection == null) {
+            return false;
+        }
+        
+        try {
+            connection.setAutoCommit(false);
+            
+            String sql = "UPDATE participants SET last_read_seq = GREATEST(last_read_seq, ?) " +
+                        "WHERE conversation_id = ? AND user_id = ?";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                for (ReadCursor cursor : cursors) {
+                    stmt.setLong(1, cursor.getLastReadMessageId());
+                    stmt.setInt(2, cursor.getConversationId());
+                    stmt.setInt(3, cursor.getUserId());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            
+            connection.commit();
+            connection.setAutoCommit(true);
+            
+            System.out.println("[DatabaseManager] Saved " + cursors.size() + " channel cursors");
+            return true;
+            
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException rollbackEx) {
+                System.err.println("[DatabaseManager] Error during rollback: " + rollbackEx.getMessage());
+            }
+            System.err.println("[DatabaseManager] Error saving channel cursors: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Gets one page of a user's conversation list, most recent activity first.
+     * 
+     * Pagination uses a keyset cursor on (last_activity, conversation_id),
+     * so every page is a single range scan on idx_user_activity no matter
+     * how deep the client scrolls.
+     * 
+     * @param userId The user ID
+     * @param beforeActivity Only return entries older than this (Long.MAX_VALUE for the first page)
+     * @param beforeConversationId Tie-breaker for entries with the same last activity
+     * @param limit Maximum number of entries to return
+     * @return List of inbox entries, or empty list on error
+     */
+    public List<InboxEntry> getInbox(int userId, long beforeActivity, int beforeConversationId, int limit) {
+        List<InboxEntry> entries = new ArrayList<>();
+        
+        Connection connection = acquire();
+        if (connection == null) {
+            return entries;
+        }
+        
+        try {
+            String sql = "SELECT conversation_id, type, title, last_message_preview, last_activity, unread_count " +
+                        "FROM inbox WHERE user_id = ? " +
+                        "AND (last_activity < ? OR (last_activity = ? AND conversation_id < ?)) " +
+                        "ORDER BY last_activity DESC, conversation_id DESC LIMIT ?";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setInt(1, userId);
+                stmt.setLong(2, beforeActivity);
+                stmt.setLong(3, beforeActivity);
+                stmt.setInt(4, beforeConversationId);
+                stmt.setInt(5, limit);
+                
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        entries.add(new InboxEntry(
+                            rs.getInt("conversation_id"),
+                            rs.getString("type"),
+                            rs.getString("title"),
+                            rs.getString("last_message_preview"),
+                            rs.getLong("last_activity"),
+                            rs.getInt("unread_count")));
+                    }
+                }
+            }
+            
+            System.out.println("[DatabaseManager] Loaded " + entries.size() + " inbox entries for user " + userId);
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error getting inbox: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            release(connection);
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Receives the messages of streamMessagePartition()
+     */
+    public interface MessageVisitor {
+        void visit(StoredMessage message) throws IOException;
+    }
+    
+    /**
+     * Reads one page of a conversation's history from the messages table,
+     * newest first (a range scan on the primary key)
+     * 
+     * @param conversationId The conversation ID
+     * @param beforeSeq Only messages with a lower seq (Long.MAX_VALUE for the latest)
+     * @param minSentAt Only messages sent at or after this time (retention)
+     * @param limit Maximum number of messages
+     * @return The messages by descending seq, or null on error
+     */
+    public List<StoredMessage> getMessages(int conversationId, long beforeSeq, long minSentAt, int limit) {
+        Connection connection = acquire();
+        if (connection == null) {
+            return null;
+        }
+        
+        try {
+            String sql = "SELECT seq, message_id, sender_id, sent_at, content, attachment_id FROM messages " +
+                        "WHERE conversation_id = ? AND seq < ? AND sent_at >= ? " +
+                        "ORDER BY seq DESC LIMIT ?";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setInt(1, conversationId);
+                stmt.setLong(2, beforeSeq);
+                stmt.setLong(3, minSentAt);
+                stmt.setInt(4, limit);
+                
+                List<StoredMessage> messages = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        messages.add(new StoredMessage(conversationId, rs.getLong("seq"), rs.getLong("message_id"),
+                                                       rs.getInt("sender_id"), rs.getLong("sent_at"),
+                                                       rs.getString("content"), rs.getString("attachment_id")));
+                    }
+                }
+                return messages;
+            }
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error reading messages: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Reads given messages of a conversation from the messages table
+     * (point lookups on the primary key, IN queries of BULK_CHUNK_SIZE seqs)
+     * 
+     * @param conversationId The conversation ID
+     * @param seqs The seqs of the messages
+     * @param minSentAt Only messages sent at or after this time (retention)
+     * @return The messages found (missing ones were archived or expired), or null on error
+     */
+    public List<StoredMessage> getMessagesBySeq(int conversationId, List<Long> seqs, long minSentAt) {
+        Connection connection = acquire();
+        if (connection == null) {
+            return null;
+        }
+        
+        List<StoredMessage> messages = new ArrayList<>();
+        try {
+            for (int from = 0; from < seqs.size(); from += BULK_CHUNK_SIZE) {
+                List<Long> chunk = seqs.subList(from, Math.min(from + BULK_CHUNK_SIZE, seqs.size()));
+                String sql = "SELECT seq, message_id, sender_id, sent_at, content, attachment_id FROM messages " +
+                            "WHERE conversation_id = ? AND sent_at >= ? AND seq IN (" +
+                            String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+                try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                    stmt.setInt(1, conversationId);
+                    stmt.setLong(2, minSentAt);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        stmt.setLong(i + 3, chunk.get(i));
+                    }
+                    
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            messages.add(new StoredMessage(conversationId, rs.getLong("seq"), rs.getLong("message_id"),
+                                                           rs.getInt("sender_id"), rs.getLong("sent_at"),
+                                                           rs.getString("content"), rs.getString("attachment_id")));
+                        }
+                    }
+                }
+            }
+            return messages;
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error reading messages by seq: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Resolves many user IDs at once (IN queries of BULK_CHUNK_SIZE IDs)
+     * 
+     * Read from a replica: users are never written by the server
+     * 
+     * @param userIds The user IDs
+     * @return user ID -> username, for the users that exist
+     */
+    public Map<Integer, String> getUsernamesByIds(Collection<Integer> userIds) {
+        Map<Integer, String> names = new HashMap<>();
+        
+        if (userIds.isEmpty()) {
+            return names;
+        }
+        
+        List<Integer> ids = new ArrayList<>(userIds);
+        Connection conn = readConnection(ReplicaPool.NO_KEY);
+        if (conn == null) {
+            return names;
+        }
+        try {
+            for (int from = 0; from < ids.size(); from += BULK_CHUNK_SIZE) {
+                List<Integer> chunk = ids.subList(from, Math.min(from + BULK_CHUNK_SIZE, ids.size()));
+                String sql = "SELECT id, username FROM users WHERE id IN (" +
+                            String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        stmt.setInt(i + 1, chunk.get(i));
+                    }
+                    
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            names.put(rs.getInt("id"), rs.getString("username"));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            readFailed(conn);
+            System.err.println("[DatabaseManager] Error getting usernames: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            release(conn);
+        }
+        
+        return names;
+    }
+    
+    /**
+     * Records that a user uploaded an attachment (and may read it)
+     * 
+     * @return true if recorded (or already there), false on error
+     */
+    public boolean addAttachmentUploader(String attachmentId, int userId) {
+        return addAttachmentAccess(attachmentId, userId, 0);
+    }
+    
+    /**
+     * Records that a message of a conversation references an attachment:
+     * its members may read it
+     * 
+     * @return true if recorded (or already there), false on error
+     */
+    public boolean shareAttachment(String attachmentId, int conversationId) {
+        return addAttachmentAccess(attachmentId, 0, conversationId);
+    }
+    
+    private boolean addAttachmentAccess(String attachmentId, int userId, int conversationId) {
+        Connection connection = acquire();
+        if (connection == null) {
+            return false;
+        }
+        
+        try {
+            String sql = "INSERT IGNORE INTO attachment_access (attachment_id, user_id, conversation_id) " +
+                        "VALUES (?, ?, ?)";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setString(1, attachmentId);
+                stmt.setInt(2, userId);
+                stmt.setInt(3, conversationId);
+                stmt.executeUpdate();
+            }
+            return true;
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error recording attachment access: " + e.getMessage());
+            return false;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Checks whether a user may read an attachment: they uploaded it, or
+     * they are a member of a conversation where a message references it
+     * 
+     * @return true if allowed, false otherwise (or on error)
+     */
+    public boolean canReadAttachment(int userId, String attachmentId) {
+        Connection connection = acquire();
+        if (connection == null) {
+            return false;
+        }
+        
+        try {
+            String sql = "SELECT 1 FROM attachment_access a " +
+                        "WHERE a.attachment_id = ? AND (a.user_id = ? OR EXISTS (" +
+                        "SELECT 1 FROM participants p WHERE p.conversation_id = a.conversation_id " +
+                        "AND p.user_id = ?)) LIMIT 1";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setString(1, attachmentId);
+                stmt.setInt(2, userId);
+                stmt.setInt(3, userId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next();
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error checking attachment access: " + e.getMessage());
+            return false;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Lists the partitions of the messages table
+     * 
+     * @return partition name -> upper bound (exclusive, Long.MAX_VALUE for MAXVALUE),
+     *         in partition order; null if the table is not partitioned or on error
+     */
+    public Map<String, Long> getMessagePartitions() {
+        Connection connection = acquire();
+        if (connection == null) {
+            return null;
+        }
+        
+        try {
+            String sql = "SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM information_schema.PARTITIONS " +
+                        "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'messages' " +
+                        "AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                Map<String, Long> partitions = new LinkedHashMap<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String bound = rs.getString("PARTITION_DESCRIPTION");
+                        partitions.put(rs.getString("PARTITION_NAME"),
+                                       "MAXVALUE".equals(bound) ? Long.MAX_VALUE : Long.parseLong(bound));
+                    }
+                }
+                return partitions.isEmpty() ? null : partitions;
+            }
+        } catch (SQLException | NumberFormatException e) {
+            System.err.println("[DatabaseManager] Error listing message partitions: " + e.getMessage());
+            return null;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Adds a partition in front of the catch-all partition (splits it)
+     * 
+     * @param name The new partition's name
+     * @param upperBound Its upper bound (exclusive, epoch millis)
+     * @param catchAll Name of the MAXVALUE partition
+     * @return true if the partition was added
+     */
+    public boolean addMessagePartition(String name, long upperBound, String catchAll) {
+        if (!name.matches(PARTITION_NAME_PATTERN) || !catchAll.matches(PARTITION_NAME_PATTERN)) {
+            return false;
+        }
+        
+        Connection connection = acquire();
+        if (connection == null) {
+            return false;
+        }
+        
+        try {
+            String sql = "ALTER TABLE messages REORGANIZE PARTITION " + catchAll + " INTO (" +
+                        "PARTITION " + name + " VALUES LESS THAN (" + upperBound + "), " +
+                        "PARTITION " + catchAll + " VALUES LESS THAN MAXVALUE)";
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(sql);
+            }
+            System.out.println("[DatabaseManager] Added message partition " + name);
+            return true;
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error adding message partition " + name + ": " + e.getMessage());
+            return false;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Drops a partition and all its messages (a file drop, not a row delete)
+     * 
+     * @return true if the partition was dropped
+     */
+    public boolean dropMessagePartition(String name) {
+        if (!name.matches(PARTITION_NAME_PATTERN)) {
+            return false;
+        }
+        
+        Connection connection = acquire();
+        if (connection == null) {
+            return false;
+        }
+        
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("ALTER TABLE messages DROP PARTITION " + name);
+            }
+            System.out.println("[DatabaseManager] Dropped message partition " + name);
+            return true;
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error dropping message partition " + name + ": " + e.getMessage());
+            return false;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Streams every message of one partition, sorted by (conversation, seq).
+     * Rows are fetched one by one (no result set in memory), so this should
+     * run on a connection of its own: the connection is busy until it returns.
+     * 
+     * @param name The partition name
+     * @param visitor Receives each message; an IOException stops the stream
+     * @return true if the whole partition was visited
+     */
+    public boolean streamMessagePartition(String name, MessageVisitor visitor) {
+        if (!name.matches(PARTITION_NAME_PATTERN)) {
+            return false;
+        }
+        
+        Connection connection = acquire();
+        if (connection == null) {
+            return false;
+        }
+        
+        try {
+            String sql = "SELECT conversation_id, seq, message_id, sender_id, sent_at, content, attachment_id " +
+                        "FROM messages PARTITION (" + name + ") ORDER BY conversation_id, seq";
+            try (Statement stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                stmt.setFetchSize(Integer.MIN_VALUE); // MySQL driver: stream rows
+                
+                try (ResultSet rs = stmt.executeQuery(sql)) {
+                    while (rs.next()) {
+                        visitor.visit(new StoredMessage(rs.getInt("conversation_id"), rs.getLong("seq"),
+                                                        rs.getLong("message_id"), rs.getInt("sender_id"),
+                                                        rs.getLong("sent_at"), rs.getString("content"),
+                                                        rs.getString("attachment_id")));
+                    }
+                }
+            }
+            return true;
+        } catch (SQLException | IOException e) {
+            System.err.println("[DatabaseManager] Error streaming message partition " + name + ": " + e.getMessage());
+            return false;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Gets the conversations with their own retention policy
+     * 
+     * @return conversation ID -> retention in days, or null on error
+     */
+    public Map<Integer, Integer> getRetentionPolicies() {
+        Connection connection = acquire();
+        if (connection == null) {
+            return null;
+        }
+        
+        try {
+            String sql = "SELECT id, retention_days FROM conversations WHERE retention_days IS NOT NULL";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                Map<Integer, Integer> policies = new HashMap<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        policies.put(rs.getInt("id"), rs.getInt("retention_days"));
+                    }
+                }
+                return policies;
+            }
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error getting retention policies: " + e.getMessage());
+            return null;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Deletes up to limit messages of a conversation sent before a time
+     * (small batches keep row locks and undo short)
+     * 
+     * @return number of messages deleted, or -1 on error
+     */
+    public int deleteExpiredMessages(int conversationId, long sentBefore, int limit) {
+        Connection connection = acquire();
+        if (connection == null) {
+            return -1;
+        }
+        
+        try {
+            String sql = "DELETE FROM messages WHERE conversation_id = ? AND sent_at < ? LIMIT ?";
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setInt(1, conversationId);
+                stmt.setLong(2, sentBefore);
+                stmt.setInt(3, limit);
+                return stmt.executeUpdate();
+            }
+        } catch (SQLException e) {
+            System.err.println("[DatabaseManager] Error deleting expired messages: " + e.getMessage());
+            return -1;
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Closes every pooled connection
+     */
+    public void close() {
+        if (connections.isEmpty()) {
+            return;
+        }
+        for (Connection conn : connections) {
+            try {
+                if (!conn.isClosed()) {
+                    conn.close();
+                }
+            } catch (SQLException e) {
+                System.err.println("[DatabaseManager] Error closing connection: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        connections.clear();
+        idle.clear();
+        System.out.println("[DatabaseManager] Database connections closed.");
+    }
+    
+    /**
+     * Closes the database connections, waiting at most timeoutMs.
+     * A close that hangs (unreachable server) is aborted so that
+     * shutdown cannot block forever.
+     * 
+     * @param timeoutMs Maximum time to wait for a clean close
+     */
+    public void close(long timeoutMs) {
+        Thread closer = new Thread(this::close, "db-close");
+        closer.setDaemon(true);
+        closer.start();
+        try {
+            closer.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if (closer.isAlive()) {
+            System.err.println("[DatabaseManager] Close did not finish in " + timeoutMs + " ms, aborting connections");
+            for (Connection conn : connections) {
+                try {
+                    conn.abort(Runnable::run);
+                } catch (SQLException e) {
+                    System.err.println("[DatabaseManager] Error aborting connection: " + e.getMessage());
+                }
             }
-        } catch (SQLException e) {
-            System.err.println("[DatabaseManager] Error closing connection: " + e.getMessage());
-            e.printStackTrace();
         }
     }
 }
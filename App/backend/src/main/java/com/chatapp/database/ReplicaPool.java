@@ -0,0 +1,422 @@
+package com.chatapp.database;
+
+import com.chatapp.config.ServerConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * =====================================================
+ * ReplicaPool Class
+ * =====================================================
+ * Read replicas of the MySQL primary (db.replicaUrls), used
+ * by the DatabaseManager for the reads it declares safe to
+ * serve slightly stale (see DatabaseManager.readConnection).
+ *
+ * Every db.replicaCheckMs each replica is asked how far it
+ * is behind (SHOW REPLICA STATUS, Seconds_Behind_Source).
+ * Reads go round-robin to the replicas that answered and
+ * are at most db.replicaMaxLagSeconds behind; when none is,
+ * they fall back to the primary. A server that is not a
+ * replica (empty status) counts as up to date, so two
+ * independent instances work for local testing. A replica
+ * whose query fails is skipped until the next check has
+ * reconnected to it.
+ *
+ * A JDBC connection must not be used by two threads at
+ * once: each replica has a pool of reader connections
+ * (up to db.poolSize, opened on demand), taken by acquire()
+ * and given back by release(), and the lag checks run on
+ * a connection of their own. When a replica has no free
+ * connection, the read goes to the primary instead of
+ * waiting.
+ *
+ * Read-your-own-writes: the DatabaseManager reports every
+ * user and conversation it writes (wrote()). Reads about
+ * them stay on the primary for as long as a replica may
+ * not have the write yet: the maximum lag plus one check
+ * interval.
+ * =====================================================
+ */
+public class ReplicaPool {
+    // Keys of the read-your-own-writes table
+    public static final long NO_KEY = -1;
+    private static final long CONVERSATION_KEY = 1L << 32;
+
+    private static final String[] STATUS_QUERIES = {"SHOW REPLICA STATUS", "SHOW SLAVE STATUS"};
+    private static final String LAG_COLUMN_PREFIX = "Seconds_Behind_";
+
+    private final List<Replica> replicas;
+    private final String user;
+    private final String password;
+    private final int poolSize;              // Reader connections per replica at most
+    private final long checkMs;
+    private volatile int maxLagSeconds;
+
+    // Key -> System.nanoTime() of its last write
+    private final Map<Long, Long> recentWrites = new ConcurrentHashMap<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final AtomicLong primaryFallbacks = new AtomicLong();  // No replica eligible
+    private final AtomicLong stickyReads = new AtomicLong();       // Kept on the primary (own writes)
+    private final AtomicLong busyFallbacks = new AtomicLong();     // Every reader connection in use
+    // Reader connection -> its replica (identity: the connections are proxies)
+    private final Map<Connection, Replica> owners = Collections.synchronizedMap(new IdentityHashMap<>());
+    private ScheduledExecutorService checker;
+
+    /**
+     * One replica, with its connections
+     */
+    private static class Replica {
+        final String url;
+        final String label;                  // URL without its parameters (logs, metrics)
+        volatile Connection checkConnection; // Lag checks (checker thread only)
+        final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();  // Reader connections not in use
+        final AtomicInteger open = new AtomicInteger();                      // Reader connections open
+        volatile boolean healthy;
+        volatile long lagSeconds = -1;       // -1 = unknown or replication stopped
+        int statusQuery;                     // Index in STATUS_QUERIES (checker thread only)
+        final AtomicLong reads = new AtomicLong();
+
+        Replica(String url) {
+            this.url = url;
+            int parameters = url.indexOf('?');
+            this.label = parameters < 0 ? url : url.substring(0, parameters);
+        }
+    }
+
+    /**
+     * Constructor - does not connect yet (see start())
+     *
+     * @param config The server configuration (db.replicaUrls, same user and password as the primary)
+     */
+    public ReplicaPool(ServerConfig config) {
+        List<Replica> list = new ArrayList<>();
+        for (String url : config.getString(ServerConfig.DB_REPLICA_URLS).split(",")) {
+            if (!url.trim().isEmpty()) {
+                list.add(new Replica(url.trim()));
+            }
+        }
+        this.replicas = Collections.unmodifiableList(list);
+        this.user = config.getString(ServerConfig.DB_USER);
+        this.password = config.getString(ServerConfig.DB_PASSWORD);
+        this.poolSize = config.getInt(ServerConfig.DB_POOL_SIZE);
+        this.checkMs = config.getLong(ServerConfig.DB_REPLICA_CHECK_MS);
+        configure(config);
+    }
+
+    /**
+     * Applies the hot-reloadable settings (db.replicaMaxLagSeconds)
+     */
+    public void configure(ServerConfig config) {
+        maxLagSeconds = config.getInt(ServerConfig.DB_REPLICA_MAX_LAG_SECONDS);
+    }
+
+    /**
+     * @return true if no replica is configured
+     */
+    public boolean isEmpty() {
+        return replicas.isEmpty();
+    }
+
+    /**
+     * Connects to the replicas and starts the lag checks. Never fails: a
+     * replica that cannot be reached is retried at every check, and reads
+     * go to the primary meanwhile.
+     */
+    public void start() {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        check();
+        checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::check, checkMs, checkMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the checks and closes the replica connections (those in use
+     * are closed when they are released)
+     */
+    public void stop() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            replica.healthy = false;
+            closeQuietly(replica.checkConnection);
+            replica.checkConnection = null;
+            closeIdle(replica);
+        }
+    }
+
+    /**
+     * @return user key of the read-your-own-writes table
+     */
+    public static long userKey(int userId) {
+        return userId;
+    }
+
+    /**
+     * @return conversation key of the read-your-own-writes table
+     */
+    public static long conversationKey(int conversationId) {
+        return CONVERSATION_KEY | conversationId;
+    }
+
+    /**
+     * Picks a replica for a read
+     *
+     * @param key The user or conversation the read is about (NO_KEY for
+     *            data the server never writes, such as the users table)
+     * @return a replica connection, to be given back with release(), or
+     *         null to read from the primary
+     */
+    Connection acquire(long key) {
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        if (key != NO_KEY) {
+            Long writtenAt = recentWrites.get(key);
+            if (writtenAt != null && System.nanoTime() - writtenAt < stickyNanos()) {
+                stickyReads.incrementAndGet();
+                return null;
+            }
+        }
+        int count = replicas.size();
+        int first = Math.floorMod(nextReplica.getAndIncrement(), count);
+        long maxLag = maxLagSeconds;
+        boolean busy = false;
+        for (int i = 0; i < count; i++) {
+            Replica replica = replicas.get((first + i) % count);
+            if (replica.healthy && replica.lagSeconds >= 0 && replica.lagSeconds <= maxLag) {
+                Connection connection = take(replica);
+                if (connection != null) {
+                    replica.reads.incrementAndGet();
+                    return connection;
+                }
+                busy = true;
+            }
+        }
+        (busy ? busyFallbacks : primaryFallbacks).incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Takes an idle reader connection of a replica, or opens one if the
+     * replica has fewer than poolSize
+     *
+     * @return the connection, or null if all are in use (or it cannot connect)
+     */
+    private Connection take(Replica replica) {
+        Connection connection = replica.idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        if (replica.open.incrementAndGet() > poolSize) {
+            replica.open.decrementAndGet();
+            return null;
+        }
+        try {
+            connection = TracedConnection.wrap(DriverManager.getConnection(replica.url, user, password));
+            owners.put(connection, replica);
+            return connection;
+        } catch (SQLException e) {
+            replica.open.decrementAndGet();
+            failed(replica, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gives back a connection returned by acquire(); it is closed if its
+     * replica went out of rotation meanwhile
+     *
+     * @param connection The connection (one that is not a replica's is ignored)
+     */
+    void release(Connection connection) {
+        Replica replica = owners.get(connection);
+        if (replica == null) {
+            return;
+        }
+        if (replica.healthy) {
+            replica.idle.offer(connection);
+        } else {
+            discard(replica, connection);
+        }
+    }
+
+    /**
+     * Records a write: reads about these keys stay on the primary for a while
+     */
+    void wrote(long... keys) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (long key : keys) {
+            recentWrites.put(key, now);
+        }
+    }
+
+    /**
+     * Takes a replica out of rotation after a failed query; the next check
+     * reconnects it
+     *
+     * @param connection The connection the query ran on (the primary's is ignored)
+     */
+    void failed(Connection connection) {
+        Replica replica = owners.get(connection);
+        if (replica != null) {
+            failed(replica, null);
+        }
+    }
+
+    private void failed(Replica replica, String reason) {
+        if (replica.healthy) {
+            replica.healthy = false;
+            System.err.println("[ReplicaPool] Replica " + replica.label + " failed" +
+                               (reason != null ? " (" + reason + ")" : "") + ", reads go elsewhere");
+        }
+        closeIdle(replica);
+    }
+
+    /**
+     * Closes the reader connections not in use (the replica is down: they
+     * may be broken; new ones are opened once it is back)
+     */
+    private void closeIdle(Replica replica) {
+        Connection connection;
+        while ((connection = replica.idle.poll()) != null) {
+            discard(replica, connection);
+        }
+    }
+
+    private void discard(Replica replica, Connection connection) {
+        owners.remove(connection);
+        replica.open.decrementAndGet();
+        closeQuietly(connection);
+    }
+
+    private long stickyNanos() {
+        return (maxLagSeconds * 1000L + checkMs) * 1_000_000L;
+    }
+
+    /**
+     * Reconnects the replicas that are down, measures the lag of all of
+     * them, and forgets the writes every replica has by now
+     */
+    private void check() {
+        for (Replica replica : replicas) {
+            try {
+                if (!replica.healthy || replica.checkConnection == null) {
+                    closeQuietly(replica.checkConnection);
+                    replica.checkConnection = null;
+                    replica.checkConnection = TracedConnection.wrap(
+                        DriverManager.getConnection(replica.url, user, password));
+                }
+                long lag = measureLag(replica);
+                if (!replica.healthy) {
+                    System.out.println("[ReplicaPool] Replica " + replica.label + " is up (lag " + lag + " s)");
+                } else if (lag < 0 && replica.lagSeconds >= 0) {
+                    System.err.println("[ReplicaPool] Replica " + replica.label + " is not replicating");
+                }
+                replica.lagSeconds = lag;
+                replica.healthy = true;
+            } catch (SQLException e) {
+                if (replica.healthy || replica.lagSeconds != -1) {
+                    System.err.println("[ReplicaPool] Replica " + replica.label + " is down: " + e.getMessage());
+                }
+                replica.healthy = false;
+                replica.lagSeconds = -1;
+                closeIdle(replica);
+            }
+        }
+        long expired = System.nanoTime() - stickyNanos();
+        recentWrites.values().removeIf(writtenAt -> writtenAt - expired < 0);
+    }
+
+    /**
+     * @return seconds behind the primary, 0 if the server is not a replica,
+     *         -1 if replication is stopped
+     */
+    private static long measureLag(Replica replica) throws SQLException {
+        while (true) {
+            try (Statement stmt = replica.checkConnection.createStatement();
+                 ResultSet rs = stmt.executeQuery(STATUS_QUERIES[replica.statusQuery])) {
+                if (!rs.next()) {
+                    return 0;
+                }
+                ResultSetMetaData meta = rs.getMetaData();
+                for (int column = 1; column <= meta.getColumnCount(); column++) {
+                    if (meta.getColumnLabel(column).startsWith(LAG_COLUMN_PREFIX)) {
+                        Object lag = rs.getObject(column);
+                        return lag instanceof Number ? ((Number) lag).longValue() : -1;
+                    }
+                }
+                return -1;
+            } catch (SQLException e) {
+                // Servers before MySQL 8.0.22 only know the older statement
+                if (replica.statusQuery + 1 < STATUS_QUERIES.length && "42000".equals(e.getSQLState())) {
+                    replica.statusQuery++;
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Being replaced anyway
+        }
+    }
+
+    /**
+     * @return the replicas' state and the routing counters (served on /metrics)
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (Replica replica : replicas) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("url", replica.label);
+            entry.put("healthy", replica.healthy);
+            entry.put("lagSeconds", replica.lagSeconds);
+            entry.put("reads", replica.reads.get());
+            entry.put("connections", replica.open.get());
+            list.add(entry);
+        }
+        metrics.put("replicas", list);
+        metrics.put("maxLagSeconds", maxLagSeconds);
+        metrics.put("primaryFallbacks", primaryFallbacks.get());
+        metrics.put("stickyReads", stickyReads.get());
+        metrics.put("busyFallbacks", busyFallbacks.get());
+        return metrics;
+    }
+}
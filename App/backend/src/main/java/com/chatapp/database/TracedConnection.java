@@ -0,0 +1,229 @@
+package com.chatapp.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * =====================================================
+ * TracedConnection Class
+ * =====================================================
+ * Wraps the JDBC connection so that every statement the
+ * DatabaseManager runs emits a DatabaseCallEvent, without
+ * touching the query methods themselves.
+ *
+ * The connection, its statements and the result sets of
+ * queries are dynamic proxies. A statement's duration is
+ * the execute call (Connector/J reads the whole result
+ * there); the rows of a query are counted as they are read,
+ * and the event is written when the result set is done:
+ * next() returned false, it was closed, or the thread ran
+ * its next statement (results read with a single next()
+ * are often left open).
+ *
+ * The calling DatabaseManager method is looked up on the
+ * stack only while a recording has the event enabled.
+ * =====================================================
+ */
+final class TracedConnection {
+    // Query whose result set is still being read, per thread
+    private static final ThreadLocal<QueryHandler> PENDING = new ThreadLocal<>();
+
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+    private static final String MANAGER_CLASS = DatabaseManager.class.getName();
+
+    private TracedConnection() {
+    }
+
+    /**
+     * @return a connection that traces the statements it runs
+     */
+    static Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(TracedConnection.class.getClassLoader(),
+                                                   new Class<?>[] {Connection.class},
+                                                   new ConnectionHandler(connection));
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Starts the event of a statement: the previous query of this thread is
+     * complete by now
+     */
+    private static DatabaseCallEvent begin(String operation, String sql) {
+        QueryHandler pending = PENDING.get();
+        if (pending != null) {
+            pending.complete();
+        }
+        DatabaseCallEvent event = new DatabaseCallEvent();
+        if (event.isEnabled()) {
+            event.method = STACK_WALKER.walk(frames -> frames
+                .filter(frame -> frame.getClassName().equals(MANAGER_CLASS))
+                .findFirst()
+                .map(StackWalker.StackFrame::getMethodName)
+                .orElse(null));
+            event.operation = operation;
+            event.sql = sql;
+        }
+        event.begin();
+        return event;
+    }
+
+    private static void commit(DatabaseCallEvent event, long rows, boolean succeeded) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.rows = rows;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    /**
+     * The connection: traces commit and rollback, wraps the statements
+     */
+    private static final class ConnectionHandler implements InvocationHandler {
+        private final Connection target;
+
+        ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("commit") || name.equals("rollback")) {
+                DatabaseCallEvent event = begin(name, null);
+                boolean succeeded = false;
+                try {
+                    Object result = TracedConnection.invoke(target, method, args);
+                    succeeded = true;
+                    return result;
+                } finally {
+                    commit(event, 0, succeeded);
+                }
+            }
+            Object result = TracedConnection.invoke(target, method, args);
+            if (result instanceof Statement && method.getReturnType().isInterface()) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                return Proxy.newProxyInstance(TracedConnection.class.getClassLoader(),
+                                              new Class<?>[] {method.getReturnType()},
+                                              new StatementHandler((Statement) result, sql));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A statement: traces the execute methods
+     */
+    private static final class StatementHandler implements InvocationHandler {
+        private final Statement target;
+        private final String sql;     // null for plain statements (the SQL is an execute argument)
+
+        StatementHandler(Statement target, String sql) {
+            this.target = target;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (!name.startsWith("execute")) {
+                return TracedConnection.invoke(target, method, args);
+            }
+            String statementSql = sql != null ? sql :
+                                  args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+            boolean query = name.equals("executeQuery");
+            boolean batch = name.equals("executeBatch") || name.equals("executeLargeBatch");
+            boolean update = name.equals("executeUpdate") || name.equals("executeLargeUpdate");
+            DatabaseCallEvent event = begin(query ? "query" : batch ? "batch" : update ? "update" : "execute",
+                                            statementSql);
+            Object result;
+            try {
+                result = TracedConnection.invoke(target, method, args);
+            } catch (Throwable e) {
+                commit(event, 0, false);
+                throw e;
+            }
+            if (query) {
+                event.end();
+                QueryHandler handler = new QueryHandler((ResultSet) result, event);
+                PENDING.set(handler);
+                return Proxy.newProxyInstance(TracedConnection.class.getClassLoader(),
+                                              new Class<?>[] {ResultSet.class}, handler);
+            }
+            long rows = 0;
+            if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    rows += Math.max(count, 0);
+                }
+            } else if (result instanceof long[]) {
+                for (long count : (long[]) result) {
+                    rows += Math.max(count, 0);
+                }
+            } else if (result instanceof Number) {
+                rows = ((Number) result).longValue();
+            }
+            commit(event, rows, true);
+            return result;
+        }
+    }
+
+    /**
+     * The result set of a query: counts the rows read
+     */
+    private static final class QueryHandler implements InvocationHandler {
+        private final ResultSet target;
+        private final DatabaseCallEvent event;  // Ended at execute
+        private long rows;
+        private boolean completed;
+
+        QueryHandler(ResultSet target, DatabaseCallEvent event) {
+            this.target = target;
+            this.event = event;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("next")) {
+                Object result = TracedConnection.invoke(target, method, args);
+                if ((Boolean) result) {
+                    rows++;
+                } else {
+                    complete();
+                }
+                return result;
+            }
+            if (name.equals("close")) {
+                complete();
+            }
+            return TracedConnection.invoke(target, method, args);
+        }
+
+        void complete() {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            if (PENDING.get() == this) {
+                PENDING.remove();
+            }
+            if (event.shouldCommit()) {
+                event.rows = rows;
+                event.succeeded = true;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.chatapp.models;
+
+/**
+ * =====================================================
+ * ChannelEntry Model Class
+ * =====================================================
+ * One channel of a user's channel list (GET_CHANNELS).
+ *
+ * Channels have no inbox rows: the entry is built from
+ * the channel's head (conversations) and the user's read
+ * cursor (participants.last_read_seq), so a post to a
+ * channel never writes anything per reader.
+ * =====================================================
+ */
+public class ChannelEntry {
+    private int conversationId;     // Channel (conversation) ID
+    private String name;            // Channel name
+    private String role;            // 'admin' (may post) or 'member' (reader)
+    private int memberCount;        // Number of members, readers included
+    private String lastMessage;     // Preview of the last message (may be null)
+    private long lastActivity;      // Time of the last message (epoch millis, 0 if none)
+    private long lastSeq;           // Seq of the last message
+    private long unreadCount;       // Messages after the user's read cursor
+
+    // Default constructor (required for JSON parsing)
+    public ChannelEntry() {
+    }
+
+    public ChannelEntry(int conversationId, String name, String role, int memberCount,
+                        String lastMessage, long lastActivity, long lastSeq, long unreadCount) {
+        this.conversationId = conversationId;
+        this.name = name;
+        this.role = role;
+        this.memberCount = memberCount;
+        this.lastMessage = lastMessage;
+        this.lastActivity = lastActivity;
+        this.lastSeq = lastSeq;
+        this.unreadCount = unreadCount;
+    }
+
+    // Getters and Setters
+    public int getConversationId() {
+        return conversationId;
+    }
+
+    public void setConversationId(int conversationId) {
+        this.conversationId = conversationId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public void setRole(String role) {
+        this.role = role;
+    }
+
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    public void setMemberCount(int memberCount) {
+        this.memberCount = memberCount;
+    }
+
+    public String getLastMessage() {
+        return lastMessage;
+    }
+
+    public void setLastMessage(String lastMessage) {
+        this.lastMessage = lastMessage;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public void setLastSeq(long lastSeq) {
+        this.lastSeq = lastSeq;
+    }
+
+    public long getUnreadCount() {
+        return unreadCount;
+    }
+
+    public void setUnreadCount(long unreadCount) {
+        this.unreadCount = unreadCount;
+    }
+}
@@ -0,0 +1,110 @@
+package com.chatapp.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * =====================================================
+ * ConversationDescriptor Model Class
+ * =====================================================
+ * Immutable description of a conversation: type, name and
+ * members. Everything needed to route a message, so that
+ * sends are served from memory (see ConversationCache).
+ *
+ * For single conversations the members' usernames are kept
+ * too (the forwarded MESSAGE carries the recipient's name).
+ *
+ * For channels, the members are the admins only (the users
+ * allowed to post); readers are not loaded, there may be
+ * any number of them. getMemberCount() still counts them.
+ * =====================================================
+ */
+public class ConversationDescriptor {
+    public static final String TYPE_SINGLE = "single";
+    public static final String TYPE_GROUP = "group";
+    public static final String TYPE_CHANNEL = "channel";
+
+    private final int id;                   // Conversation ID
+    private final String type;              // 'single', 'group' or 'channel'
+    private final String name;              // Group or channel name (null for single conversations)
+    private final List<Integer> memberIds;  // Members (admins of a channel), unmodifiable
+    private final int[] sortedMemberIds;    // Same members, sorted for isMember()
+    private final List<String> memberNames; // Usernames, same order as memberIds (single only)
+    private final int memberCount;          // All members, readers of a channel included
+
+    public ConversationDescriptor(int id, String type, String name,
+                                  List<Integer> memberIds, List<String> memberNames) {
+        this(id, type, name, memberIds, memberNames, memberIds.size());
+    }
+
+    public ConversationDescriptor(int id, String type, String name,
+                                  List<Integer> memberIds, List<String> memberNames, int memberCount) {
+        this.id = id;
+        this.type = type;
+        this.name = name;
+        this.memberIds = Collections.unmodifiableList(new ArrayList<>(memberIds));
+        this.sortedMemberIds = memberIds.stream().mapToInt(Integer::intValue).sorted().toArray();
+        this.memberNames = memberNames != null ? Collections.unmodifiableList(new ArrayList<>(memberNames)) : null;
+        this.memberCount = memberCount;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean isGroup() {
+        return TYPE_GROUP.equals(type);
+    }
+
+    public boolean isChannel() {
+        return TYPE_CHANNEL.equals(type);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Integer> getMemberIds() {
+        return memberIds;
+    }
+
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    /**
+     * @return true if the user is a member (for a channel: an admin)
+     */
+    public boolean isMember(int userId) {
+        return Arrays.binarySearch(sortedMemberIds, userId) >= 0;
+    }
+
+    /**
+     * @return the other member of a single conversation, or -1
+     */
+    public int getOtherMemberId(int userId) {
+        for (Integer memberId : memberIds) {
+            if (memberId != userId) {
+                return memberId;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the username of a member of a single conversation, or null
+     */
+    public String getMemberName(int userId) {
+        if (memberNames == null) {
+            return null;
+        }
+        int index = memberIds.indexOf(userId);
+        return index >= 0 ? memberNames.get(index) : null;
+    }
+}
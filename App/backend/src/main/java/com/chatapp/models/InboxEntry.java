@@ -0,0 +1,97 @@
+package com.chatapp.models;
+
+/**
+ * =====================================================
+ * InboxEntry Model Class
+ * =====================================================
+ * One row of a user's conversation list, as stored in
+ * the denormalized 'inbox' table.
+ *
+ * Each user has one entry per conversation they are part
+ * of. The entry already carries everything the client
+ * needs to draw the conversation list (title, preview,
+ * last activity, unread count), so opening the app is a
+ * single indexed read instead of a join across
+ * participants, conversations and messages.
+ * =====================================================
+ */
+public class InboxEntry {
+    private int conversationId;     // Conversation ID
+    private String type;            // 'single' or 'group'
+    private String title;           // Other user's name (single) or group name (group)
+    private String lastMessage;     // Preview of the last message (may be null)
+    private long lastActivity;      // Time of the last activity (epoch millis)
+    private int unreadCount;        // Messages not yet read by this user
+
+    // Default constructor (required for JSON parsing)
+    public InboxEntry() {
+    }
+
+    public InboxEntry(int conversationId, String type, String title,
+                      String lastMessage, long lastActivity, int unreadCount) {
+        this.conversationId = conversationId;
+        this.type = type;
+        this.title = title;
+        this.lastMessage = lastMessage;
+        this.lastActivity = lastActivity;
+        this.unreadCount = unreadCount;
+    }
+
+    // Getters and Setters
+    public int getConversationId() {
+        return conversationId;
+    }
+
+    public void setConversationId(int conversationId) {
+        this.conversationId = conversationId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getLastMessage() {
+        return lastMessage;
+    }
+
+    public void setLastMessage(String lastMessage) {
+        this.lastMessage = lastMessage;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    public int getUnreadCount() {
+        return unreadCount;
+    }
+
+    public void setUnreadCount(int unreadCount) {
+        this.unreadCount = unreadCount;
+    }
+
+    /**
+     * Builds the pagination cursor that points just past this entry.
+     * The cursor is "lastActivity:conversationId", matching the
+     * (last_activity, conversation_id) ordering of the inbox index.
+     */
+    public String toCursor() {
+        return lastActivity + ":" + conversationId;
+    }
+}
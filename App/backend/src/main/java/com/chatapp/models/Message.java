@@ -1,5 +1,7 @@
 package com.chatapp.models;
 
+import java.util.List;
+
 /**
  * =====================================================
  * Message Model Class
@@ -16,17 +18,45 @@ public class Message {
     public static final String TYPE_CREATE_CONVERSATION = "CREATE_CONVERSATION";
     public static final String TYPE_SEND_MESSAGE = "SEND_MESSAGE";
     public static final String TYPE_GET_CONVERSATIONS = "GET_CONVERSATIONS";
+    public static final String TYPE_GET_HISTORY = "GET_HISTORY";         // Past messages of a conversation
+    public static final String TYPE_SEARCH_MESSAGES = "SEARCH_MESSAGES"; // Full-text search of the user's messages
     
     // Group message types
     public static final String TYPE_CREATE_GROUP = "CREATE_GROUP";
     public static final String TYPE_JOIN_GROUP = "JOIN_GROUP";
     public static final String TYPE_GET_GROUPS = "GET_GROUPS";
     public static final String TYPE_GET_GROUP_MEMBERS = "GET_GROUP_MEMBERS";
+    public static final String TYPE_ADD_MEMBERS = "ADD_MEMBERS";         // Bulk add (list of usernames)
+    public static final String TYPE_REMOVE_MEMBERS = "REMOVE_MEMBERS";   // Bulk remove (list of usernames)
+    
+    // Channel message types (broadcast: admins post, subscribers read)
+    public static final String TYPE_CREATE_CHANNEL = "CREATE_CHANNEL";
+    public static final String TYPE_SUBSCRIBE_CHANNEL = "SUBSCRIBE_CHANNEL";
+    public static final String TYPE_GET_CHANNELS = "GET_CHANNELS";       // Channels with unread counts
+    
+    // Read state message types
+    public static final String TYPE_MARK_READ = "MARK_READ";         // Client -> server: read up to messageId (seq in channels)
+    public static final String TYPE_READ_RECEIPT = "READ_RECEIPT";   // Server -> client: who read up to where
+    
+    // Attachment message types (the file itself is sent in binary frames)
+    public static final String TYPE_UPLOAD_START = "UPLOAD_START";         // Begin or resume an upload
+    public static final String TYPE_UPLOAD_CHUNK = "UPLOAD_CHUNK";         // Binary frame: [offset: long][bytes]
+    public static final String TYPE_UPLOAD_COMPLETE = "UPLOAD_COMPLETE";   // Server -> client: file stored
+    public static final String TYPE_GET_ATTACHMENT_URL = "GET_ATTACHMENT_URL"; // Signed download URL
+    
+    // Ephemeral message types (in memory only, best-effort delivery)
+    public static final String TYPE_PRESENCE = "PRESENCE";
+    public static final String TYPE_TYPING = "TYPING";
     
     // Response status
     public static final String STATUS_SUCCESS = "SUCCESS";
     public static final String STATUS_ERROR = "ERROR";
     
+    // Error codes (machine-readable reason of an ERROR response)
+    public static final String ERROR_RATE_LIMITED = "RATE_LIMITED";
+    public static final String ERROR_OVERLOADED = "OVERLOADED";     // Shed by the overload controller
+    public static final String ERROR_UPLOAD_OFFSET = "UPLOAD_OFFSET"; // Chunk not at the expected offset (see offset)
+    
     // Fields
     private String type;           // Type of message/request
     private String status;          // Response status (SUCCESS/ERROR)
@@ -34,14 +64,27 @@ public class Message {
     private String password;        // Password for login
     private String targetUsername; // Target user for conversation
     private String groupName;       // Group name (for group creation)
+    private List<String> usernames; // User list (ADD_MEMBERS, REMOVE_MEMBERS)
     private String content;         // Message content
+    private String attachmentId;    // Attached file: SHA-256 of its bytes (hex)
+    private long fileSize;          // Attachment size in bytes (UPLOAD_START, UPLOAD_COMPLETE)
+    private long offset;            // Upload: bytes already received, where the next chunk starts
+    private String url;             // Signed download URL (GET_ATTACHMENT_URL)
     private String sender;          // Sender username (for forwarded messages)
     private String recipient;       // Recipient username (for forwarded messages)
     private long timestamp;         // Timestamp for messages
+    private long messageId;         // Server-assigned message ID (time-ordered)
+    private String clientMessageId; // Optional client-generated ID, makes SEND_MESSAGE retries safe
+    private String requestId;       // Optional client-chosen request ID, echoed on the response
+    private long seq;               // Per-conversation sequence number (1, 2, 3, ...)
+    private String state;           // Presence/typing state (PRESENCE, TYPING)
     private int userId;             // User ID
     private int conversationId;     // Conversation ID
     private String errorMessage;    // Error message if status is ERROR
+    private String errorCode;       // Machine-readable error code (optional)
     private Object data;            // Additional data (can be used for lists, etc.)
+    private String cursor;          // Pagination cursor (request: where to continue, response: next page)
+    private int limit;              // Maximum number of items to return (0 = server default)
     
     // Default constructor (required for JSON parsing)
     public Message() {
@@ -109,6 +152,38 @@ public class Message {
         this.content = content;
     }
     
+    public String getAttachmentId() {
+        return attachmentId;
+    }
+    
+    public void setAttachmentId(String attachmentId) {
+        this.attachmentId = attachmentId;
+    }
+    
+    public long getFileSize() {
+        return fileSize;
+    }
+    
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+    
+    public long getOffset() {
+        return offset;
+    }
+    
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+    
+    public String getUrl() {
+        return url;
+    }
+    
+    public void setUrl(String url) {
+        this.url = url;
+    }
+    
     public int getUserId() {
         return userId;
     }
@@ -133,6 +208,14 @@ public class Message {
         this.errorMessage = errorMessage;
     }
     
+    public String getErrorCode() {
+        return errorCode;
+    }
+    
+    public void setErrorCode(String errorCode) {
+        this.errorCode = errorCode;
+    }
+    
     public Object getData() {
         return data;
     }
@@ -141,6 +224,14 @@ public class Message {
         this.data = data;
     }
     
+    public List<String> getUsernames() {
+        return usernames;
+    }
+    
+    public void setUsernames(List<String> usernames) {
+        this.usernames = usernames;
+    }
+    
     public String getSender() {
         return sender;
     }
@@ -165,6 +256,62 @@ public class Message {
         this.timestamp = timestamp;
     }
     
+    public String getCursor() {
+        return cursor;
+    }
+    
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+    
+    public int getLimit() {
+        return limit;
+    }
+    
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+    
+    public long getMessageId() {
+        return messageId;
+    }
+    
+    public void setMessageId(long messageId) {
+        this.messageId = messageId;
+    }
+    
+    public String getClientMessageId() {
+        return clientMessageId;
+    }
+    
+    public void setClientMessageId(String clientMessageId) {
+        this.clientMessageId = clientMessageId;
+    }
+    
+    public String getRequestId() {
+        return requestId;
+    }
+    
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+    
+    public long getSeq() {
+        return seq;
+    }
+    
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+    
+    public String getState() {
+        return state;
+    }
+    
+    public void setState(String state) {
+        this.state = state;
+    }
+    
     /**
      * Helper method to create a success response message
      */
@@ -0,0 +1,39 @@
+package com.chatapp.models;
+
+/**
+ * =====================================================
+ * ReadCursor Model Class
+ * =====================================================
+ * The read position of one user in one conversation:
+ * every message with an ID lower than or equal to
+ * lastReadMessageId has been read by that user.
+ *
+ * Channel cursors (DatabaseManager.saveChannelCursors)
+ * count in seq instead: lastReadMessageId then holds the
+ * highest seq read, as channel unread counts are computed
+ * from the channel's last seq.
+ * =====================================================
+ */
+public class ReadCursor {
+    private final int userId;               // Reader's user ID
+    private final int conversationId;       // Conversation ID
+    private final long lastReadMessageId;   // Highest message ID read
+
+    public ReadCursor(int userId, int conversationId, long lastReadMessageId) {
+        this.userId = userId;
+        this.conversationId = conversationId;
+        this.lastReadMessageId = lastReadMessageId;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public int getConversationId() {
+        return conversationId;
+    }
+
+    public long getLastReadMessageId() {
+        return lastReadMessageId;
+    }
+}
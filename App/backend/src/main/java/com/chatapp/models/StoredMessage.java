@@ -0,0 +1,63 @@
+package com.chatapp.models;
+
+/**
+ * =====================================================
+ * StoredMessage Model Class
+ * =====================================================
+ * A chat message as stored (messages table or archive
+ * segment): where it belongs, its IDs, who sent it, when,
+ * its content and, optionally, the attachment it carries.
+ * =====================================================
+ */
+public class StoredMessage {
+    private final int conversationId;   // Conversation ID
+    private final long seq;             // Per-conversation sequence number
+    private final long messageId;       // Server-assigned message ID (time-ordered)
+    private final int senderId;         // Sender's user ID
+    private final long sentAt;          // Epoch millis
+    private final String content;       // Message content
+    private final String attachmentId;  // Attachment (SHA-256, hex), null if none
+
+    public StoredMessage(int conversationId, long seq, long messageId, int senderId, long sentAt, String content) {
+        this(conversationId, seq, messageId, senderId, sentAt, content, null);
+    }
+
+    public StoredMessage(int conversationId, long seq, long messageId, int senderId, long sentAt, String content,
+                         String attachmentId) {
+        this.conversationId = conversationId;
+        this.seq = seq;
+        this.messageId = messageId;
+        this.senderId = senderId;
+        this.sentAt = sentAt;
+        this.content = content;
+        this.attachmentId = attachmentId;
+    }
+
+    public int getConversationId() {
+        return conversationId;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public String getAttachmentId() {
+        return attachmentId;
+    }
+}
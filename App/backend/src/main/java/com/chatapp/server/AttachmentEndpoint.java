@@ -0,0 +1,304 @@
+package com.chatapp.server;
+
+import com.chatapp.storage.AttachmentStore;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * =====================================================
+ * AttachmentEndpoint Class
+ * =====================================================
+ * HTTP downloads of stored attachments, on their own port
+ * (attachments.port), so large files never travel through
+ * the WebSocket connections:
+ *
+ * GET /attachments/<ID>?expires=<millis>&sig=<signature>
+ *   -> 200 with the whole file, or 206 with one byte range
+ *      (Range: bytes=a-b, a-, -n); 416 if the range is
+ *      outside the file. HEAD is answered with the headers.
+ *
+ * URLs are handed out over the WebSocket (GET_ATTACHMENT_URL)
+ * and signed with attachments.urlSecret (HMAC-SHA256 of the
+ * ID and the expiry), so a URL only works until it expires,
+ * across restarts and on every server sharing the secret.
+ * Without a secret a key is drawn at startup (development
+ * only: URLs then break on restart). The ID is the hash of
+ * the content: responses are immutable and cacheable (ETag).
+ *
+ * The file is copied with FileChannel.transferTo; the JDK
+ * HTTP server only exposes the response as a stream, so
+ * the copy goes through its buffer rather than straight
+ * from the page cache to the socket.
+ * =====================================================
+ */
+public class AttachmentEndpoint {
+    private static final String PATH_PREFIX = "/attachments/";
+    private static final int DOWNLOAD_THREADS = 8;
+    private static final int KEY_BYTES = 32;
+
+    private final AttachmentStore store;
+    private final int port;
+    private final byte[] key;
+    private HttpServer httpServer;
+
+    /**
+     * Constructor
+     *
+     * @param store The attachments served
+     * @param port HTTP port (0 = downloads disabled)
+     * @param secret URL signing secret (empty = random key for this run)
+     */
+    public AttachmentEndpoint(AttachmentStore store, int port, String secret) {
+        this.store = store;
+        this.port = port;
+        if (secret.isEmpty()) {
+            key = new byte[KEY_BYTES];
+            new SecureRandom().nextBytes(key);
+            if (port != 0) {
+                System.err.println("[AttachmentEndpoint] attachments.urlSecret is not set: using a random key, " +
+                                   "download URLs stop working on restart and on other servers");
+            }
+        } else {
+            key = secret.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Binds the port and starts serving
+     */
+    public void start() throws IOException {
+        if (port == 0) {
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext(PATH_PREFIX, this::handle);
+        httpServer.setExecutor(Executors.newFixedThreadPool(DOWNLOAD_THREADS, r -> {
+            Thread thread = new Thread(r, "attachment-download-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }));
+        httpServer.start();
+        System.out.println("[AttachmentEndpoint] Listening on port " + port);
+    }
+
+    /**
+     * Stops serving
+     */
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    /**
+     * @return true if downloads are served (attachments.port is not 0)
+     */
+    public boolean isEnabled() {
+        return port != 0;
+    }
+
+    /**
+     * Signs the download path of an attachment
+     *
+     * @param attachmentId The attachment
+     * @param expiresAt Epoch millis after which the URL is refused
+     * @return the path and query string, to append to the public base URL
+     */
+    public String signedPath(String attachmentId, long expiresAt) {
+        return PATH_PREFIX + attachmentId + "?expires=" + expiresAt + "&sig=" + sign(attachmentId, expiresAt);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            boolean head = "HEAD".equals(method);
+            if (!head && !"GET".equals(method)) {
+                sendStatus(exchange, 405);
+                return;
+            }
+
+            String attachmentId = exchange.getRequestURI().getPath().substring(PATH_PREFIX.length());
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (!AttachmentStore.isValidId(attachmentId) || !verify(attachmentId, query)) {
+                sendStatus(exchange, 403);
+                return;
+            }
+            Path file = store.find(attachmentId);
+            if (file == null) {
+                sendStatus(exchange, 404);
+                return;
+            }
+
+            Headers headers = exchange.getResponseHeaders();
+            String etag = "\"" + attachmentId + "\"";
+            headers.set("Accept-Ranges", "bytes");
+            headers.set("ETag", etag);
+            headers.set("Cache-Control", "private, max-age=31536000, immutable");
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                sendStatus(exchange, 304);
+                return;
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                long start = 0;
+                long length = size;
+                int status = 200;
+
+                long[] range = parseRange(exchange.getRequestHeaders().getFirst("Range"), size);
+                if (range == null) {
+                    headers.set("Content-Range", "bytes */" + size);
+                    sendStatus(exchange, 416);
+                    return;
+                }
+                if (range.length == 2) {
+                    start = range[0];
+                    length = range[1] - range[0] + 1;
+                    status = 206;
+                    headers.set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+                }
+
+                headers.set("Content-Type", "application/octet-stream");
+                if (head) {
+                    headers.set("Content-Length", String.valueOf(length));
+                    exchange.sendResponseHeaders(status, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    WritableByteChannel target = Channels.newChannel(out);
+                    long position = start;
+                    long end = start + length;
+                    while (position < end) {
+                        long sent = channel.transferTo(position, end - position, target);
+                        if (sent <= 0) {
+                            break;
+                        }
+                        position += sent;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Mostly clients going away in the middle of a download
+            System.err.println("[AttachmentEndpoint] Download failed: " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Parses a Range header (a single byte range)
+     *
+     * @return {} for the whole file (no header, or one that is not a single
+     *         valid byte range, e.g. last before first: ignored), {first, last}
+     *         for a range, null if the range cannot be satisfied
+     */
+    static long[] parseRange(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long from;
+            long to;
+            if (first.isEmpty()) {
+                // Suffix: the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || size == 0) {
+                    return null;
+                }
+                from = Math.max(0, size - suffix);
+                to = size - 1;
+            } else {
+                from = Long.parseLong(first);
+                to = last.isEmpty() ? size - 1 : Long.parseLong(last);
+                if (to < from) {
+                    return new long[0];
+                }
+                if (from >= size) {
+                    return null;
+                }
+                to = Math.min(to, size - 1);
+            }
+            return new long[] {from, to};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private boolean verify(String attachmentId, Map<String, String> query) {
+        String expires = query.get("expires");
+        String sig = query.get("sig");
+        if (expires == null || sig == null) {
+            return false;
+        }
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(expires);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expiresAt < System.currentTimeMillis()) {
+            return false;
+        }
+        return MessageDigest.isEqual(sign(attachmentId, expiresAt).getBytes(StandardCharsets.US_ASCII),
+                                     sig.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String sign(String attachmentId, long expiresAt) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            byte[] signature = mac.doFinal((attachmentId + ":" + expiresAt).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+        return params;
+    }
+
+    private static void sendStatus(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+}
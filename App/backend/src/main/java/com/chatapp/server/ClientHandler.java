@@ -1,18 +1,56 @@
 package com.chatapp.server;
 
+import com.chatapp.config.ServerConfig;
 import com.chatapp.database.DatabaseManager;
+import com.chatapp.models.ChannelEntry;
+import com.chatapp.models.ConversationDescriptor;
+import com.chatapp.models.InboxEntry;
 import com.chatapp.models.Message;
+import com.chatapp.models.StoredMessage;
+import com.chatapp.storage.AttachmentStore;
+import com.chatapp.storage.MessageHistory;
+import com.chatapp.storage.MessageLog;
+import com.chatapp.storage.MessageSearchIndex;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
 import org.java_websocket.server.WebSocketServer;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * =====================================================
@@ -32,41 +70,269 @@ import java.util.Map;
  * - All messages are JSON strings over WebSocket
  * - WebSocket handles message framing automatically
  * - No need for newline characters (\n)
+ * - Except attachment uploads: after UPLOAD_START, the file
+ *   is sent in binary frames ([offset: long][bytes])
  * =====================================================
  */
 public class ClientHandler extends WebSocketServer {
+    // Maximum length of a client-generated message ID
+    private static final int MAX_CLIENT_MESSAGE_ID_LENGTH = 64;
+    private static final int MAX_REQUEST_ID_LENGTH = 64;
+    
+    // Pipelined requests of one connection running at once; more are run
+    // inline, which stops reading that connection until one finishes
+    private static final int MAX_IN_FLIGHT_PER_CONNECTION = 16;
+    
+    // Request types never pipelined: cheap, and their order matters
+    private static final Set<String> ORDERED_TYPES = new HashSet<>(Arrays.asList(
+        Message.TYPE_LOGIN, Message.TYPE_SEND_MESSAGE, Message.TYPE_MARK_READ,
+        Message.TYPE_PRESENCE, Message.TYPE_TYPING, Message.TYPE_UPLOAD_START));
+    
+    // Upload chunk frames: offset header, and largest payload accepted
+    private static final int CHUNK_HEADER_BYTES = 8;
+    private static final int MAX_CHUNK_BYTES = 1024 * 1024;
+    
+    // Interval of the cleanup of abandoned partial uploads
+    private static final long ATTACHMENT_SWEEP_MINUTES = 60;
+    
+    // Application close codes
+    private static final int CLOSE_LOGIN_TIMEOUT = 4000;
+    private static final int CLOSE_IDLE_TIMEOUT = 4001;
+    
+    // Interval of the periodic statistics log
+    private static final long STATS_INTERVAL_SECONDS = 60;
+    
+    // Interval at which the overload controller samples the load
+    private static final long OVERLOAD_TICK_MS = 1000;
+    
+    // Drain: extra time after the close window for close handshakes to finish,
+    // and retry delay of a close postponed because a request is being handled
+    private static final long DRAIN_GRACE_MS = 2000;
+    private static final long DRAIN_RETRY_MS = 20;
+    
+    // Maximum wait at shutdown for pipelined requests still running
+    private static final long REQUEST_SHUTDOWN_TIMEOUT_SECONDS = 5;
+    
+    // Frames already queued on a connection for it to be traced as a slow consumer
+    private static final int SLOW_CONSUMER_QUEUED_FRAMES = 32;
+    
+    // Hot-reloadable settings (see applyConfig)
+    private volatile long loginTimeoutMs;             // Time allowed to send LOGIN
+    private volatile long idleTimeoutMs;              // Authenticated but silent sessions
+    private volatile int conversationsPageSize;       // GET_CONVERSATIONS default page size
+    private volatile int conversationsMaxPageSize;    // GET_CONVERSATIONS maximum page size
+    private volatile int historyPageSize;             // GET_HISTORY default page size
+    private volatile int historyMaxPageSize;          // GET_HISTORY maximum page size
+    private volatile int searchPageSize;              // SEARCH_MESSAGES default page size
+    private volatile int searchMaxPageSize;           // SEARCH_MESSAGES maximum page size
+    private volatile int frameLogSampleRate;          // Log 1 in N frames (0 = none)
+    private volatile int maxContentBytes;             // Largest message content (UTF-8 bytes)
+    private volatile int largeGroupThreshold;         // Members above which a group is "large"
+    private volatile int maxUsersPerRequest;          // ADD_MEMBERS / REMOVE_MEMBERS list size
+    private volatile long drainMs;                    // Window over which closes are spread
+    private volatile long reconnectSpreadMs;          // Maximum reconnect hint sent to clients
+    private volatile long maxAttachmentBytes;         // Largest attachment accepted
+    private volatile long attachmentUrlTtlMs;         // Validity of a signed download URL
+    private volatile String attachmentBaseUrl;        // Public base URL of the download port
+    private volatile long partialUploadExpiryMs;      // Unfinished uploads deleted after this
+    private final AtomicLong frameLogCounter = new AtomicLong();
+    
+    // Startup: released by onStart (port bound) or by a fatal error before it
+    private final CountDownLatch startedLatch = new CountDownLatch(1);
+    private volatile Exception startFailure;
+    
+    // Drain mode (shutdown): no new connections, existing ones closed gradually
+    private volatile boolean draining;
+    private final AtomicInteger activeRequests = new AtomicInteger(); // Requests being handled
+    
     private DatabaseManager dbManager;        // Database manager instance
     private Gson gson;                        // JSON parser (Gson library)
+    private MessageIdGenerator messageIds;    // Server-side message ID generator
+    private ConversationCache conversations;  // Conversation type, name and members (routing)
+    private MessageHistory history;           // Stored messages (table, then archive)
+    private MessageSearchIndex searchIndex;   // Full-text index of messages, null if disabled
+    private MessageLog messageLog;            // Durable log of sent messages (write-ahead)
+    private AttachmentStore attachments;      // Uploaded files, by content hash
+    private AttachmentEndpoint attachmentEndpoint; // HTTP downloads (signs the URLs)
+    private ReadReceiptTracker readReceipts;  // Batched read cursors and receipts
+    private SubscriptionIndex subscriptions;  // Online users and their conversations
+    private PresenceTracker presence;         // PRESENCE / TYPING (in memory only)
+    private SendDeduplicator sendDedup;       // Recent clientMessageIds per sender
+    private SequenceAllocator sequences;      // Per-conversation sequence numbers
+    private RateLimiter rateLimiter;          // Token-bucket request limits
+    private OverloadController overload;      // Load shedding and admission control
+    private TrafficCapture capture;           // Opt-in recording of inbound frames
+    private ScheduledExecutorService maintenance; // Periodic housekeeping (stats)
+    private ThreadPoolExecutor requestExecutor; // Pipelined requests (see dispatch)
+    
+    // requestId of the request being handled by this thread, echoed by sendMessage
+    private final ThreadLocal<String> replyRequestId = new ThreadLocal<>();
+    
+    // JFR event of the request being handled by this thread (its outcome is
+    // set when an error response is sent)
+    private final ThreadLocal<RequestEvent> currentRequest = new ThreadLocal<>();
+    private TimerWheel timers;                // All per-connection / per-user deadlines
     
-    // Map to store WebSocket connections and their associated user data
-    // Key: WebSocket connection, Value: UserInfo object
-    private Map<WebSocket, UserInfo> clientData = new HashMap<>();
+    // Each connection's UserInfo is attached to the WebSocket itself
+    // (setAttachment): no map entry per connection, only a counter
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    
+    // Routing table of logged-in users
+    // Key: user ID, Value: all open connections of that user
+    // (copy-on-write array sets: users have one or two connections)
+    private Map<Integer, Set<WebSocket>> userConnections = new ConcurrentHashMap<>();
     
     /**
-     * Inner class to store user information for each WebSocket connection
+     * Inner class to store user information for each WebSocket connection.
+     * Kept small, there is one per connection: no per-session collections
+     * (memberships live in the SubscriptionIndex, per user), and the
+     * username is the instance shared by all sessions of the user.
      */
     private static class UserInfo {
+        private static final AtomicIntegerFieldUpdater<UserInfo> IN_FLIGHT =
+            AtomicIntegerFieldUpdater.newUpdater(UserInfo.class, "inFlight");
+        
         int authenticatedUserId = -1;    // Current user's ID (-1 means not authenticated)
         String username;                  // Current user's username
-        Map<Integer, String> activeConversations = new HashMap<>(); // Active conversations
-        
-        UserInfo() {
-            this.authenticatedUserId = -1;
-            this.username = null;
-            this.activeConversations = new HashMap<>();
+        final RateLimiter.ConnectionBuckets rateBuckets;            // Token buckets of this connection
+        volatile long lastActivity = System.currentTimeMillis();    // Time of the last request
+        TimerWheel.Timeout deadline;                                // Login deadline or idle check
+        volatile int inFlight;                                      // Requests being handled (IN_FLIGHT)
+        volatile AttachmentStore.Upload upload;                     // Upload in progress, null if none
+        
+        UserInfo(RateLimiter.ConnectionBuckets rateBuckets) {
+            this.rateBuckets = rateBuckets;
         }
     }
     
     /**
      * Constructor
      * 
-     * @param port The port number to listen on
+     * @param config The server configuration (port, worker threads, limits, timeouts)
      * @param dbManager The database manager instance (shared across all handlers)
+     * @param history Reads of stored messages (GET_HISTORY)
+     * @param messageLog Where sent messages are made durable
+     * @param attachments Where uploaded files are stored
+     * @param attachmentEndpoint Serves the downloads (signs their URLs)
+     * @param searchIndex Full-text index of messages (SEARCH_MESSAGES), null if disabled
      */
-    public ClientHandler(int port, DatabaseManager dbManager) {
-        super(new InetSocketAddress(port));
+    public ClientHandler(ServerConfig config, DatabaseManager dbManager, MessageHistory history,
+                         MessageLog messageLog, AttachmentStore attachments, AttachmentEndpoint attachmentEndpoint,
+                         MessageSearchIndex searchIndex) {
+        super(new InetSocketAddress(config.getInt(ServerConfig.SERVER_PORT)),
+              config.getInt(ServerConfig.DECODER_THREADS));
         this.dbManager = dbManager;
+        this.history = history;
+        this.messageLog = messageLog;
+        this.attachments = attachments;
+        this.attachmentEndpoint = attachmentEndpoint;
+        this.searchIndex = searchIndex;
         this.gson = new Gson();
+        this.messageIds = new MessageIdGenerator();
+        this.conversations = new ConversationCache(dbManager, config.getInt(ServerConfig.CONVERSATION_CACHE_SIZE));
+        this.overload = new OverloadController();
+        this.capture = new TrafficCapture(Paths.get(config.getString(ServerConfig.CAPTURE_DIR)));
+        this.readReceipts = new ReadReceiptTracker(dbManager, conversations, this, overload);
+        this.subscriptions = new SubscriptionIndex();
+        this.timers = new TimerWheel("connection-timers", 1000, 512);
+        this.presence = new PresenceTracker(this, subscriptions, timers);
+        this.sendDedup = new SendDeduplicator();
+        this.sequences = new SequenceAllocator(dbManager);
+        this.rateLimiter = new RateLimiter();
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "server-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger requestThreadCount = new AtomicInteger();
+        int requestThreads = config.getInt(ServerConfig.REQUEST_THREADS);
+        this.requestExecutor = new ThreadPoolExecutor(requestThreads, requestThreads, 0, TimeUnit.MILLISECONDS,
+                                                      new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "request-" + requestThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.overload.setQueueDepth(() -> requestExecutor.getQueue().size());
+        
+        applyConfig(config);
+    }
+    
+    /**
+     * Applies the hot-reloadable settings. Called at startup and by the
+     * ConfigWatcher on every reload; open connections are not affected
+     * except through the new limits and timeouts.
+     * 
+     * @param config The new configuration
+     */
+    public void applyConfig(ServerConfig config) {
+        // Built-in ping/pong: connections that miss a pong within the interval are closed.
+        // The library checks all connections from a single timer.
+        setConnectionLostTimeout(config.getInt(ServerConfig.HEARTBEAT_SECONDS));
+        
+        loginTimeoutMs = config.getLong(ServerConfig.LOGIN_TIMEOUT_MS);
+        idleTimeoutMs = config.getLong(ServerConfig.IDLE_TIMEOUT_MS);
+        conversationsPageSize = config.getInt(ServerConfig.CONVERSATIONS_PAGE_SIZE);
+        conversationsMaxPageSize = config.getInt(ServerConfig.CONVERSATIONS_MAX_PAGE_SIZE);
+        historyPageSize = config.getInt(ServerConfig.HISTORY_PAGE_SIZE);
+        historyMaxPageSize = config.getInt(ServerConfig.HISTORY_MAX_PAGE_SIZE);
+        searchPageSize = config.getInt(ServerConfig.SEARCH_PAGE_SIZE);
+        searchMaxPageSize = config.getInt(ServerConfig.SEARCH_MAX_PAGE_SIZE);
+        frameLogSampleRate = config.getInt(ServerConfig.LOG_FRAME_SAMPLE_RATE);
+        capture.configure(config.getBoolean(ServerConfig.CAPTURE_ENABLED),
+                          config.getInt(ServerConfig.CAPTURE_MAX_MB) * 1024L * 1024L);
+        conversations.setMaxEntries(config.getInt(ServerConfig.CONVERSATION_CACHE_SIZE));
+        maxContentBytes = config.getInt(ServerConfig.MESSAGES_MAX_BYTES);
+        largeGroupThreshold = config.getInt(ServerConfig.GROUPS_LARGE_THRESHOLD);
+        maxUsersPerRequest = config.getInt(ServerConfig.GROUPS_MAX_USERS_PER_REQUEST);
+        drainMs = config.getLong(ServerConfig.SHUTDOWN_DRAIN_MS);
+        reconnectSpreadMs = config.getLong(ServerConfig.SHUTDOWN_RECONNECT_SPREAD_MS);
+        maxAttachmentBytes = config.getInt(ServerConfig.ATTACHMENTS_MAX_FILE_MB) * 1024L * 1024L;
+        attachmentUrlTtlMs = config.getInt(ServerConfig.ATTACHMENTS_URL_TTL_SECONDS) * 1000L;
+        attachmentBaseUrl = config.getString(ServerConfig.ATTACHMENTS_BASE_URL);
+        partialUploadExpiryMs = config.getInt(ServerConfig.ATTACHMENTS_PARTIAL_EXPIRY_HOURS) * 3600_000L;
+        overload.configure(config.getBoolean(ServerConfig.OVERLOAD_ENABLED),
+                           config.getLong(ServerConfig.OVERLOAD_LATENCY_TARGET_MS),
+                           config.getInt(ServerConfig.OVERLOAD_QUEUE_TARGET),
+                           config.getInt(ServerConfig.OVERLOAD_INDEXER_LAG_TARGET_MB) * 1024L * 1024L,
+                           config.getLong(ServerConfig.OVERLOAD_POOL_WAIT_TARGET_MS),
+                           config.getInt(ServerConfig.OVERLOAD_MAX_CONNECTIONS));
+        
+        // Rate limits: configured ones override the built-in defaults
+        rateLimiter.resetToDefaults();
+        for (Map.Entry<String, double[]> entry : config.getRateLimits().entrySet()) {
+            int limitIndex = RateLimiter.limitIndex(entry.getKey());
+            if (limitIndex == -1) {
+                System.err.println("[ClientHandler] Unknown rate limit '" + entry.getKey() + "' ignored");
+                continue;
+            }
+            rateLimiter.setLimit(limitIndex, entry.getValue()[0], entry.getValue()[1]);
+        }
+    }
+    
+    /**
+     * @return true if this frame should be logged (log.frameSampleRate)
+     */
+    private boolean shouldLogFrame() {
+        int rate = frameLogSampleRate;
+        return rate == 1 || (rate > 1 && frameLogCounter.incrementAndGet() % rate == 0);
+    }
+    
+    /**
+     * Rejects the WebSocket upgrade while draining, so that a load balancer
+     * or client retry lands on another instance instead of this one
+     */
+    @Override
+    public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft,
+                                                                       ClientHandshake request)
+            throws InvalidDataException {
+        if (draining) {
+            throw new InvalidDataException(CloseFrame.TRY_AGAIN_LATER, "Server is shutting down");
+        }
+        // Admission control: refused before onOpen, so a refused client costs no session
+        if (!overload.admitConnection(connectionCount.get())) {
+            throw new InvalidDataException(CloseFrame.TRY_AGAIN_LATER, "Server overloaded");
+        }
+        return super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
     }
     
     /**
@@ -78,11 +344,17 @@ public class ClientHandler extends WebSocketServer {
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
         // Create a new UserInfo object for this connection
-        clientData.put(conn, new UserInfo());
+        UserInfo userInfo = new UserInfo(rateLimiter.newConnection());
+        conn.setAttachment(userInfo);
+        int connections = connectionCount.incrementAndGet();
+        capture.opened(conn);
+        
+        // The client must LOGIN before the deadline, or the socket is closed
+        userInfo.deadline = timers.schedule(() -> checkLoginDeadline(conn, userInfo), loginTimeoutMs);
         
         System.out.println("[ClientHandler] New WebSocket client connected: " + 
                          conn.getRemoteSocketAddress());
-        System.out.println("[ClientHandler] Total connections: " + clientData.size());
+        System.out.println("[ClientHandler] Total connections: " + connections);
     }
     
     /**
@@ -95,7 +367,24 @@ public class ClientHandler extends WebSocketServer {
      */
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-        UserInfo userInfo = clientData.remove(conn);
+        // Also called for upgrades refused before onOpen (no attachment)
+        UserInfo userInfo = conn.getAttachment();
+        conn.setAttachment(null);
+        int connections = userInfo != null ? connectionCount.decrementAndGet() : connectionCount.get();
+        
+        if (userInfo != null) {
+            capture.closed(conn);
+            if (userInfo.deadline != null) {
+                userInfo.deadline.cancel();
+            }
+            // An unfinished upload stays on disk, to be resumed
+            AttachmentStore.Upload upload = userInfo.upload;
+            if (upload != null) {
+                userInfo.upload = null;
+                attachments.suspend(upload);
+            }
+            unregisterConnection(userInfo.authenticatedUserId, conn);
+        }
         
         if (userInfo != null && userInfo.username != null) {
             System.out.println("[ClientHandler] Client disconnected: " + userInfo.username + 
@@ -104,7 +393,7 @@ public class ClientHandler extends WebSocketServer {
             System.out.println("[ClientHandler] Client disconnected: " + conn.getRemoteSocketAddress());
         }
         
-        System.out.println("[ClientHandler] Total connections: " + clientData.size());
+        System.out.println("[ClientHandler] Total connections: " + connections);
     }
     
     /**
@@ -115,10 +404,55 @@ public class ClientHandler extends WebSocketServer {
      */
     @Override
     public void onMessage(WebSocket conn, String message) {
-        System.out.println("[ClientHandler] Received from " + conn.getRemoteSocketAddress() + ": " + message);
+        if (shouldLogFrame()) {
+            System.out.println("[ClientHandler] Received from " + conn.getRemoteSocketAddress() + ": " + message);
+        }
+        capture.text(conn, message);
         
         // Process the received message
-        processMessage(conn, message);
+        // (counted, so that a drain waits for requests already being handled)
+        UserInfo userInfo = conn.getAttachment();
+        if (userInfo == null) {
+            return; // Closed meanwhile
+        }
+        activeRequests.incrementAndGet();
+        UserInfo.IN_FLIGHT.incrementAndGet(userInfo);
+        boolean handedOff = false;
+        try {
+            handedOff = processMessage(conn, message, userInfo);
+        } finally {
+            if (!handedOff) {
+                finishRequest(userInfo);
+            }
+        }
+    }
+    
+    /**
+     * Called when a binary frame is received: a chunk of the connection's
+     * upload (see handleUploadStart)
+     * 
+     * @param conn The WebSocket connection
+     * @param frame The frame payload: [offset: long][bytes]
+     */
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer frame) {
+        capture.binary(conn, frame);
+        UserInfo userInfo = conn.getAttachment();
+        if (userInfo == null) {
+            return; // Closed meanwhile
+        }
+        activeRequests.incrementAndGet();
+        UserInfo.IN_FLIGHT.incrementAndGet(userInfo);
+        try {
+            processChunk(conn, frame, userInfo);
+        } finally {
+            finishRequest(userInfo);
+        }
+    }
+    
+    private void finishRequest(UserInfo userInfo) {
+        UserInfo.IN_FLIGHT.decrementAndGet(userInfo);
+        activeRequests.decrementAndGet();
     }
     
     /**
@@ -132,6 +466,10 @@ public class ClientHandler extends WebSocketServer {
         System.err.println("[ClientHandler] WebSocket error: " + ex.getMessage());
         if (conn != null) {
             ex.printStackTrace();
+        } else if (startedLatch.getCount() > 0) {
+            // Server-level error before onStart: the port could not be bound
+            startFailure = ex;
+            startedLatch.countDown();
         }
     }
     
@@ -140,32 +478,256 @@ public class ClientHandler extends WebSocketServer {
      */
     @Override
     public void onStart() {
+        timers.start();
+        readReceipts.start();
+        maintenance.scheduleWithFixedDelay(rateLimiter::logStats,
+            STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(this::logConnectionStats,
+            STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(overload::logStats,
+            STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(overload::tick,
+            OVERLOAD_TICK_MS, OVERLOAD_TICK_MS, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(() -> attachments.sweep(partialUploadExpiryMs),
+            ATTACHMENT_SWEEP_MINUTES, ATTACHMENT_SWEEP_MINUTES, TimeUnit.MINUTES);
         System.out.println("[ClientHandler] WebSocket server started successfully!");
+        startedLatch.countDown();
+    }
+    
+    /**
+     * Prints the open connections and the heap used per connection.
+     * The heap figure covers everything live on the heap (caches included),
+     * so it is an upper bound; its trend as connections grow is what
+     * tells the cost of one more session.
+     */
+    private void logConnectionStats() {
+        int connections = connectionCount.get();
+        if (connections == 0) {
+            return;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long usedBytes = runtime.totalMemory() - runtime.freeMemory();
+        System.out.println("[ClientHandler] " + connections + " connections, " + userConnections.size() +
+                           " users online, heap used " + (usedBytes >> 20) + " MB (" +
+                           (usedBytes / connections) + " bytes per connection)");
     }
     
     /**
-     * Processes a JSON message received from the client
+     * Waits until the server listens (start() only launches its thread)
+     * 
+     * @param timeoutMs Maximum wait
+     * @throws Exception the bind error, or a timeout
+     */
+    public void awaitStarted(long timeoutMs) throws Exception {
+        if (!startedLatch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("WebSocket server did not start within " + timeoutMs + " ms");
+        }
+        if (startFailure != null) {
+            throw startFailure;
+        }
+    }
+    
+    /**
+     * Drains the server before a shutdown or restart:
+     * 1. New WebSocket upgrades are refused
+     * 2. Every open connection is closed at a random moment of the
+     *    drain window (after its current request, if any), with close
+     *    code 1012 (service restart) and the reason "retryAfterMs=<n>",
+     *    n being random in [0, shutdown.reconnectSpreadMs). Clients
+     *    wait n ms before reconnecting, so the new instance sees the
+     *    reconnects (and LOGINs) spread out instead of all at once.
+     * 3. Waits until every connection is closed and no request is in
+     *    progress, or the window (plus a short grace) has elapsed.
+     * 
+     * Responses already queued on a connection are sent before its
+     * close frame. Blocks the calling thread.
+     * 
+     * @return number of connections still open when the drain ended
+     */
+    public int drain() {
+        draining = true;
+        long window = drainMs;
+        long spread = reconnectSpreadMs;
+        List<WebSocket> open = new ArrayList<>(getConnections());
+        System.out.println("[ClientHandler] Draining " + open.size() + " connections over " + window + " ms");
+        
+        for (WebSocket conn : open) {
+            long closeAt = window > 0 ? ThreadLocalRandom.current().nextLong(window) : 0;
+            long retryAfterMs = spread > 0 ? ThreadLocalRandom.current().nextLong(spread) : 0;
+            maintenance.schedule(() -> closeForRestart(conn, retryAfterMs), closeAt, TimeUnit.MILLISECONDS);
+        }
+        
+        long deadline = System.currentTimeMillis() + window + DRAIN_GRACE_MS;
+        while ((connectionCount.get() > 0 || activeRequests.get() > 0) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRAIN_RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return connectionCount.get();
+    }
+    
+    /**
+     * Closes one connection during a drain, once it is not handling a request
+     */
+    private void closeForRestart(WebSocket conn, long retryAfterMs) {
+        if (!conn.isOpen()) {
+            return;
+        }
+        UserInfo userInfo = conn.getAttachment();
+        if (userInfo != null && userInfo.inFlight > 0) {
+            maintenance.schedule(() -> closeForRestart(conn, retryAfterMs), DRAIN_RETRY_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        conn.close(CloseFrame.SERVICE_RESTART, "retryAfterMs=" + retryAfterMs);
+    }
+    
+    /**
+     * Waits for the pipelined requests still running, then flushes state
+     * that is buffered in memory (read cursors).
+     * Called by the Server after the WebSocket server has stopped
+     * and before the database connection is closed.
+     */
+    public void flushPendingState() {
+        requestExecutor.shutdown();
+        try {
+            requestExecutor.awaitTermination(REQUEST_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        maintenance.shutdownNow();
+        timers.stop();
+        sendDedup.shutdown();
+        readReceipts.shutdown();
+        capture.close();
+    }
+    
+    /**
+     * Processes a JSON message received from the client: limits, parsing,
+     * then the request itself (dispatch)
+     * 
+     * Requests carrying a requestId are pipelined: they run on the request
+     * pool, so several requests of one connection run at once and may
+     * complete out of order; the response carries the same requestId.
+     * LOGIN and the ORDERED_TYPES always run in arrival order on the
+     * connection's own thread (a LOGIN completes before the next frame
+     * is read, and a user's messages keep their order).
      * 
      * @param conn The WebSocket connection
      * @param jsonString The JSON string received from client
+     * @param userInfo The user info for this connection
+     * @return true if the request was handed to the request pool
+     *         (which then ends it with finishRequest)
      */
-    private void processMessage(WebSocket conn, String jsonString) {
+    private boolean processMessage(WebSocket conn, String jsonString, UserInfo userInfo) {
+        RequestEvent event = new RequestEvent();
+        event.begin();
+        Message request;
         try {
+            userInfo.lastActivity = System.currentTimeMillis();
+            
+            // Connection-wide limit first, so a flood is rejected before any parsing
+            boolean authenticated = userInfo.authenticatedUserId != -1;
+            if (!rateLimiter.tryAcquireConnection(userInfo.rateBuckets, authenticated)) {
+                sendRateLimited(conn, null);
+                commitRequest(event, null, userInfo, Message.ERROR_RATE_LIMITED);
+                return false;
+            }
+            
             // Parse JSON string into Message object
-            Message request = gson.fromJson(jsonString, Message.class);
+            request = gson.fromJson(jsonString, Message.class);
             
             if (request == null || request.getType() == null) {
                 sendError(conn, "Invalid message format");
-                return;
+                commitRequest(event, null, userInfo, RequestEvent.OUTCOME_INVALID);
+                return false;
             }
-            
-            // Get user info for this connection
-            UserInfo userInfo = clientData.get(conn);
-            if (userInfo == null) {
-                userInfo = new UserInfo();
-                clientData.put(conn, userInfo);
+        } catch (JsonSyntaxException e) {
+            System.err.println("[ClientHandler] Error parsing JSON: " + e.getMessage());
+            sendError(conn, "Invalid JSON format");
+            commitRequest(event, null, userInfo, RequestEvent.OUTCOME_INVALID);
+            return false;
+        }
+        
+        String requestId = request.getRequestId();
+        if (requestId != null && (requestId.isEmpty() || requestId.length() > MAX_REQUEST_ID_LENGTH)) {
+            sendError(conn, "Invalid request ID");
+            commitRequest(event, request.getType(), userInfo, RequestEvent.OUTCOME_INVALID);
+            return false;
+        }
+        
+        // Load shedding by priority, then per-type and per-user limits
+        replyRequestId.set(requestId);
+        try {
+            if (!overload.admit(request.getType())) {
+                sendOverloaded(conn, request.getType());
+                commitRequest(event, request.getType(), userInfo, Message.ERROR_OVERLOADED);
+                return false;
             }
-            
+            if (!rateLimiter.tryAcquire(userInfo.rateBuckets, userInfo.authenticatedUserId,
+                                        RateLimiter.typeIndex(request.getType()))) {
+                sendRateLimited(conn, request.getType());
+                commitRequest(event, request.getType(), userInfo, Message.ERROR_RATE_LIMITED);
+                return false;
+            }
+        } finally {
+            replyRequestId.remove();
+        }
+        
+        if (requestId != null && !ORDERED_TYPES.contains(request.getType()) &&
+                userInfo.inFlight <= MAX_IN_FLIGHT_PER_CONNECTION) {
+            long queuedAt = System.nanoTime();
+            try {
+                requestExecutor.execute(() -> {
+                    event.pipelined = true;
+                    event.queueTime = System.nanoTime() - queuedAt;
+                    try {
+                        dispatch(conn, request, userInfo, event);
+                    } finally {
+                        finishRequest(userInfo);
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                // Shutting down: handle it here
+            }
+        }
+        dispatch(conn, request, userInfo, event);
+        return false;
+    }
+    
+    /**
+     * Ends and records the JFR event of a request (if a recording wants it)
+     * 
+     * @param type The request type (null if the frame could not be parsed)
+     * @param outcome OK, an error kind or the errorCode sent back
+     */
+    private static void commitRequest(RequestEvent event, String type, UserInfo userInfo, String outcome) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.type = type;
+            event.userId = userInfo.authenticatedUserId;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Runs one request; its responses carry its requestId
+     * 
+     * @param conn The WebSocket connection
+     * @param request The parsed request
+     * @param userInfo The user info for this connection
+     * @param event The request's JFR event, begun when the frame arrived
+     */
+    private void dispatch(WebSocket conn, Message request, UserInfo userInfo, RequestEvent event) {
+        replyRequestId.set(request.getRequestId());
+        currentRequest.set(event);
+        event.outcome = RequestEvent.OUTCOME_OK;
+        long started = System.nanoTime();
+        try {
             // Route the message based on its type
             switch (request.getType()) {
                 case Message.TYPE_LOGIN:
@@ -188,6 +750,14 @@ public class ClientHandler extends WebSocketServer {
                     handleGetConversations(conn, request, userInfo);
                     break;
                     
+                case Message.TYPE_GET_HISTORY:
+                    handleGetHistory(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_SEARCH_MESSAGES:
+                    handleSearchMessages(conn, request, userInfo);
+                    break;
+                    
                 case Message.TYPE_CREATE_GROUP:
                     handleCreateGroup(conn, request, userInfo);
                     break;
@@ -204,17 +774,60 @@ public class ClientHandler extends WebSocketServer {
                     handleGetGroupMembers(conn, request, userInfo);
                     break;
                     
+                case Message.TYPE_ADD_MEMBERS:
+                    handleAddMembers(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_REMOVE_MEMBERS:
+                    handleRemoveMembers(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_CREATE_CHANNEL:
+                    handleCreateChannel(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_SUBSCRIBE_CHANNEL:
+                    handleSubscribeChannel(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_GET_CHANNELS:
+                    handleGetChannels(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_UPLOAD_START:
+                    handleUploadStart(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_GET_ATTACHMENT_URL:
+                    handleGetAttachmentUrl(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_MARK_READ:
+                    handleMarkRead(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_PRESENCE:
+                    handlePresence(conn, request, userInfo);
+                    break;
+                    
+                case Message.TYPE_TYPING:
+                    handleTyping(conn, request, userInfo);
+                    break;
+                    
                 default:
                     sendError(conn, "Unknown message type: " + request.getType());
             }
             
-        } catch (JsonSyntaxException e) {
-            System.err.println("[ClientHandler] Error parsing JSON: " + e.getMessage());
-            sendError(conn, "Invalid JSON format");
         } catch (Exception e) {
             System.err.println("[ClientHandler] Error processing message: " + e.getMessage());
             e.printStackTrace();
             sendError(conn, "Server error: " + e.getMessage());
+            event.outcome = RequestEvent.OUTCOME_EXCEPTION;
+        } finally {
+            overload.recordLatency(System.nanoTime() - started);
+            replyRequestId.remove();
+            currentRequest.remove();
+            commitRequest(event, request.getType(), userInfo, event.outcome);
         }
     }
     
@@ -240,14 +853,35 @@ public class ClientHandler extends WebSocketServer {
         Message response = new Message(Message.TYPE_LOGIN);
         
         if (userId > 0) {
-            // Login successful
+            // Login successful (a re-login on the same connection replaces the old user)
+            unregisterConnection(userInfo.authenticatedUserId, conn);
+            boolean firstLogin = userInfo.authenticatedUserId == -1;
             userInfo.authenticatedUserId = userId;
-            userInfo.username = username;
+            // Other sessions of this user: share their username instance
+            String sharedUsername = presence.getUsername(userId);
+            userInfo.username = username.equals(sharedUsername) ? sharedUsername : username;
+            rateLimiter.addUser(userId);
+            
+            // Login deadline met: from now on the session is closed only when idle
+            if (firstLogin) {
+                if (userInfo.deadline != null) {
+                    userInfo.deadline.cancel();
+                }
+                userInfo.deadline = timers.schedule(() -> checkIdle(conn, userInfo), idleTimeoutMs);
+            }
             
             response.setStatus(Message.STATUS_SUCCESS);
             response.setUserId(userId);
             response.setUsername(username);
             
+            boolean firstConnection = registerConnection(userId, conn);
+            
+            // First session of this user: load memberships once and announce presence
+            if (firstConnection || !subscriptions.isSubscribed(userId)) {
+                presence.userOnline(userId, username, dbManager.getUserConversationIds(userId),
+                                    dbManager.getUserChannelIds(userId));
+            }
+            
             System.out.println("[ClientHandler] User '" + username + "' (ID: " + userId + ") logged in successfully");
         } else {
             // Login failed
@@ -325,15 +959,16 @@ public class ClientHandler extends WebSocketServer {
         }
         
         // Get or create conversation (this enforces the "one conversation per pair" rule)
-        int conversationId = dbManager.getOrCreateConversation(userInfo.authenticatedUserId, targetUserId);
+        int conversationId = conversations.getOrCreateDirect(userInfo.authenticatedUserId, targetUserId);
         
         if (conversationId == -1) {
             sendError(conn, "Failed to create conversation");
             return;
         }
         
-        // Store this conversation in active conversations
-        userInfo.activeConversations.put(conversationId, targetUsername);
+        // Both users now route this conversation
+        subscriptions.addMembership(userInfo.authenticatedUserId, conversationId);
+        subscriptions.addMembership(targetUserId, conversationId);
         
         Message response = Message.createSuccess(Message.TYPE_CREATE_CONVERSATION);
         response.setConversationId(conversationId);
@@ -348,6 +983,10 @@ public class ClientHandler extends WebSocketServer {
     /**
      * Handles sending a message and forwards it to the recipient
      * 
+     * The message is appended to the MessageLog; the sender's ack and the
+     * delivery to online recipients happen once it is on disk, without
+     * waiting for MySQL.
+     * 
      * @param conn The WebSocket connection
      * @param request The message containing content and conversation ID
      * @param userInfo The user info for this connection
@@ -361,92 +1000,242 @@ public class ClientHandler extends WebSocketServer {
         
         int conversationId = request.getConversationId();
         String content = request.getContent();
+        String attachmentId = request.getAttachmentId();
         
         if (conversationId <= 0) {
             sendError(conn, "Invalid conversation ID");
             return;
         }
         
+        // The attachment must have been uploaded first (by this user, or shared with them
+        // in a conversation); its content is then optional (caption)
+        if (attachmentId != null && (attachments.find(attachmentId) == null ||
+                                     !dbManager.canReadAttachment(userInfo.authenticatedUserId, attachmentId))) {
+            sendError(conn, "Attachment not found (upload it first)");
+            return;
+        }
         if (content == null || content.trim().isEmpty()) {
-            sendError(conn, "Message content is required");
+            if (attachmentId == null) {
+                sendError(conn, "Message content is required");
+                return;
+            }
+            content = "";
+        }
+        // Refused before the log: MySQL could never store it (TEXT column)
+        if (utf8Length(content) > maxContentBytes) {
+            sendError(conn, "Message is too long (at most " + maxContentBytes + " bytes)");
             return;
         }
         
+        String clientMessageId = request.getClientMessageId();
+        String requestId = request.getRequestId();  // Acks may be sent from the log's thread
+        Consumer<SendDeduplicator.Ack> retryOutcome = null;
+        if (clientMessageId != null) {
+            if (clientMessageId.isEmpty() || clientMessageId.length() > MAX_CLIENT_MESSAGE_ID_LENGTH) {
+                sendError(conn, "Invalid client message ID");
+                return;
+            }
+            
+            // Retry of a message we already accepted: repeat the original ack only,
+            // once the original is durable
+            retryOutcome = original -> sendRetryAck(conn, conversationId, original, clientMessageId, requestId);
+            if (sendDedup.findRetry(userInfo.authenticatedUserId, conversationId, clientMessageId, retryOutcome)) {
+                return;
+            }
+        }
+        
         // Get sender's username
         String senderUsername = userInfo.username;
         if (senderUsername == null) {
             senderUsername = dbManager.getUsernameById(userInfo.authenticatedUserId);
         }
         
-        // Check if this is a group conversation or single conversation
-        // For groups, we need to get all members. For single, get the other participant.
-        List<Integer> recipients = new ArrayList<>();
+        // Type and members come from the conversation cache (no database access)
+        ConversationDescriptor conversation = conversations.get(conversationId);
+        if (conversation == null || !conversation.isMember(userInfo.authenticatedUserId)) {
+            sendError(conn, conversation != null && conversation.isChannel()
+                            ? "Only channel admins can post in this channel"
+                            : "You are not a member of this conversation");
+            return;
+        }
         
-        // Check conversation type by getting all participants
-        List<Integer> allParticipants = dbManager.getGroupMembers(conversationId);
+        // The members may download the attachment before the message reaches them
+        if (attachmentId != null && !dbManager.shareAttachment(attachmentId, conversationId)) {
+            sendError(conn, "Failed to store message");
+            return;
+        }
         
-        if (allParticipants.size() > 2) {
-            // This is a group conversation - send to all members except sender
-            for (Integer participantId : allParticipants) {
-                if (participantId != userInfo.authenticatedUserId) {
-                    recipients.add(participantId);
-                }
-            }
+        // Recipients are not listed here: delivery goes to the online members
+        // (subscription index), offline members are updated by the message indexer
+        // (channels: nothing per reader, they catch up from their cursor).
+        // Large groups and channels: one frame for everyone, no per-member logs
+        boolean largeGroup = conversation.isChannel() || conversation.getMemberCount() > largeGroupThreshold;
+        String recipientUsername = null;
+        
+        if (conversation.isChannel()) {
+            System.out.println("[ClientHandler] Channel message from user " + userInfo.authenticatedUserId + 
+                             " (" + senderUsername + ") to channel " + conversationId + 
+                             " (" + conversation.getMemberCount() + " members)");
+        } else if (conversation.isGroup()) {
             System.out.println("[ClientHandler] Group message from user " + userInfo.authenticatedUserId + 
                              " (" + senderUsername + ") to group " + conversationId + 
-                             " (" + recipients.size() + " members): " + content);
+                             " (" + conversation.getMemberCount() + " members" + (largeGroup ? ", large" : "") + ")" +
+                             (largeGroup ? "" : ": " + content));
         } else {
             // This is a single conversation - get the other participant
-            int otherParticipantId = dbManager.getOtherParticipantId(conversationId, userInfo.authenticatedUserId);
+            int otherParticipantId = conversation.getOtherMemberId(userInfo.authenticatedUserId);
             if (otherParticipantId == -1) {
                 sendError(conn, "Other participant not found in conversation");
                 return;
             }
-            recipients.add(otherParticipantId);
-            String recipientUsername = dbManager.getUsernameById(otherParticipantId);
+            recipientUsername = conversation.getMemberName(otherParticipantId);
             System.out.println("[ClientHandler] Message from user " + userInfo.authenticatedUserId + 
                              " (" + senderUsername + ") to user " + otherParticipantId + 
                              " (" + recipientUsername + ") in conversation " + conversationId + ": " + content);
         }
         
-        // Acknowledge receipt to sender
-        Message response = Message.createSuccess(Message.TYPE_SEND_MESSAGE);
-        response.setContent("Message received");
-        sendMessage(conn, response);
-        
-        // Forward message to all recipients if they're online
+        // Assign the message ID and the conversation sequence number. The
+        // conversation's lock is held until the message is in the log, so
+        // messages are logged, stored and delivered in seq order
+        long messageId = messageIds.nextId();
+        int senderId = userInfo.authenticatedUserId;
+        synchronized (sequences.lock(conversationId)) {
+            long seq;
+            if (clientMessageId != null) {
+                // Record the client ID; a concurrent retry that got this far loses the race here
+                SendDeduplicator.Ack ack = sendDedup.putIfAbsent(senderId, conversationId, clientMessageId, messageId,
+                                                                 () -> sequences.next(conversationId), retryOutcome);
+                if (ack.retry) {
+                    return;
+                }
+                seq = ack.seq;
+            } else {
+                seq = sequences.next(conversationId);
+            }
+            
+            long sentAt = System.currentTimeMillis();
+            
+            // Create message to forward (identical for every recipient: serialized once)
+            Message forwardMessage = new Message();
+            forwardMessage.setType("MESSAGE");  // Use "MESSAGE" type for incoming messages
+            forwardMessage.setSender(senderUsername);
+            forwardMessage.setContent(content);
+            forwardMessage.setAttachmentId(attachmentId);
+            forwardMessage.setConversationId(conversationId);
+            forwardMessage.setMessageId(messageId);
+            forwardMessage.setSeq(seq);
+            forwardMessage.setTimestamp(sentAt);
+            
+            // For single conversations, set recipient. For groups and channels, leave it null.
+            if (recipientUsername != null) {
+                forwardMessage.setRecipient(recipientUsername);
+            }
+            String forwardJson = gson.toJson(forwardMessage);
+            
+            // Append to the message log; the ack and the delivery wait until the
+            // message is durable (group commit). MySQL is updated in the background.
+            StoredMessage stored = new StoredMessage(conversationId, seq, messageId, senderId,
+                                                     sentAt, content, attachmentId);
+            boolean appended = messageLog.append(stored, () -> {
+                // Retries received meanwhile are answered now too
+                if (clientMessageId != null) {
+                    sendDedup.stored(senderId, messageId);
+                }
+                // Acknowledge receipt to sender
+                sendSendAck(conn, conversationId, messageId, seq, clientMessageId, requestId);
+                forwardToOnlineMembers(conversationId, senderId, forwardJson, largeGroup);
+            });
+            if (!appended) {
+                // Not stored: a retry must be handled as a new send, and the number is not used
+                if (clientMessageId != null) {
+                    sendDedup.failed(senderId, messageId);
+                }
+                sequences.release(conversationId, seq);
+                sendError(conn, "Failed to store message");
+            }
+        }
+    }
+    
+    /**
+     * Answers a SEND_MESSAGE retry once its original is durable, with the
+     * original's ack, or with an error if the original could not be stored
+     * 
+     * @param conn The WebSocket connection
+     * @param conversationId The conversation ID
+     * @param original The original's ack, null if it was not stored
+     * @param clientMessageId The client-generated message ID
+     * @param requestId The retry's requestId (may be null)
+     */
+    private void sendRetryAck(WebSocket conn, int conversationId, SendDeduplicator.Ack original,
+                              String clientMessageId, String requestId) {
+        if (original != null) {
+            sendSendAck(conn, conversationId, original.messageId, original.seq, clientMessageId, requestId);
+            return;
+        }
+        Message errorResponse = Message.createError("ERROR", "Failed to store message");
+        errorResponse.setRequestId(requestId);
+        sendMessage(conn, errorResponse);
+    }
+    
+    /**
+     * Forwards a serialized MESSAGE to every open connection of the online
+     * members of a conversation (except the sender). The members come from
+     * the subscription index, so the cost depends on the online members
+     * only: a 50,000-member group with 200 members online costs 200 lookups.
+     * 
+     * For large groups and channels the frame itself is shared: it is
+     * encoded once and the same bytes are queued on every connection.
+     * 
+     * @param conversationId The conversation ID
+     * @param senderId The sender's user ID (not forwarded to)
+     * @param forwardJson The MESSAGE, serialized once
+     * @param largeGroup true to share one frame and skip the per-recipient logs
+     */
+    private void forwardToOnlineMembers(int conversationId, int senderId, String forwardJson, boolean largeGroup) {
+        FanOutEvent event = new FanOutEvent();
+        event.begin();
+        int recipientCount = 0;
         int forwardedCount = 0;
-        for (Integer recipientId : recipients) {
-            for (Map.Entry<WebSocket, UserInfo> entry : clientData.entrySet()) {
-                WebSocket recipientConn = entry.getKey();
-                UserInfo recipientInfo = entry.getValue();
-                
-                // Check if this connection belongs to the recipient
-                if (recipientInfo.authenticatedUserId == recipientId) {
-                    // Create message to forward
-                    Message forwardMessage = new Message();
-                    forwardMessage.setType("MESSAGE");  // Use "MESSAGE" type for incoming messages
-                    forwardMessage.setSender(senderUsername);
-                    forwardMessage.setContent(content);
-                    forwardMessage.setConversationId(conversationId);
-                    forwardMessage.setTimestamp(System.currentTimeMillis());
-                    
-                    // For single conversations, set recipient. For groups, leave it null.
-                    if (recipients.size() == 1) {
-                        String recipientUsername = dbManager.getUsernameById(recipientId);
-                        forwardMessage.setRecipient(recipientUsername);
+        int connectionCount = 0;
+        List<WebSocket> sharedFrameConns = largeGroup ? new ArrayList<>() : null;
+        for (Integer recipientId : subscriptions.onlineMembers(conversationId)) {
+            if (recipientId == senderId) {
+                continue;
+            }
+            recipientCount++;
+            Set<WebSocket> recipientConns = userConnections.get(recipientId);
+            if (recipientConns == null || recipientConns.isEmpty()) {
+                continue;
+            }
+            forwardedCount++;
+            connectionCount += recipientConns.size();
+            
+            if (largeGroup) {
+                sharedFrameConns.addAll(recipientConns);
+                continue;
+            }
+            
+            // Send to every open connection of the recipient
+            for (WebSocket recipientConn : recipientConns) {
+                sendJson(recipientConn, forwardJson, true);
+            }
+            System.out.println("[ClientHandler] Message forwarded to user " + recipientId);
+        }
+        
+        if (largeGroup && !sharedFrameConns.isEmpty()) {
+            if (new SlowConsumerEvent().isEnabled()) {
+                for (WebSocket sharedConn : sharedFrameConns) {
+                    if (sharedConn.hasBufferedData()) {
+                        traceSlowConsumer(sharedConn, false);
                     }
-                    
-                    // Send to recipient
-                    sendMessage(recipientConn, forwardMessage);
-                    forwardedCount++;
-                    
-                    String recipientUsername = dbManager.getUsernameById(recipientId);
-                    System.out.println("[ClientHandler] Message forwarded to user " + recipientId + 
-                                     " (" + recipientUsername + ")");
-                    break;
                 }
             }
+            try {
+                broadcast(forwardJson, sharedFrameConns);
+            } catch (Exception e) {
+                System.err.println("[ClientHandler] Error broadcasting message: " + e.getMessage());
+                e.printStackTrace();
+            }
         }
         
         if (forwardedCount == 0) {
@@ -454,13 +1243,42 @@ public class ClientHandler extends WebSocketServer {
         } else {
             System.out.println("[ClientHandler] Message forwarded to " + forwardedCount + " recipient(s)");
         }
+        commitFanOut(event, FanOutEvent.KIND_MESSAGE, conversationId, recipientCount, forwardedCount,
+                     connectionCount, 0, forwardJson);
     }
     
     /**
-     * Handles getting list of conversations (for future implementation)
+     * Sends the SEND_MESSAGE acknowledgement to the sender.
+     * Retries of the same clientMessageId get exactly the same ack.
      * 
      * @param conn The WebSocket connection
-     * @param request The request message
+     * @param conversationId The conversation ID
+     * @param messageId The server message ID
+     * @param seq The conversation sequence number
+     * @param clientMessageId The client-generated message ID (may be null)
+     * @param requestId The request's requestId (may be null)
+     */
+    private void sendSendAck(WebSocket conn, int conversationId, long messageId, long seq,
+                             String clientMessageId, String requestId) {
+        Message response = Message.createSuccess(Message.TYPE_SEND_MESSAGE);
+        response.setContent("Message received");
+        response.setConversationId(conversationId);
+        response.setMessageId(messageId);
+        response.setSeq(seq);
+        response.setClientMessageId(clientMessageId);
+        response.setRequestId(requestId);
+        sendMessage(conn, response);
+    }
+    
+    /**
+     * Handles getting the user's conversation list
+     * 
+     * The list is read from the denormalized inbox table, most recent
+     * activity first. The client pages through it by sending back the
+     * cursor returned with the previous page (null cursor = no more pages).
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message (optional cursor and limit)
      * @param userInfo The user info for this connection
      */
     private void handleGetConversations(WebSocket conn, Message request, UserInfo userInfo) {
@@ -470,36 +1288,268 @@ public class ClientHandler extends WebSocketServer {
             return;
         }
         
-        // TODO: Query database for all conversations this user is part of
-        // For now, return the active conversations stored in memory
+        // Page size: server default if not given, capped to avoid huge frames
+        int limit = request.getLimit();
+        if (limit <= 0) {
+            limit = conversationsPageSize;
+        }
+        limit = Math.min(limit, conversationsMaxPageSize);
+        
+        // Decode the cursor ("lastActivity:conversationId"), first page if absent
+        long beforeActivity = Long.MAX_VALUE;
+        int beforeConversationId = Integer.MAX_VALUE;
+        String cursor = request.getCursor();
+        if (cursor != null && !cursor.isEmpty()) {
+            try {
+                int separator = cursor.indexOf(':');
+                beforeActivity = Long.parseLong(cursor.substring(0, separator));
+                beforeConversationId = Integer.parseInt(cursor.substring(separator + 1));
+            } catch (RuntimeException e) {
+                sendError(conn, "Invalid cursor");
+                return;
+            }
+        }
+        
+        List<InboxEntry> entries = dbManager.getInbox(userInfo.authenticatedUserId,
+                                                      beforeActivity, beforeConversationId, limit);
+        
         Message response = Message.createSuccess(Message.TYPE_GET_CONVERSATIONS);
-        response.setData(userInfo.activeConversations);
+        response.setData(entries);
+        
+        // A full page means there may be more entries
+        if (entries.size() == limit) {
+            response.setCursor(entries.get(entries.size() - 1).toCursor());
+        }
         
         sendMessage(conn, response);
     }
     
     /**
-     * Handles creating a new group
+     * Handles reading a conversation's past messages
+     * 
+     * Newest first, one page per request. The cursor is the seq of the
+     * oldest message received so far (null cursor = no more messages).
+     * Old messages are served from the archive transparently.
      * 
      * @param conn The WebSocket connection
-     * @param request The request message containing group name
+     * @param request The request message (conversationId, optional cursor and limit)
      * @param userInfo The user info for this connection
      */
-    private void handleCreateGroup(WebSocket conn, Message request, UserInfo userInfo) {
+    private void handleGetHistory(WebSocket conn, Message request, UserInfo userInfo) {
         // Check if user is authenticated
         if (userInfo.authenticatedUserId == -1) {
             sendError(conn, "Please login first");
             return;
         }
         
-        String groupName = request.getGroupName();
-        
-        if (groupName == null || groupName.trim().isEmpty()) {
-            sendError(conn, "Group name is required");
+        int conversationId = request.getConversationId();
+        ConversationDescriptor conversation = conversations.get(conversationId);
+        boolean allowed = conversation != null &&
+            (conversation.isMember(userInfo.authenticatedUserId) ||
+             (conversation.isChannel() && subscriptions.isChannelSubscriber(userInfo.authenticatedUserId,
+                                                                            conversationId)));
+        if (!allowed) {
+            sendError(conn, "You are not a member of this conversation");
             return;
         }
         
-        // Create group in database
+        // Page size: server default if not given, capped to avoid huge frames
+        int limit = request.getLimit();
+        if (limit <= 0) {
+            limit = historyPageSize;
+        }
+        limit = Math.min(limit, historyMaxPageSize);
+        
+        // Decode the cursor (seq), latest messages if absent
+        long beforeSeq = Long.MAX_VALUE;
+        String cursor = request.getCursor();
+        if (cursor != null && !cursor.isEmpty()) {
+            try {
+                beforeSeq = Long.parseLong(cursor);
+            } catch (NumberFormatException e) {
+                sendError(conn, "Invalid cursor");
+                return;
+            }
+        }
+        
+        List<StoredMessage> messages = history.read(conversationId, beforeSeq, limit);
+        if (messages == null) {
+            sendError(conn, "Failed to load history");
+            return;
+        }
+        
+        // Sender names: one lookup for the whole page
+        Set<Integer> senderIds = new HashSet<>();
+        for (StoredMessage message : messages) {
+            senderIds.add(message.getSenderId());
+        }
+        Map<Integer, String> senderNames = dbManager.getUsernamesByIds(senderIds);
+        
+        List<Map<String, Object>> items = new ArrayList<>(messages.size());
+        for (StoredMessage message : messages) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("messageId", message.getMessageId());
+            item.put("seq", message.getSeq());
+            item.put("sender", senderNames.get(message.getSenderId()));
+            item.put("content", message.getContent());
+            if (message.getAttachmentId() != null) {
+                item.put("attachmentId", message.getAttachmentId());
+            }
+            item.put("timestamp", message.getSentAt());
+            items.add(item);
+        }
+        
+        Message response = Message.createSuccess(Message.TYPE_GET_HISTORY);
+        response.setConversationId(conversationId);
+        response.setData(items);
+        
+        // A full page means there may be older messages
+        if (messages.size() == limit) {
+            response.setCursor(String.valueOf(messages.get(messages.size() - 1).getSeq()));
+        }
+        
+        sendMessage(conn, response);
+    }
+    
+    /**
+     * Handles full-text search of the user's messages
+     * 
+     * Every word of the query must appear in a message (whole words, case
+     * ignored). Newest first, one page per request; the cursor is the
+     * messageId of the last hit (null cursor = no more hits). Only the
+     * user's conversations and channels are searched, or one of them if
+     * conversationId is given.
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message (content = query, optional conversationId, cursor and limit)
+     * @param userInfo The user info for this connection
+     */
+    private void handleSearchMessages(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        if (searchIndex == null) {
+            sendError(conn, "Search is disabled on this server");
+            return;
+        }
+        
+        String query = request.getContent();
+        if (query == null || MessageSearchIndex.tokenize(query).isEmpty()) {
+            sendError(conn, "Search query is empty");
+            return;
+        }
+        
+        // Scope: one conversation (checked like GET_HISTORY) or all of the user's
+        int[] scope;
+        int conversationId = request.getConversationId();
+        if (conversationId > 0) {
+            ConversationDescriptor conversation = conversations.get(conversationId);
+            boolean allowed = conversation != null &&
+                (conversation.isMember(userInfo.authenticatedUserId) ||
+                 (conversation.isChannel() && subscriptions.isChannelSubscriber(userInfo.authenticatedUserId,
+                                                                                conversationId)));
+            if (!allowed) {
+                sendError(conn, "You are not a member of this conversation");
+                return;
+            }
+            scope = new int[] {conversationId};
+        } else {
+            scope = subscriptions.readableConversations(userInfo.authenticatedUserId);
+        }
+        
+        int limit = request.getLimit();
+        if (limit <= 0) {
+            limit = searchPageSize;
+        }
+        limit = Math.min(limit, searchMaxPageSize);
+        
+        long beforeMessageId = Long.MAX_VALUE;
+        String cursor = request.getCursor();
+        if (cursor != null && !cursor.isEmpty()) {
+            try {
+                beforeMessageId = Long.parseLong(cursor);
+            } catch (NumberFormatException e) {
+                sendError(conn, "Invalid cursor");
+                return;
+            }
+        }
+        
+        List<MessageSearchIndex.Hit> hits = searchIndex.search(query, scope, beforeMessageId, limit);
+        
+        // Load the hits, one lookup per conversation; expired ones are dropped
+        Map<Integer, List<Long>> seqsByConversation = new LinkedHashMap<>();
+        for (MessageSearchIndex.Hit hit : hits) {
+            seqsByConversation.computeIfAbsent(hit.conversationId, id -> new ArrayList<>()).add(hit.seq);
+        }
+        Map<Long, StoredMessage> found = new HashMap<>();
+        Set<Integer> senderIds = new HashSet<>();
+        for (Map.Entry<Integer, List<Long>> entry : seqsByConversation.entrySet()) {
+            List<StoredMessage> messages = history.find(entry.getKey(), entry.getValue());
+            if (messages == null) {
+                sendError(conn, "Failed to load search results");
+                return;
+            }
+            for (StoredMessage message : messages) {
+                found.put(message.getMessageId(), message);
+                senderIds.add(message.getSenderId());
+            }
+        }
+        Map<Integer, String> senderNames = dbManager.getUsernamesByIds(senderIds);
+        
+        List<Map<String, Object>> items = new ArrayList<>(hits.size());
+        for (MessageSearchIndex.Hit hit : hits) {
+            StoredMessage message = found.get(hit.messageId);
+            if (message == null) {
+                continue;
+            }
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("conversationId", message.getConversationId());
+            item.put("messageId", message.getMessageId());
+            item.put("seq", message.getSeq());
+            item.put("sender", senderNames.get(message.getSenderId()));
+            item.put("content", message.getContent());
+            if (message.getAttachmentId() != null) {
+                item.put("attachmentId", message.getAttachmentId());
+            }
+            item.put("timestamp", message.getSentAt());
+            items.add(item);
+        }
+        
+        Message response = Message.createSuccess(Message.TYPE_SEARCH_MESSAGES);
+        response.setData(items);
+        
+        // A full page of hits means there may be older ones
+        if (hits.size() == limit) {
+            response.setCursor(String.valueOf(hits.get(hits.size() - 1).messageId));
+        }
+        
+        sendMessage(conn, response);
+    }
+    
+    /**
+     * Handles creating a new group
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message containing group name
+     * @param userInfo The user info for this connection
+     */
+    private void handleCreateGroup(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        
+        String groupName = request.getGroupName();
+        
+        if (groupName == null || groupName.trim().isEmpty()) {
+            sendError(conn, "Group name is required");
+            return;
+        }
+        
+        // Create group in database
         int groupId = dbManager.createGroup(userInfo.authenticatedUserId, groupName);
         
         if (groupId == -1) {
@@ -507,8 +1557,7 @@ public class ClientHandler extends WebSocketServer {
             return;
         }
         
-        // Store this group in active conversations
-        userInfo.activeConversations.put(groupId, groupName);
+        subscriptions.addMembership(userInfo.authenticatedUserId, groupId);
         
         Message response = Message.createSuccess(Message.TYPE_CREATE_GROUP);
         response.setConversationId(groupId);
@@ -549,11 +1598,12 @@ public class ClientHandler extends WebSocketServer {
             return;
         }
         
-        // Get group name (you might want to store it in database)
-        String groupName = "Group " + groupId;
+        // The membership changed: reload the descriptor, which also has the group name
+        conversations.invalidate(groupId);
+        ConversationDescriptor group = conversations.get(groupId);
+        String groupName = group != null ? group.getName() : "Group " + groupId;
         
-        // Store this group in active conversations
-        userInfo.activeConversations.put(groupId, groupName);
+        subscriptions.addMembership(userInfo.authenticatedUserId, groupId);
         
         Message response = Message.createSuccess(Message.TYPE_JOIN_GROUP);
         response.setConversationId(groupId);
@@ -566,28 +1616,130 @@ public class ClientHandler extends WebSocketServer {
     }
     
     /**
-     * Handles getting list of groups the user is a member of
+     * Handles creating a new broadcast channel (the creator is its admin)
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message containing the channel name (groupName)
+     * @param userInfo The user info for this connection
+     */
+    private void handleCreateChannel(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        
+        String channelName = request.getGroupName();
+        
+        if (channelName == null || channelName.trim().isEmpty()) {
+            sendError(conn, "Channel name is required");
+            return;
+        }
+        
+        int channelId = dbManager.createChannel(userInfo.authenticatedUserId, channelName);
+        
+        if (channelId == -1) {
+            sendError(conn, "Failed to create channel");
+            return;
+        }
+        
+        subscriptions.addChannel(userInfo.authenticatedUserId, channelId);
+        
+        Message response = Message.createSuccess(Message.TYPE_CREATE_CHANNEL);
+        response.setConversationId(channelId);
+        response.setGroupName(channelName);
+        
+        System.out.println("[ClientHandler] Channel '" + channelName + "' (ID: " + channelId + 
+                         ") created by user " + userInfo.authenticatedUserId);
+        
+        sendMessage(conn, response);
+    }
+    
+    /**
+     * Handles subscribing to a channel (as a reader)
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message containing the channel ID
+     * @param userInfo The user info for this connection
+     */
+    private void handleSubscribeChannel(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        
+        int channelId = request.getConversationId();
+        
+        if (channelId <= 0) {
+            sendError(conn, "Invalid channel ID");
+            return;
+        }
+        
+        if (!dbManager.subscribeChannel(channelId, userInfo.authenticatedUserId)) {
+            sendError(conn, "Failed to subscribe to channel");
+            return;
+        }
+        
+        // The member count changed; the admins (descriptor members) did not
+        conversations.invalidate(channelId);
+        ConversationDescriptor channel = conversations.get(channelId);
+        String channelName = channel != null ? channel.getName() : "Channel " + channelId;
+        
+        subscriptions.addChannel(userInfo.authenticatedUserId, channelId);
+        
+        Message response = Message.createSuccess(Message.TYPE_SUBSCRIBE_CHANNEL);
+        response.setConversationId(channelId);
+        response.setGroupName(channelName);
+        
+        System.out.println("[ClientHandler] User " + userInfo.authenticatedUserId + 
+                         " subscribed to channel " + channelId);
+        
+        sendMessage(conn, response);
+    }
+    
+    /**
+     * Handles getting the channels of the user, with their unread counts
      * 
      * @param conn The WebSocket connection
      * @param request The request message
      * @param userInfo The user info for this connection
      */
-    private void handleGetGroups(WebSocket conn, Message request, UserInfo userInfo) {
+    private void handleGetChannels(WebSocket conn, Message request, UserInfo userInfo) {
         // Check if user is authenticated
         if (userInfo.authenticatedUserId == -1) {
             sendError(conn, "Please login first");
             return;
         }
         
-        // Get user's groups from database
-        List<Integer> groupIds = dbManager.getUserGroups(userInfo.authenticatedUserId);
+        List<ChannelEntry> channels = dbManager.getUserChannels(userInfo.authenticatedUserId);
         
-        // Convert to map (groupId -> groupName)
-        Map<Integer, String> groups = new HashMap<>();
-        for (Integer groupId : groupIds) {
-            groups.put(groupId, "Group " + groupId); // You might want to store actual group names
+        Message response = Message.createSuccess(Message.TYPE_GET_CHANNELS);
+        response.setData(channels);
+        
+        System.out.println("[ClientHandler] User " + userInfo.authenticatedUserId + 
+                         " is subscribed to " + channels.size() + " channels");
+        
+        sendMessage(conn, response);
+    }
+    
+    /**
+     * Handles getting list of groups the user is a member of
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message
+     * @param userInfo The user info for this connection
+     */
+    private void handleGetGroups(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
         }
         
+        // Get user's groups (groupId -> groupName) from database
+        Map<Integer, String> groups = dbManager.getUserGroups(userInfo.authenticatedUserId);
+        
         Message response = Message.createSuccess(Message.TYPE_GET_GROUPS);
         response.setData(groups);
         
@@ -640,36 +1792,841 @@ public class ClientHandler extends WebSocketServer {
     }
     
     /**
-     * Sends a JSON message to the client via WebSocket
+     * Handles adding many users to a group at once
+     * 
+     * Usernames are resolved with a few IN queries and inserted in one
+     * batched transaction; users that are already members are skipped.
+     * Only members of the group can add users.
      * 
      * @param conn The WebSocket connection
-     * @param message The Message object to send
+     * @param request The request message containing group ID and usernames
+     * @param userInfo The user info for this connection
      */
-    private void sendMessage(WebSocket conn, Message message) {
-        try {
-            // Convert Message object to JSON string
-            String jsonResponse = gson.toJson(message);
-            
-            // Send JSON string via WebSocket
-            // WebSocket handles message framing automatically
-            conn.send(jsonResponse);
-            
-            System.out.println("[ClientHandler] Sent to " + conn.getRemoteSocketAddress() + ": " + jsonResponse);
-        } catch (Exception e) {
-            System.err.println("[ClientHandler] Error sending message: " + e.getMessage());
-            e.printStackTrace();
+    private void handleAddMembers(WebSocket conn, Message request, UserInfo userInfo) {
+        Map<String, Integer> users = resolveMemberRequest(conn, request, userInfo);
+        if (users == null) {
+            return;
+        }
+        int groupId = request.getConversationId();
+        
+        int added = dbManager.addGroupMembers(groupId, new ArrayList<>(users.values()));
+        conversations.invalidate(groupId);
+        if (added == -1) {
+            sendError(conn, "Failed to add members");
+            return;
+        }
+        
+        // Online users receive the group's messages from now on
+        for (Integer userId : users.values()) {
+            subscriptions.addMembership(userId, groupId);
         }
+        
+        Message response = Message.createSuccess(Message.TYPE_ADD_MEMBERS);
+        response.setConversationId(groupId);
+        response.setData(memberChangeResult("added", added, request.getUsernames(), users));
+        
+        System.out.println("[ClientHandler] User " + userInfo.authenticatedUserId + " added " + added +
+                         " members to group " + groupId);
+        
+        sendMessage(conn, response);
     }
     
     /**
-     * Sends an error message to the client
+     * Handles removing many users from a group at once (one batched transaction).
+     * Any member can leave the group (remove only themselves); only the group's
+     * admins can remove other members.
      * 
      * @param conn The WebSocket connection
-     * @param errorMessage The error message text
+     * @param request The request message containing group ID and usernames
+     * @param userInfo The user info for this connection
      */
-    private void sendError(WebSocket conn, String errorMessage) {
-        Message errorResponse = Message.createError("ERROR", errorMessage);
-        sendMessage(conn, errorResponse);
+    private void handleRemoveMembers(WebSocket conn, Message request, UserInfo userInfo) {
+        Map<String, Integer> users = resolveMemberRequest(conn, request, userInfo);
+        if (users == null) {
+            return;
+        }
+        int groupId = request.getConversationId();
+        
+        boolean onlySelf = true;
+        for (Integer userId : users.values()) {
+            if (userId != userInfo.authenticatedUserId) {
+                onlySelf = false;
+                break;
+            }
+        }
+        if (!onlySelf && !dbManager.isGroupAdmin(groupId, userInfo.authenticatedUserId)) {
+            sendError(conn, "Only group admins can remove other members");
+            return;
+        }
+        
+        int removed = dbManager.removeGroupMembers(groupId, new ArrayList<>(users.values()));
+        conversations.invalidate(groupId);
+        if (removed == -1) {
+            sendError(conn, "Failed to remove members");
+            return;
+        }
+        
+        for (Integer userId : users.values()) {
+            subscriptions.removeMembership(userId, groupId);
+        }
+        
+        Message response = Message.createSuccess(Message.TYPE_REMOVE_MEMBERS);
+        response.setConversationId(groupId);
+        response.setData(memberChangeResult("removed", removed, request.getUsernames(), users));
+        
+        System.out.println("[ClientHandler] User " + userInfo.authenticatedUserId + " removed " + removed +
+                         " members from group " + groupId);
+        
+        sendMessage(conn, response);
+    }
+    
+    /**
+     * Validates an ADD_MEMBERS / REMOVE_MEMBERS request and resolves its usernames
+     * 
+     * @return username -> user ID of the existing users, or null if an error was sent
+     */
+    private Map<String, Integer> resolveMemberRequest(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return null;
+        }
+        
+        int groupId = request.getConversationId();
+        List<String> usernames = request.getUsernames();
+        
+        if (groupId <= 0) {
+            sendError(conn, "Invalid group ID");
+            return null;
+        }
+        
+        if (usernames == null || usernames.isEmpty()) {
+            sendError(conn, "At least one username is required");
+            return null;
+        }
+        
+        if (usernames.size() > maxUsersPerRequest) {
+            sendError(conn, "Too many users in one request (maximum " + maxUsersPerRequest + ")");
+            return null;
+        }
+        
+        ConversationDescriptor group = conversations.get(groupId);
+        if (group == null || !group.isGroup() || !group.isMember(userInfo.authenticatedUserId)) {
+            sendError(conn, "You are not a member of this group");
+            return null;
+        }
+        
+        return dbManager.getUserIdsByUsernames(new LinkedHashSet<>(usernames));
+    }
+    
+    /**
+     * Builds the data of an ADD_MEMBERS / REMOVE_MEMBERS response:
+     * the number of users changed and the usernames that do not exist
+     */
+    private Map<String, Object> memberChangeResult(String countKey, int count, List<String> requested,
+                                                   Map<String, Integer> resolved) {
+        Set<String> known = new HashSet<>();
+        for (String username : resolved.keySet()) {
+            known.add(username.toLowerCase(Locale.ROOT));
+        }
+        Set<String> unknown = new LinkedHashSet<>();
+        for (String username : requested) {
+            if (username == null || !known.contains(username.toLowerCase(Locale.ROOT))) {
+                unknown.add(username);
+            }
+        }
+        
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put(countKey, count);
+        result.put("unknownUsers", unknown);
+        return result;
+    }
+    
+    /**
+     * Handles the start (or resumption) of an attachment upload
+     * 
+     * The attachment ID is the SHA-256 of the file, computed by the client.
+     * The response carries the offset at which to continue: 0 for a new
+     * upload, the bytes already received for an interrupted one, the file
+     * size if the file is already stored and the user may read it (nothing
+     * to send). A file stored by someone else is uploaded again in full:
+     * knowing its hash does not prove having it.
+     * The client then sends the rest in binary frames ([offset][bytes],
+     * at most 1 MB each, in order); UPLOAD_COMPLETE follows the last one.
+     * A connection has one upload at a time: starting another one sets the
+     * current one aside (it can be resumed later).
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message (attachmentId, fileSize)
+     * @param userInfo The user info for this connection
+     */
+    private void handleUploadStart(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        
+        String attachmentId = request.getAttachmentId();
+        long size = request.getFileSize();
+        if (!AttachmentStore.isValidId(attachmentId)) {
+            sendError(conn, "Invalid attachment ID (SHA-256 of the file, lowercase hex)");
+            return;
+        }
+        if (size <= 0 || size > maxAttachmentBytes) {
+            sendError(conn, "File size must be between 1 byte and " + (maxAttachmentBytes >> 20) + " MB");
+            return;
+        }
+        
+        AttachmentStore.Upload previous = userInfo.upload;
+        if (previous != null) {
+            userInfo.upload = null;
+            attachments.suspend(previous);
+        }
+        
+        Message response = Message.createSuccess(Message.TYPE_UPLOAD_START);
+        response.setAttachmentId(attachmentId);
+        
+        // Deduplication: the same content is already stored, and this user may read it
+        long stored = attachments.size(attachmentId);
+        if (stored >= 0 && dbManager.canReadAttachment(userInfo.authenticatedUserId, attachmentId)) {
+            response.setFileSize(stored);
+            response.setOffset(stored);
+            sendMessage(conn, response);
+            sendUploadComplete(conn, attachmentId, stored);
+            return;
+        }
+        
+        AttachmentStore.Upload upload;
+        try {
+            upload = attachments.begin(userInfo.authenticatedUserId, attachmentId, size);
+        } catch (IOException e) {
+            System.err.println("[ClientHandler] Cannot start upload " + attachmentId + ": " + e.getMessage());
+            sendError(conn, "Failed to start upload");
+            return;
+        }
+        response.setFileSize(size);
+        response.setOffset(upload.getReceived());
+        sendMessage(conn, response);
+        
+        if (upload.isComplete()) {
+            // Every byte arrived before the interruption: only the completion is left
+            completeUpload(conn, upload, userInfo.authenticatedUserId);
+        } else {
+            userInfo.upload = upload;
+        }
+    }
+    
+    /**
+     * Writes one binary frame to the connection's upload. A chunk at the
+     * wrong offset is refused with an UPLOAD_OFFSET error carrying the
+     * expected offset; the client resends from there.
+     * 
+     * @param conn The WebSocket connection
+     * @param frame The frame payload: [offset: long][bytes]
+     * @param userInfo The user info for this connection
+     */
+    private void processChunk(WebSocket conn, ByteBuffer frame, UserInfo userInfo) {
+        userInfo.lastActivity = System.currentTimeMillis();
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        if (!overload.admit(Message.TYPE_UPLOAD_CHUNK)) {
+            sendOverloaded(conn, Message.TYPE_UPLOAD_CHUNK);
+            return;
+        }
+        // Own bucket only: chunks do not count against the request limits
+        if (!rateLimiter.tryAcquire(userInfo.rateBuckets, -1, RateLimiter.typeIndex(Message.TYPE_UPLOAD_CHUNK))) {
+            sendRateLimited(conn, Message.TYPE_UPLOAD_CHUNK);
+            return;
+        }
+        
+        AttachmentStore.Upload upload = userInfo.upload;
+        if (upload == null) {
+            sendError(conn, "No upload in progress (send UPLOAD_START first)");
+            return;
+        }
+        if (frame.remaining() < CHUNK_HEADER_BYTES || frame.remaining() - CHUNK_HEADER_BYTES > MAX_CHUNK_BYTES) {
+            sendError(conn, "Invalid upload chunk");
+            return;
+        }
+        
+        long offset = frame.getLong();
+        try {
+            if (!attachments.write(upload, offset, frame)) {
+                Message error = Message.createError(Message.TYPE_UPLOAD_CHUNK,
+                                                    "Chunk does not start at the expected offset");
+                error.setErrorCode(Message.ERROR_UPLOAD_OFFSET);
+                error.setAttachmentId(upload.getAttachmentId());
+                error.setOffset(upload.getReceived());
+                sendMessage(conn, error);
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("[ClientHandler] Cannot write upload " + upload.getAttachmentId() + ": " +
+                               e.getMessage());
+            userInfo.upload = null;
+            attachments.suspend(upload);
+            sendError(conn, "Failed to store upload chunk");
+            return;
+        }
+        
+        if (upload.isComplete()) {
+            userInfo.upload = null;
+            completeUpload(conn, upload, userInfo.authenticatedUserId);
+        }
+    }
+    
+    /**
+     * Checks and stores an upload whose bytes have all been received,
+     * and records the user as its uploader, then sends UPLOAD_COMPLETE
+     * (or an error: the upload starts over)
+     */
+    private void completeUpload(WebSocket conn, AttachmentStore.Upload upload, int userId) {
+        String attachmentId;
+        try {
+            attachmentId = attachments.complete(upload);
+        } catch (IOException e) {
+            System.err.println("[ClientHandler] Cannot store upload " + upload.getAttachmentId() + ": " +
+                               e.getMessage());
+            sendError(conn, "Failed to store attachment");
+            return;
+        }
+        if (attachmentId == null) {
+            Message error = Message.createError(Message.TYPE_UPLOAD_COMPLETE,
+                                                "Uploaded bytes do not match the attachment ID");
+            error.setAttachmentId(upload.getAttachmentId());
+            sendMessage(conn, error);
+            return;
+        }
+        if (!dbManager.addAttachmentUploader(attachmentId, userId)) {
+            sendError(conn, "Failed to store attachment");
+            return;
+        }
+        sendUploadComplete(conn, attachmentId, upload.getSize());
+    }
+    
+    private void sendUploadComplete(WebSocket conn, String attachmentId, long size) {
+        Message complete = Message.createSuccess(Message.TYPE_UPLOAD_COMPLETE);
+        complete.setAttachmentId(attachmentId);
+        complete.setFileSize(size);
+        sendMessage(conn, complete);
+    }
+    
+    /**
+     * Handles a request for a download URL of an attachment
+     * 
+     * Only for a user that uploaded the attachment or is a member of a
+     * conversation where it was sent (anyone else gets "not found").
+     * The URL is signed and expires after attachments.urlTtlSeconds
+     * (timestamp = expiry); the download itself goes to the
+     * AttachmentEndpoint port, not through the WebSocket.
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message (attachmentId)
+     * @param userInfo The user info for this connection
+     */
+    private void handleGetAttachmentUrl(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        if (!attachmentEndpoint.isEnabled()) {
+            sendError(conn, "Attachment downloads are disabled");
+            return;
+        }
+        
+        String attachmentId = request.getAttachmentId();
+        long size = attachments.size(attachmentId);
+        if (size < 0 || !dbManager.canReadAttachment(userInfo.authenticatedUserId, attachmentId)) {
+            sendError(conn, "Attachment not found");
+            return;
+        }
+        
+        long expiresAt = System.currentTimeMillis() + attachmentUrlTtlMs;
+        Message response = Message.createSuccess(Message.TYPE_GET_ATTACHMENT_URL);
+        response.setAttachmentId(attachmentId);
+        response.setFileSize(size);
+        response.setUrl(attachmentBaseUrl + attachmentEndpoint.signedPath(attachmentId, expiresAt));
+        response.setTimestamp(expiresAt);
+        sendMessage(conn, response);
+    }
+    
+    /**
+     * Handles marking a conversation as read up to a message
+     * 
+     * The cursor is only recorded in memory here; ReadReceiptTracker
+     * writes it to the database and notifies the other participants
+     * in batches.
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message containing conversation ID and message ID
+     * @param userInfo The user info for this connection
+     */
+    private void handleMarkRead(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        
+        int conversationId = request.getConversationId();
+        long messageId = request.getMessageId();
+        
+        if (conversationId <= 0) {
+            sendError(conn, "Invalid conversation ID");
+            return;
+        }
+        
+        // Only members (and channel readers) have a cursor: receipts carry the reader's name
+        ConversationDescriptor conversation = conversations.get(conversationId);
+        boolean allowed = conversation != null &&
+            (conversation.isMember(userInfo.authenticatedUserId) ||
+             (conversation.isChannel() && subscriptions.isChannelSubscriber(userInfo.authenticatedUserId,
+                                                                            conversationId)));
+        if (!allowed) {
+            sendError(conn, "You are not a member of this conversation");
+            return;
+        }
+        
+        // Channels: the cursor is a seq (unread = channel's last seq - cursor), no receipts
+        if (conversation.isChannel()) {
+            long seq = request.getSeq();
+            if (seq <= 0) {
+                sendError(conn, "Invalid seq");
+                return;
+            }
+            readReceipts.markChannelRead(userInfo.authenticatedUserId, conversationId, seq);
+            
+            Message response = Message.createSuccess(Message.TYPE_MARK_READ);
+            response.setConversationId(conversationId);
+            response.setSeq(seq);
+            sendMessage(conn, response);
+            return;
+        }
+        
+        if (messageId <= 0) {
+            sendError(conn, "Invalid message ID");
+            return;
+        }
+        
+        readReceipts.markRead(userInfo.authenticatedUserId, userInfo.username, conversationId, messageId);
+        
+        Message response = Message.createSuccess(Message.TYPE_MARK_READ);
+        response.setConversationId(conversationId);
+        response.setMessageId(messageId);
+        
+        sendMessage(conn, response);
+    }
+    
+    /**
+     * Handles a presence change sent by the client ("online" or "away").
+     * Ephemeral: no response is sent and the database is never used.
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message containing the state
+     * @param userInfo The user info for this connection
+     */
+    private void handlePresence(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        
+        String state = request.getState();
+        if (!PresenceTracker.STATE_ONLINE.equals(state) && !PresenceTracker.STATE_AWAY.equals(state)) {
+            sendError(conn, "Presence state must be 'online' or 'away'");
+            return;
+        }
+        
+        presence.updatePresence(userInfo.authenticatedUserId, state);
+    }
+    
+    /**
+     * Handles a typing indicator ("typing" or "stopped") in a conversation.
+     * Ephemeral: no response is sent and the database is never used.
+     * 
+     * @param conn The WebSocket connection
+     * @param request The request message containing conversation ID and state
+     * @param userInfo The user info for this connection
+     */
+    private void handleTyping(WebSocket conn, Message request, UserInfo userInfo) {
+        // Check if user is authenticated
+        if (userInfo.authenticatedUserId == -1) {
+            sendError(conn, "Please login first");
+            return;
+        }
+        
+        String state = request.getState();
+        if (state == null) {
+            state = PresenceTracker.STATE_TYPING;
+        }
+        if (!PresenceTracker.STATE_TYPING.equals(state) && !PresenceTracker.STATE_STOPPED.equals(state)) {
+            sendError(conn, "Typing state must be 'typing' or 'stopped'");
+            return;
+        }
+        
+        if (request.getConversationId() <= 0) {
+            sendError(conn, "Invalid conversation ID");
+            return;
+        }
+        
+        presence.typing(userInfo.authenticatedUserId, request.getConversationId(), state);
+    }
+    
+    /**
+     * Sends an ephemeral event (PRESENCE, TYPING) to the given users.
+     * 
+     * Best-effort: connections that still have unsent data are skipped,
+     * so ephemeral traffic never queues up behind (or in front of) real
+     * messages on a slow connection.
+     * 
+     * @param userIds The recipients' user IDs (offline users are skipped)
+     * @param excludeUserId User that must not receive the event (the sender)
+     * @param message The Message object to send
+     */
+    void sendEphemeral(Collection<Integer> userIds, int excludeUserId, Message message) {
+        FanOutEvent event = new FanOutEvent();
+        event.begin();
+        String json = null;
+        int recipients = 0;
+        int online = 0;
+        int sent = 0;
+        int skipped = 0;
+        for (Integer userId : userIds) {
+            if (userId == excludeUserId) {
+                continue;
+            }
+            recipients++;
+            Set<WebSocket> conns = userConnections.get(userId);
+            if (conns == null) {
+                continue;
+            }
+            online++;
+            for (WebSocket conn : conns) {
+                if (!conn.isOpen() || conn.hasBufferedData()) {
+                    if (conn.isOpen()) {
+                        traceSlowConsumer(conn, true);
+                        skipped++;
+                    }
+                    continue; // Dropped under backpressure
+                }
+                if (json == null) {
+                    json = gson.toJson(message);
+                }
+                try {
+                    conn.send(json);
+                    sent++;
+                } catch (Exception e) {
+                    // Best-effort: the connection is closing
+                }
+            }
+        }
+        commitFanOut(event, FanOutEvent.KIND_EPHEMERAL, message.getConversationId(), recipients, online,
+                     sent, skipped, json);
+    }
+    
+    /**
+     * @param userId The user ID
+     * @return true if the user has at least one logged-in connection
+     */
+    boolean isUserOnline(int userId) {
+        Set<WebSocket> conns = userConnections.get(userId);
+        return conns != null && !conns.isEmpty();
+    }
+    
+    /**
+     * Sends the same message to every open connection of the given users.
+     * The message is serialized once, whatever the number of recipients.
+     * 
+     * @param userIds The recipients' user IDs (offline users are skipped)
+     * @param message The Message object to send
+     */
+    void sendToUsers(Collection<Integer> userIds, Message message) {
+        FanOutEvent event = new FanOutEvent();
+        event.begin();
+        String json = null;
+        int online = 0;
+        int sent = 0;
+        for (Integer userId : userIds) {
+            Set<WebSocket> conns = userConnections.get(userId);
+            if (conns == null) {
+                continue;
+            }
+            online++;
+            for (WebSocket conn : conns) {
+                if (json == null) {
+                    json = gson.toJson(message);
+                }
+                try {
+                    if (conn.hasBufferedData()) {
+                        traceSlowConsumer(conn, false);
+                    }
+                    conn.send(json);
+                    sent++;
+                } catch (Exception e) {
+                    System.err.println("[ClientHandler] Error sending message: " + e.getMessage());
+                }
+            }
+        }
+        commitFanOut(event, FanOutEvent.KIND_USERS, message.getConversationId(), userIds.size(), online,
+                     sent, 0, json);
+    }
+    
+    /**
+     * Ends and records the JFR event of a fan-out (if a recording wants it)
+     * 
+     * @param json The frame sent (null if it was never serialized: nobody online)
+     */
+    private static void commitFanOut(FanOutEvent event, String kind, int conversationId, int recipients,
+                                     int online, int connections, int skipped, String json) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.conversationId = conversationId;
+            event.recipients = recipients;
+            event.online = online;
+            event.connections = connections;
+            event.skipped = skipped;
+            event.bytes = json != null ? (long) utf8Length(json) * connections : 0;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Records a SlowConsumerEvent for a connection with unsent frames, if a
+     * recording wants it; frames queued behind only a few are not reported
+     * 
+     * @param dropped true if the frame is dropped rather than queued
+     */
+    private static void traceSlowConsumer(WebSocket conn, boolean dropped) {
+        SlowConsumerEvent event = new SlowConsumerEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        int queued = conn instanceof WebSocketImpl ? ((WebSocketImpl) conn).outQueue.size() : -1;
+        if (!dropped && queued >= 0 && queued < SLOW_CONSUMER_QUEUED_FRAMES) {
+            return;
+        }
+        UserInfo userInfo = conn.getAttachment();
+        event.userId = userInfo != null ? userInfo.authenticatedUserId : -1;
+        event.remoteAddress = String.valueOf(conn.getRemoteSocketAddress());
+        event.queuedFrames = queued;
+        event.dropped = dropped;
+        event.commit();
+    }
+    
+    private static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Adds a connection to the routing table of a user
+     * 
+     * @param userId The user ID
+     * @param conn The WebSocket connection
+     * @return true if this is the user's only connection
+     */
+    private boolean registerConnection(int userId, WebSocket conn) {
+        while (true) {
+            Set<WebSocket> conns = userConnections.computeIfAbsent(userId, id -> new CopyOnWriteArraySet<>());
+            synchronized (conns) {
+                if (userConnections.get(userId) != conns) {
+                    continue; // Set was removed by a concurrent logout, retry with a fresh one
+                }
+                boolean firstConnection = conns.isEmpty();
+                conns.add(conn);
+                return firstConnection;
+            }
+        }
+    }
+    
+    /**
+     * Removes a connection from the routing table of a user
+     * 
+     * @param userId The user ID (-1 if the connection never logged in)
+     * @param conn The WebSocket connection
+     */
+    private void unregisterConnection(int userId, WebSocket conn) {
+        if (userId == -1) {
+            return;
+        }
+        Set<WebSocket> conns = userConnections.get(userId);
+        if (conns == null) {
+            return;
+        }
+        
+        boolean lastConnection;
+        synchronized (conns) {
+            lastConnection = conns.remove(conn) && conns.isEmpty();
+            if (conns.isEmpty()) {
+                userConnections.remove(userId, conns);
+            }
+        }
+        
+        // Last session of this user closed: presence goes offline (after a grace period)
+        if (lastConnection) {
+            rateLimiter.removeUser(userId);
+            presence.userOffline(userId);
+        }
+    }
+    
+    /**
+     * Sends a JSON message to the client via WebSocket
+     * 
+     * @param conn The WebSocket connection
+     * @param message The Message object to send
+     */
+    private void sendMessage(WebSocket conn, Message message) {
+        // Responses echo the requestId of the request being handled
+        if (message.getRequestId() == null && message.getStatus() != null) {
+            message.setRequestId(replyRequestId.get());
+        }
+        if (Message.STATUS_ERROR.equals(message.getStatus())) {
+            RequestEvent event = currentRequest.get();
+            if (event != null) {
+                event.outcome = message.getErrorCode() != null ? message.getErrorCode() : RequestEvent.OUTCOME_ERROR;
+            }
+        }
+        
+        // Convert Message object to JSON string
+        sendJson(conn, gson.toJson(message), true);
+    }
+    
+    /**
+     * Sends an already serialized message (fan-out serializes once for all recipients)
+     * 
+     * @param conn The WebSocket connection
+     * @param json The JSON string
+     * @param log Whether the frame may be logged (false for large-group fan-out)
+     */
+    private void sendJson(WebSocket conn, String json, boolean log) {
+        try {
+            if (conn.hasBufferedData()) {
+                traceSlowConsumer(conn, false);
+            }
+            
+            // Send JSON string via WebSocket
+            // WebSocket handles message framing automatically
+            conn.send(json);
+            
+            if (log && shouldLogFrame()) {
+                System.out.println("[ClientHandler] Sent to " + conn.getRemoteSocketAddress() + ": " + json);
+            }
+        } catch (Exception e) {
+            System.err.println("[ClientHandler] Error sending message: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Sends an error message to the client
+     * 
+     * @param conn The WebSocket connection
+     * @param errorMessage The error message text
+     */
+    private void sendError(WebSocket conn, String errorMessage) {
+        Message errorResponse = Message.createError("ERROR", errorMessage);
+        sendMessage(conn, errorResponse);
+    }
+    
+    /**
+     * Login deadline (runs on the timer wheel): closes sockets that never logged in
+     * 
+     * @param conn The WebSocket connection
+     * @param userInfo The user info for this connection
+     */
+    private void checkLoginDeadline(WebSocket conn, UserInfo userInfo) {
+        if (userInfo.authenticatedUserId == -1 && conn.isOpen()) {
+            System.out.println("[ClientHandler] Closing " + conn.getRemoteSocketAddress() + ": no LOGIN in time");
+            conn.close(CLOSE_LOGIN_TIMEOUT, "Login timeout");
+        }
+    }
+    
+    /**
+     * Idle check (runs on the timer wheel): closes authenticated sessions that sent
+     * nothing for the idle timeout. Activity does not touch the timer; instead the
+     * check re-arms itself for the remaining time, so busy connections cost nothing.
+     * 
+     * @param conn The WebSocket connection
+     * @param userInfo The user info for this connection
+     */
+    private void checkIdle(WebSocket conn, UserInfo userInfo) {
+        if (!conn.isOpen()) {
+            return;
+        }
+        
+        long idle = System.currentTimeMillis() - userInfo.lastActivity;
+        long timeout = idleTimeoutMs;
+        if (idle >= timeout) {
+            System.out.println("[ClientHandler] Closing idle session of " + userInfo.username);
+            conn.close(CLOSE_IDLE_TIMEOUT, "Idle timeout");
+        } else {
+            userInfo.deadline = timers.schedule(() -> checkIdle(conn, userInfo), timeout - idle);
+        }
+    }
+    
+    /**
+     * Sends an OVERLOADED error for a request shed by the overload controller
+     * 
+     * @param conn The WebSocket connection
+     * @param requestType The rejected request type
+     */
+    private void sendOverloaded(WebSocket conn, String requestType) {
+        Message errorResponse = Message.createError(requestType, "Server busy, retry later");
+        errorResponse.setErrorCode(Message.ERROR_OVERLOADED);
+        sendMessage(conn, errorResponse);
+    }
+    
+    /**
+     * Sends a RATE_LIMITED error for a rejected request
+     * 
+     * @param conn The WebSocket connection
+     * @param requestType The rejected request type (null if rejected before parsing)
+     */
+    private void sendRateLimited(WebSocket conn, String requestType) {
+        Message errorResponse = Message.createError(requestType != null ? requestType : "ERROR",
+                                                    "Too many requests, slow down");
+        errorResponse.setErrorCode(Message.ERROR_RATE_LIMITED);
+        sendMessage(conn, errorResponse);
+    }
+    
+    /**
+     * Gets the overload controller (metrics, readiness, indexer lag source)
+     */
+    public OverloadController getOverloadController() {
+        return overload;
+    }
+    
+    /**
+     * Gets the traffic capture (its state is served on /metrics)
+     */
+    public TrafficCapture getTrafficCapture() {
+        return capture;
+    }
+    
+    /**
+     * Gets the rate limiter (limits can be changed at runtime)
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
     }
     
     /**
@@ -679,7 +2636,7 @@ public class ClientHandler extends WebSocketServer {
      * @return User ID or -1 if not authenticated
      */
     public int getAuthenticatedUserId(WebSocket conn) {
-        UserInfo userInfo = clientData.get(conn);
+        UserInfo userInfo = conn.getAttachment();
         return userInfo != null ? userInfo.authenticatedUserId : -1;
     }
     
@@ -690,7 +2647,7 @@ public class ClientHandler extends WebSocketServer {
      * @return Username or null if not authenticated
      */
     public String getUsername(WebSocket conn) {
-        UserInfo userInfo = clientData.get(conn);
+        UserInfo userInfo = conn.getAttachment();
         return userInfo != null ? userInfo.username : null;
     }
 }
@@ -0,0 +1,117 @@
+package com.chatapp.server;
+
+import com.chatapp.database.DatabaseManager;
+import com.chatapp.models.ConversationDescriptor;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * =====================================================
+ * ConversationCache Class
+ * =====================================================
+ * In-memory conversation descriptors (type, name, members),
+ * so that routing a message needs no database access.
+ *
+ * A descriptor is loaded from the database on first use
+ * and dropped (invalidate) whenever the conversation's
+ * membership changes; the next use loads it again.
+ * Loading runs inside computeIfAbsent, so an invalidation
+ * waits for a load in progress and a stale descriptor can
+ * never be stored after the change.
+ *
+ * It also maps user pairs to their direct conversation
+ * (key = min user ID << 32 | max user ID), so opening a
+ * chat with a known contact is a hash lookup. A pair's
+ * conversation never changes, so these entries are never
+ * invalidated.
+ *
+ * Each map holds at most maxEntries entries; above that,
+ * arbitrary entries are evicted (they are cheap to reload).
+ * =====================================================
+ */
+public class ConversationCache {
+    private final DatabaseManager dbManager;
+    private final Map<Integer, ConversationDescriptor> descriptors = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> directConversations = new ConcurrentHashMap<>();
+    private volatile int maxEntries;
+
+    /**
+     * Constructor
+     *
+     * @param dbManager The database manager used to load descriptors
+     * @param maxEntries Maximum number of cached descriptors
+     */
+    public ConversationCache(DatabaseManager dbManager, int maxEntries) {
+        this.dbManager = dbManager;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the conversation's descriptor, or null if it does not exist
+     */
+    public ConversationDescriptor get(int conversationId) {
+        ConversationDescriptor descriptor = descriptors.get(conversationId);
+        if (descriptor != null) {
+            return descriptor;
+        }
+
+        descriptor = descriptors.computeIfAbsent(conversationId, dbManager::getConversationDescriptor);
+        if (descriptor != null && descriptors.size() > maxEntries) {
+            evict(descriptors);
+        }
+        return descriptor;
+    }
+
+    /**
+     * Gets or creates the direct conversation of two users
+     *
+     * @return The conversation ID, or -1 on error
+     */
+    public int getOrCreateDirect(int userId1, int userId2) {
+        long key = (long) Math.min(userId1, userId2) << 32 | Math.max(userId1, userId2);
+        Integer cached = directConversations.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        int conversationId = dbManager.getOrCreateConversation(userId1, userId2);
+        if (conversationId != -1) {
+            directConversations.put(key, conversationId);
+            if (directConversations.size() > maxEntries) {
+                evict(directConversations);
+            }
+        }
+        return conversationId;
+    }
+
+    /**
+     * Drops a descriptor after its conversation changed
+     */
+    public void invalidate(int conversationId) {
+        descriptors.remove(conversationId);
+    }
+
+    /**
+     * Changes the maximum size (hot reload)
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return number of cached descriptors
+     */
+    public int size() {
+        return descriptors.size();
+    }
+
+    private void evict(Map<?, ?> map) {
+        Iterator<?> it = map.keySet().iterator();
+        while (map.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.chatapp.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * =====================================================
+ * FanOutEvent Class
+ * =====================================================
+ * JDK Flight Recorder event: one frame sent to many
+ * connections (a MESSAGE to the online members of a
+ * conversation, an event to a list of users).
+ * =====================================================
+ */
+@Name("com.chatapp.FanOut")
+@Label("Fan-out")
+@Category({"Chat Server", "Delivery"})
+@Description("A frame delivered to several users")
+@StackTrace(false)
+public final class FanOutEvent extends jdk.jfr.Event {
+    // Kinds
+    static final String KIND_MESSAGE = "MESSAGE";
+    static final String KIND_USERS = "USERS";
+    static final String KIND_EPHEMERAL = "EPHEMERAL";
+
+    @Label("Kind")
+    @Description("MESSAGE, USERS or EPHEMERAL")
+    String kind;
+
+    @Label("Conversation ID")
+    @Description("0 when not sent to a conversation")
+    int conversationId;
+
+    @Label("Recipients")
+    @Description("Users the frame was addressed to")
+    int recipients;
+
+    @Label("Online")
+    @Description("Recipients with at least one open connection")
+    int online;
+
+    @Label("Connections")
+    @Description("Connections the frame was queued on")
+    int connections;
+
+    @Label("Skipped")
+    @Description("Connections skipped under backpressure (ephemeral frames)")
+    int skipped;
+
+    @Label("Bytes")
+    @Description("Frame size times connections")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,116 @@
+package com.chatapp.server;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * =====================================================
+ * HealthEndpoint Class
+ * =====================================================
+ * Small HTTP server (JDK built-in) for load balancers and
+ * orchestrators, on its own port:
+ *
+ * GET /health/live  -> 200 while the process is healthy,
+ *                      503 once a component has failed
+ * GET /health/ready -> 200 when the server accepts clients
+ *                      (all components started, database
+ *                      reachable, not draining), 503 otherwise
+ * GET /metrics       -> 200, JSON object of the registered
+ *                      metric sources (addMetrics)
+ *
+ * Both health checks return a JSON body with the component states.
+ * It starts before the other components, so "not ready"
+ * can be observed during startup.
+ * =====================================================
+ */
+public class HealthEndpoint {
+    private final Lifecycle lifecycle;
+    private final int port;
+    private final Gson gson = new Gson();
+    private final Map<String, Supplier<Object>> metrics = new LinkedHashMap<>();
+    private HttpServer httpServer;
+
+    /**
+     * Constructor
+     *
+     * @param lifecycle The lifecycle whose state is reported
+     * @param port HTTP port (0 = endpoint disabled)
+     */
+    public HealthEndpoint(Lifecycle lifecycle, int port) {
+        this.lifecycle = lifecycle;
+        this.port = port;
+    }
+
+    /**
+     * Registers a metric source, served on /metrics under its name
+     * (must be called before start)
+     */
+    public void addMetrics(String name, Supplier<Object> source) {
+        metrics.put(name, source);
+    }
+
+    /**
+     * Binds the port and starts serving
+     */
+    public void start() throws IOException {
+        if (port == 0) {
+            return;
+        }
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/health/live", exchange -> respond(exchange, lifecycle.isLive()));
+        httpServer.createContext("/health/ready", exchange -> respond(exchange, lifecycle.isReady()));
+        httpServer.createContext("/metrics", this::respondMetrics);
+        httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "health-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        httpServer.start();
+        System.out.println("[HealthEndpoint] Listening on port " + port);
+    }
+
+    /**
+     * Stops serving
+     */
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    private void respond(HttpExchange exchange, boolean ok) throws IOException {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("status", ok ? "UP" : "DOWN");
+        body.put("startupMs", lifecycle.getStartupMillis());
+        body.put("components", lifecycle.componentStates());
+        send(exchange, ok ? 200 : 503, body);
+    }
+
+    private void respondMetrics(HttpExchange exchange) throws IOException {
+        Map<String, Object> body = new LinkedHashMap<>();
+        for (Map.Entry<String, Supplier<Object>> source : metrics.entrySet()) {
+            body.put(source.getKey(), source.getValue().get());
+        }
+        send(exchange, 200, body);
+    }
+
+    private void send(HttpExchange exchange, int status, Map<String, Object> body) throws IOException {
+        byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
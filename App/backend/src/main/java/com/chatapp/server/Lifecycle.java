@@ -0,0 +1,259 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * =====================================================
+ * Lifecycle Class
+ * =====================================================
+ * Starts and stops the server components in dependency
+ * order.
+ *
+ * Each component is registered with a start action, a stop
+ * action and the components it depends on. start() runs a
+ * component as soon as all its dependencies have started,
+ * so independent components (database connection, health
+ * endpoint, config watcher, ...) warm up in parallel.
+ * The time taken by every component and the total
+ * time-to-ready are logged.
+ *
+ * If a component fails, the ones already started are
+ * stopped and start() throws: the server never runs
+ * half-initialized.
+ *
+ * The server is ready once every component has started,
+ * every readiness check passes and no stop has begun.
+ * stop() first withdraws readiness, then stops components
+ * in the reverse order of their start.
+ * =====================================================
+ */
+public class Lifecycle {
+    /**
+     * State of a component
+     */
+    public enum State { NEW, STARTING, STARTED, FAILED, STOPPING, STOPPED }
+
+    /**
+     * Start or stop action of a component
+     */
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    private static class Component {
+        final String name;
+        final Action start;
+        final Action stop;
+        final List<String> dependsOn;
+        volatile State state = State.NEW;
+
+        Component(String name, Action start, Action stop, List<String> dependsOn) {
+            this.name = name;
+            this.start = start;
+            this.stop = stop;
+            this.dependsOn = dependsOn;
+        }
+    }
+
+    private final Map<String, Component> components = new LinkedHashMap<>();
+    private final Map<String, BooleanSupplier> readinessChecks = new LinkedHashMap<>();
+    private final List<Component> started = Collections.synchronizedList(new ArrayList<>()); // In start order
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile boolean ready;
+    private volatile boolean stopping;
+    private volatile long startupMillis = -1;
+
+    /**
+     * Registers a component. Dependencies must be registered first
+     * (which also rules out cycles).
+     *
+     * @param name Component name (used in logs and the health endpoint)
+     * @param start Start action; must return once the component is usable
+     * @param stop Stop action
+     * @param dependsOn Components that must be started before this one
+     */
+    public synchronized void register(String name, Action start, Action stop, String... dependsOn) {
+        for (String dependency : dependsOn) {
+            if (!components.containsKey(dependency)) {
+                throw new IllegalArgumentException(name + " depends on unknown component " + dependency);
+            }
+        }
+        components.put(name, new Component(name, start, stop, List.of(dependsOn)));
+    }
+
+    /**
+     * Adds a check that must pass for the server to be reported ready
+     * (for example "database connection is valid")
+     */
+    public synchronized void addReadinessCheck(String name, BooleanSupplier check) {
+        readinessChecks.put(name, check);
+    }
+
+    /**
+     * Starts every component, in parallel where dependencies allow
+     *
+     * @throws Exception the first failure, after the started components have been stopped
+     */
+    public void start() throws Exception {
+        long begin = System.nanoTime();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "startup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+        try {
+            synchronized (this) {
+                for (Component component : components.values()) {
+                    CompletableFuture<?>[] dependencies = component.dependsOn.stream()
+                        .map(futures::get).toArray(CompletableFuture[]::new);
+                    futures.put(component.name, CompletableFuture.allOf(dependencies)
+                        .thenRunAsync(() -> startComponent(component), executor));
+                }
+            }
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // Let the components still starting finish, then undo everything
+            for (CompletableFuture<Void> future : futures.values()) {
+                try {
+                    future.join();
+                } catch (CompletionException ignored) {
+                    // Already reported
+                }
+            }
+            stop();
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause);
+        } finally {
+            executor.shutdown();
+        }
+
+        startupMillis = (System.nanoTime() - begin) / 1_000_000;
+        ready = true;
+        System.out.println("[Lifecycle] Ready in " + startupMillis + " ms");
+    }
+
+    /**
+     * Runs one component's start action (on a startup thread)
+     */
+    private void startComponent(Component component) {
+        if (stopping) {
+            throw new CompletionException(new IllegalStateException("Stopped during startup"));
+        }
+        component.state = State.STARTING;
+        long begin = System.nanoTime();
+        try {
+            component.start.run();
+        } catch (Exception e) {
+            component.state = State.FAILED;
+            System.err.println("[Lifecycle] " + component.name + " failed to start: " + e.getMessage());
+            throw new CompletionException(e);
+        }
+        component.state = State.STARTED;
+        started.add(component);
+        System.out.println("[Lifecycle] " + component.name + " started in " +
+                           (System.nanoTime() - begin) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Withdraws readiness and stops the started components in reverse order.
+     * Safe to call more than once and from several threads.
+     */
+    public void stop() {
+        List<Component> toStop;
+        synchronized (this) {
+            ready = false;
+            stopping = true;
+            synchronized (started) {
+                toStop = new ArrayList<>(started);
+                started.clear();
+            }
+        }
+        Collections.reverse(toStop);
+
+        for (Component component : toStop) {
+            component.state = State.STOPPING;
+            long begin = System.nanoTime();
+            try {
+                component.stop.run();
+            } catch (Exception e) {
+                System.err.println("[Lifecycle] Error stopping " + component.name + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+            component.state = State.STOPPED;
+            System.out.println("[Lifecycle] " + component.name + " stopped in " +
+                               (System.nanoTime() - begin) / 1_000_000 + " ms");
+        }
+        terminated.countDown();
+    }
+
+    /**
+     * Blocks until stop() has completed
+     */
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * @return true if every component is started, every readiness check passes
+     *         and the server is not stopping
+     */
+    public boolean isReady() {
+        if (!ready) {
+            return false;
+        }
+        List<BooleanSupplier> checks;
+        synchronized (this) {
+            checks = new ArrayList<>(readinessChecks.values());
+        }
+        for (BooleanSupplier check : checks) {
+            if (!check.getAsBoolean()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false once a component has failed (the process should be restarted)
+     */
+    public synchronized boolean isLive() {
+        for (Component component : components.values()) {
+            if (component.state == State.FAILED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return component name -> state, in registration order
+     */
+    public synchronized Map<String, State> componentStates() {
+        Map<String, State> states = new LinkedHashMap<>();
+        for (Component component : components.values()) {
+            states.put(component.name, component.state);
+        }
+        return states;
+    }
+
+    /**
+     * @return time from start() to ready in milliseconds, or -1 if not started yet
+     */
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+}
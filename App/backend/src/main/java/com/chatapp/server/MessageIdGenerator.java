@@ -0,0 +1,41 @@
+package com.chatapp.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * =====================================================
+ * MessageIdGenerator Class
+ * =====================================================
+ * Generates server-side message IDs.
+ *
+ * IDs are time-ordered 64-bit numbers:
+ *   (milliseconds since 2024-01-01) << 12 | counter
+ * so they keep increasing across server restarts without
+ * any database lookup, and a larger ID always means a later
+ * message. Read cursors ("last read message id") rely on
+ * this ordering.
+ *
+ * Up to 4096 IDs per millisecond can be generated; above
+ * that the generator borrows from the next millisecond.
+ * =====================================================
+ */
+public class MessageIdGenerator {
+    private static final long EPOCH = 1704067200000L;  // 2024-01-01T00:00:00Z
+    private static final int COUNTER_BITS = 12;
+
+    private final AtomicLong lastId = new AtomicLong();
+
+    /**
+     * Returns the next message ID (thread-safe, lock-free)
+     */
+    public long nextId() {
+        long candidate = (System.currentTimeMillis() - EPOCH) << COUNTER_BITS;
+        while (true) {
+            long last = lastId.get();
+            long next = Math.max(candidate, last + 1);
+            if (lastId.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+}
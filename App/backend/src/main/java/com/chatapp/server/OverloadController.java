@@ -0,0 +1,312 @@
+package com.chatapp.server;
+
+import com.chatapp.models.Message;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * =====================================================
+ * OverloadController Class
+ * =====================================================
+ * Sheds load progressively when the server falls behind,
+ * instead of slowing down every user until it falls over.
+ *
+ * Once per second (tick) it samples four signals, each
+ * compared with its target (overload.* settings):
+ * - the average time spent handling a request (mostly
+ *   MySQL time for the requests that query it)
+ * - the number of pipelined requests waiting for a thread
+ * - the average wait for a pooled database connection
+ *   (handlers queuing on a slow MySQL)
+ * - the message log not yet stored in MySQL (indexer lag)
+ *
+ * The worst ratio is the pressure, which sets the level:
+ *
+ *   pressure >= 1  LEVEL_SHED_LOW     LOW requests rejected
+ *   pressure >= 2  LEVEL_SHED_NORMAL  NORMAL requests rejected,
+ *                                     deferrable work delayed
+ *   pressure >= 4  LEVEL_CRITICAL     new connections refused,
+ *                                     not ready (/health/ready)
+ *
+ * The level rises at once and falls one step per tick,
+ * once the pressure is 20% below the step's threshold.
+ * CRITICAL requests (LOGIN, SEND_MESSAGE, MARK_READ) are
+ * never rejected here. Rejected requests get an ERROR with
+ * errorCode OVERLOADED.
+ *
+ * Every decision is counted; metrics() is served on
+ * /metrics and the counters are logged with logStats().
+ * =====================================================
+ */
+public class OverloadController {
+    // Levels
+    public static final int LEVEL_NORMAL = 0;
+    public static final int LEVEL_SHED_LOW = 1;
+    public static final int LEVEL_SHED_NORMAL = 2;
+    public static final int LEVEL_CRITICAL = 3;
+
+    // Request priorities (a request is rejected from the level equal to its priority)
+    public static final int PRIORITY_LOW = LEVEL_SHED_LOW;
+    public static final int PRIORITY_NORMAL = LEVEL_SHED_NORMAL;
+    public static final int PRIORITY_CRITICAL = Integer.MAX_VALUE;
+
+    private static final String[] LEVEL_NAMES = {"NORMAL", "SHED_LOW", "SHED_NORMAL", "CRITICAL"};
+
+    // Pressure at which each level (1..3) is entered, and the fraction of it to leave
+    private static final double[] THRESHOLDS = {1, 2, 4};
+    private static final double HYSTERESIS = 0.8;
+
+    // Expensive and optional: shed first
+    private static final Set<String> LOW_PRIORITY_TYPES = new HashSet<>(Arrays.asList(
+        Message.TYPE_SEARCH_USER, Message.TYPE_SEARCH_MESSAGES, Message.TYPE_GET_GROUP_MEMBERS,
+        Message.TYPE_TYPING));
+
+    // What users notice first: never shed
+    private static final Set<String> CRITICAL_TYPES = new HashSet<>(Arrays.asList(
+        Message.TYPE_LOGIN, Message.TYPE_SEND_MESSAGE, Message.TYPE_MARK_READ));
+
+    // Settings (see configure)
+    private volatile boolean enabled = true;
+    private volatile long latencyTargetNanos = 250_000_000L;
+    private volatile int queueTarget = 1000;
+    private volatile long lagTargetBytes = 64L << 20;
+    private volatile long poolWaitTargetNanos = 50_000_000L;
+    private volatile int maxConnections;              // 0 = no limit
+
+    // Signal sources
+    private volatile IntSupplier queueDepth = () -> 0;
+    private volatile LongSupplier indexerLag = () -> 0;
+    private volatile LongSupplier poolWait = () -> 0;
+
+    // Request latency since the last tick
+    private final LongAdder latencySumNanos = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+
+    // State, written by tick() only
+    private volatile int level = LEVEL_NORMAL;
+    private volatile double pressure;
+    private volatile long lastLatencyNanos;
+    private volatile int lastQueueDepth;
+    private volatile long lastIndexerLag;
+    private volatile long lastPoolWaitNanos;
+
+    // Decisions
+    private final AtomicLongArray shedCounts = new AtomicLongArray(RateLimiter.limitCount());
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong deferrals = new AtomicLong();
+    private final AtomicLong levelChanges = new AtomicLong();
+
+    /**
+     * Applies the settings (called at startup and on every reload)
+     *
+     * @param enabled false to never shed (maxConnections still applies)
+     * @param latencyTargetMs Average request time considered normal
+     * @param queueTarget Waiting pipelined requests considered normal
+     * @param lagTargetBytes Message log behind MySQL considered normal
+     * @param poolWaitTargetMs Average wait for a database connection considered normal
+     * @param maxConnections Open connections accepted at most (0 = no limit)
+     */
+    public void configure(boolean enabled, long latencyTargetMs, int queueTarget, long lagTargetBytes,
+                          long poolWaitTargetMs, int maxConnections) {
+        this.enabled = enabled;
+        this.latencyTargetNanos = latencyTargetMs * 1_000_000L;
+        this.queueTarget = queueTarget;
+        this.lagTargetBytes = lagTargetBytes;
+        this.poolWaitTargetNanos = poolWaitTargetMs * 1_000_000L;
+        this.maxConnections = maxConnections;
+        if (!enabled) {
+            level = LEVEL_NORMAL;
+        }
+    }
+
+    /**
+     * @param queueDepth Source of the number of requests waiting for a thread
+     */
+    public void setQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * @param indexerLag Source of the bytes of message log not yet in MySQL
+     */
+    public void setIndexerLag(LongSupplier indexerLag) {
+        this.indexerLag = indexerLag;
+    }
+
+    /**
+     * @param poolWait Source of the average wait for a database connection
+     *                 since its previous call, in nanoseconds
+     */
+    public void setPoolWait(LongSupplier poolWait) {
+        this.poolWait = poolWait;
+    }
+
+    /**
+     * Records the time spent handling one request
+     */
+    public void recordLatency(long nanos) {
+        latencySumNanos.add(nanos);
+        latencyCount.increment();
+    }
+
+    /**
+     * @return the priority of a request type (PRIORITY_ constants)
+     */
+    public static int priority(String type) {
+        if (CRITICAL_TYPES.contains(type)) {
+            return PRIORITY_CRITICAL;
+        }
+        return LOW_PRIORITY_TYPES.contains(type) ? PRIORITY_LOW : PRIORITY_NORMAL;
+    }
+
+    /**
+     * Decides whether a request is handled or shed
+     *
+     * @param type The request type
+     * @return true if the request may proceed
+     */
+    public boolean admit(String type) {
+        int current = level;
+        if (current == LEVEL_NORMAL || priority(type) > current) {
+            return true;
+        }
+        shedCounts.incrementAndGet(RateLimiter.typeIndex(type));
+        return false;
+    }
+
+    /**
+     * Admission control of a new connection
+     *
+     * @param openConnections Connections currently open
+     * @return true if the connection may be accepted
+     */
+    public boolean admitConnection(int openConnections) {
+        int max = maxConnections;
+        if ((max > 0 && openConnections >= max) || level >= LEVEL_CRITICAL) {
+            rejectedConnections.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if work that can wait (batched writes) should be delayed;
+     *         counted as a deferral
+     */
+    public boolean shouldDefer() {
+        if (level >= LEVEL_SHED_NORMAL) {
+            deferrals.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true unless the server refuses new connections (readiness)
+     */
+    public boolean isAcceptingConnections() {
+        return level < LEVEL_CRITICAL;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Samples the signals and moves the level (once per second)
+     */
+    public void tick() {
+        long count = latencyCount.sumThenReset();
+        long sum = latencySumNanos.sumThenReset();
+        long latency = count > 0 ? sum / count : 0;
+        int queued = queueDepth.getAsInt();
+        long lag = indexerLag.getAsLong();
+        long wait = poolWait.getAsLong();
+
+        double current = Math.max(Math.max((double) latency / latencyTargetNanos, (double) queued / queueTarget),
+                                  Math.max((double) wait / poolWaitTargetNanos, (double) lag / lagTargetBytes));
+        lastLatencyNanos = latency;
+        lastQueueDepth = queued;
+        lastIndexerLag = lag;
+        lastPoolWaitNanos = wait;
+        pressure = current;
+        if (!enabled) {
+            return;
+        }
+
+        int target = LEVEL_NORMAL;
+        while (target < THRESHOLDS.length && current >= THRESHOLDS[target]) {
+            target++;
+        }
+
+        int previous = level;
+        int next = previous;
+        if (target > previous) {
+            next = target;
+        } else if (previous > LEVEL_NORMAL && current < THRESHOLDS[previous - 1] * HYSTERESIS) {
+            next = previous - 1;
+        }
+        if (next != previous) {
+            level = next;
+            levelChanges.incrementAndGet();
+            System.out.println("[OverloadController] Level " + LEVEL_NAMES[previous] + " -> " + LEVEL_NAMES[next] +
+                               String.format(" (pressure %.2f: latency %d ms, queue %d, pool wait %d ms, " +
+                                             "indexer lag %d KB)", current, latency / 1_000_000, queued,
+                                             wait / 1_000_000, lag >> 10));
+        }
+    }
+
+    /**
+     * @return the current state and counters (served on /metrics)
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("level", LEVEL_NAMES[level]);
+        metrics.put("pressure", Math.round(pressure * 100) / 100.0);
+        metrics.put("latencyMs", lastLatencyNanos / 1_000_000.0);
+        metrics.put("queueDepth", lastQueueDepth);
+        metrics.put("poolWaitMs", lastPoolWaitNanos / 1_000_000.0);
+        metrics.put("indexerLagBytes", lastIndexerLag);
+        metrics.put("levelChanges", levelChanges.get());
+        metrics.put("rejectedConnections", rejectedConnections.get());
+        metrics.put("deferrals", deferrals.get());
+
+        Map<String, Long> shed = new LinkedHashMap<>();
+        for (int i = 0; i < shedCounts.length(); i++) {
+            long value = shedCounts.get(i);
+            if (value > 0) {
+                shed.put(RateLimiter.limitName(i), value);
+            }
+        }
+        metrics.put("shedRequests", shed);
+        return metrics;
+    }
+
+    /**
+     * Prints the shedding counters (only while something was shed or refused)
+     */
+    public void logStats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < shedCounts.length(); i++) {
+            long count = shedCounts.get(i);
+            if (count > 0) {
+                sb.append(' ').append(RateLimiter.limitName(i)).append('=').append(count);
+            }
+        }
+        long refused = rejectedConnections.get();
+        if (sb.length() > 0 || refused > 0) {
+            System.out.println("[OverloadController] Level " + LEVEL_NAMES[level] + ", shed requests:" +
+                               (sb.length() > 0 ? sb : " none") + ", refused connections: " + refused);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.chatapp.server;
+
+import com.chatapp.models.Message;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * =====================================================
+ * PresenceTracker Class
+ * =====================================================
+ * Ephemeral channel for PRESENCE and TYPING events.
+ *
+ * Everything here lives in memory and NEVER touches the
+ * database: recipients come from the SubscriptionIndex
+ * (online users sharing a conversation), and frames are
+ * sent with ClientHandler.sendEphemeral(), which drops
+ * them for connections that already have unsent data.
+ *
+ * Throttling and debounce (per user):
+ * - TYPING "typing" is forwarded at most once every
+ *   TYPING_THROTTLE_MS per conversation; "stopped" is
+ *   forwarded only if "typing" was forwarded before.
+ *   Clients should treat "typing" as expired after
+ *   TYPING_THROTTLE_MS * 2 without a refresh.
+ * - PRESENCE changes are forwarded at most once every
+ *   PRESENCE_THROTTLE_MS, and only when the state changes;
+ *   a change within that time is sent when it ends (only
+ *   the latest state).
+ * - "offline" is delayed by OFFLINE_GRACE_MS, so a client
+ *   that reconnects quickly never flaps offline/online.
+ *
+ * Going online subscribes the user to the SubscriptionIndex
+ * and going offline unsubscribes them, both inside the
+ * presences map's atomic section for that user, so a login
+ * racing with the end of a grace period is never left
+ * unsubscribed.
+ * =====================================================
+ */
+public class PresenceTracker {
+    // Presence / typing states
+    public static final String STATE_ONLINE = "online";
+    public static final String STATE_AWAY = "away";
+    public static final String STATE_OFFLINE = "offline";
+    public static final String STATE_TYPING = "typing";
+    public static final String STATE_STOPPED = "stopped";
+
+    private static final long TYPING_THROTTLE_MS = 3000;
+    private static final long PRESENCE_THROTTLE_MS = 1000;
+    private static final long OFFLINE_GRACE_MS = 5000;
+
+    private final ClientHandler clientHandler;
+    private final SubscriptionIndex subscriptions;
+    private final TimerWheel timers;
+
+    // Ephemeral state of every online user (and of users inside their offline grace period)
+    private final Map<Integer, UserPresence> presences = new ConcurrentHashMap<>();
+
+    /**
+     * Ephemeral state of one user
+     */
+    private static class UserPresence {
+        final String username;
+        String state = STATE_ONLINE;                  // Last broadcast presence state
+        long lastPresenceSentAt;                      // When presence was last broadcast
+        String latestState;                           // Change received while throttled, if any
+        TimerWheel.Timeout trailingPresence;          // Broadcast of latestState, if scheduled
+        TimerWheel.Timeout pendingOffline;            // Delayed "offline" broadcast, if any
+        volatile Map<Integer, Long> typingSentAt;     // Conversation -> last "typing" (on first TYPING)
+
+        UserPresence(String username) {
+            this.username = username;
+        }
+
+        /**
+         * @return the typing map, created on first use (most users never type)
+         */
+        Map<Integer, Long> typingSentAt() {
+            Map<Integer, Long> map = typingSentAt;
+            if (map == null) {
+                synchronized (this) {
+                    map = typingSentAt;
+                    if (map == null) {
+                        map = new ConcurrentHashMap<>();
+                        typingSentAt = map;
+                    }
+                }
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clientHandler The WebSocket handler used to deliver events
+     * @param subscriptions Index of online users and their conversations
+     * @param timers The server's timer wheel (offline grace periods, throttled presence)
+     */
+    public PresenceTracker(ClientHandler clientHandler, SubscriptionIndex subscriptions, TimerWheel timers) {
+        this.clientHandler = clientHandler;
+        this.subscriptions = subscriptions;
+        this.timers = timers;
+    }
+
+    /**
+     * Called when a user's first connection logs in: adds the user to the
+     * subscription index, and broadcasts "online" unless the user was only
+     * briefly disconnected.
+     *
+     * @param userId The user ID
+     * @param username The username
+     * @param conversationIds Every conversation the user is a member of (channels excluded)
+     * @param channelIds Every channel the user is subscribed to
+     */
+    public void userOnline(int userId, String username, Collection<Integer> conversationIds,
+                           Collection<Integer> channelIds) {
+        // Same atomic section as the unsubscribe at the end of a grace period
+        UserPresence presence = presences.compute(userId, (id, current) -> {
+            subscriptions.subscribe(userId, conversationIds, channelIds);
+            return current != null ? current : new UserPresence(username);
+        });
+
+        synchronized (presence) {
+            if (presence.pendingOffline != null) {
+                // Reconnected within the grace period: nobody saw us go offline
+                presence.pendingOffline.cancel();
+                presence.pendingOffline = null;
+                return;
+            }
+            cancelLatestPresence(presence);
+            presence.state = STATE_ONLINE;
+            presence.lastPresenceSentAt = System.currentTimeMillis();
+        }
+
+        broadcastPresence(userId, presence.username, STATE_ONLINE);
+    }
+
+    /**
+     * Gets the username of an online user, shared by all of their sessions
+     *
+     * @param userId The user ID
+     * @return The username, or null if the user is not online
+     */
+    public String getUsername(int userId) {
+        UserPresence presence = presences.get(userId);
+        return presence != null ? presence.username : null;
+    }
+
+    /**
+     * Called when a user's last connection closes.
+     * "offline" is broadcast after the grace period if the user has not come back.
+     *
+     * @param userId The user ID
+     */
+    public void userOffline(int userId) {
+        UserPresence presence = presences.get(userId);
+        if (presence == null) {
+            unsubscribeUnlessBack(userId, null);
+            return;
+        }
+
+        synchronized (presence) {
+            if (presence.pendingOffline != null) {
+                return;
+            }
+            presence.pendingOffline = timers.schedule(() -> expireUser(userId, presence), OFFLINE_GRACE_MS);
+        }
+    }
+
+    /**
+     * Runs when the offline grace period ends
+     */
+    private void expireUser(int userId, UserPresence presence) {
+        synchronized (presence) {
+            if (presence.pendingOffline == null || clientHandler.isUserOnline(userId)) {
+                return; // User came back meanwhile
+            }
+            presence.pendingOffline = null;
+        }
+
+        // Recipients must be computed before the user leaves the index
+        broadcastPresence(userId, presence.username, STATE_OFFLINE);
+        unsubscribeUnlessBack(userId, presence);
+    }
+
+    /**
+     * Removes an offline user from the presences and the subscription index,
+     * unless a new session has logged in meanwhile (it then keeps both)
+     *
+     * @param presence The user's presence when they went offline (null if none)
+     */
+    private void unsubscribeUnlessBack(int userId, UserPresence presence) {
+        presences.compute(userId, (id, current) -> {
+            if (current != presence || clientHandler.isUserOnline(userId)) {
+                return current;
+            }
+            subscriptions.unsubscribe(userId);
+            return null;
+        });
+    }
+
+    /**
+     * Handles a presence change sent by the client (e.g. "away" / "online")
+     *
+     * @param userId The user ID
+     * @param state The new presence state
+     */
+    public void updatePresence(int userId, String state) {
+        UserPresence presence = presences.get(userId);
+        if (presence == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (presence) {
+            long sinceLast = now - presence.lastPresenceSentAt;
+            if (sinceLast < PRESENCE_THROTTLE_MS) {
+                // Throttled: the latest state goes out when the throttle ends
+                presence.latestState = state;
+                if (presence.trailingPresence == null) {
+                    presence.trailingPresence = timers.schedule(() -> sendLatestPresence(userId, presence),
+                                                                PRESENCE_THROTTLE_MS - sinceLast);
+                }
+                return;
+            }
+            cancelLatestPresence(presence);
+            if (state.equals(presence.state)) {
+                return; // No change
+            }
+            presence.state = state;
+            presence.lastPresenceSentAt = now;
+        }
+
+        broadcastPresence(userId, presence.username, state);
+    }
+
+    /**
+     * Runs when the presence throttle ends: broadcasts the latest state
+     * received meanwhile, if it differs from the last one broadcast
+     */
+    private void sendLatestPresence(int userId, UserPresence presence) {
+        String state;
+        synchronized (presence) {
+            state = presence.latestState;
+            presence.latestState = null;
+            presence.trailingPresence = null;
+            if (state == null || state.equals(presence.state) || presence.pendingOffline != null) {
+                return; // Back to the state peers already see, or going offline
+            }
+            presence.state = state;
+            presence.lastPresenceSentAt = System.currentTimeMillis();
+        }
+
+        broadcastPresence(userId, presence.username, state);
+    }
+
+    /**
+     * Handles a typing event sent by the client
+     *
+     * @param userId The user ID
+     * @param conversationId The conversation being typed in
+     * @param state STATE_TYPING or STATE_STOPPED
+     */
+    public void typing(int userId, int conversationId, String state) {
+        UserPresence presence = presences.get(userId);
+        if (presence == null || !subscriptions.isMember(userId, conversationId)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (STATE_TYPING.equals(state)) {
+            Map<Integer, Long> typingSentAt = presence.typingSentAt();
+            Long lastSent = typingSentAt.get(conversationId);
+            if (lastSent != null && now - lastSent < TYPING_THROTTLE_MS) {
+                return; // Debounced: recipients already know we're typing
+            }
+            typingSentAt.put(conversationId, now);
+        } else if (presence.typingSentAt == null || presence.typingSentAt.remove(conversationId) == null) {
+            return; // Nobody was told we were typing
+        }
+
+        Message event = new Message(Message.TYPE_TYPING);
+        event.setSender(presence.username);
+        event.setConversationId(conversationId);
+        event.setState(state);
+
+        Set<Integer> recipients = subscriptions.onlineMembers(conversationId);
+        clientHandler.sendEphemeral(recipients, userId, event);
+    }
+
+    /**
+     * Drops a throttled change not broadcast yet (caller holds the presence lock)
+     */
+    private static void cancelLatestPresence(UserPresence presence) {
+        if (presence.trailingPresence != null) {
+            presence.trailingPresence.cancel();
+            presence.trailingPresence = null;
+            presence.latestState = null;
+        }
+    }
+
+    /**
+     * Sends a PRESENCE event to every online user sharing a conversation with the user
+     */
+    private void broadcastPresence(int userId, String username, String state) {
+        Message event = new Message(Message.TYPE_PRESENCE);
+        event.setSender(username);
+        event.setState(state);
+
+        clientHandler.sendEphemeral(subscriptions.onlineContacts(userId), userId, event);
+    }
+}
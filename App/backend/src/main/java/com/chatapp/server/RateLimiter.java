@@ -0,0 +1,305 @@
+package com.chatapp.server;
+
+import com.chatapp.models.Message;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * =====================================================
+ * RateLimiter Class
+ * =====================================================
+ * Token-bucket rate limiting of client requests, at three
+ * levels, all of which must have a token for a request to
+ * be processed:
+ *
+ * 1. Per connection, all types together (checked before
+ *    the JSON is even parsed). Connections that have not
+ *    logged in yet use a much stricter limit.
+ * 2. Per connection and message type (e.g. SEARCH_USER is
+ *    far more limited than SEND_MESSAGE).
+ * 3. Per user, all connections together (a user cannot
+ *    multiply their limit by opening more sockets).
+ * Upload chunks (binary frames) only take from their own
+ * per-type bucket (UPLOAD_CHUNK), so an upload does not
+ * use up the connection's or the user's request budget.
+ *
+ * Buckets are stored as primitive longs (milli-tokens and
+ * last refill time), allocated once per connection / user,
+ * so checking a request allocates nothing.
+ *
+ * Limits can be changed at runtime with setLimit(); the
+ * number of rejected requests per type is kept in
+ * throttledCounts and logged with logStats().
+ * =====================================================
+ */
+public class RateLimiter {
+    // Request types with their own per-type bucket (index = position)
+    private static final String[] TYPES = {
+        Message.TYPE_LOGIN, Message.TYPE_SEARCH_USER, Message.TYPE_CREATE_CONVERSATION,
+        Message.TYPE_SEND_MESSAGE, Message.TYPE_GET_CONVERSATIONS, Message.TYPE_CREATE_GROUP,
+        Message.TYPE_JOIN_GROUP, Message.TYPE_GET_GROUPS, Message.TYPE_GET_GROUP_MEMBERS,
+        Message.TYPE_MARK_READ, Message.TYPE_PRESENCE, Message.TYPE_TYPING,
+        Message.TYPE_ADD_MEMBERS, Message.TYPE_REMOVE_MEMBERS, Message.TYPE_GET_HISTORY,
+        Message.TYPE_CREATE_CHANNEL, Message.TYPE_SUBSCRIBE_CHANNEL, Message.TYPE_GET_CHANNELS,
+        Message.TYPE_UPLOAD_START, Message.TYPE_UPLOAD_CHUNK, Message.TYPE_GET_ATTACHMENT_URL,
+        Message.TYPE_SEARCH_MESSAGES
+    };
+    public static final int TYPE_OTHER = TYPES.length;              // Any other type
+    public static final int LIMIT_CONNECTION = TYPES.length + 1;    // Per-connection, logged in
+    public static final int LIMIT_UNAUTHENTICATED = TYPES.length + 2; // Per-connection, before LOGIN
+    public static final int LIMIT_USER = TYPES.length + 3;          // Per-user, all connections
+    private static final int LIMIT_COUNT = TYPES.length + 4;
+
+    private static final long MAX_REFILL_NANOS = 60_000_000_000L;   // Avoids overflow after long idle
+
+    // Limits in milli-tokens: refill per second, and bucket capacity (burst)
+    private final long[] ratesMilli = new long[LIMIT_COUNT];
+    private final long[] burstsMilli = new long[LIMIT_COUNT];
+
+    // Rejected requests per limit index
+    private final AtomicLongArray throttledCounts = new AtomicLongArray(LIMIT_COUNT);
+
+    // Per-user buckets: user ID -> {tokens, lastRefill}
+    private final Map<Integer, long[]> userBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * Buckets of one connection: one per type, plus the connection-wide bucket.
+     * One array for all of them, {tokens, lastRefill} pairs: one object per
+     * connection instead of two (see take())
+     */
+    public static class ConnectionBuckets {
+        final long[] buckets = new long[(TYPE_OTHER + 2) * 2];
+
+        ConnectionBuckets() {
+            for (int i = 0; i < buckets.length; i += 2) {
+                buckets[i] = -1; // Filled to capacity on first use (lastRefill unused until then)
+            }
+        }
+    }
+
+    /**
+     * Constructor - sets the default limits
+     */
+    public RateLimiter() {
+        resetToDefaults();
+    }
+
+    /**
+     * Restores the built-in default limits (configured limits are applied on top)
+     */
+    public void resetToDefaults() {
+        setLimit(LIMIT_CONNECTION, 20, 40);
+        setLimit(LIMIT_UNAUTHENTICATED, 2, 5);
+        setLimit(LIMIT_USER, 30, 60);
+
+        setLimit(typeIndex(Message.TYPE_LOGIN), 0.2, 3);
+        setLimit(typeIndex(Message.TYPE_SEARCH_USER), 2, 5);
+        setLimit(typeIndex(Message.TYPE_CREATE_CONVERSATION), 1, 5);
+        setLimit(typeIndex(Message.TYPE_SEND_MESSAGE), 10, 20);
+        setLimit(typeIndex(Message.TYPE_GET_CONVERSATIONS), 2, 10);
+        setLimit(typeIndex(Message.TYPE_CREATE_GROUP), 1, 5);
+        setLimit(typeIndex(Message.TYPE_JOIN_GROUP), 1, 5);
+        setLimit(typeIndex(Message.TYPE_GET_GROUPS), 2, 5);
+        setLimit(typeIndex(Message.TYPE_GET_GROUP_MEMBERS), 2, 5);
+        setLimit(typeIndex(Message.TYPE_MARK_READ), 10, 20);
+        setLimit(typeIndex(Message.TYPE_PRESENCE), 1, 3);
+        setLimit(typeIndex(Message.TYPE_TYPING), 5, 10);
+        setLimit(typeIndex(Message.TYPE_ADD_MEMBERS), 0.5, 5);
+        setLimit(typeIndex(Message.TYPE_REMOVE_MEMBERS), 0.5, 5);
+        setLimit(typeIndex(Message.TYPE_GET_HISTORY), 2, 10);
+        setLimit(typeIndex(Message.TYPE_CREATE_CHANNEL), 1, 5);
+        setLimit(typeIndex(Message.TYPE_SUBSCRIBE_CHANNEL), 1, 5);
+        setLimit(typeIndex(Message.TYPE_GET_CHANNELS), 2, 5);
+        setLimit(typeIndex(Message.TYPE_UPLOAD_START), 1, 5);
+        setLimit(typeIndex(Message.TYPE_UPLOAD_CHUNK), 50, 100);  // Binary frames, up to 1 MB each
+        setLimit(typeIndex(Message.TYPE_GET_ATTACHMENT_URL), 5, 20);
+        setLimit(typeIndex(Message.TYPE_SEARCH_MESSAGES), 1, 5);
+        setLimit(TYPE_OTHER, 5, 10);
+    }
+
+    /**
+     * Changes a limit at runtime
+     *
+     * @param limitIndex A type index (see typeIndex) or one of the LIMIT_ constants
+     * @param perSecond Tokens added per second
+     * @param burst Bucket capacity
+     */
+    public void setLimit(int limitIndex, double perSecond, double burst) {
+        ratesMilli[limitIndex] = (long) (perSecond * 1000);
+        burstsMilli[limitIndex] = (long) (burst * 1000);
+    }
+
+    /**
+     * Maps a request type to its bucket index (TYPE_OTHER for unknown types)
+     */
+    public static int typeIndex(String type) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        return TYPE_OTHER;
+    }
+
+    /**
+     * Name of a limit index, for logging and configuration
+     */
+    public static String limitName(int limitIndex) {
+        if (limitIndex < TYPES.length) {
+            return TYPES[limitIndex];
+        }
+        switch (limitIndex - TYPES.length) {
+            case 0: return "OTHER";
+            case 1: return "CONNECTION";
+            case 2: return "UNAUTHENTICATED";
+            default: return "USER";
+        }
+    }
+
+    /**
+     * Maps a limit name (as returned by limitName) back to its index
+     * 
+     * @return the limit index, or -1 if the name is unknown
+     */
+    public static int limitIndex(String name) {
+        for (int i = 0; i < LIMIT_COUNT; i++) {
+            if (limitName(i).equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of limit indexes (types and LIMIT_ constants)
+     */
+    public static int limitCount() {
+        return LIMIT_COUNT;
+    }
+
+    /**
+     * Creates the buckets of a new connection
+     */
+    public ConnectionBuckets newConnection() {
+        return new ConnectionBuckets();
+    }
+
+    /**
+     * Takes a token from the connection-wide bucket (before parsing the request)
+     *
+     * @param buckets The connection's buckets
+     * @param authenticated Whether the connection has logged in
+     * @return true if the request may proceed
+     */
+    public boolean tryAcquireConnection(ConnectionBuckets buckets, boolean authenticated) {
+        int limit = authenticated ? LIMIT_CONNECTION : LIMIT_UNAUTHENTICATED;
+        boolean allowed;
+        synchronized (buckets) {
+            allowed = take(buckets.buckets, TYPE_OTHER + 1, limit);
+        }
+        if (!allowed) {
+            throttledCounts.incrementAndGet(limit);
+        }
+        return allowed;
+    }
+
+    /**
+     * Takes a token from the per-type bucket of the connection and from the user's bucket
+     *
+     * @param buckets The connection's buckets
+     * @param userId The user ID (-1 if not logged in: no per-user limit)
+     * @param typeIndex The request's type index
+     * @return true if the request may proceed
+     */
+    public boolean tryAcquire(ConnectionBuckets buckets, int userId, int typeIndex) {
+        boolean allowed;
+        synchronized (buckets) {
+            allowed = take(buckets.buckets, typeIndex, typeIndex);
+        }
+        if (!allowed) {
+            throttledCounts.incrementAndGet(typeIndex);
+            return false;
+        }
+
+        if (userId != -1) {
+            long[] userBucket = userBuckets.get(userId);
+            if (userBucket != null) {
+                synchronized (userBucket) {
+                    allowed = take(userBucket, 0, LIMIT_USER);
+                }
+                if (!allowed) {
+                    throttledCounts.incrementAndGet(LIMIT_USER);
+                }
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * Creates the per-user bucket (called at login)
+     */
+    public void addUser(int userId) {
+        userBuckets.computeIfAbsent(userId, id -> new long[] {-1, System.nanoTime()});
+    }
+
+    /**
+     * Drops the per-user bucket (called when the user's last connection closes)
+     */
+    public void removeUser(int userId) {
+        userBuckets.remove(userId);
+    }
+
+    /**
+     * Refills and takes one token. Buckets are {tokens, lastRefill} pairs:
+     * bucket N has its tokens at index 2N and its last refill time at 2N + 1
+     * (a per-user bucket is a single pair).
+     */
+    private boolean take(long[] buckets, int bucket, int limit) {
+        int slot = bucket * 2;
+        int timeSlot = slot + 1;
+        long rate = ratesMilli[limit];
+        long burst = burstsMilli[limit];
+        long now = System.nanoTime();
+
+        long available = buckets[slot];
+        if (available < 0) {
+            available = burst;
+        } else {
+            long elapsed = Math.min(now - buckets[timeSlot], MAX_REFILL_NANOS);
+            available = Math.min(burst, available + elapsed * rate / 1_000_000_000L);
+        }
+        buckets[timeSlot] = now;
+
+        if (available < 1000) {
+            buckets[slot] = available;
+            return false;
+        }
+        buckets[slot] = available - 1000;
+        return true;
+    }
+
+    /**
+     * @return number of requests rejected by a limit since startup
+     */
+    public long getThrottledCount(int limitIndex) {
+        return throttledCounts.get(limitIndex);
+    }
+
+    /**
+     * Prints the rejected request counters (only non-zero ones)
+     */
+    public void logStats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LIMIT_COUNT; i++) {
+            long count = throttledCounts.get(i);
+            if (count > 0) {
+                sb.append(' ').append(limitName(i)).append('=').append(count);
+            }
+        }
+        if (sb.length() > 0) {
+            System.out.println("[RateLimiter] Throttled requests:" + sb);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.chatapp.server;
+
+import com.chatapp.database.DatabaseManager;
+import com.chatapp.models.ConversationDescriptor;
+import com.chatapp.models.Message;
+import com.chatapp.models.ReadCursor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * =====================================================
+ * ReadReceiptTracker Class
+ * =====================================================
+ * Keeps track of MARK_READ requests and turns them into
+ * batched work.
+ *
+ * - Read cursors are coalesced in memory: if a user marks
+ *   ten messages as read before the next flush, only the
+ *   highest ID is written. All pending cursors are written
+ *   to MySQL in one JDBC batch every CURSOR_FLUSH_INTERVAL_MS;
+ *   a batch that fails to save is kept for the next flush.
+ *
+ * - Read receipts are rate limited per conversation: all
+ *   readers of a conversation since the last tick are sent
+ *   to the online participants as ONE "READ_RECEIPT" frame
+ *   every RECEIPT_INTERVAL_MS (the readers' own sessions get
+ *   it too, which keeps their other devices in sync).
+ *
+ * So a 500-member group reading a message produces one
+ * batch of cursor updates and one receipt frame per online
+ * member, instead of 500 UPDATEs and 500 x 500 frames.
+ *
+ * While the server is overloaded (OverloadController),
+ * cursor flushes are postponed, up to MAX_CURSOR_DEFER_MS:
+ * the cursors keep coalescing in memory meanwhile.
+ *
+ * Channel readers only move their cursor (a seq, see
+ * markChannelRead); channels have no read receipts.
+ * =====================================================
+ */
+public class ReadReceiptTracker {
+    private static final long CURSOR_FLUSH_INTERVAL_MS = 2000;
+    private static final long RECEIPT_INTERVAL_MS = 1000;
+    private static final long MAX_CURSOR_DEFER_MS = 30000;
+
+    private final DatabaseManager dbManager;
+    private final ConversationCache conversations;
+    private final ClientHandler clientHandler;
+    private final OverloadController overload;
+    private final ScheduledExecutorService scheduler;
+    private long lastCursorFlush = System.currentTimeMillis();  // Scheduler thread only
+
+    // Pending read cursors, key = (userId << 32 | conversationId), value = highest read message ID
+    private final Map<Long, Long> pendingCursors = new ConcurrentHashMap<>();
+
+    // Pending channel cursors, same key, value = highest read seq
+    private final Map<Long, Long> pendingChannelCursors = new ConcurrentHashMap<>();
+
+    // Pending receipts, conversationId -> (username -> highest read message ID)
+    private final Map<Integer, Map<String, Long>> pendingReceipts = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param dbManager The database manager (cursor storage)
+     * @param conversations The conversation descriptors (membership)
+     * @param clientHandler The WebSocket handler used to deliver receipts
+     * @param overload Tells when cursor writes should wait
+     */
+    public ReadReceiptTracker(DatabaseManager dbManager, ConversationCache conversations,
+                              ClientHandler clientHandler, OverloadController overload) {
+        this.dbManager = dbManager;
+        this.conversations = conversations;
+        this.clientHandler = clientHandler;
+        this.overload = overload;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "read-receipt-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the periodic cursor flush and receipt fan-out
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::flushCursorsUnlessOverloaded,
+            CURSOR_FLUSH_INTERVAL_MS, CURSOR_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::flushReceipts,
+            RECEIPT_INTERVAL_MS, RECEIPT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that a user has read a conversation up to a message.
+     * Only remembers the highest ID; nothing is written or sent here.
+     *
+     * @param userId The reader's user ID
+     * @param username The reader's username (shown in receipts)
+     * @param conversationId The conversation ID
+     * @param messageId Highest message ID the user has read
+     */
+    public void markRead(int userId, String username, int conversationId, long messageId) {
+        long key = ((long) userId << 32) | (conversationId & 0xFFFFFFFFL);
+        pendingCursors.merge(key, messageId, Math::max);
+        pendingReceipts.computeIfAbsent(conversationId, id -> new ConcurrentHashMap<>())
+                       .merge(username, messageId, Math::max);
+    }
+
+    /**
+     * Records that a channel reader has read up to a seq.
+     * Only remembers the highest seq; no receipt is sent.
+     *
+     * @param userId The reader's user ID
+     * @param channelId The channel ID
+     * @param seq Highest seq the user has read
+     */
+    public void markChannelRead(int userId, int channelId, long seq) {
+        long key = ((long) userId << 32) | (channelId & 0xFFFFFFFFL);
+        pendingChannelCursors.merge(key, seq, Math::max);
+    }
+
+    /**
+     * Periodic flush: postponed while the server is overloaded, but never
+     * for more than MAX_CURSOR_DEFER_MS
+     */
+    private void flushCursorsUnlessOverloaded() {
+        long now = System.currentTimeMillis();
+        if (now - lastCursorFlush < MAX_CURSOR_DEFER_MS && overload.shouldDefer()) {
+            return;
+        }
+        lastCursorFlush = now;
+        flushCursors();
+    }
+
+    /**
+     * Writes all pending read cursors to the database, one batch per kind
+     */
+    void flushCursors() {
+        flushCursors(pendingCursors, dbManager::saveReadCursors);
+        flushCursors(pendingChannelCursors, dbManager::saveChannelCursors);
+    }
+
+    /**
+     * Drains one pending map and writes it. If the write fails (database error,
+     * pool timeout) the batch is merged back so the next flush retries it; a
+     * newer cursor recorded meanwhile wins over the requeued one.
+     */
+    private static void flushCursors(Map<Long, Long> pending, Predicate<List<ReadCursor>> save) {
+        List<ReadCursor> batch = drainCursors(pending);
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        boolean saved = false;
+        try {
+            saved = save.test(batch);
+        } catch (Exception e) {
+            System.err.println("[ReadReceiptTracker] Error flushing read cursors: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        if (!saved) {
+            for (ReadCursor cursor : batch) {
+                long key = ((long) cursor.getUserId() << 32) | (cursor.getConversationId() & 0xFFFFFFFFL);
+                pending.merge(key, cursor.getLastReadMessageId(), Math::max);
+            }
+            System.err.println("[ReadReceiptTracker] Could not save " + batch.size()
+                    + " read cursors, keeping them for the next flush");
+        }
+    }
+
+    private static List<ReadCursor> drainCursors(Map<Long, Long> pending) {
+        List<ReadCursor> batch = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : pending.entrySet()) {
+            long key = entry.getKey();
+            long position = entry.getValue();
+            batch.add(new ReadCursor((int) (key >>> 32), (int) key, position));
+            // Only remove if no newer cursor arrived meanwhile; a newer one is kept for the next flush
+            pending.remove(key, position);
+        }
+        return batch;
+    }
+
+    /**
+     * Sends one READ_RECEIPT frame per conversation with all readers since the last tick.
+     * Receipts are best-effort: a receipt recorded while its conversation is being
+     * flushed may be skipped, but the read cursor itself stays pending until saved.
+     */
+    void flushReceipts() {
+        for (Integer conversationId : pendingReceipts.keySet()) {
+            Map<String, Long> readers = pendingReceipts.remove(conversationId);
+            if (readers == null || readers.isEmpty()) {
+                continue;
+            }
+
+            try {
+                Message receipt = new Message(Message.TYPE_READ_RECEIPT);
+                receipt.setConversationId(conversationId);
+                receipt.setData(readers);
+
+                ConversationDescriptor conversation = conversations.get(conversationId);
+                if (conversation != null) {
+                    clientHandler.sendToUsers(conversation.getMemberIds(), receipt);
+                }
+            } catch (Exception e) {
+                System.err.println("[ReadReceiptTracker] Error sending read receipts: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the scheduler and writes whatever is still pending.
+     * Must be called before the database connection is closed.
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushCursors();
+    }
+}
@@ -0,0 +1,50 @@
+package com.chatapp.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * =====================================================
+ * RequestEvent Class
+ * =====================================================
+ * JDK Flight Recorder event: one request frame, from its
+ * arrival in processMessage to the end of its dispatch.
+ * For pipelined requests the time spent waiting for a
+ * request thread is reported apart (queueTime).
+ * =====================================================
+ */
+@Name("com.chatapp.Request")
+@Label("Request")
+@Category({"Chat Server", "Requests"})
+@Description("A request handled by the ClientHandler")
+@StackTrace(false)
+public final class RequestEvent extends jdk.jfr.Event {
+    // Outcomes (besides the errorCode of an error response)
+    static final String OUTCOME_OK = "OK";
+    static final String OUTCOME_ERROR = "ERROR";
+    static final String OUTCOME_EXCEPTION = "EXCEPTION";
+    static final String OUTCOME_INVALID = "INVALID";
+
+    @Label("Type")
+    String type;
+
+    @Label("User ID")
+    @Description("-1 before LOGIN")
+    int userId;
+
+    @Label("Pipelined")
+    @Description("Ran on the request pool (had a requestId)")
+    boolean pipelined;
+
+    @Label("Queue Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueTime;
+
+    @Label("Outcome")
+    @Description("OK, ERROR, EXCEPTION, INVALID, or the errorCode of the error response")
+    String outcome;
+}
@@ -0,0 +1,281 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * =====================================================
+ * SendDeduplicator Class
+ * =====================================================
+ * Makes SEND_MESSAGE idempotent for clients that attach
+ * a clientMessageId.
+ *
+ * Each sender has a small ring buffer remembering the last
+ * WINDOW_SIZE client IDs (as 64-bit hashes) together with
+ * the server message ID and sequence number they were
+ * assigned. A retry of a message still in the window gets
+ * the original values back, so the server can repeat the
+ * original ack without forwarding or storing the message
+ * again (and without burning a sequence number).
+ *
+ * A send is only acked once durable, and so are its
+ * retries: a retry that arrives while the original is
+ * still waiting for its group commit is answered when the
+ * original is (stored()), and with a failure if the
+ * original could not be stored (failed(), which also
+ * forgets the entry so the next retry is a new send).
+ *
+ * Entries expire after WINDOW_MS; windows of senders that
+ * have been quiet for that long are dropped entirely. The
+ * window survives disconnects on purpose: retrying after a
+ * reconnect is the common case.
+ * =====================================================
+ */
+public class SendDeduplicator {
+    private static final int WINDOW_SIZE = 256;                 // Entries per sender
+    private static final long WINDOW_MS = 5 * 60 * 1000;        // Entry lifetime (5 minutes)
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;    // Idle window cleanup
+
+    // Sender user ID -> dedup window
+    private final Map<Integer, Window> windows = new ConcurrentHashMap<>();
+    // Message ID of a send not yet durable -> retries waiting for its outcome
+    // (changed under the sender's window lock)
+    private final Map<Long, List<Consumer<Boolean>>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * IDs assigned to an accepted send
+     */
+    public static class Ack {
+        public final long messageId;    // Server message ID
+        public final long seq;          // Conversation sequence number
+        public final boolean retry;     // true if this send was already accepted before
+
+        Ack(long messageId, long seq, boolean retry) {
+            this.messageId = messageId;
+            this.seq = seq;
+            this.retry = retry;
+        }
+    }
+    
+    /**
+     * Ring buffer of recent sends of one user (parallel primitive arrays)
+     */
+    private static class Window {
+        final long[] hashes = new long[WINDOW_SIZE];
+        final int[] conversationIds = new int[WINDOW_SIZE];
+        final long[] messageIds = new long[WINDOW_SIZE];
+        final long[] seqs = new long[WINDOW_SIZE];
+        final long[] times = new long[WINDOW_SIZE];
+        int next;                // Next slot to overwrite
+        long lastUsed;           // Time of the latest insert
+
+        /**
+         * @return the slot recorded for this send, or -1 if not in the window
+         */
+        int find(long hash, int conversationId, long now) {
+            for (int i = 0; i < WINDOW_SIZE; i++) {
+                if (messageIds[i] != 0 && hashes[i] == hash && conversationIds[i] == conversationId
+                        && now - times[i] < WINDOW_MS) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void add(long hash, int conversationId, long messageId, long seq, long now) {
+            hashes[next] = hash;
+            conversationIds[next] = conversationId;
+            messageIds[next] = messageId;
+            seqs[next] = seq;
+            times[next] = now;
+            next = (next + 1) % WINDOW_SIZE;
+            lastUsed = now;
+        }
+
+        void remove(long messageId) {
+            for (int i = 0; i < WINDOW_SIZE; i++) {
+                if (messageIds[i] == messageId) {
+                    messageIds[i] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public SendDeduplicator() {
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "send-dedup-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictIdleWindows,
+            SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Looks up a previous send without recording anything
+     *
+     * @param userId The sender's user ID
+     * @param conversationId The conversation ID
+     * @param clientMessageId The client-generated message ID
+     * @param onOutcome For a retry: called once with the original ack when the
+     *                  original is durable (at once if it already is), or with
+     *                  null if it could not be stored
+     * @return true if this is a retry (onOutcome will be called), false otherwise
+     */
+    public boolean findRetry(int userId, int conversationId, String clientMessageId, Consumer<Ack> onOutcome) {
+        Window window = windows.get(userId);
+        if (window == null) {
+            return false;
+        }
+        Ack original;
+        synchronized (window) {
+            int slot = window.find(hash(clientMessageId), conversationId, System.currentTimeMillis());
+            if (slot == -1) {
+                return false;
+            }
+            original = new Ack(window.messageIds[slot], window.seqs[slot], true);
+            if (awaitOutcome(original, onOutcome)) {
+                return true;
+            }
+        }
+        onOutcome.accept(original);
+        return true;
+    }
+
+    /**
+     * Atomically records a send unless the same client ID is already in the window.
+     * A new send must then be reported with stored() or failed().
+     *
+     * @param userId The sender's user ID
+     * @param conversationId The conversation ID
+     * @param clientMessageId The client-generated message ID
+     * @param messageId The server message ID assigned to this send
+     * @param seqSupplier Assigns the sequence number; only called for a first send
+     * @param onOutcome For a retry: as in findRetry (not called for a new send)
+     * @return the new ack (retry = false), or the original ack (retry = true)
+     */
+    public Ack putIfAbsent(int userId, int conversationId, String clientMessageId,
+                           long messageId, LongSupplier seqSupplier, Consumer<Ack> onOutcome) {
+        long hash = hash(clientMessageId);
+        long now = System.currentTimeMillis();
+        Window window = windows.computeIfAbsent(userId, id -> new Window());
+        Ack original;
+        synchronized (window) {
+            int slot = window.find(hash, conversationId, now);
+            if (slot == -1) {
+                long seq = seqSupplier.getAsLong();
+                window.add(hash, conversationId, messageId, seq, now);
+                pending.put(messageId, new ArrayList<>());
+                return new Ack(messageId, seq, false);
+            }
+            original = new Ack(window.messageIds[slot], window.seqs[slot], true);
+            if (awaitOutcome(original, onOutcome)) {
+                return original;
+            }
+        }
+        onOutcome.accept(original);
+        return original;
+    }
+
+    /**
+     * Queues a retry behind its original if that one is not durable yet
+     * (caller holds the window lock)
+     *
+     * @return true if queued, false if the original is already durable
+     */
+    private boolean awaitOutcome(Ack original, Consumer<Ack> onOutcome) {
+        List<Consumer<Boolean>> waiting = pending.get(original.messageId);
+        if (waiting == null) {
+            return false;
+        }
+        waiting.add(stored -> onOutcome.accept(stored ? original : null));
+        return true;
+    }
+
+    /**
+     * Reports that a send recorded by putIfAbsent is durable: the retries
+     * waiting for it get its ack
+     *
+     * @param userId The sender's user ID
+     * @param messageId The server message ID of the send
+     */
+    public void stored(int userId, long messageId) {
+        complete(userId, messageId, true);
+    }
+
+    /**
+     * Reports that a send recorded by putIfAbsent could not be stored: it is
+     * forgotten (a later retry is handled as a new send) and the retries
+     * waiting for it get null
+     *
+     * @param userId The sender's user ID
+     * @param messageId The server message ID of the send
+     */
+    public void failed(int userId, long messageId) {
+        complete(userId, messageId, false);
+    }
+
+    private void complete(int userId, long messageId, boolean stored) {
+        List<Consumer<Boolean>> waiting;
+        Window window = windows.get(userId);
+        if (window != null) {
+            synchronized (window) {
+                if (!stored) {
+                    window.remove(messageId);
+                }
+                waiting = pending.remove(messageId);
+            }
+        } else {
+            // Window evicted: no retry can find the send any more
+            waiting = pending.remove(messageId);
+        }
+        if (waiting == null) {
+            return;
+        }
+        for (Consumer<Boolean> retry : waiting) {
+            retry.accept(stored);
+        }
+    }
+
+    /**
+     * Drops the windows of senders that have not sent anything within WINDOW_MS
+     */
+    void evictIdleWindows() {
+        long now = System.currentTimeMillis();
+        windows.entrySet().removeIf(entry -> {
+            synchronized (entry.getValue()) {
+                return now - entry.getValue().lastUsed >= WINDOW_MS;
+            }
+        });
+    }
+
+    /**
+     * Stops the sweeper thread
+     */
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the client ID
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
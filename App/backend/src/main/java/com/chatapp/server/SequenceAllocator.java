@@ -0,0 +1,115 @@
+package com.chatapp.server;
+
+import com.chatapp.database.DatabaseManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * =====================================================
+ * SequenceAllocator Class
+ * =====================================================
+ * Assigns per-conversation sequence numbers (1, 2, 3, ...)
+ * to messages.
+ *
+ * - Each conversation has an AtomicLong counter, so the
+ *   hot path is a single lock-free incrementAndGet, even
+ *   when messages race across worker threads.
+ * - The first use of a conversation seeds its counter from
+ *   the database (highest stored sequence). Seeding is
+ *   guarded by one of STRIPES locks, chosen by conversation
+ *   ID, so two threads never seed the same conversation
+ *   while unrelated conversations never wait on each other.
+ *
+ * Clients use the sequence to order messages and to detect
+ * gaps (a jump from 41 to 43 means 42 was missed). The
+ * sender holds the conversation's lock() from next() to
+ * the message log append, so a conversation's messages
+ * are logged (and delivered) in seq order, and a number
+ * whose append failed is always given back.
+ * =====================================================
+ */
+public class SequenceAllocator {
+    private static final int STRIPES = 64;  // Power of two
+
+    private final DatabaseManager dbManager;
+    private final Map<Integer, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Object[] seedLocks = new Object[STRIPES];
+
+    /**
+     * Constructor
+     *
+     * @param dbManager The database manager (used to seed counters)
+     */
+    public SequenceAllocator(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+        for (int i = 0; i < STRIPES; i++) {
+            seedLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Returns the next sequence number of a conversation
+     *
+     * @param conversationId The conversation ID
+     * @return The sequence number (starts at 1)
+     * @throws IllegalStateException if the counter cannot be seeded from the database
+     */
+    public long next(int conversationId) {
+        AtomicLong counter = counters.get(conversationId);
+        if (counter == null) {
+            counter = seed(conversationId);
+        }
+        return counter.incrementAndGet();
+    }
+
+    /**
+     * Gets the lock to hold from next() until the message is appended to
+     * the log (per conversation: other conversations never wait on it)
+     *
+     * @param conversationId The conversation ID
+     * @return The lock
+     * @throws IllegalStateException if the counter cannot be seeded from the database
+     */
+    public Object lock(int conversationId) {
+        AtomicLong counter = counters.get(conversationId);
+        return counter != null ? counter : seed(conversationId);
+    }
+
+    /**
+     * Gives back the sequence number of a message that could not be stored,
+     * if no later number has been assigned meanwhile (always the case while
+     * the conversation's lock() is held)
+     *
+     * @param conversationId The conversation ID
+     * @param seq The number returned by next()
+     */
+    public void release(int conversationId, long seq) {
+        AtomicLong counter = counters.get(conversationId);
+        if (counter != null) {
+            counter.compareAndSet(seq, seq - 1);
+        }
+    }
+
+    /**
+     * Loads the counter of a conversation from the database (once)
+     */
+    private AtomicLong seed(int conversationId) {
+        synchronized (seedLocks[conversationId & (STRIPES - 1)]) {
+            AtomicLong counter = counters.get(conversationId);
+            if (counter != null) {
+                return counter; // Seeded by another thread meanwhile
+            }
+
+            long lastSequence = dbManager.getLastSequence(conversationId);
+            if (lastSequence < 0) {
+                throw new IllegalStateException("Cannot load sequence of conversation " + conversationId);
+            }
+
+            counter = new AtomicLong(lastSequence);
+            counters.put(conversationId, counter);
+            return counter;
+        }
+    }
+}
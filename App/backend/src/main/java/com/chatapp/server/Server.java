@@ -1,6 +1,18 @@
 package com.chatapp.server;
 
+import com.chatapp.config.ConfigWatcher;
+import com.chatapp.config.ServerConfig;
 import com.chatapp.database.DatabaseManager;
+import com.chatapp.database.ReplicaPool;
+import com.chatapp.storage.AttachmentStore;
+import com.chatapp.storage.MessageHistory;
+import com.chatapp.storage.MessageIndexer;
+import com.chatapp.storage.MessageLog;
+import com.chatapp.storage.MessageSearchIndex;
+import com.chatapp.storage.RetentionService;
+
+import java.nio.file.Paths;
+import java.sql.SQLException;
 
 /**
  * =====================================================
@@ -16,96 +28,253 @@ import com.chatapp.database.DatabaseManager;
  * - WebSocket-based: Uses Java-WebSocket library
  * - Multi-client support: Each client gets its own WebSocket connection
  * - JSON Protocol: All communication uses JSON strings over WebSocket
+ * - Configuration: ServerConfig (file + environment + system
+ *   properties), hot-reloaded by ConfigWatcher
+ * - Startup/shutdown: Lifecycle (dependency order, parallel
+ *   start, per-component timing), HealthEndpoint probes
+ * - Message durability: MessageLog (local write-ahead log),
+ *   copied to MySQL by MessageIndexer on a database
+ *   connection of its own, replayed at start
+ * - Message history: partitioned messages table and archive
+ *   segments, maintained by RetentionService on a second
+ *   database connection
+ * - Attachments: AttachmentStore (uploads over the WebSocket,
+ *   files named by content hash), downloads served over
+ *   HTTP by AttachmentEndpoint
+ * - Search: MessageSearchIndex (memory-mapped inverted index
+ *   segments), fed by MessageIndexer, backfilled on the
+ *   retention connection
  * =====================================================
  */
 public class Server {
+    // Maximum wait for the WebSocket server to bind its port
+    private static final long WEBSOCKET_START_TIMEOUT_MS = 10000;
+    
+    // Messages MySQL rejects, moved aside by the indexer (in wal.dir)
+    private static final String DEAD_LETTER_FILE = "dead-letter.jsonl";
+    
     // Server configuration
-    private static final int PORT = 8080;  // Port number to listen on
+    private final ServerConfig config;      // Configuration loaded at startup
+    private final ConfigWatcher configWatcher; // Hot reload of the configuration file
+    private final int port;                 // Port number to listen on
+    private final Lifecycle lifecycle;      // Component start/stop order
+    private final HealthEndpoint healthEndpoint; // Liveness / readiness probes
     private ClientHandler webSocketServer;  // WebSocket server instance
     private DatabaseManager dbManager;      // Database manager (shared across all handlers)
-    private boolean isRunning;              // Server running flag
+    private final ReplicaPool replicas;     // Read replicas (db.replicaUrls, may be empty)
+    private final DatabaseManager maintenanceDb; // Second connection for long maintenance queries
+    private final RetentionService retention;    // Message partitions, archival and expiry
+    private final MessageLog messageLog;         // Sent messages, durable before MySQL
+    private final DatabaseManager indexerDb;     // Connection of the indexer's transactions
+    private final MessageIndexer messageIndexer; // Message log -> MySQL
+    private final MessageSearchIndex searchIndex; // Full-text index of messages, null if disabled
+    private final AttachmentStore attachments;   // Uploaded files
+    private final AttachmentEndpoint attachmentEndpoint; // Attachment downloads (HTTP)
     
     /**
-     * Constructor
+     * Constructor - creates the components; nothing is started yet
+     * 
+     * @param config The validated server configuration
      */
-    public Server() {
-        this.isRunning = false;
+    public Server(ServerConfig config) {
+        this.config = config;
+        this.port = config.getInt(ServerConfig.SERVER_PORT);
         
         // Initialize database manager
-        // This creates a single connection that will be shared
-        // (In production, you might want a connection pool)
-        this.dbManager = new DatabaseManager();
+        // Request handlers run concurrently (decoder and request threads),
+        // so they share a pool of connections; reads that allow it go to the replicas
+        this.replicas = new ReplicaPool(config);
+        this.dbManager = new DatabaseManager(config, config.getInt(ServerConfig.DB_POOL_SIZE), replicas);
+        
+        // Retention streams whole partitions, so it gets a connection of its own
+        this.maintenanceDb = new DatabaseManager(config);
+        this.retention = new RetentionService(config, maintenanceDb);
+        
+        // Messages are acked once in the local log, stored in MySQL in the background
+        this.messageLog = new MessageLog(Paths.get(config.getString(ServerConfig.WAL_DIR)),
+                                         config.getInt(ServerConfig.WAL_SEGMENT_MB) * 1024 * 1024,
+                                         config.getLong(ServerConfig.WAL_GROUP_COMMIT_WAIT_MICROS));
+        this.searchIndex = config.getBoolean(ServerConfig.SEARCH_ENABLED)
+            ? new MessageSearchIndex(Paths.get(config.getString(ServerConfig.SEARCH_DIR)),
+                                     config.getInt(ServerConfig.SEARCH_FLUSH_MESSAGES),
+                                     config.getInt(ServerConfig.SEARCH_FLUSH_INTERVAL_SECONDS) * 1000L,
+                                     config.getInt(ServerConfig.SEARCH_MERGE_MB_PER_SECOND) * 1024L * 1024L,
+                                     config.getInt(ServerConfig.SEARCH_MAX_SEGMENT_MB) * 1024L * 1024L)
+            : null;
+        // Each batch commits together with its checkpoint, so no other thread
+        // may commit or roll back on the indexer's connection
+        this.indexerDb = new DatabaseManager(config);
+        this.messageIndexer = new MessageIndexer(messageLog, indexerDb, searchIndex,
+                                                 config.getInt(ServerConfig.WAL_INDEX_BATCH_SIZE),
+                                                 Paths.get(config.getString(ServerConfig.WAL_DIR), DEAD_LETTER_FILE));
+        
+        // Files are uploaded over the WebSocket, downloaded from a port of their own
+        this.attachments = new AttachmentStore(Paths.get(config.getString(ServerConfig.ATTACHMENTS_DIR)));
+        this.attachmentEndpoint = new AttachmentEndpoint(attachments, config.getInt(ServerConfig.ATTACHMENTS_PORT),
+                                                         config.getString(ServerConfig.ATTACHMENTS_URL_SECRET));
         
         // Create WebSocket server
         // ClientHandler extends WebSocketServer and handles all WebSocket events
-        this.webSocketServer = new ClientHandler(PORT, dbManager);
+        this.webSocketServer = new ClientHandler(config, dbManager,
+                                                 new MessageHistory(dbManager, retention, messageIndexer),
+                                                 messageLog, attachments, attachmentEndpoint, searchIndex);
+        
+        // Re-apply hot-reloadable settings whenever the file changes
+        this.configWatcher = new ConfigWatcher(config);
+        this.configWatcher.addListener(webSocketServer::applyConfig);
+        this.configWatcher.addListener(replicas::configure);
+        
+        // Components, in dependency order: the WebSocket port is only opened
+        // once the database is connected, everything else starts in parallel.
+        // They are stopped in reverse order (WebSocket drain first, database last).
+        this.lifecycle = new Lifecycle();
+        this.healthEndpoint = new HealthEndpoint(lifecycle, config.getInt(ServerConfig.HEALTH_PORT));
+        lifecycle.register("health", healthEndpoint::start, healthEndpoint::stop);
+        lifecycle.register("config-watcher", configWatcher::start, configWatcher::stop);
+        lifecycle.register("database", dbManager::connect, this::closeDatabase);
+        if (!replicas.isEmpty()) {
+            lifecycle.register("database-replicas", replicas::start, replicas::stop);
+            healthEndpoint.addMetrics("replicas", replicas::metrics);
+        }
+        lifecycle.register("indexer-database", indexerDb::connect, this::closeIndexerDatabase);
+        lifecycle.register("message-log", this::startMessageLog, this::stopMessageLog, "indexer-database");
+        lifecycle.register("attachments", attachments::open, attachments::close);
+        lifecycle.register("attachment-downloads", attachmentEndpoint::start, attachmentEndpoint::stop,
+                           "attachments");
+        // With replicas, clients are only accepted once they have been checked,
+        // so the reconnect burst after a restart does not all land on the primary
+        lifecycle.register("websocket", this::startWebSocket, this::stopWebSocket, replicas.isEmpty()
+                           ? new String[] {"database", "message-log", "attachments"}
+                           : new String[] {"database", "message-log", "attachments", "database-replicas"});
+        lifecycle.register("maintenance-database", maintenanceDb::connect, this::closeMaintenanceDatabase);
+        lifecycle.register("retention", retention::start, retention::stop, "maintenance-database");
+        if (searchIndex != null) {
+            lifecycle.register("search-backfill", this::startSearchBackfill, searchIndex::stopBackfill,
+                               "message-log", "retention");
+        }
+        lifecycle.addReadinessCheck("database", dbManager::isConnectionValid);
+        
+        // Overload: MySQL falling behind shows as indexer lag and as handlers
+        // waiting for a pooled connection; at the worst level the instance
+        // reports not ready, so new clients go elsewhere
+        OverloadController overload = webSocketServer.getOverloadController();
+        overload.setIndexerLag(messageIndexer::getLagBytes);
+        overload.setPoolWait(dbManager::sampleAcquireWait);
+        lifecycle.addReadinessCheck("overload", overload::isAcceptingConnections);
+        healthEndpoint.addMetrics("overload", overload::metrics);
+        healthEndpoint.addMetrics("capture", webSocketServer.getTrafficCapture()::metrics);
     }
     
     /**
-     * Starts the WebSocket server
+     * Starts all components
+     * 
+     * @return true once the server is ready, false if a component failed
+     *         (the components already started have been stopped)
      */
-    public void start() {
+    public boolean start() {
         try {
-            isRunning = true;
-            
-            // Start the WebSocket server
-            // This will listen on the specified port and handle connections
-            webSocketServer.start();
-            
-            System.out.println("=====================================================");
-            System.out.println("Chat Application Server Started (WebSocket)");
-            System.out.println("=====================================================");
-            System.out.println("Listening on port: " + PORT);
-            System.out.println("WebSocket endpoint: ws://localhost:" + PORT);
-            System.out.println("Waiting for client connections...");
-            System.out.println("=====================================================");
-            
-            // Keep the server running
-            // The WebSocket server runs in its own thread
-            // We just need to keep the main thread alive
-            while (isRunning) {
-                Thread.sleep(1000); // Sleep to avoid busy waiting
-            }
-            
-        } catch (InterruptedException e) {
-            System.out.println("[Server] Server interrupted");
+            lifecycle.start();
         } catch (Exception e) {
-            if (isRunning) {
-                // Only print error if server was supposed to be running
-                System.err.println("[Server] Error in server: " + e.getMessage());
-                e.printStackTrace();
-            }
-        } finally {
-            // Clean up when server stops
-            stop();
+            System.err.println("[Server] Startup failed: " + e.getMessage());
+            return false;
         }
+        
+        System.out.println("=====================================================");
+        System.out.println("Chat Application Server Started (WebSocket)");
+        System.out.println("=====================================================");
+        System.out.println("Listening on port: " + port);
+        System.out.println("WebSocket endpoint: ws://localhost:" + port);
+        System.out.println("Configuration file: " + config.getFile().toAbsolutePath());
+        System.out.println("Ready in " + lifecycle.getStartupMillis() + " ms");
+        System.out.println("Waiting for client connections...");
+        System.out.println("=====================================================");
+        return true;
     }
     
     /**
-     * Stops the WebSocket server and closes all connections
+     * Blocks until the server has stopped
+     * (the WebSocket server and the other components run on their own threads)
+     */
+    public void awaitTermination() throws InterruptedException {
+        lifecycle.awaitTermination();
+    }
+    
+    /**
+     * Stops the server gracefully. Readiness is withdrawn first, then:
+     * 1. Drain: refuse new connections, close the open ones spread over
+     *    shutdown.drainMs with a jittered reconnect hint (see ClientHandler.drain)
+     * 2. Stop the WebSocket server (closes whatever is left)
+     * 3. Flush buffered state (read cursors) to the database
+     * 4. Close the message log and store its last messages in the database
+     * 5. Close the database, waiting at most shutdown.dbCloseTimeoutMs
+     * 6. Stop retention (waits for a run in progress) and close its connection
+     * 7. Stop the config watcher and the health endpoint
      */
     public void stop() {
-        isRunning = false;
-        
         System.out.println("\n[Server] Shutting down server...");
-        
-        try {
-            // Stop the WebSocket server
-            // This will close all active connections
-            if (webSocketServer != null) {
-                webSocketServer.stop();
-            }
-        } catch (Exception e) {
-            System.err.println("[Server] Error stopping WebSocket server: " + e.getMessage());
-            e.printStackTrace();
+        lifecycle.stop();
+        System.out.println("[Server] Server stopped.");
+    }
+    
+    private void startWebSocket() throws Exception {
+        // start() only launches the server thread; wait until the port is bound
+        webSocketServer.start();
+        webSocketServer.awaitStarted(WEBSOCKET_START_TIMEOUT_MS);
+    }
+    
+    private void stopWebSocket() throws InterruptedException {
+        int remaining = webSocketServer.drain();
+        if (remaining > 0) {
+            System.out.println("[Server] " + remaining + " connections still open after drain, closing them");
         }
         
-        // Close database connection
-        if (dbManager != null) {
-            dbManager.close();
+        // Stop the WebSocket server
+        // This will close all remaining connections
+        webSocketServer.stop(1000);
+        
+        // Write buffered state (read cursors) while the database is still open
+        webSocketServer.flushPendingState();
+    }
+    
+    private void startMessageLog() throws Exception {
+        long checkpoint = indexerDb.getIndexedLsn();
+        if (checkpoint < 0) {
+            throw new SQLException("Cannot read the message log checkpoint");
+        }
+        if (searchIndex != null) {
+            searchIndex.open(checkpoint);
         }
+        messageLog.open(checkpoint);
         
-        System.out.println("[Server] Server stopped.");
+        // Messages logged before a crash are stored before clients are accepted
+        messageIndexer.start(checkpoint);
+    }
+    
+    private void stopMessageLog() throws InterruptedException {
+        messageLog.close();
+        messageIndexer.stop(configWatcher.getCurrent().getLong(ServerConfig.SHUTDOWN_DB_CLOSE_TIMEOUT_MS));
+        if (searchIndex != null) {
+            searchIndex.close();
+        }
+    }
+    
+    private void startSearchBackfill() {
+        // Long-running: in the background, on the retention connection
+        if (searchIndex.isBackfillPending()) {
+            retention.execute(() -> searchIndex.backfill(maintenanceDb));
+        }
+    }
+    
+    private void closeDatabase() {
+        dbManager.close(configWatcher.getCurrent().getLong(ServerConfig.SHUTDOWN_DB_CLOSE_TIMEOUT_MS));
+    }
+    
+    private void closeIndexerDatabase() {
+        indexerDb.close(configWatcher.getCurrent().getLong(ServerConfig.SHUTDOWN_DB_CLOSE_TIMEOUT_MS));
+    }
+    
+    private void closeMaintenanceDatabase() {
+        maintenanceDb.close(configWatcher.getCurrent().getLong(ServerConfig.SHUTDOWN_DB_CLOSE_TIMEOUT_MS));
     }
     
     /**
@@ -114,8 +283,18 @@ public class Server {
      * @param args Command line arguments (not used)
      */
     public static void main(String[] args) {
+        // Load and validate the configuration; refuse to start with invalid settings
+        ServerConfig config;
+        try {
+            config = ServerConfig.load(ServerConfig.defaultPath());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[Server] " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        
         // Create and start the server
-        Server server = new Server();
+        Server server = new Server(config);
         
         // Add shutdown hook to gracefully close server on Ctrl+C
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -123,8 +302,14 @@ public class Server {
             server.stop();
         }));
         
-        // Start the server
-        // This will block and keep running until stopped
-        server.start();
+        // Start the server, then keep the main thread until it is stopped
+        if (!server.start()) {
+            System.exit(1);
+        }
+        try {
+            server.awaitTermination();
+        } catch (InterruptedException e) {
+            System.out.println("[Server] Server interrupted");
+        }
     }
 }
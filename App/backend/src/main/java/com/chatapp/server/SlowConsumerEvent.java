@@ -0,0 +1,37 @@
+package com.chatapp.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * =====================================================
+ * SlowConsumerEvent Class
+ * =====================================================
+ * JDK Flight Recorder event: a frame for a connection that
+ * has not written out what it already had, either queued
+ * behind many frames or dropped (ephemeral frames).
+ * =====================================================
+ */
+@Name("com.chatapp.SlowConsumer")
+@Label("Slow Consumer")
+@Category({"Chat Server", "Delivery"})
+@Description("A connection that does not keep up with its frames")
+@StackTrace(false)
+public final class SlowConsumerEvent extends jdk.jfr.Event {
+    @Label("User ID")
+    int userId;
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Queued Frames")
+    @Description("Frames waiting to be written, before this one")
+    int queuedFrames;
+
+    @Label("Dropped")
+    @Description("true if the frame was not sent")
+    boolean dropped;
+}
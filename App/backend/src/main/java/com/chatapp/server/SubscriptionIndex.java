@@ -0,0 +1,277 @@
+package com.chatapp.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * =====================================================
+ * SubscriptionIndex Class
+ * =====================================================
+ * In-memory membership index of ONLINE users.
+ *
+ * - user -> conversations the user is a member of
+ * - user -> channels the user is subscribed to
+ * - conversation -> online members (channel readers too)
+ *
+ * A user's conversations are loaded from the database once
+ * at login and then kept up to date on create/join, so
+ * questions like "who is online in this conversation?" or
+ * "who shares a conversation with this user?" are answered
+ * without any database access.
+ *
+ * Message delivery iterates onlineMembers(), so its cost
+ * follows the online members of a conversation, not its
+ * size: the full member list is only needed for offline
+ * bookkeeping (inboxes, updated by the message indexer).
+ *
+ * Channels are kept apart from the other conversations:
+ * their readers get the channel's messages, but sharing a
+ * channel does not make users contacts (no presence or
+ * typing events across a 100,000-reader channel).
+ *
+ * A user's conversations and channels are sorted int
+ * arrays, replaced (copy-on-write) on the rare membership
+ * changes: no boxed Integer or hash set per online user,
+ * and lookups are a binary search.
+ *
+ * Offline users are not in the index at all.
+ * =====================================================
+ */
+public class SubscriptionIndex {
+    private static final int[] NONE = new int[0];
+
+    // Online user ID -> conversation IDs, sorted (never modified, replaced)
+    private final Map<Integer, int[]> userConversations = new ConcurrentHashMap<>();
+
+    // Online user ID -> channel IDs, sorted (never modified, replaced)
+    private final Map<Integer, int[]> userChannels = new ConcurrentHashMap<>();
+
+    // Conversation ID -> online member user IDs
+    private final Map<Integer, Set<Integer>> conversationMembers = new ConcurrentHashMap<>();
+
+    /**
+     * Adds an online user with all of their conversations and channels
+     *
+     * @param userId The user ID
+     * @param conversationIds Every conversation the user is a member of (channels excluded)
+     * @param channelIds Every channel the user is subscribed to
+     */
+    public void subscribe(int userId, Collection<Integer> conversationIds, Collection<Integer> channelIds) {
+        int[] conversations = toSortedArray(conversationIds);
+        int[] channels = toSortedArray(channelIds);
+        userChannels.put(userId, channels);
+        userConversations.put(userId, conversations);
+
+        for (int conversationId : conversations) {
+            addMember(userId, conversationId);
+        }
+        for (int channelId : channels) {
+            addMember(userId, channelId);
+        }
+    }
+
+    /**
+     * Removes a user that went offline
+     *
+     * @param userId The user ID
+     */
+    public void unsubscribe(int userId) {
+        int[] conversations = userConversations.remove(userId);
+        if (conversations == null) {
+            return;
+        }
+        int[] channels = userChannels.remove(userId);
+
+        removeMember(userId, conversations);
+        if (channels != null) {
+            removeMember(userId, channels);
+        }
+    }
+
+    /**
+     * Records a new membership (conversation created or group joined).
+     * Ignored if the user is offline: it will be loaded at their next login.
+     *
+     * @param userId The user ID
+     * @param conversationId The conversation ID
+     */
+    public void addMembership(int userId, int conversationId) {
+        if (userConversations.computeIfPresent(userId, (id, ids) -> with(ids, conversationId)) == null) {
+            return;
+        }
+        addMember(userId, conversationId);
+    }
+
+    /**
+     * Records a new channel subscription (channel created or subscribed to).
+     * Ignored if the user is offline: it will be loaded at their next login.
+     *
+     * @param userId The user ID
+     * @param channelId The channel ID
+     */
+    public void addChannel(int userId, int channelId) {
+        if (userChannels.computeIfPresent(userId, (id, ids) -> with(ids, channelId)) == null) {
+            return;
+        }
+        addMember(userId, channelId);
+    }
+
+    /**
+     * Removes a membership (user removed from a group)
+     *
+     * @param userId The user ID
+     * @param conversationId The conversation ID
+     */
+    public void removeMembership(int userId, int conversationId) {
+        if (userConversations.computeIfPresent(userId, (id, ids) -> without(ids, conversationId)) == null) {
+            return;
+        }
+        removeMember(userId, new int[] {conversationId});
+    }
+
+    /**
+     * @return true if the user is in the index (online)
+     */
+    public boolean isSubscribed(int userId) {
+        return userConversations.containsKey(userId);
+    }
+
+    /**
+     * @return true if the online user is a member of the conversation
+     */
+    public boolean isMember(int userId, int conversationId) {
+        int[] conversations = userConversations.get(userId);
+        return conversations != null && Arrays.binarySearch(conversations, conversationId) >= 0;
+    }
+
+    /**
+     * @return true if the online user is subscribed to the channel
+     */
+    public boolean isChannelSubscriber(int userId, int channelId) {
+        int[] channels = userChannels.get(userId);
+        return channels != null && Arrays.binarySearch(channels, channelId) >= 0;
+    }
+
+    /**
+     * Gets everything an online user can read: conversations and channels
+     *
+     * @param userId The user ID
+     * @return Sorted conversation IDs (empty if the user is offline)
+     */
+    public int[] readableConversations(int userId) {
+        int[] conversations = userConversations.getOrDefault(userId, NONE);
+        int[] channels = userChannels.getOrDefault(userId, NONE);
+        if (channels.length == 0) {
+            return conversations;
+        }
+        if (conversations.length == 0) {
+            return channels;
+        }
+        int[] merged = new int[conversations.length + channels.length];
+        System.arraycopy(conversations, 0, merged, 0, conversations.length);
+        System.arraycopy(channels, 0, merged, conversations.length, channels.length);
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * Gets the online members of a conversation (live view, do not modify)
+     *
+     * @param conversationId The conversation ID
+     * @return Set of online user IDs, empty if nobody is online
+     */
+    public Set<Integer> onlineMembers(int conversationId) {
+        Set<Integer> members = conversationMembers.get(conversationId);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    /**
+     * Gets every online user that shares at least one conversation with a user
+     * (channels do not count)
+     *
+     * @param userId The user ID
+     * @return Set of online user IDs (never contains userId itself)
+     */
+    public Set<Integer> onlineContacts(int userId) {
+        Set<Integer> contacts = new HashSet<>();
+        int[] conversations = userConversations.get(userId);
+        if (conversations == null) {
+            return contacts;
+        }
+
+        for (int conversationId : conversations) {
+            contacts.addAll(onlineMembers(conversationId));
+        }
+        contacts.remove(userId);
+        return contacts;
+    }
+
+    /**
+     * Adds an online member inside the map's atomic section: a set emptied
+     * concurrently by removeMember is dropped from the map, so adding to it
+     * after the lookup would lose the member
+     */
+    private void addMember(int userId, int conversationId) {
+        conversationMembers.compute(conversationId, (id, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(userId);
+            return members;
+        });
+    }
+
+    private void removeMember(int userId, int[] conversationIds) {
+        for (int conversationId : conversationIds) {
+            conversationMembers.computeIfPresent(conversationId, (id, members) -> {
+                members.remove(userId);
+                return members.isEmpty() ? null : members;
+            });
+        }
+    }
+
+    private static int[] toSortedArray(Collection<Integer> ids) {
+        if (ids.isEmpty()) {
+            return NONE;
+        }
+        return ids.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+    }
+
+    /**
+     * @return a sorted copy of ids with id added (ids itself if already there)
+     */
+    private static int[] with(int[] ids, int id) {
+        int index = Arrays.binarySearch(ids, id);
+        if (index >= 0) {
+            return ids;
+        }
+        int insertAt = -index - 1;
+        int[] result = new int[ids.length + 1];
+        System.arraycopy(ids, 0, result, 0, insertAt);
+        result[insertAt] = id;
+        System.arraycopy(ids, insertAt, result, insertAt + 1, ids.length - insertAt);
+        return result;
+    }
+
+    /**
+     * @return a sorted copy of ids without id (ids itself if absent)
+     */
+    private static int[] without(int[] ids, int id) {
+        int index = Arrays.binarySearch(ids, id);
+        if (index < 0) {
+            return ids;
+        }
+        if (ids.length == 1) {
+            return NONE;
+        }
+        int[] result = new int[ids.length - 1];
+        System.arraycopy(ids, 0, result, 0, index);
+        System.arraycopy(ids, index + 1, result, index, ids.length - index - 1);
+        return result;
+    }
+}
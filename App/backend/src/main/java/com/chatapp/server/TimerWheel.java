@@ -0,0 +1,167 @@
+package com.chatapp.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * =====================================================
+ * TimerWheel Class
+ * =====================================================
+ * Hashed timer wheel: ONE thread handles every deadline of
+ * the server (login deadlines, idle timeouts, presence
+ * grace periods, ...), however many connections there are.
+ *
+ * The wheel has wheelSize slots, one per tick. A timeout
+ * due in N ticks goes into slot (current + N) % wheelSize
+ * with N / wheelSize remaining rounds. Scheduling and
+ * cancelling are O(1); the thread only looks at one slot
+ * per tick. Deadlines fire up to one tick late.
+ *
+ * Tasks run on the wheel thread and must be short (close
+ * a socket, reschedule, enqueue work).
+ * =====================================================
+ */
+public class TimerWheel {
+    private final long tickMillis;
+    private final ArrayDeque<Timeout>[] slots;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private volatile boolean running;
+    private long tick;  // Ticks elapsed since start (wheel thread only)
+
+    /**
+     * A scheduled task; cancel() prevents it from running
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private final long delayTicks;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long delayTicks) {
+            this.task = task;
+            this.delayTicks = delayTicks;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name Name of the wheel thread
+     * @param tickMillis Duration of one tick (deadline resolution)
+     * @param wheelSize Number of slots
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        this.slots = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Starts the wheel thread
+     */
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    /**
+     * Stops the wheel thread; timeouts that have not fired are dropped
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * Schedules a task
+     *
+     * @param task The task to run
+     * @param delayMillis Delay before running it
+     * @return Handle used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long delayTicks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task, delayTicks);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Wheel thread: every tick, places new timeouts and fires the due ones
+     */
+    private void run() {
+        long nextTick = System.currentTimeMillis() + tickMillis;
+        while (running) {
+            long sleep = nextTick - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            placePending();
+            fire(slots[(int) (tick % slots.length)]);
+            tick++;
+            nextTick += tickMillis;
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into their slots
+     */
+    private void placePending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long target = tick + timeout.delayTicks - 1;
+            timeout.remainingRounds = (timeout.delayTicks - 1) / slots.length;
+            slots[(int) (target % slots.length)].add(timeout);
+        }
+    }
+
+    /**
+     * Runs the due timeouts of one slot
+     */
+    private void fire(ArrayDeque<Timeout> slot) {
+        Iterator<Timeout> it = slot.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    System.err.println("[TimerWheel] Error in timer task: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.chatapp.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import org.java_websocket.WebSocket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * =====================================================
+ * TrafficCapture Class
+ * =====================================================
+ * Opt-in recording of the inbound WebSocket traffic
+ * (capture.enabled), to replay real workloads against a
+ * test server (com.chatapp.tools.TrafficReplay).
+ *
+ * Every connection open and close and every frame received
+ * is recorded with its time and a connection number, in a
+ * new file per capture:
+ *
+ *   <capture.dir>/capture-<yyyyMMdd-HHmmss>.bin
+ *
+ * File: [MAGIC: int][VERSION: int][start: epoch millis]
+ *       then records until the end of the file:
+ *       [kind: byte][time since start, nanos: varlong]
+ *       [connection: varint][length: varint][payload]
+ *
+ * The frame handlers only copy the frame and queue it (no
+ * I/O, no lock); a writer thread writes the file. When the
+ * queue is full the record is dropped and counted, so a
+ * capture never slows the server down. Passwords are
+ * removed from the frames; the file still holds message
+ * contents and must be handled as user data.
+ * The capture stops by itself at capture.maxMb.
+ * =====================================================
+ */
+public class TrafficCapture {
+    // Record kinds
+    public static final byte KIND_OPEN = 1;
+    public static final byte KIND_TEXT = 2;
+    public static final byte KIND_BINARY = 3;
+    public static final byte KIND_CLOSE = 4;
+
+    private static final int MAGIC = 0x43434150;  // "CCAP"
+    private static final int VERSION = 1;
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final long IDLE_FLUSH_MS = 200;
+    private static final Record STOP = new Record((byte) 0, 0, 0, new byte[0]);
+
+    private static final DateTimeFormatter FILE_NAME =
+        DateTimeFormatter.ofPattern("'capture-'yyyyMMdd-HHmmss'.bin'").withZone(ZoneOffset.UTC);
+
+    private final Path directory;
+    private boolean enabled;            // Last capture.enabled applied
+    private volatile Session session;   // null when not capturing
+
+    // Totals over all captures
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * One recorded event
+     */
+    public static class Record {
+        public final byte kind;
+        public final long offsetNanos;     // Since the start of the capture
+        public final int connectionId;
+        public final byte[] payload;       // Frame bytes (UTF-8 for text frames)
+
+        Record(byte kind, long offsetNanos, int connectionId, byte[] payload) {
+            this.kind = kind;
+            this.offsetNanos = offsetNanos;
+            this.connectionId = connectionId;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * One capture file being written
+     */
+    private class Session {
+        final Path file;
+        final long maxBytes;
+        final long startNanos = System.nanoTime();
+        final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final Map<WebSocket, Integer> connections = new ConcurrentHashMap<>();
+        final AtomicInteger nextConnection = new AtomicInteger();
+        final Thread writer;
+        volatile boolean stopped;
+
+        Session(Path file, long maxBytes) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.writer = new Thread(this::write, "traffic-capture");
+            this.writer.setDaemon(true);
+        }
+
+        void record(byte kind, WebSocket conn, byte[] payload) {
+            if (stopped) {
+                return;
+            }
+            long offset = System.nanoTime() - startNanos;
+            Integer id = connections.get(conn);
+            if (id == null) {
+                // Connections open before the capture started appear at their first frame
+                id = nextConnection.incrementAndGet();
+                connections.put(conn, id);
+                if (kind != KIND_OPEN) {
+                    offer(new Record(KIND_OPEN, offset, id, new byte[0]));
+                }
+            }
+            if (kind == KIND_CLOSE) {
+                connections.remove(conn);
+            }
+            offer(new Record(kind, offset, id, payload));
+        }
+
+        private void offer(Record record) {
+            if (queue.offer(record)) {
+                recorded.incrementAndGet();
+            } else {
+                dropped.incrementAndGet();
+            }
+        }
+
+        private void write() {
+            long written = 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                    64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                while (true) {
+                    Record record = queue.poll(IDLE_FLUSH_MS, TimeUnit.MILLISECONDS);
+                    if (record == null) {
+                        out.flush();
+                        continue;
+                    }
+                    if (record == STOP) {
+                        break;
+                    }
+                    out.writeByte(record.kind);
+                    written += 1 + writeVarLong(out, record.offsetNanos) + writeVarLong(out, record.connectionId) +
+                               writeVarLong(out, record.payload.length) + record.payload.length;
+                    out.write(record.payload);
+                    if (written >= maxBytes) {
+                        System.out.println("[TrafficCapture] " + file + " reached capture.maxMb, capture stopped");
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[TrafficCapture] Capture to " + file + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                stopped = true;
+                queue.clear();
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory Directory of the capture files
+     */
+    public TrafficCapture(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Starts or stops capturing (called at startup and on every reload)
+     *
+     * @param enabled true to capture: a new file is started when this
+     *                turns true, and written until it turns false again
+     *                or the file reaches maxBytes
+     * @param maxBytes Size at which a capture stops
+     */
+    public synchronized void configure(boolean enabled, long maxBytes) {
+        if (enabled == this.enabled) {
+            return;
+        }
+        this.enabled = enabled;
+        Session current = session;
+        if (enabled) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                System.err.println("[TrafficCapture] Cannot create " + directory + ": " + e.getMessage());
+                return;
+            }
+            Session started = new Session(directory.resolve(FILE_NAME.format(Instant.now())), maxBytes);
+            started.writer.start();
+            session = started;
+            System.out.println("[TrafficCapture] Capturing inbound traffic to " + started.file);
+        } else if (current != null) {
+            session = null;
+            stop(current);
+        }
+    }
+
+    /**
+     * Stops the capture in progress, writing what is queued
+     */
+    public synchronized void close() {
+        enabled = false;
+        Session current = session;
+        session = null;
+        if (current != null) {
+            stop(current);
+        }
+    }
+
+    private void stop(Session current) {
+        current.stopped = true;
+        try {
+            current.queue.put(STOP);
+            current.writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("[TrafficCapture] Capture " + current.file + " closed");
+    }
+
+    /**
+     * Records a new connection
+     */
+    public void opened(WebSocket conn) {
+        Session current = session;
+        if (current != null) {
+            current.record(KIND_OPEN, conn, new byte[0]);
+        }
+    }
+
+    /**
+     * Records a text frame (passwords removed)
+     */
+    public void text(WebSocket conn, String frame) {
+        Session current = session;
+        if (current != null) {
+            current.record(KIND_TEXT, conn, redact(frame).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Records a binary frame (the buffer's position is not moved)
+     */
+    public void binary(WebSocket conn, ByteBuffer frame) {
+        Session current = session;
+        if (current != null) {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.duplicate().get(bytes);
+            current.record(KIND_BINARY, conn, bytes);
+        }
+    }
+
+    /**
+     * Records a closed connection
+     */
+    public void closed(WebSocket conn) {
+        Session current = session;
+        if (current != null) {
+            current.record(KIND_CLOSE, conn, new byte[0]);
+        }
+    }
+
+    /**
+     * @return the state and counters (served on /metrics)
+     */
+    public Map<String, Object> metrics() {
+        Session current = session;
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("active", current != null && !current.stopped);
+        if (current != null) {
+            metrics.put("file", current.file.toString());
+        }
+        metrics.put("recorded", recorded.get());
+        metrics.put("dropped", dropped.get());
+        return metrics;
+    }
+
+    /**
+     * Removes the "password" field of a frame (LOGIN)
+     */
+    static String redact(String frame) {
+        if (frame.indexOf("\"password\"") < 0) {
+            return frame;
+        }
+        try {
+            JsonElement element = JsonParser.parseString(frame);
+            if (element.isJsonObject()) {
+                JsonObject object = element.getAsJsonObject();
+                object.remove("password");
+                return object.toString();
+            }
+        } catch (JsonParseException e) {
+            // Not JSON: recorded as received, the server rejects it anyway
+        }
+        return frame;
+    }
+
+    /**
+     * Reads a capture file, record by record
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startMillis;
+
+        /**
+         * Opens a capture file
+         *
+         * @throws IOException if the file is not a capture
+         */
+        public Reader(Path file) throws IOException {
+            InputStream stream = Files.newInputStream(file);
+            this.in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a traffic capture: " + file);
+                }
+                this.startMillis = in.readLong();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return epoch millis at which the capture started
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return the next record, or null at the end of the file (a record
+         *         cut by a crash or by capture.maxMb ends the file too)
+         */
+        public Record next() throws IOException {
+            int kind = in.read();
+            if (kind < 0) {
+                return null;
+            }
+            try {
+                long offset = readVarLong(in);
+                int connection = (int) readVarLong(in);
+                byte[] payload = new byte[(int) readVarLong(in)];
+                in.readFully(payload);
+                return new Record((byte) kind, offset, connection, payload);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static int writeVarLong(DataOutputStream out, long value) throws IOException {
+        int bytes = 1;
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+            bytes++;
+        }
+        out.writeByte((int) value);
+        return bytes;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,356 @@
+package com.chatapp.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * =====================================================
+ * AttachmentStore Class
+ * =====================================================
+ * Local content-addressed store of uploaded files
+ * (attachments). An attachment's ID is the SHA-256 of its
+ * bytes (64 lowercase hex digits), and its file is
+ *
+ *   <dir>/<first 2 digits of the ID>/<ID>
+ *
+ * so a file uploaded twice, by anyone, is stored once: an
+ * upload of an ID that is already stored is complete
+ * before any byte is sent.
+ *
+ * Uploads are resumable. Chunks are written in order,
+ * straight into a partial file (positional FileChannel
+ * writes, the file is never held in memory), and hashed
+ * as they arrive:
+ *
+ *   <dir>/partial/<user ID>-<ID>.part
+ *
+ * After a disconnect the client begins the same upload
+ * again and continues at the returned offset (the bytes
+ * already there are hashed once). When the last byte is
+ * in, the hash is checked, the file forced to disk and
+ * renamed into place, so a stored file is always whole.
+ * Partial files left alone too long are deleted (sweep).
+ * =====================================================
+ */
+public class AttachmentStore {
+    public static final int ID_LENGTH = 64;              // SHA-256, hex
+    private static final String PARTIAL_DIR = "partial";
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final int HASH_BUFFER_BYTES = 64 * 1024;
+
+    private final Path directory;
+    private final Path partialDirectory;
+
+    // Uploads being written: partial file -> upload (one writer per partial file)
+    private final Map<Path, Upload> active = new ConcurrentHashMap<>();
+
+    /**
+     * An upload in progress. Not thread-safe by itself: the store
+     * synchronizes on it.
+     */
+    public static class Upload {
+        private final String attachmentId;
+        private final long size;
+        private final Path partial;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long received;
+        private boolean closed;
+
+        private Upload(String attachmentId, long size, Path partial, FileChannel channel, MessageDigest digest,
+                       long received) {
+            this.attachmentId = attachmentId;
+            this.size = size;
+            this.partial = partial;
+            this.channel = channel;
+            this.digest = digest;
+            this.received = received;
+        }
+
+        public String getAttachmentId() {
+            return attachmentId;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return bytes received so far (the offset of the next chunk)
+         */
+        public synchronized long getReceived() {
+            return received;
+        }
+
+        public synchronized boolean isComplete() {
+            return received == size;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory Root directory of the store
+     */
+    public AttachmentStore(Path directory) {
+        this.directory = directory;
+        this.partialDirectory = directory.resolve(PARTIAL_DIR);
+    }
+
+    /**
+     * Creates the directories
+     */
+    public void open() throws IOException {
+        Files.createDirectories(partialDirectory);
+        System.out.println("[AttachmentStore] Storing attachments in " + directory.toAbsolutePath());
+    }
+
+    /**
+     * Closes the uploads in progress (their partial files are kept for a resume)
+     */
+    public void close() {
+        for (Upload upload : new ArrayList<>(active.values())) {
+            suspend(upload);
+        }
+    }
+
+    /**
+     * @return true if the string has the form of an attachment ID
+     */
+    public static boolean isValidId(String id) {
+        if (id == null || id.length() != ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < ID_LENGTH; i++) {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the file of a stored attachment, or null if there is none
+     */
+    public Path find(String attachmentId) {
+        if (!isValidId(attachmentId)) {
+            return null;
+        }
+        Path file = path(attachmentId);
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    /**
+     * @return the size of a stored attachment, or -1 if there is none
+     */
+    public long size(String attachmentId) {
+        Path file = find(attachmentId);
+        if (file == null) {
+            return -1;
+        }
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Begins or resumes an upload. A previous upload of the same file by
+     * the same user that is still open (e.g. on a connection not yet
+     * closed) is suspended: the new one takes over its partial file.
+     *
+     * @param userId The uploading user
+     * @param attachmentId SHA-256 of the whole file, hex (checked at the end)
+     * @param size Size of the whole file in bytes
+     * @return the upload, positioned after the bytes already received
+     */
+    public Upload begin(int userId, String attachmentId, long size) throws IOException {
+        Path partial = partialDirectory.resolve(userId + "-" + attachmentId + PARTIAL_SUFFIX);
+        Upload previous = active.get(partial);
+        if (previous != null) {
+            suspend(previous);
+        }
+
+        FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        try {
+            MessageDigest digest = newDigest();
+            long existing = channel.size();
+            if (existing > size) {
+                channel.truncate(0);
+                existing = 0;
+            }
+
+            // Resume: hash what was received before
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_BYTES);
+            long position = 0;
+            while (position < existing) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += n;
+            }
+
+            Upload upload = new Upload(attachmentId, size, partial, channel, digest, position);
+            active.put(partial, upload);
+            return upload;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the next chunk of an upload
+     *
+     * @param upload The upload
+     * @param offset Position of the chunk in the file (must be getReceived())
+     * @param data The chunk (consumed)
+     * @return false if the offset is not the expected one, the chunk goes
+     *         past the end of the file, or the upload was suspended
+     */
+    public boolean write(Upload upload, long offset, ByteBuffer data) throws IOException {
+        synchronized (upload) {
+            if (upload.closed || offset != upload.received || offset + data.remaining() > upload.size) {
+                return false;
+            }
+            upload.digest.update(data.duplicate());
+            long position = offset;
+            while (data.hasRemaining()) {
+                position += upload.channel.write(data, position);
+            }
+            upload.received = position;
+            return true;
+        }
+    }
+
+    /**
+     * Completes an upload whose bytes have all been received: checks the
+     * hash, forces the file to disk and moves it into the store.
+     *
+     * @return the attachment ID, or null if the bytes do not match the
+     *         ID (the partial file is deleted: the upload starts over)
+     */
+    public String complete(Upload upload) throws IOException {
+        synchronized (upload) {
+            if (upload.closed || upload.received != upload.size) {
+                return null;
+            }
+            upload.closed = true;
+            active.remove(upload.partial, upload);
+
+            String actual = toHex(upload.digest.digest());
+            if (!actual.equals(upload.attachmentId)) {
+                upload.channel.close();
+                Files.deleteIfExists(upload.partial);
+                return null;
+            }
+
+            upload.channel.force(true);
+            upload.channel.close();
+            Path target = path(upload.attachmentId);
+            Files.createDirectories(target.getParent());
+            try {
+                // Replacing a file stored meanwhile by another upload is harmless: same bytes
+                Files.move(upload.partial, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(upload.partial);
+            }
+            return upload.attachmentId;
+        }
+    }
+
+    /**
+     * Stops writing an upload (connection closed); its partial file is
+     * kept, so the upload can be resumed
+     */
+    public void suspend(Upload upload) {
+        synchronized (upload) {
+            if (upload.closed) {
+                return;
+            }
+            upload.closed = true;
+            active.remove(upload.partial, upload);
+            try {
+                upload.channel.close();
+            } catch (IOException e) {
+                System.err.println("[AttachmentStore] Error closing " + upload.partial + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes the partial files not written to for a while (abandoned uploads)
+     *
+     * @param maxAgeMs Age of the last write after which a partial file is deleted
+     * @return number of files deleted
+     */
+    public int sweep(long maxAgeMs) {
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        List<Path> expired = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(partialDirectory, "*" + PARTIAL_SUFFIX)) {
+            for (Path file : files) {
+                if (!active.containsKey(file) && Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                    expired.add(file);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[AttachmentStore] Cannot list partial uploads: " + e.getMessage());
+            return 0;
+        }
+
+        int deleted = 0;
+        for (Path file : expired) {
+            try {
+                if (Files.deleteIfExists(file)) {
+                    deleted++;
+                }
+            } catch (IOException e) {
+                System.err.println("[AttachmentStore] Cannot delete " + file + ": " + e.getMessage());
+            }
+        }
+        if (deleted > 0) {
+            System.out.println("[AttachmentStore] Deleted " + deleted + " abandoned partial uploads");
+        }
+        return deleted;
+    }
+
+    private Path path(String attachmentId) {
+        return directory.resolve(attachmentId.substring(0, 2)).resolve(attachmentId);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,410 @@
+package com.chatapp.storage;
+
+import com.chatapp.models.StoredMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * =====================================================
+ * MessageArchive Class
+ * =====================================================
+ * Cold message history in compressed local segment files,
+ * one per archived time range (one messages partition):
+ *
+ *   messages-<fromMillis>-<toMillis>.seg
+ *
+ * A segment holds messages sorted by (conversation, seq),
+ * cut into blocks of at most BLOCK_MESSAGES messages of a
+ * single conversation, each block deflate-compressed on
+ * its own. An index at the end of the file lists every
+ * block (conversation, seq range, offset, length), so a
+ * history read only inflates the blocks it needs.
+ *
+ * File layout:
+ *   [block]...[index][index offset: long][MAGIC: int]
+ *   index = count, then per block: conversationId, minSeq,
+ *           maxSeq, offset, compressed length, messages
+ *   block = per message: seq, messageId, senderId, sentAt,
+ *           content length, [attachment ID], content (UTF-8)
+ *   A negative content length n stands for -n - 1 and means
+ *   an attachment ID (64 ASCII hex digits) comes first, so
+ *   segments written before attachments existed read as is.
+ *
+ * Segments are written to a temporary file, fsynced and
+ * renamed, so a crash never leaves a partial segment.
+ * =====================================================
+ */
+public class MessageArchive {
+    private static final int MAGIC = 0x43534731;  // "CSG1"
+    private static final int BLOCK_MESSAGES = 1000;
+    private static final String PREFIX = "messages-";
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+
+    // Loaded segment indexes: segment file -> conversation ID -> blocks (ascending seq)
+    private final Map<Path, Map<Integer, List<Block>>> indexes = new ConcurrentHashMap<>();
+
+    private static class Block {
+        int conversationId;
+        long minSeq;
+        long maxSeq;
+        long offset;
+        int length;
+        int messages;
+    }
+
+    /**
+     * One archived time range
+     */
+    private static class Segment {
+        final Path file;
+        final long fromMillis;
+        final long toMillis;
+
+        Segment(Path file, long fromMillis, long toMillis) {
+            this.file = file;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory Directory of the segment files (created by the first segment)
+     */
+    public MessageArchive(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Starts writing the segment of a time range. Messages must be appended
+     * sorted by (conversation ID, seq).
+     *
+     * @param fromMillis Start of the range (inclusive)
+     * @param toMillis End of the range (exclusive)
+     */
+    public SegmentWriter createSegment(long fromMillis, long toMillis) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve(PREFIX + fromMillis + "-" + toMillis + SUFFIX);
+        return new SegmentWriter(file);
+    }
+
+    /**
+     * Writes one segment: blocks as messages arrive, then the index
+     */
+    public class SegmentWriter {
+        private final Path file;
+        private final Path tempFile;
+        private final FileChannel channel;
+        private final List<Block> blocks = new ArrayList<>();
+        private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        private final DataOutputStream blockOut = new DataOutputStream(blockBytes);
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private Block current;
+        private long offset;
+        private long messageCount;
+
+        SegmentWriter(Path file) throws IOException {
+            this.file = file;
+            this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            this.channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Appends a message (sorted by conversation ID, then seq)
+         */
+        public void append(StoredMessage message) throws IOException {
+            if (current != null && (current.conversationId != message.getConversationId() ||
+                                    current.messages == BLOCK_MESSAGES)) {
+                flushBlock();
+            }
+            if (current == null) {
+                current = new Block();
+                current.conversationId = message.getConversationId();
+                current.minSeq = message.getSeq();
+            }
+            current.maxSeq = message.getSeq();
+            current.messages++;
+
+            byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+            blockOut.writeLong(message.getSeq());
+            blockOut.writeLong(message.getMessageId());
+            blockOut.writeInt(message.getSenderId());
+            blockOut.writeLong(message.getSentAt());
+            if (message.getAttachmentId() != null) {
+                blockOut.writeInt(-content.length - 1);
+                blockOut.write(message.getAttachmentId().getBytes(StandardCharsets.US_ASCII));
+            } else {
+                blockOut.writeInt(content.length);
+            }
+            blockOut.write(content);
+            messageCount++;
+        }
+
+        private void flushBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(blockBytes.toByteArray());
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            int length = 0;
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                writeFully(ByteBuffer.wrap(buffer, 0, n));
+                length += n;
+            }
+
+            current.offset = offset;
+            current.length = length;
+            offset += length;
+            blocks.add(current);
+            current = null;
+            blockBytes.reset();
+        }
+
+        /**
+         * Writes the index, fsyncs and publishes the segment
+         *
+         * @return number of messages in the segment
+         */
+        public long commit() throws IOException {
+            if (current != null) {
+                flushBlock();
+            }
+            deflater.end();
+
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream indexOut = new DataOutputStream(indexBytes);
+            indexOut.writeInt(blocks.size());
+            for (Block block : blocks) {
+                indexOut.writeInt(block.conversationId);
+                indexOut.writeLong(block.minSeq);
+                indexOut.writeLong(block.maxSeq);
+                indexOut.writeLong(block.offset);
+                indexOut.writeInt(block.length);
+                indexOut.writeInt(block.messages);
+            }
+            indexOut.writeLong(offset);
+            indexOut.writeInt(MAGIC);
+            writeFully(ByteBuffer.wrap(indexBytes.toByteArray()));
+
+            channel.force(true);
+            channel.close();
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexes.remove(file);
+            return messageCount;
+        }
+
+        /**
+         * Discards the segment being written
+         */
+        public void abort() {
+            deflater.end();
+            try {
+                channel.close();
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                System.err.println("[MessageArchive] Error discarding " + tempFile + ": " + e.getMessage());
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads archived history of a conversation, newest first
+     *
+     * @param conversationId The conversation ID
+     * @param beforeSeq Only messages with a lower seq
+     * @param limit Maximum number of messages
+     * @param minSentAt Only messages sent at or after this time (retention)
+     * @return The messages, by descending seq
+     */
+    public List<StoredMessage> read(int conversationId, long beforeSeq, int limit, long minSentAt)
+            throws IOException {
+        List<StoredMessage> result = new ArrayList<>();
+        List<Segment> segments = listSegments();
+        segments.sort(Comparator.comparingLong((Segment s) -> s.toMillis).reversed());
+
+        for (Segment segment : segments) {
+            if (result.size() >= limit || segment.toMillis <= minSentAt) {
+                break;
+            }
+            List<Block> blocks = loadIndex(segment.file).get(conversationId);
+            if (blocks == null) {
+                continue;
+            }
+
+            for (int i = blocks.size() - 1; i >= 0 && result.size() < limit; i--) {
+                Block block = blocks.get(i);
+                if (block.minSeq >= beforeSeq) {
+                    continue;
+                }
+                List<StoredMessage> messages = readBlock(segment.file, block);
+                for (int j = messages.size() - 1; j >= 0 && result.size() < limit; j--) {
+                    StoredMessage message = messages.get(j);
+                    if (message.getSeq() < beforeSeq && message.getSentAt() >= minSentAt) {
+                        result.add(message);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes the segments whose whole range ends before a time
+     *
+     * @return number of segments deleted
+     */
+    public int deleteOlderThan(long millis) throws IOException {
+        int deleted = 0;
+        for (Segment segment : listSegments()) {
+            if (segment.toMillis <= millis) {
+                indexes.remove(segment.file);
+                Files.deleteIfExists(segment.file);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private List<Segment> listSegments() throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String[] range = name.substring(PREFIX.length(), name.length() - SUFFIX.length()).split("-");
+                if (range.length == 2) {
+                    try {
+                        segments.add(new Segment(file, Long.parseLong(range[0]), Long.parseLong(range[1])));
+                    } catch (NumberFormatException e) {
+                        // Not a segment name
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    private Map<Integer, List<Block>> loadIndex(Path file) throws IOException {
+        Map<Integer, List<Block>> index = indexes.get(file);
+        if (index != null) {
+            return index;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer footer = readAt(channel, size - 12, 12);
+            long indexOffset = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not a message segment: " + file);
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                readAt(channel, indexOffset, (int) (size - 12 - indexOffset)).array()));
+            int count = in.readInt();
+            index = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                Block block = new Block();
+                block.conversationId = in.readInt();
+                block.minSeq = in.readLong();
+                block.maxSeq = in.readLong();
+                block.offset = in.readLong();
+                block.length = in.readInt();
+                block.messages = in.readInt();
+                index.computeIfAbsent(block.conversationId, id -> new ArrayList<>()).add(block);
+            }
+        }
+        indexes.put(file, index);
+        return index;
+    }
+
+    private List<StoredMessage> readBlock(Path file, Block block) throws IOException {
+        byte[] compressed;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            compressed = readAt(channel, block.offset, block.length).array();
+        }
+
+        Inflater inflater = new Inflater();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try {
+            inflater.setInput(compressed);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated block in " + file);
+                }
+                plain.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block in " + file, e);
+        } finally {
+            inflater.end();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain.toByteArray()));
+        List<StoredMessage> messages = new ArrayList<>(block.messages);
+        for (int i = 0; i < block.messages; i++) {
+            long seq = in.readLong();
+            long messageId = in.readLong();
+            int senderId = in.readInt();
+            long sentAt = in.readLong();
+            int contentLength = in.readInt();
+            String attachmentId = null;
+            if (contentLength < 0) {
+                byte[] attachment = new byte[AttachmentStore.ID_LENGTH];
+                in.readFully(attachment);
+                attachmentId = new String(attachment, StandardCharsets.US_ASCII);
+                contentLength = -contentLength - 1;
+            }
+            byte[] content = new byte[contentLength];
+            in.readFully(content);
+            messages.add(new StoredMessage(block.conversationId, seq, messageId, senderId, sentAt,
+                                           new String(content, StandardCharsets.UTF_8), attachmentId));
+        }
+        return messages;
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,155 @@
+package com.chatapp.storage;
+
+import com.chatapp.database.DatabaseManager;
+import com.chatapp.models.StoredMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * =====================================================
+ * MessageHistory Class
+ * =====================================================
+ * Reads a conversation's history page by page, newest
+ * first, wherever it is stored:
+ *
+ * 1. The message log (acked, not in MySQL yet: see
+ *    MessageIndexer.unindexed())
+ * 2. The messages table (recent, hot partitions)
+ * 3. The archive segments (partitions moved out by the
+ *    RetentionService)
+ *
+ * Pages are keyed by seq ("messages before seq N"), which
+ * continues seamlessly from the table into the archive,
+ * even while a partition is being archived. Messages past
+ * the conversation's retention are never returned, even
+ * if they have not been deleted yet.
+ *
+ * Single messages (search results, gaps) are looked up by
+ * seq the same way: log, then table, then archive.
+ * =====================================================
+ */
+public class MessageHistory {
+    private final DatabaseManager dbManager;
+    private final RetentionService retention;
+    private final MessageIndexer indexer;
+
+    /**
+     * Constructor
+     *
+     * @param dbManager The database manager (hot messages)
+     * @param retention The retention service (archive and cutoffs)
+     * @param indexer The message indexer (messages not stored yet)
+     */
+    public MessageHistory(DatabaseManager dbManager, RetentionService retention, MessageIndexer indexer) {
+        this.dbManager = dbManager;
+        this.retention = retention;
+        this.indexer = indexer;
+    }
+
+    /**
+     * Reads one page of history
+     *
+     * @param conversationId The conversation ID
+     * @param beforeSeq Only messages with a lower seq (Long.MAX_VALUE for the latest)
+     * @param limit Maximum number of messages
+     * @return The messages by descending seq, or null on error
+     */
+    public List<StoredMessage> read(int conversationId, long beforeSeq, int limit) {
+        long minSentAt = retention.getCutoff(conversationId, System.currentTimeMillis());
+
+        // The newest ones may not be in the table yet
+        List<StoredMessage> messages = new ArrayList<>();
+        for (StoredMessage message : indexer.unindexed(conversationId).headMap(beforeSeq, false)
+                                            .descendingMap().values()) {
+            if (messages.size() >= limit) {
+                return messages;
+            }
+            messages.add(message);
+        }
+
+        long tableBeforeSeq = messages.isEmpty() ? beforeSeq : messages.get(messages.size() - 1).getSeq();
+        List<StoredMessage> stored = dbManager.getMessages(conversationId, tableBeforeSeq, minSentAt,
+                                                           limit - messages.size());
+        if (stored == null) {
+            return null;
+        }
+        messages.addAll(stored);
+        if (messages.size() >= limit) {
+            return messages;
+        }
+
+        // Continue below the oldest hot message, in the archive
+        long archiveBeforeSeq = messages.isEmpty() ? beforeSeq : messages.get(messages.size() - 1).getSeq();
+        try {
+            messages.addAll(retention.getArchive().read(conversationId, archiveBeforeSeq,
+                                                        limit - messages.size(), minSentAt));
+        } catch (IOException e) {
+            System.err.println("[MessageHistory] Error reading archive: " + e.getMessage());
+            return null;
+        }
+        return messages;
+    }
+
+    /**
+     * Reads given messages of a conversation (e.g. search hits)
+     *
+     * @param conversationId The conversation ID
+     * @param seqs The seqs of the messages
+     * @return The messages still visible, in no particular order (expired or
+     *         deleted ones are missing), or null on error
+     */
+    public List<StoredMessage> find(int conversationId, List<Long> seqs) {
+        long minSentAt = retention.getCutoff(conversationId, System.currentTimeMillis());
+
+        // Not stored yet: still in the log
+        NavigableMap<Long, StoredMessage> unindexed = indexer.unindexed(conversationId);
+        List<StoredMessage> result = new ArrayList<>();
+        List<Long> storedSeqs = new ArrayList<>(seqs.size());
+        for (long seq : seqs) {
+            StoredMessage message = unindexed.get(seq);
+            if (message != null) {
+                result.add(message);
+            } else {
+                storedSeqs.add(seq);
+            }
+        }
+        if (storedSeqs.isEmpty()) {
+            return result;
+        }
+
+        List<StoredMessage> messages = dbManager.getMessagesBySeq(conversationId, storedSeqs, minSentAt);
+        if (messages == null) {
+            return null;
+        }
+        result.addAll(messages);
+        if (messages.size() == storedSeqs.size()) {
+            return result;
+        }
+
+        // The others may have been archived
+        Set<Long> found = new HashSet<>();
+        for (StoredMessage message : messages) {
+            found.add(message.getSeq());
+        }
+        try {
+            for (long seq : storedSeqs) {
+                if (found.contains(seq)) {
+                    continue;
+                }
+                List<StoredMessage> archived = retention.getArchive().read(conversationId, seq + 1, 1, minSentAt);
+                if (!archived.isEmpty() && archived.get(0).getSeq() == seq) {
+                    result.add(archived.get(0));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[MessageHistory] Error reading archive: " + e.getMessage());
+            return null;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,376 @@
+package com.chatapp.storage;
+
+import com.chatapp.database.DatabaseManager;
+import com.chatapp.models.StoredMessage;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * =====================================================
+ * MessageIndexer Class
+ * =====================================================
+ * Copies durable MessageLog records into MySQL (messages
+ * table and inboxes), in batches, on a background thread.
+ *
+ * Its position is the LSN of the next record to store.
+ * Each batch is written in one transaction together with
+ * that position (message_log_checkpoint), so a batch is
+ * stored exactly once, even if the server crashes in the
+ * middle: at startup the indexer continues from the stored
+ * position (replay) before clients are accepted.
+ * This only holds if nothing else commits or rolls back
+ * on the same connection: the indexer is given a
+ * DatabaseManager of its own.
+ *
+ * If MySQL is unavailable, the batch is retried with a
+ * growing delay; messages keep being accepted meanwhile
+ * (they are safe in the log). A batch that keeps failing
+ * while MySQL answers holds a record it rejects: the batch
+ * is then stored message by message, and the rejected ones
+ * are appended to a dead-letter file (JSON lines, with
+ * their LSN) so the rest of the log keeps flowing.
+ *
+ * Messages acked but not stored yet are readable through
+ * unindexed(): they are read from the log on demand (only
+ * the new records each time) and kept by conversation
+ * until their batch is stored, so history never misses a
+ * message the sender was told is saved.
+ *
+ * Stored batches are also added to the search index, if
+ * any; the log is then only released up to the search
+ * index's own checkpoint, and at startup the search index
+ * catches up from the log first.
+ * =====================================================
+ */
+public class MessageIndexer {
+    private static final long IDLE_WAIT_MS = 1000;
+    private static final long MIN_RETRY_MS = 500;
+    private static final long MAX_RETRY_MS = 30000;
+    private static final int DEAD_LETTER_ATTEMPTS = 3;   // Failures of a batch before it is split
+    private static final int REPLAY_ATTEMPTS = 5;        // Failures of a batch before startup gives up
+
+    private final MessageLog log;
+    private final DatabaseManager dbManager;
+    private final MessageSearchIndex search;   // null if search is disabled
+    private final int batchSize;
+    private final Path deadLetterFile;        // null: a rejected record blocks the log
+    private final Gson gson = new Gson();
+    private volatile long position;   // LSN of the next record to store
+    private int failures;             // Consecutive failures of the current batch
+
+    // Durable records not yet stored, by conversation and seq (see unindexed())
+    private final Map<Integer, NavigableMap<Long, StoredMessage>> unindexed = new ConcurrentHashMap<>();
+    private final Object scanLock = new Object();
+    private long scanned;             // LSN up to which unindexed is filled (scanLock)
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Constructor
+     *
+     * @param log The message log
+     * @param dbManager The database manager
+     * @param batchSize Messages per transaction
+     */
+    public MessageIndexer(MessageLog log, DatabaseManager dbManager, int batchSize) {
+        this(log, dbManager, null, batchSize, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param log The message log
+     * @param dbManager The database manager, used by the indexer only
+     * @param search The search index fed with the stored messages (null for none)
+     * @param batchSize Messages per transaction
+     * @param deadLetterFile Where records MySQL rejects are moved (null for none)
+     */
+    public MessageIndexer(MessageLog log, DatabaseManager dbManager, MessageSearchIndex search, int batchSize,
+                          Path deadLetterFile) {
+        this.log = log;
+        this.dbManager = dbManager;
+        this.search = search;
+        this.batchSize = batchSize;
+        this.deadLetterFile = deadLetterFile;
+    }
+
+    /**
+     * Replays the records after the checkpoint, then indexes in the background
+     *
+     * @param checkpoint Stored position (from the database)
+     * @throws IllegalStateException if the replay cannot be written
+     */
+    public void start(long checkpoint) {
+        if (search != null) {
+            catchUpSearch(checkpoint);
+        }
+        position = checkpoint;
+        long started = System.currentTimeMillis();
+        long replayed = 0;
+        int attempts = 0;
+        int stored;
+        while ((stored = indexBatch()) != 0) {
+            if (stored > 0) {
+                replayed += stored;
+                attempts = 0;
+                continue;
+            }
+            if (++attempts >= REPLAY_ATTEMPTS) {
+                throw new IllegalStateException("Cannot replay the message log into the database");
+            }
+            try {
+                Thread.sleep(MIN_RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while replaying the message log");
+            }
+        }
+        if (replayed > 0) {
+            System.out.println("[MessageIndexer] Replayed " + replayed + " messages in " +
+                               (System.currentTimeMillis() - started) + " ms");
+        }
+
+        running = true;
+        thread = new Thread(this::run, "message-indexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the background thread, then stores what is left (the log
+     * must be closed first, so nothing new arrives)
+     *
+     * @param timeoutMs Maximum time spent on the remaining records
+     */
+    public void stop(long timeoutMs) throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(timeoutMs);
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int stored;
+        while (System.currentTimeMillis() < deadline && (stored = indexBatch()) != 0) {
+            if (stored < 0) {
+                break;
+            }
+        }
+        long behind = log.getDurableLsn() - position;
+        if (behind > 0) {
+            System.err.println("[MessageIndexer] Stopped " + behind + " bytes behind; replayed at next start");
+        }
+    }
+
+    /**
+     * @return bytes of durable log not yet stored in the database
+     */
+    public long getLagBytes() {
+        return log.getDurableLsn() - position;
+    }
+
+    private void run() {
+        long retryMs = MIN_RETRY_MS;
+        while (running) {
+            try {
+                int stored = indexBatch();
+                if (stored == 0) {
+                    log.awaitDurable(position, IDLE_WAIT_MS);
+                } else if (stored < 0) {
+                    Thread.sleep(retryMs);
+                    retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+                } else {
+                    retryMs = MIN_RETRY_MS;
+                }
+            } catch (InterruptedException e) {
+                // stop() takes over
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stores the next batch
+     *
+     * @return messages stored (or moved to the dead-letter file), 0 if there
+     *         was nothing to store, -1 on error
+     */
+    private synchronized int indexBatch() {
+        List<MessageLog.Record> records = new ArrayList<>();
+        long next = log.read(position, batchSize, records);
+        if (records.isEmpty()) {
+            position = next;  // Skips a segment boundary, if any
+            return 0;
+        }
+
+        List<StoredMessage> messages = new ArrayList<>(records.size());
+        for (MessageLog.Record record : records) {
+            messages.add(record.message);
+        }
+        List<MessageLog.Record> stored = records;
+        if (!dbManager.storeMessages(messages, next)) {
+            // MySQL answers but keeps refusing the batch: one of its records is the cause
+            if (++failures < DEAD_LETTER_ATTEMPTS || deadLetterFile == null || !dbManager.isConnectionValid()) {
+                return -1;
+            }
+            stored = storeOneByOne(records, next);
+            if (stored == null) {
+                return -1;
+            }
+        }
+        failures = 0;
+
+        forget(records, next);
+        if (search != null) {
+            search.add(stored, next);
+            log.release(Math.min(next, search.getDurableLsn()));
+        } else {
+            log.release(next);
+        }
+        return messages.size();
+    }
+
+    /**
+     * Gets the durable messages of a conversation that are not stored in
+     * the database yet (all of them have a higher seq than the stored ones)
+     *
+     * @param conversationId The conversation ID
+     * @return seq -> message (do not modify), empty if there are none
+     */
+    public NavigableMap<Long, StoredMessage> unindexed(int conversationId) {
+        synchronized (scanLock) {
+            long from = Math.max(scanned, position);
+            long durable = log.getDurableLsn();
+            while (from < durable) {
+                List<MessageLog.Record> records = new ArrayList<>();
+                long next = log.read(from, batchSize, records);
+                for (MessageLog.Record record : records) {
+                    StoredMessage message = record.message;
+                    unindexed.computeIfAbsent(message.getConversationId(), id -> new ConcurrentSkipListMap<>())
+                             .put(message.getSeq(), message);
+                }
+                if (next == from) {
+                    break;
+                }
+                from = next;
+            }
+            scanned = from;
+        }
+        NavigableMap<Long, StoredMessage> messages = unindexed.get(conversationId);
+        return messages != null ? messages : Collections.emptyNavigableMap();
+    }
+
+    /**
+     * Moves the position past stored (or dead-lettered) records, which are
+     * no longer served by unindexed()
+     */
+    private void forget(List<MessageLog.Record> records, long next) {
+        synchronized (scanLock) {
+            position = next;
+            if (records.isEmpty() || scanned <= records.get(0).lsn) {
+                return;  // Never scanned
+            }
+            for (MessageLog.Record record : records) {
+                unindexed.computeIfPresent(record.message.getConversationId(), (id, messages) -> {
+                    messages.remove(record.message.getSeq());
+                    return messages.isEmpty() ? null : messages;
+                });
+            }
+        }
+    }
+
+    /**
+     * Stores a batch one message per transaction; the messages MySQL
+     * rejects are moved to the dead-letter file instead
+     *
+     * @param records The batch
+     * @param next LSN after the batch
+     * @return the records stored, or null on error (what was done is
+     *         checkpointed, the rest is retried)
+     */
+    private List<MessageLog.Record> storeOneByOne(List<MessageLog.Record> records, long next) {
+        List<MessageLog.Record> stored = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            MessageLog.Record record = records.get(i);
+            long end = i + 1 < records.size() ? records.get(i + 1).lsn : next;
+            if (dbManager.storeMessages(Collections.singletonList(record.message), end)) {
+                stored.add(record);
+                continue;
+            }
+            if (!dbManager.isConnectionValid() || !deadLetter(record) ||
+                !dbManager.storeMessages(Collections.emptyList(), end)) {
+                // Already stored records are in the checkpoint: continue from there
+                if (search != null) {
+                    search.add(stored, record.lsn);
+                }
+                forget(records.subList(0, i), record.lsn);
+                return null;
+            }
+            System.err.println("[MessageIndexer] Message " + record.message.getMessageId() + " (LSN " + record.lsn +
+                               ") rejected by the database, moved to " + deadLetterFile);
+        }
+        return stored;
+    }
+
+    /**
+     * Appends a record to the dead-letter file, forced to disk before its
+     * position is checkpointed
+     */
+    private boolean deadLetter(MessageLog.Record record) {
+        JsonObject json = gson.toJsonTree(record.message).getAsJsonObject();
+        json.addProperty("lsn", record.lsn);
+        ByteBuffer line = ByteBuffer.wrap((json + "\n").getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(deadLetterFile, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            channel.force(true);
+            return true;
+        } catch (IOException e) {
+            System.err.println("[MessageIndexer] Cannot write the dead-letter file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Adds to the search index the records already stored in the database
+     * but not yet in its segments (lost from its buffer by a restart)
+     */
+    private void catchUpSearch(long checkpoint) {
+        long from = search.getPosition();
+        if (from < log.getFirstLsn()) {
+            // Released while search was disabled: only the table has them
+            search.requestBackfill();
+        }
+        long added = 0;
+        while (from < checkpoint) {
+            List<MessageLog.Record> records = new ArrayList<>();
+            long next = log.read(from, batchSize, records);
+            records.removeIf(record -> record.lsn >= checkpoint);
+            if (next == from) {
+                break;
+            }
+            search.add(records, Math.min(next, checkpoint));
+            added += records.size();
+            from = next;
+        }
+        if (added > 0) {
+            System.out.println("[MessageIndexer] Added " + added + " logged messages to the search index");
+        }
+    }
+}
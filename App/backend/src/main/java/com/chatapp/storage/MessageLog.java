@@ -0,0 +1,515 @@
+package com.chatapp.storage;
+
+import com.chatapp.models.StoredMessage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * =====================================================
+ * MessageLog Class
+ * =====================================================
+ * Local append-only log of sent messages (write-ahead log).
+ * A message is durable once it is in the log; MySQL is
+ * updated afterwards, in batches, by the MessageIndexer.
+ *
+ * Storage: fixed-size segment files, memory-mapped,
+ *   wal-<first LSN>.log
+ * A record's LSN (log sequence number) is its position in
+ * the log: segment's first LSN + offset in the segment.
+ *
+ * Record: [payload length: int][CRC32 of payload: int]
+ *         [LSN: long][payload]
+ * payload = conversationId, seq, messageId, senderId,
+ *           sentAt, [attachment ID], content (UTF-8, rest
+ *           of the payload)
+ * The attachment ID (64 ASCII hex digits) is only present
+ * when the length has ATTACHMENT_FLAG set, so records
+ * written before attachments existed read unchanged.
+ * A zero length marks the end of the written records
+ * (segments are created zero-filled).
+ *
+ * Group commit: append() copies the record into the mapped
+ * segment and returns; the flusher thread forces the
+ * segment to disk once for all the records appended
+ * meanwhile, then runs their callbacks (in log order, on
+ * the ack thread). One fsync covers many messages.
+ *
+ * Recovery (open): every segment is scanned; the first
+ * record with a bad length, CRC or LSN (a write torn by a
+ * crash) ends the log, and is zeroed. Records not yet in
+ * MySQL are then replayed by the MessageIndexer.
+ * =====================================================
+ */
+public class MessageLog {
+    private static final int HEADER_BYTES = 16;
+    private static final int FIXED_PAYLOAD_BYTES = 4 + 8 + 8 + 4 + 8;
+    private static final int ATTACHMENT_FLAG = 0x40000000;      // In the length: payload has an attachment ID
+    private static final int LENGTH_MASK = ATTACHMENT_FLAG - 1;
+    private static final int ATTACHMENT_ID_BYTES = AttachmentStore.ID_LENGTH;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long groupCommitWaitNanos;
+
+    // Guards the segments, the write position and the pending callbacks
+    private final Object lock = new Object();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();  // First LSN -> segment
+    private final List<Runnable> pending = new ArrayList<>();          // Callbacks of records not yet forced
+    private Segment active;
+    private int writeOffset;
+    private long appendedLsn;     // End of the appended records
+    private boolean closed = true;
+
+    // End of the records forced to disk (readers wait on durableSignal)
+    private volatile long durableLsn;
+    private final Object durableSignal = new Object();
+
+    private Thread flusher;
+    private ExecutorService ackExecutor;
+
+    private static class Segment {
+        final Path file;
+        final long firstLsn;
+        final int size;
+        final MappedByteBuffer buffer;
+
+        Segment(Path file, long firstLsn, int size, MappedByteBuffer buffer) {
+            this.file = file;
+            this.firstLsn = firstLsn;
+            this.size = size;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A record read back from the log
+     */
+    public static class Record {
+        public final long lsn;
+        public final StoredMessage message;
+
+        Record(long lsn, StoredMessage message) {
+            this.lsn = lsn;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory Directory of the segment files
+     * @param segmentBytes Size of a segment file
+     * @param groupCommitWaitMicros Time the flusher waits for more records before a force
+     */
+    public MessageLog(Path directory, int segmentBytes, long groupCommitWaitMicros) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.groupCommitWaitNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitWaitMicros);
+    }
+
+    /**
+     * Recovers the log and starts the flusher
+     *
+     * @param startLsn LSN of the first record if the log is empty
+     *                 (the indexer's checkpoint, so LSNs never go back)
+     */
+    public void open(long startLsn) throws IOException {
+        Files.createDirectories(directory);
+
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    System.err.println("[MessageLog] Ignoring " + file);
+                }
+            }
+        }
+
+        synchronized (lock) {
+            boolean torn = false;
+            for (Map.Entry<Long, Path> entry : files.entrySet()) {
+                if (torn) {
+                    // Nothing after a torn record is valid
+                    System.err.println("[MessageLog] Discarding " + entry.getValue() + " (after a torn record)");
+                    Files.delete(entry.getValue());
+                    continue;
+                }
+                Segment segment = map(entry.getValue(), entry.getKey(), -1);
+                segments.put(segment.firstLsn, segment);
+                active = segment;
+                writeOffset = scan(segment);
+                torn = writeOffset < 0;
+                if (torn) {
+                    writeOffset = -writeOffset - 1;
+                }
+            }
+
+            if (active == null) {
+                active = createSegment(startLsn);
+                writeOffset = 0;
+            }
+            appendedLsn = active.firstLsn + writeOffset;
+            durableLsn = appendedLsn;
+            closed = false;
+        }
+
+        System.out.println("[MessageLog] Opened " + segments.size() + " segment(s), end LSN " + durableLsn);
+
+        ackExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "message-log-ack");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher = new Thread(this::flushLoop, "message-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Appends a message. onDurable runs once the message is on disk.
+     *
+     * @return false if the message could not be appended (log closed, I/O error, too large)
+     */
+    public boolean append(StoredMessage message, Runnable onDurable) {
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        byte[] attachment = message.getAttachmentId() != null
+            ? message.getAttachmentId().getBytes(StandardCharsets.US_ASCII) : null;
+        int payloadBytes = FIXED_PAYLOAD_BYTES + (attachment != null ? attachment.length : 0) + content.length;
+        int recordBytes = HEADER_BYTES + payloadBytes;
+        if (recordBytes > segmentBytes) {
+            return false;
+        }
+
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            if (writeOffset + recordBytes > active.size) {
+                try {
+                    roll();
+                } catch (IOException e) {
+                    System.err.println("[MessageLog] Cannot create a segment: " + e.getMessage());
+                    return false;
+                }
+            }
+
+            ByteBuffer buffer = active.buffer;
+            int payloadOffset = writeOffset + HEADER_BYTES;
+            buffer.putInt(payloadOffset, message.getConversationId());
+            buffer.putLong(payloadOffset + 4, message.getSeq());
+            buffer.putLong(payloadOffset + 12, message.getMessageId());
+            buffer.putInt(payloadOffset + 20, message.getSenderId());
+            buffer.putLong(payloadOffset + 24, message.getSentAt());
+            ByteBuffer contentSlice = buffer.duplicate();
+            contentSlice.position(payloadOffset + FIXED_PAYLOAD_BYTES);
+            if (attachment != null) {
+                contentSlice.put(attachment);
+            }
+            contentSlice.put(content);
+
+            buffer.putInt(writeOffset, attachment != null ? payloadBytes | ATTACHMENT_FLAG : payloadBytes);
+            buffer.putInt(writeOffset + 4, crc(buffer, payloadOffset, payloadBytes));
+            buffer.putLong(writeOffset + 8, active.firstLsn + writeOffset);
+
+            writeOffset += recordBytes;
+            appendedLsn = active.firstLsn + writeOffset;
+            pending.add(onDurable);
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Reads durable records
+     *
+     * @param fromLsn LSN to start at (an indexer position)
+     * @param max Maximum number of records
+     * @param out Receives the records
+     * @return the LSN following the last record read (where to continue)
+     */
+    public long read(long fromLsn, int max, List<Record> out) {
+        long durable = durableLsn;
+        long lsn = fromLsn;
+        while (out.size() < max && lsn < durable) {
+            Segment segment;
+            synchronized (lock) {
+                Map.Entry<Long, Segment> entry = segments.floorEntry(lsn);
+                if (entry == null) {
+                    // Before the oldest segment: continue at its start
+                    Long first = segments.isEmpty() ? null : segments.firstKey();
+                    if (first == null || first <= lsn) {
+                        break;
+                    }
+                    lsn = first;
+                    continue;
+                }
+                segment = entry.getValue();
+            }
+
+            int offset = (int) (lsn - segment.firstLsn);
+            int word = offset + HEADER_BYTES <= segment.size ? segment.buffer.getInt(offset) : 0;
+            int length = word & LENGTH_MASK;
+            if (length == 0) {
+                // End of this segment: continue in the next one
+                synchronized (lock) {
+                    Long next = segments.higherKey(segment.firstLsn);
+                    if (next == null) {
+                        break;
+                    }
+                    lsn = next;
+                }
+                continue;
+            }
+
+            out.add(new Record(lsn, decode(segment.buffer, offset + HEADER_BYTES, length,
+                                           (word & ATTACHMENT_FLAG) != 0)));
+            lsn += HEADER_BYTES + length;
+        }
+        return lsn;
+    }
+
+    /**
+     * Waits until records after an LSN are durable
+     */
+    public void awaitDurable(long lsn, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (durableSignal) {
+            long remaining;
+            while (durableLsn <= lsn && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                durableSignal.wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments whose records are all before an LSN
+     * (called once they are stored in MySQL)
+     */
+    public void release(long indexedLsn) {
+        List<Segment> released = new ArrayList<>();
+        synchronized (lock) {
+            while (segments.size() > 1) {
+                Segment oldest = segments.firstEntry().getValue();
+                if (oldest == active || oldest.firstLsn + oldest.size > indexedLsn) {
+                    break;
+                }
+                segments.remove(oldest.firstLsn);
+                released.add(oldest);
+            }
+        }
+        for (Segment segment : released) {
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                System.err.println("[MessageLog] Error deleting " + segment.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return LSN of the oldest segment kept (older records were released)
+     */
+    public long getFirstLsn() {
+        synchronized (lock) {
+            return segments.isEmpty() ? durableLsn : segments.firstKey();
+        }
+    }
+
+    /**
+     * @return end of the durable records
+     */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    /**
+     * Refuses new appends, forces what is pending and stops the flusher
+     * (records can still be read)
+     */
+    public void close() throws InterruptedException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        flusher.join();
+        ackExecutor.shutdown();
+        ackExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        System.out.println("[MessageLog] Closed at LSN " + durableLsn);
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (lock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return; // Closed and nothing left
+                }
+            }
+
+            // Let concurrent senders join this commit
+            if (groupCommitWaitNanos > 0) {
+                LockSupport.parkNanos(groupCommitWaitNanos);
+            }
+
+            List<Runnable> batch;
+            MappedByteBuffer buffer;
+            long target;
+            synchronized (lock) {
+                batch = new ArrayList<>(pending);
+                pending.clear();
+                buffer = active.buffer;
+                target = appendedLsn;
+            }
+
+            try {
+                buffer.force();
+            } catch (RuntimeException e) {
+                // Keep the records pending; the next round retries
+                System.err.println("[MessageLog] Force failed: " + e.getMessage());
+                synchronized (lock) {
+                    pending.addAll(0, batch);
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+
+            synchronized (durableSignal) {
+                durableLsn = target;
+                durableSignal.notifyAll();
+            }
+            ackExecutor.execute(() -> {
+                for (Runnable onDurable : batch) {
+                    try {
+                        onDurable.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("[MessageLog] Callback failed: " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Forces the full segment and starts the next one (caller holds the lock)
+     */
+    private void roll() throws IOException {
+        active.buffer.force();
+        active = createSegment(active.firstLsn + active.size);
+        writeOffset = 0;
+    }
+
+    private Segment createSegment(long firstLsn) throws IOException {
+        Path file = directory.resolve(String.format("%s%020d%s", PREFIX, firstLsn, SUFFIX));
+        Segment segment = map(file, firstLsn, segmentBytes);
+        segments.put(firstLsn, segment);
+        return segment;
+    }
+
+    /**
+     * Maps a segment file
+     *
+     * @param size Size of a new file, or -1 to map an existing file as it is
+     */
+    private static Segment map(Path file, long firstLsn, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            if (size >= 0) {
+                raf.setLength(size);  // Zero-filled
+            }
+            int length = (int) raf.length();
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            return new Segment(file, firstLsn, length, buffer);
+        }
+    }
+
+    /**
+     * Finds the end of the valid records of a segment
+     *
+     * @return the end offset, or -(offset + 1) of a torn record (zeroed)
+     */
+    private static int scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= segment.size) {
+            int word = buffer.getInt(offset);
+            if (word == 0) {
+                return offset;
+            }
+            int length = word & LENGTH_MASK;
+            int minLength = (word & ATTACHMENT_FLAG) != 0 ? FIXED_PAYLOAD_BYTES + ATTACHMENT_ID_BYTES
+                                                          : FIXED_PAYLOAD_BYTES;
+            boolean valid = word > 0 && length >= minLength &&
+                            offset + HEADER_BYTES + length <= segment.size &&
+                            buffer.getLong(offset + 8) == segment.firstLsn + offset &&
+                            buffer.getInt(offset + 4) == crc(buffer, offset + HEADER_BYTES, length);
+            if (!valid) {
+                System.err.println("[MessageLog] Torn record at LSN " + (segment.firstLsn + offset) +
+                                   " in " + segment.file + ", log truncated there");
+                for (int i = offset; i < segment.size; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                segment.buffer.force();
+                return -offset - 1;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private static StoredMessage decode(ByteBuffer buffer, int offset, int length, boolean hasAttachment) {
+        ByteBuffer contentSlice = buffer.duplicate();
+        contentSlice.position(offset + FIXED_PAYLOAD_BYTES);
+        String attachmentId = null;
+        int contentBytes = length - FIXED_PAYLOAD_BYTES;
+        if (hasAttachment) {
+            byte[] attachment = new byte[ATTACHMENT_ID_BYTES];
+            contentSlice.get(attachment);
+            attachmentId = new String(attachment, StandardCharsets.US_ASCII);
+            contentBytes -= ATTACHMENT_ID_BYTES;
+        }
+        byte[] content = new byte[contentBytes];
+        contentSlice.get(content);
+        return new StoredMessage(buffer.getInt(offset), buffer.getLong(offset + 4), buffer.getLong(offset + 12),
+                                 buffer.getInt(offset + 20), buffer.getLong(offset + 24),
+                                 new String(content, StandardCharsets.UTF_8), attachmentId);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,1043 @@
+package com.chatapp.storage;
+
+import com.chatapp.database.DatabaseManager;
+import com.chatapp.models.StoredMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * =====================================================
+ * MessageSearchIndex Class
+ * =====================================================
+ * Embedded full-text index of message content (inverted
+ * index), kept up to date by the MessageIndexer: every
+ * batch stored in MySQL is added here too.
+ *
+ * Terms are the runs of letters and digits of a message,
+ * lowercased; a search returns the messages containing
+ * every term of the query (AND), newest first, in the
+ * conversations given by the caller (the user's own).
+ *
+ * New messages go to an in-memory buffer, searchable at
+ * once. Every search.flushMessages messages (or
+ * search.flushIntervalSeconds) the buffer is written to a
+ * new immutable segment (SearchSegment, memory-mapped) and
+ * the checkpoint file records the log position covered:
+ *
+ *   <dir>/search-<first gen>-<last gen>.idx
+ *   <dir>/checkpoint.properties
+ *
+ * The message log is only released up to that position,
+ * so after a crash the buffer is rebuilt from the log.
+ *
+ * Merges keep the number of segments small: MERGE_FACTOR
+ * adjacent segments of the same size tier are merged into
+ * one, on the index thread, one merge at a time, at most
+ * search.mergeMbPerSecond, never beyond
+ * search.maxSegmentMb. A merge is written beside its inputs
+ * and swapped in; a crash leaves either the inputs or an
+ * output covering their generations (the inputs are then
+ * deleted at the next open).
+ *
+ * A new index starts at the indexer's position; the
+ * messages already in the table are added in the
+ * background (backfill, on the maintenance connection).
+ * =====================================================
+ */
+public class MessageSearchIndex {
+    public static final int MAX_TERM_LENGTH = 64;       // Code points, longer terms are cut
+    public static final int MAX_QUERY_TERMS = 8;
+
+    private static final int MERGE_FACTOR = 10;
+    private static final long TIER_BASE_BYTES = 1L << 20;
+    private static final long IDLE_WAIT_MS = 1000;
+    private static final long FAILURE_WAIT_MS = 5000;
+    private static final int MERGE_CHECK_INTERVAL = 1024;  // Entries merged between flush checks
+    private static final String PREFIX = "search-";
+    private static final String SUFFIX = ".idx";
+    private static final String CHECKPOINT_FILE = "checkpoint.properties";
+
+    private final Path directory;
+    private final int flushMessages;
+    private final long flushIntervalMs;
+    private final long mergeBytesPerSecond;
+    private final long maxSegmentBytes;
+
+    // Guards the buffers, the segment list and the positions; searches hold
+    // the read lock while they look at the buffers and take the segments
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private List<SearchSegment> segments = Collections.emptyList();  // By generation (replaced, never modified)
+    private Buffer buffer = new Buffer();   // Receives new messages
+    private Buffer flushing;                // Being written to a segment, still searched
+    private long flushingEndLsn;
+    private long memoryEndLsn;              // LSN after the last record added
+    private volatile long durableLsn;       // LSN covered by the segments (checkpoint)
+    private volatile boolean backfillPending;
+
+    private final Object flushLock = new Object();   // One flush at a time
+    private final Object signal = new Object();      // Wakes the index thread
+    private final AtomicLong nextGeneration = new AtomicLong(1);
+    private volatile boolean running;
+    private volatile boolean backfillStopped;
+    private volatile long lastFlush;
+    private Thread worker;
+
+    /**
+     * A message matching a search
+     */
+    public static class Hit {
+        public final int conversationId;
+        public final long seq;
+        public final long messageId;
+
+        Hit(int conversationId, long seq, long messageId) {
+            this.conversationId = conversationId;
+            this.seq = seq;
+            this.messageId = messageId;
+        }
+    }
+
+    /**
+     * Postings of one (term, conversation): seqs and messageIds, in
+     * parallel (ascending seq once sorted)
+     */
+    static class Postings {
+        long[] seqs;
+        long[] messageIds;
+        int count;
+
+        Postings(int capacity) {
+            seqs = new long[Math.max(capacity, 1)];
+            messageIds = new long[Math.max(capacity, 1)];
+        }
+
+        void add(long seq, long messageId) {
+            ensureCapacity(count + 1);
+            seqs[count] = seq;
+            messageIds[count] = messageId;
+            count++;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > seqs.length) {
+                int size = Math.max(capacity, seqs.length * 2);
+                seqs = Arrays.copyOf(seqs, size);
+                messageIds = Arrays.copyOf(messageIds, size);
+            }
+        }
+
+        /**
+         * @return a copy sorted by seq, without duplicates
+         */
+        Postings sortedCopy() {
+            Postings copy = new Postings(count);
+            System.arraycopy(seqs, 0, copy.seqs, 0, count);
+            System.arraycopy(messageIds, 0, copy.messageIds, 0, count);
+            copy.count = count;
+            copy.sortAndDeduplicate();
+            return copy;
+        }
+
+        /**
+         * Sorts by seq (merge sort, cheap on the nearly sorted lists
+         * produced by the log and by merges) and drops repeated seqs
+         */
+        void sortAndDeduplicate() {
+            boolean sorted = true;
+            for (int i = 1; i < count && sorted; i++) {
+                sorted = seqs[i - 1] <= seqs[i];
+            }
+            if (!sorted) {
+                mergeSort(seqs, messageIds, new long[count], new long[count], 0, count);
+            }
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (kept == 0 || seqs[i] != seqs[kept - 1]) {
+                    seqs[kept] = seqs[i];
+                    messageIds[kept] = messageIds[i];
+                    kept++;
+                }
+            }
+            count = kept;
+        }
+
+        /**
+         * Keeps only the seqs also in other (both sorted)
+         */
+        void retainAll(Postings other) {
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                while (j < other.count && other.seqs[j] < seqs[i]) {
+                    j++;
+                }
+                if (j < other.count && other.seqs[j] == seqs[i]) {
+                    seqs[kept] = seqs[i];
+                    messageIds[kept] = messageIds[i];
+                    kept++;
+                }
+            }
+            count = kept;
+        }
+
+        private static void mergeSort(long[] keys, long[] values, long[] keyTemp, long[] valueTemp,
+                                      int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            mergeSort(keys, values, keyTemp, valueTemp, from, middle);
+            mergeSort(keys, values, keyTemp, valueTemp, middle, to);
+            if (keys[middle - 1] <= keys[middle]) {
+                return;
+            }
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < middle && keys[left] <= keys[right])) {
+                    keyTemp[i] = keys[left];
+                    valueTemp[i] = values[left++];
+                } else {
+                    keyTemp[i] = keys[right];
+                    valueTemp[i] = values[right++];
+                }
+            }
+            System.arraycopy(keyTemp, from, keys, from, to - from);
+            System.arraycopy(valueTemp, from, values, from, to - from);
+        }
+    }
+
+    /**
+     * Messages not yet in a segment: term -> conversation -> postings
+     */
+    private static class Buffer {
+        final Map<String, Map<Integer, Postings>> terms = new HashMap<>();
+        int messageCount;
+
+        void add(StoredMessage message, List<String> messageTerms) {
+            for (String term : messageTerms) {
+                terms.computeIfAbsent(term, t -> new HashMap<>())
+                     .computeIfAbsent(message.getConversationId(), c -> new Postings(4))
+                     .add(message.getSeq(), message.getMessageId());
+            }
+            messageCount++;
+        }
+
+        boolean isEmpty() {
+            return messageCount == 0;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory Directory of the segments and the checkpoint
+     * @param flushMessages Buffered messages written to a segment at once
+     * @param flushIntervalMs Maximum time a message stays in the buffer only
+     * @param mergeBytesPerSecond Write rate of merges (0 = unlimited)
+     * @param maxSegmentBytes Size above which segments are not merged further
+     */
+    public MessageSearchIndex(Path directory, int flushMessages, long flushIntervalMs, long mergeBytesPerSecond,
+                              long maxSegmentBytes) {
+        this.directory = directory;
+        this.flushMessages = flushMessages;
+        this.flushIntervalMs = flushIntervalMs;
+        this.mergeBytesPerSecond = mergeBytesPerSecond;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Splits a text into search terms: runs of letters and digits,
+     * lowercased, cut to MAX_TERM_LENGTH code points, each once
+     *
+     * @return the terms, in order of first appearance
+     */
+    public static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        int length = 0;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (length < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(codePoint);
+                }
+                length++;
+            } else if (length > 0) {
+                terms.add(term.toString().toLowerCase(Locale.ROOT));
+                term.setLength(0);
+                length = 0;
+            }
+        }
+        if (length > 0) {
+            terms.add(term.toString().toLowerCase(Locale.ROOT));
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * Loads the segments and the checkpoint, then starts the index thread
+     *
+     * @param indexerCheckpoint The MessageIndexer's position: where a new
+     *                          index starts (older messages are backfilled)
+     */
+    public void open(long indexerCheckpoint) throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.tmp")) {
+            for (Path file : files) {
+                Files.delete(file);  // A flush or merge interrupted by a crash
+            }
+        }
+
+        List<SearchSegment> loaded = new ArrayList<>();
+        boolean lost = false;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    loaded.add(SearchSegment.open(file));
+                } catch (IOException e) {
+                    System.err.println("[MessageSearchIndex] Deleting unreadable segment " + file + ": " +
+                                       e.getMessage());
+                    Files.delete(file);
+                    lost = true;
+                }
+            }
+        }
+        loaded.sort(Comparator.comparingLong((SearchSegment s) -> s.minGeneration)
+                              .thenComparingLong(s -> -s.maxGeneration));
+
+        // Inputs of a merge whose output was written: covered by the output
+        List<SearchSegment> kept = new ArrayList<>();
+        for (SearchSegment segment : loaded) {
+            SearchSegment last = kept.isEmpty() ? null : kept.get(kept.size() - 1);
+            if (last != null && segment.maxGeneration <= last.maxGeneration) {
+                Files.delete(segment.file);
+            } else {
+                kept.add(segment);
+                nextGeneration.set(Math.max(nextGeneration.get(), segment.maxGeneration + 1));
+            }
+        }
+
+        Properties checkpoint = new Properties();
+        Path checkpointFile = directory.resolve(CHECKPOINT_FILE);
+        long position;
+        boolean fresh = !Files.exists(checkpointFile);
+        if (fresh) {
+            position = indexerCheckpoint;
+            backfillPending = true;
+        } else {
+            try (InputStream in = Files.newInputStream(checkpointFile)) {
+                checkpoint.load(in);
+            }
+            try {
+                position = Long.parseLong(checkpoint.getProperty("position", "0"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid search checkpoint " + checkpointFile);
+            }
+            // Not ahead of the table (restored from a backup): those messages come again
+            position = Math.min(position, indexerCheckpoint);
+            backfillPending = lost || Boolean.parseBoolean(checkpoint.getProperty("backfillPending", "false"));
+        }
+
+        lock.writeLock().lock();
+        try {
+            segments = Collections.unmodifiableList(kept);
+            memoryEndLsn = position;
+            durableLsn = position;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        writeCheckpoint(position, backfillPending);
+
+        System.out.println("[MessageSearchIndex] Opened " + kept.size() + " segment(s), position " + position +
+                           (fresh ? " (new index)" : "") + (backfillPending ? ", backfill pending" : ""));
+
+        lastFlush = System.currentTimeMillis();
+        running = true;
+        worker = new Thread(this::run, "search-index");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the index thread (a merge in progress is abandoned) and writes
+     * the buffer to a segment
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        backfillStopped = true;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        if (worker != null) {
+            worker.join();
+        }
+        flush();
+    }
+
+    /**
+     * @return the LSN up to which the indexed messages are in segments (the
+     *         message log must be kept from there)
+     */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    /**
+     * @return the LSN after the last record added (where catching up starts)
+     */
+    public long getPosition() {
+        lock.readLock().lock();
+        try {
+            return memoryEndLsn;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the messages stored before the index existed still
+     *         have to be added (see backfill)
+     */
+    public boolean isBackfillPending() {
+        return backfillPending;
+    }
+
+    /**
+     * Marks the messages table to be added again (e.g. the log was released
+     * while the index was disabled, so some messages are only in the table)
+     */
+    public void requestBackfill() {
+        if (!backfillPending) {
+            backfillPending = true;
+            writeCheckpoint(durableLsn, true);
+        }
+    }
+
+    /**
+     * Adds stored messages (a batch of the MessageIndexer)
+     *
+     * @param records The records, in log order
+     * @param nextLsn The LSN after the batch
+     */
+    public void add(List<MessageLog.Record> records, long nextLsn) {
+        // Tokenized outside the lock: searches keep running meanwhile
+        List<List<String>> recordTerms = new ArrayList<>(records.size());
+        for (MessageLog.Record record : records) {
+            recordTerms.add(tokenize(record.message.getContent()));
+        }
+
+        boolean due;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                MessageLog.Record record = records.get(i);
+                if (record.lsn >= memoryEndLsn) {  // Not already added (catch-up after a restart)
+                    buffer.add(record.message, recordTerms.get(i));
+                }
+            }
+            memoryEndLsn = Math.max(memoryEndLsn, nextLsn);
+            due = buffer.messageCount >= flushMessages;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (due) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Searches messages containing every term of a query
+     *
+     * @param query The query text (tokenized like the messages)
+     * @param conversationIds The conversations searched, sorted
+     * @param beforeMessageId Only messages with a lower ID (Long.MAX_VALUE for the latest)
+     * @param limit Maximum number of hits
+     * @return the hits, newest first (by messageId)
+     */
+    public List<Hit> search(String query, int[] conversationIds, long beforeMessageId, int limit) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty() || conversationIds.length == 0 || limit <= 0) {
+            return new ArrayList<>();
+        }
+        if (terms.size() > MAX_QUERY_TERMS) {
+            terms = terms.subList(0, MAX_QUERY_TERMS);
+        }
+
+        TreeMap<Long, Hit> hits = new TreeMap<>();
+        List<SearchSegment> snapshot;
+        lock.readLock().lock();
+        try {
+            searchBuffer(buffer, terms, conversationIds, beforeMessageId, limit, hits);
+            if (flushing != null) {
+                searchBuffer(flushing, terms, conversationIds, beforeMessageId, limit, hits);
+            }
+            snapshot = segments;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        byte[][] termBytes = new byte[terms.size()][];
+        for (int i = 0; i < termBytes.length; i++) {
+            termBytes[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            searchSegment(snapshot.get(i), termBytes, conversationIds, beforeMessageId, limit, hits);
+        }
+
+        return new ArrayList<>(hits.descendingMap().values());
+    }
+
+    /**
+     * Adds the messages already in the table (an index created after them).
+     * Streams every partition on the given connection, writing a segment
+     * every search.flushMessages messages; runs for a long time on a large
+     * table. Messages indexed meanwhile from the log may be added twice,
+     * which searches and merges ignore.
+     *
+     * @param dbManager A database manager with its own connection
+     */
+    public void backfill(DatabaseManager dbManager) {
+        if (!backfillPending) {
+            return;
+        }
+        Map<String, Long> partitions = dbManager.getMessagePartitions();
+        if (partitions == null) {
+            System.err.println("[MessageSearchIndex] Backfill skipped: table messages is not partitioned " +
+                               "as in schema.sql");
+            return;
+        }
+
+        long started = System.currentTimeMillis();
+        long[] added = {0};
+        Buffer[] pending = {new Buffer()};
+        for (String partition : partitions.keySet()) {
+            boolean complete = dbManager.streamMessagePartition(partition, message -> {
+                if (backfillStopped) {
+                    throw new IOException("Stopped");
+                }
+                pending[0].add(message, tokenize(message.getContent()));
+                added[0]++;
+                if (pending[0].messageCount >= flushMessages) {
+                    addSegment(writeSegment(pending[0], nextGeneration.getAndIncrement()));
+                    pending[0] = new Buffer();
+                }
+            });
+            if (!complete) {
+                System.err.println("[MessageSearchIndex] Backfill interrupted after " + added[0] +
+                                   " messages; restarted at the next start");
+                return;
+            }
+        }
+        try {
+            if (!pending[0].isEmpty()) {
+                addSegment(writeSegment(pending[0], nextGeneration.getAndIncrement()));
+            }
+        } catch (IOException e) {
+            System.err.println("[MessageSearchIndex] Backfill failed: " + e.getMessage());
+            return;
+        }
+
+        backfillPending = false;
+        writeCheckpoint(durableLsn, false);
+        System.out.println("[MessageSearchIndex] Backfilled " + added[0] + " messages in " +
+                           (System.currentTimeMillis() - started) + " ms");
+    }
+
+    /**
+     * Stops a backfill in progress (it restarts at the next start)
+     */
+    public void stopBackfill() {
+        backfillStopped = true;
+    }
+
+    private void run() {
+        while (running) {
+            boolean flushed = false;
+            if (isFlushDue()) {
+                flushed = flush();
+                if (!flushed) {
+                    await(FAILURE_WAIT_MS);
+                    continue;
+                }
+            }
+            if (!flushed && !mergeStep()) {
+                await(IDLE_WAIT_MS);
+            }
+        }
+    }
+
+    private void await(long timeoutMs) {
+        synchronized (signal) {
+            if (!running) {
+                return;
+            }
+            try {
+                signal.wait(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+    }
+
+    private boolean isFlushDue() {
+        lock.readLock().lock();
+        try {
+            if (flushing != null || buffer.messageCount >= flushMessages) {
+                return true;
+            }
+            boolean behind = !buffer.isEmpty() || memoryEndLsn > durableLsn;
+            return behind && System.currentTimeMillis() - lastFlush >= flushIntervalMs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the buffer to a segment and moves the checkpoint
+     *
+     * @return false on error (the buffer stays searchable and is retried)
+     */
+    private boolean flush() {
+        synchronized (flushLock) {
+            lastFlush = System.currentTimeMillis();
+            lock.writeLock().lock();
+            try {
+                if (flushing == null) {
+                    if (buffer.isEmpty() && memoryEndLsn == durableLsn) {
+                        return true;
+                    }
+                    flushing = buffer;
+                    flushingEndLsn = memoryEndLsn;
+                    buffer = new Buffer();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            SearchSegment segment = null;
+            if (!flushing.isEmpty()) {
+                try {
+                    segment = writeSegment(flushing, nextGeneration.getAndIncrement());
+                } catch (IOException e) {
+                    System.err.println("[MessageSearchIndex] Flush failed: " + e.getMessage());
+                    return false;
+                }
+            }
+
+            long endLsn;
+            lock.writeLock().lock();
+            try {
+                if (segment != null) {
+                    segments = withSegment(segments, segment);
+                }
+                flushing = null;
+                endLsn = flushingEndLsn;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (!writeCheckpoint(endLsn, backfillPending)) {
+                return false;
+            }
+            durableLsn = endLsn;
+            return true;
+        }
+    }
+
+    /**
+     * Writes a buffer that is no longer modified to a new segment
+     */
+    private SearchSegment writeSegment(Buffer source, long generation) throws IOException {
+        // Segment order is by UTF-8 bytes, not by String.compareTo
+        List<Map.Entry<byte[], Map<Integer, Postings>>> terms = new ArrayList<>(source.terms.size());
+        for (Map.Entry<String, Map<Integer, Postings>> entry : source.terms.entrySet()) {
+            terms.add(new AbstractMap.SimpleEntry<>(entry.getKey().getBytes(StandardCharsets.UTF_8),
+                                                    entry.getValue()));
+        }
+        terms.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+        SearchSegment.Writer writer = new SearchSegment.Writer(segmentPath(generation, generation), 0);
+        try {
+            for (Map.Entry<byte[], Map<Integer, Postings>> term : terms) {
+                Map<Integer, Postings> conversations = term.getValue();
+                int[] ids = conversations.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+                for (int conversationId : ids) {
+                    Postings postings = conversations.get(conversationId).sortedCopy();
+                    writer.add(term.getKey(), conversationId, postings.seqs, postings.messageIds, postings.count);
+                }
+            }
+            return writer.finish(source.messageCount, generation, generation);
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    private void addSegment(SearchSegment segment) {
+        lock.writeLock().lock();
+        try {
+            segments = withSegment(segments, segment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Runs one merge if some tier has enough segments
+     *
+     * @return true if a merge was done
+     */
+    private boolean mergeStep() {
+        List<SearchSegment> current;
+        lock.readLock().lock();
+        try {
+            current = segments;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<SearchSegment> inputs = null;
+        for (int start = 0; start + MERGE_FACTOR <= current.size() && inputs == null; start++) {
+            List<SearchSegment> run = current.subList(start, start + MERGE_FACTOR);
+            int tier = tier(run.get(0));
+            long total = 0;
+            for (SearchSegment segment : run) {
+                if (tier(segment) != tier) {
+                    total = Long.MAX_VALUE;
+                    break;
+                }
+                total += segment.sizeBytes;
+            }
+            if (total <= maxSegmentBytes) {
+                inputs = new ArrayList<>(run);
+            }
+        }
+        if (inputs == null) {
+            return false;
+        }
+
+        try {
+            SearchSegment merged = merge(inputs);
+            if (merged == null) {
+                return false;  // Stopped
+            }
+            lock.writeLock().lock();
+            try {
+                List<SearchSegment> replaced = new ArrayList<>(segments);
+                replaced.removeAll(inputs);
+                segments = withSegment(replaced, merged);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (SearchSegment input : inputs) {
+                // Searches still using it keep their mapping
+                Files.deleteIfExists(input.file);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("[MessageSearchIndex] Merge failed: " + e.getMessage());
+            await(FAILURE_WAIT_MS);
+            return false;
+        }
+    }
+
+    /**
+     * k-way merge of segments sorted by (term, conversation)
+     *
+     * @return the merged segment, or null if the index was closed meanwhile
+     */
+    private SearchSegment merge(List<SearchSegment> inputs) throws IOException {
+        long started = System.currentTimeMillis();
+        long minGeneration = inputs.get(0).minGeneration;
+        long maxGeneration = inputs.get(inputs.size() - 1).maxGeneration;
+        long messageCount = 0;
+
+        PriorityQueue<Cursor> queue = new PriorityQueue<>();
+        for (SearchSegment input : inputs) {
+            messageCount += input.messageCount;
+            Cursor cursor = new Cursor(input);
+            if (cursor.load()) {
+                queue.add(cursor);
+            }
+        }
+
+        SearchSegment.Writer writer = new SearchSegment.Writer(segmentPath(minGeneration, maxGeneration),
+                                                               mergeBytesPerSecond);
+        try {
+            Postings postings = new Postings(64);
+            List<Cursor> group = new ArrayList<>();
+            long merged = 0;
+            while (!queue.isEmpty()) {
+                if (!running) {
+                    writer.abort();
+                    return null;
+                }
+                group.clear();
+                Cursor first = queue.poll();
+                group.add(first);
+                while (!queue.isEmpty() && queue.peek().compareTo(first) == 0) {
+                    group.add(queue.poll());
+                }
+
+                postings.count = 0;
+                for (Cursor cursor : group) {
+                    int count = cursor.segment.postingsCount(cursor.entry);
+                    postings.ensureCapacity(postings.count + count);
+                    postings.count += cursor.segment.readPostings(cursor.entry, postings.seqs,
+                                                                  postings.messageIds, postings.count);
+                }
+                postings.sortAndDeduplicate();
+                writer.add(first.term, first.conversationId, postings.seqs, postings.messageIds, postings.count);
+
+                for (Cursor cursor : group) {
+                    cursor.entry++;
+                    if (cursor.load()) {
+                        queue.add(cursor);
+                    }
+                }
+                // A long merge must not hold back the flushes
+                if (++merged % MERGE_CHECK_INTERVAL == 0 && isFlushDue()) {
+                    flush();
+                }
+            }
+            SearchSegment segment = writer.finish(messageCount, minGeneration, maxGeneration);
+            System.out.println("[MessageSearchIndex] Merged " + inputs.size() + " segments (" + messageCount +
+                               " messages, " + (segment.sizeBytes >> 10) + " KB) in " +
+                               (System.currentTimeMillis() - started) + " ms");
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Position of a merge in one input segment
+     */
+    private static class Cursor implements Comparable<Cursor> {
+        final SearchSegment segment;
+        int entry;
+        byte[] term;
+        int conversationId;
+
+        Cursor(SearchSegment segment) {
+            this.segment = segment;
+        }
+
+        boolean load() {
+            if (entry >= segment.entryCount()) {
+                return false;
+            }
+            term = segment.term(entry);
+            conversationId = segment.conversationId(entry);
+            return true;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int order = Arrays.compareUnsigned(term, other.term);
+            return order != 0 ? order : Integer.compare(conversationId, other.conversationId);
+        }
+    }
+
+    private void searchBuffer(Buffer source, List<String> terms, int[] conversationIds, long beforeMessageId,
+                              int limit, TreeMap<Long, Hit> hits) {
+        List<Map<Integer, Postings>> termConversations = new ArrayList<>(terms.size());
+        Map<Integer, Postings> rarest = null;
+        for (String term : terms) {
+            Map<Integer, Postings> conversations = source.terms.get(term);
+            if (conversations == null) {
+                return;
+            }
+            termConversations.add(conversations);
+            if (rarest == null || conversations.size() < rarest.size()) {
+                rarest = conversations;
+            }
+        }
+
+        List<Integer> candidates = new ArrayList<>();
+        if (rarest.size() <= conversationIds.length) {
+            for (Integer conversationId : rarest.keySet()) {
+                if (Arrays.binarySearch(conversationIds, conversationId) >= 0) {
+                    candidates.add(conversationId);
+                }
+            }
+        } else {
+            for (int conversationId : conversationIds) {
+                if (rarest.containsKey(conversationId)) {
+                    candidates.add(conversationId);
+                }
+            }
+        }
+
+        for (int conversationId : candidates) {
+            Postings matches = null;
+            for (Map<Integer, Postings> conversations : termConversations) {
+                Postings postings = conversations.get(conversationId);
+                if (postings == null) {
+                    matches = null;
+                    break;
+                }
+                if (matches == null) {
+                    matches = postings.sortedCopy();
+                } else {
+                    matches.retainAll(postings.sortedCopy());
+                }
+            }
+            offer(conversationId, matches, beforeMessageId, limit, hits);
+        }
+    }
+
+    private void searchSegment(SearchSegment segment, byte[][] terms, int[] conversationIds, long beforeMessageId,
+                               int limit, TreeMap<Long, Hit> hits) {
+        int[] from = new int[terms.length];
+        int[] to = new int[terms.length];
+        int rarest = 0;
+        for (int i = 0; i < terms.length; i++) {
+            from[i] = segment.findTerm(terms[i]);
+            if (from[i] < 0) {
+                return;
+            }
+            to[i] = segment.termEnd(from[i], terms[i]);
+            if (to[i] - from[i] < to[rarest] - from[rarest]) {
+                rarest = i;
+            }
+        }
+
+        int[] entries = new int[terms.length];
+        if (to[rarest] - from[rarest] <= conversationIds.length) {
+            for (int entry = from[rarest]; entry < to[rarest]; entry++) {
+                int conversationId = segment.conversationId(entry);
+                if (Arrays.binarySearch(conversationIds, conversationId) >= 0) {
+                    searchConversation(segment, conversationId, from, to, entries, beforeMessageId, limit, hits);
+                }
+            }
+        } else {
+            for (int conversationId : conversationIds) {
+                searchConversation(segment, conversationId, from, to, entries, beforeMessageId, limit, hits);
+            }
+        }
+    }
+
+    private void searchConversation(SearchSegment segment, int conversationId, int[] from, int[] to,
+                                    int[] entries, long beforeMessageId, int limit, TreeMap<Long, Hit> hits) {
+        for (int i = 0; i < from.length; i++) {
+            entries[i] = segment.findConversation(from[i], to[i], conversationId);
+            if (entries[i] < 0) {
+                return;
+            }
+        }
+        Postings matches = null;
+        for (int entry : entries) {
+            Postings postings = new Postings(segment.postingsCount(entry));
+            postings.count = segment.readPostings(entry, postings.seqs, postings.messageIds, 0);
+            if (matches == null) {
+                matches = postings;
+            } else {
+                matches.retainAll(postings);
+            }
+        }
+        offer(conversationId, matches, beforeMessageId, limit, hits);
+    }
+
+    /**
+     * Keeps the newest hits below beforeMessageId, at most limit
+     */
+    private static void offer(int conversationId, Postings matches, long beforeMessageId, int limit,
+                              TreeMap<Long, Hit> hits) {
+        if (matches == null) {
+            return;
+        }
+        for (int i = matches.count - 1; i >= 0; i--) {
+            long messageId = matches.messageIds[i];
+            if (messageId >= beforeMessageId) {
+                continue;
+            }
+            if (hits.size() >= limit && messageId <= hits.firstKey()) {
+                continue;
+            }
+            hits.put(messageId, new Hit(conversationId, matches.seqs[i], messageId));
+            if (hits.size() > limit) {
+                hits.pollFirstEntry();
+            }
+        }
+    }
+
+    private boolean writeCheckpoint(long position, boolean pending) {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("position", String.valueOf(position));
+        checkpoint.setProperty("backfillPending", String.valueOf(pending));
+        Path target = directory.resolve(CHECKPOINT_FILE);
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                checkpoint.store(out, "Search index position (message log LSN)");
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.err.println("[MessageSearchIndex] Cannot write checkpoint: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private Path segmentPath(long minGeneration, long maxGeneration) {
+        return directory.resolve(PREFIX + minGeneration + "-" + maxGeneration + SUFFIX);
+    }
+
+    /**
+     * @return a copy of the list with the segment added, by generation
+     */
+    private static List<SearchSegment> withSegment(List<SearchSegment> list, SearchSegment segment) {
+        List<SearchSegment> result = new ArrayList<>(list);
+        result.add(segment);
+        result.sort(Comparator.comparingLong(s -> s.minGeneration));
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Size tier: 0 below TIER_BASE_BYTES, then one per factor of 10
+     */
+    private static int tier(SearchSegment segment) {
+        int tier = 0;
+        for (long size = segment.sizeBytes; size >= TIER_BASE_BYTES; size /= 10) {
+            tier++;
+        }
+        return tier;
+    }
+}
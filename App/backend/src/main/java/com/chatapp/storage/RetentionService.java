@@ -0,0 +1,288 @@
+package com.chatapp.storage;
+
+import com.chatapp.config.ServerConfig;
+import com.chatapp.database.DatabaseManager;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * =====================================================
+ * RetentionService Class
+ * =====================================================
+ * Keeps the messages table small. It is partitioned by
+ * time range on sent_at, one partition per
+ * retention.partitionDays (aligned on the epoch). Every
+ * retention.checkIntervalMinutes it:
+ *
+ * 1. Adds the partitions of the coming ranges (splits the
+ *    empty catch-all partition, so it is instantaneous)
+ * 2. Drops the partitions older than retention.defaultDays
+ * 3. Exports the partitions older than retention.hotDays to
+ *    an archive segment (MessageArchive), then drops them
+ * 4. Deletes the expired messages of the conversations with
+ *    a shorter retention (conversations.retention_days)
+ * 5. Deletes the archive segments older than
+ *    retention.defaultDays
+ *
+ * Dropping a partition removes its file instead of deleting
+ * rows one by one, so retention costs no purge I/O, and
+ * only the hot partitions stay in the buffer pool.
+ *
+ * The export streams the partition row by row, so it runs
+ * on a database connection of its own (not the one serving
+ * clients). Archived messages cannot be deleted one by one;
+ * conversation policies are applied when a partition is
+ * exported and when history is read (getCutoff).
+ * =====================================================
+ */
+public class RetentionService {
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    // Partitions created ahead of the current one
+    private static final int PARTITIONS_AHEAD = 2;
+
+    // Rows per DELETE of a conversation policy
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    // Partitions created with the table, never dropped
+    private static final String START_PARTITION = "p_start";
+    private static final String CATCH_ALL_PARTITION = "p_future";
+
+    private static final DateTimeFormatter PARTITION_NAME =
+        DateTimeFormatter.ofPattern("'p'yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private final DatabaseManager dbManager;  // Maintenance connection
+    private final MessageArchive archive;
+    private final boolean enabled;
+    private final long partitionMs;
+    private final long hotMs;
+    private final long defaultRetentionMs;    // 0 = keep forever
+    private final long checkIntervalMinutes;
+    private ScheduledExecutorService scheduler;
+
+    // Conversation ID -> retention in days (refreshed on every run)
+    private volatile Map<Integer, Integer> policies = Collections.emptyMap();
+
+    /**
+     * Constructor
+     *
+     * @param config The server configuration (retention.*)
+     * @param dbManager A database manager with its own connection
+     */
+    public RetentionService(ServerConfig config, DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+        this.archive = new MessageArchive(Paths.get(config.getString(ServerConfig.RETENTION_ARCHIVE_DIR)));
+        this.enabled = config.getBoolean(ServerConfig.RETENTION_ENABLED);
+        this.partitionMs = config.getInt(ServerConfig.RETENTION_PARTITION_DAYS) * DAY_MS;
+        this.hotMs = config.getInt(ServerConfig.RETENTION_HOT_DAYS) * DAY_MS;
+        this.defaultRetentionMs = config.getInt(ServerConfig.RETENTION_DEFAULT_DAYS) * DAY_MS;
+        this.checkIntervalMinutes = config.getInt(ServerConfig.RETENTION_CHECK_INTERVAL_MINUTES);
+    }
+
+    /**
+     * Schedules the periodic run (the first one right away, in the background)
+     */
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!enabled) {
+            System.out.println("[RetentionService] Disabled (retention.enabled=false)");
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(this::runSafely, 0, checkIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Runs other maintenance work on the retention thread and connection
+     * (one task at a time, never during a retention run)
+     */
+    public void execute(Runnable task) {
+        scheduler.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("[RetentionService] Maintenance task failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Stops the periodic run, waiting for a run in progress
+     */
+    public void stop() throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return the archive of the partitions moved out of the table
+     */
+    public MessageArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Oldest time still visible in a conversation's history
+     *
+     * @return epoch millis; older messages are expired (0 = none)
+     */
+    public long getCutoff(int conversationId, long now) {
+        long cutoff = defaultRetentionMs > 0 ? now - defaultRetentionMs : 0;
+        Integer days = policies.get(conversationId);
+        if (days != null) {
+            cutoff = Math.max(cutoff, now - days * DAY_MS);
+        }
+        return cutoff;
+    }
+
+    private void runSafely() {
+        try {
+            run();
+        } catch (Exception e) {
+            // Keep the schedule alive; the next run retries
+            System.err.println("[RetentionService] Run failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One retention run
+     */
+    void run() throws IOException {
+        long started = System.currentTimeMillis();
+        long now = started;
+
+        Map<Integer, Integer> loaded = dbManager.getRetentionPolicies();
+        if (loaded != null) {
+            policies = loaded;
+        }
+
+        Map<String, Long> partitions = dbManager.getMessagePartitions();
+        if (partitions == null || !partitions.containsKey(CATCH_ALL_PARTITION)) {
+            System.err.println("[RetentionService] Table messages is not partitioned as in schema.sql, skipped");
+            return;
+        }
+
+        addFuturePartitions(partitions, now);
+
+        int dropped = 0;
+        int archived = 0;
+        long lowerBound = Long.MIN_VALUE;
+        for (Map.Entry<String, Long> partition : partitions.entrySet()) {
+            String name = partition.getKey();
+            long upperBound = partition.getValue();
+            long fromMillis = lowerBound;
+            lowerBound = upperBound;
+            if (name.equals(START_PARTITION) || name.equals(CATCH_ALL_PARTITION)) {
+                continue;
+            }
+
+            if (defaultRetentionMs > 0 && upperBound <= now - defaultRetentionMs) {
+                // Entirely expired: nothing to keep
+                if (dbManager.dropMessagePartition(name)) {
+                    dropped++;
+                }
+            } else if (upperBound <= now - hotMs) {
+                if (archivePartition(name, Math.max(fromMillis, 0), upperBound, now) &&
+                        dbManager.dropMessagePartition(name)) {
+                    archived++;
+                }
+            }
+        }
+
+        long deleted = deleteExpiredMessages(now);
+        int segmentsDeleted = defaultRetentionMs > 0 ? archive.deleteOlderThan(now - defaultRetentionMs) : 0;
+
+        System.out.println("[RetentionService] Run done in " + (System.currentTimeMillis() - started) + " ms: " +
+                           archived + " partitions archived, " + dropped + " dropped, " +
+                           deleted + " expired messages deleted, " + segmentsDeleted + " archive segments deleted");
+    }
+
+    /**
+     * Makes sure partitions exist up to PARTITIONS_AHEAD ranges after the
+     * current one, so new messages never land in the catch-all partition
+     */
+    private void addFuturePartitions(Map<String, Long> partitions, long now) {
+        long highest = 0;
+        for (long bound : partitions.values()) {
+            if (bound != Long.MAX_VALUE) {
+                highest = Math.max(highest, bound);
+            }
+        }
+
+        long current = now - Math.floorMod(now, partitionMs);
+        long target = current + (PARTITIONS_AHEAD + 1) * partitionMs;
+        long bound = highest;
+        while (bound < target) {
+            // The first new partition also covers any gap since the highest one
+            bound = Math.max(bound + partitionMs, current + partitionMs);
+            String name = PARTITION_NAME.format(Instant.ofEpochMilli(bound));
+            if (!dbManager.addMessagePartition(name, bound, CATCH_ALL_PARTITION)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Exports one partition to an archive segment, skipping expired messages
+     *
+     * @return true if the segment was written (the partition can be dropped)
+     */
+    private boolean archivePartition(String name, long fromMillis, long toMillis, long now) throws IOException {
+        long started = System.currentTimeMillis();
+        MessageArchive.SegmentWriter writer = archive.createSegment(fromMillis, toMillis);
+        long[] skipped = new long[1];
+
+        boolean complete = dbManager.streamMessagePartition(name, message -> {
+            if (message.getSentAt() < getCutoff(message.getConversationId(), now)) {
+                skipped[0]++;
+                return;
+            }
+            writer.append(message);
+        });
+        if (!complete) {
+            writer.abort();
+            return false;
+        }
+
+        long count = writer.commit();
+        System.out.println("[RetentionService] Archived partition " + name + ": " + count + " messages (" +
+                           skipped[0] + " expired skipped) in " + (System.currentTimeMillis() - started) + " ms");
+        return true;
+    }
+
+    /**
+     * Applies the conversation policies to the hot partitions
+     *
+     * @return number of messages deleted
+     */
+    private long deleteExpiredMessages(long now) {
+        long deleted = 0;
+        for (Map.Entry<Integer, Integer> policy : policies.entrySet()) {
+            long cutoff = getCutoff(policy.getKey(), now);
+            int count;
+            do {
+                count = dbManager.deleteExpiredMessages(policy.getKey(), cutoff, DELETE_BATCH_SIZE);
+                if (count > 0) {
+                    deleted += count;
+                }
+            } while (count == DELETE_BATCH_SIZE && !Thread.currentThread().isInterrupted());
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,381 @@
+package com.chatapp.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * =====================================================
+ * SearchSegment Class
+ * =====================================================
+ * One immutable file of the message search index, read
+ * through a read-only memory mapping (the OS page cache
+ * holds the hot parts, nothing is loaded on the heap).
+ *
+ * The index is keyed by (term, conversation): a search
+ * for a user only looks at the user's own conversations,
+ * so its cost does not grow with other users' messages.
+ *
+ * File layout:
+ *   [header][entries][terms][postings]
+ *   header   = MAGIC, entry count, terms bytes, postings
+ *              bytes (ints), message count, min and max
+ *              generation (longs)
+ *   entries  = one per (term, conversation), sorted by term
+ *              (UTF-8 bytes, unsigned) then conversation:
+ *              term offset, term length, conversation ID,
+ *              postings offset, postings count (ints)
+ *   terms    = the distinct terms, UTF-8, in entry order
+ *   postings = per entry, by ascending seq: seq delta
+ *              (varint), messageId delta (zigzag varint)
+ *
+ * A segment covers a range of generations: a flushed
+ * segment has one, a merged one the range of its inputs.
+ * =====================================================
+ */
+final class SearchSegment {
+    private static final int MAGIC = 0x43535831;  // "CSX1"
+    private static final int HEADER_BYTES = 4 * 4 + 8 * 3;
+    private static final int ENTRY_BYTES = 5 * 4;
+
+    final Path file;
+    final long messageCount;
+    final long minGeneration;
+    final long maxGeneration;
+    final long sizeBytes;
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int termsStart;
+    private final int postingsStart;
+    private final int postingsBytes;
+
+    private SearchSegment(Path file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        this.sizeBytes = buffer.capacity();
+        if (sizeBytes < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a search segment: " + file);
+        }
+        this.entryCount = buffer.getInt(4);
+        int termsBytes = buffer.getInt(8);
+        this.postingsBytes = buffer.getInt(12);
+        this.messageCount = buffer.getLong(16);
+        this.minGeneration = buffer.getLong(24);
+        this.maxGeneration = buffer.getLong(32);
+        this.termsStart = HEADER_BYTES + entryCount * ENTRY_BYTES;
+        this.postingsStart = termsStart + termsBytes;
+        if ((long) postingsStart + postingsBytes != sizeBytes) {
+            throw new IOException("Truncated search segment: " + file);
+        }
+    }
+
+    /**
+     * Maps a segment file
+     */
+    static SearchSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new SearchSegment(file, buffer);
+        }
+    }
+
+    int entryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return the first entry of a term, or -1 if the term is not in the segment
+     */
+    int findTerm(byte[] term) {
+        int low = 0;
+        int high = entryCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareTerm(mid, term) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < entryCount && compareTerm(low, term) == 0 ? low : -1;
+    }
+
+    /**
+     * @return the entry after the last one of the term starting at first
+     */
+    int termEnd(int first, byte[] term) {
+        int low = first;
+        int high = entryCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareTerm(mid, term) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the entry of a conversation within [from, to) (entries of one
+     *         term), or -1
+     */
+    int findConversation(int from, int to, int conversationId) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = conversationId(mid);
+            if (value < conversationId) {
+                low = mid + 1;
+            } else if (value > conversationId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    int conversationId(int entry) {
+        return buffer.getInt(HEADER_BYTES + entry * ENTRY_BYTES + 8);
+    }
+
+    int postingsCount(int entry) {
+        return buffer.getInt(HEADER_BYTES + entry * ENTRY_BYTES + 16);
+    }
+
+    byte[] term(int entry) {
+        int base = HEADER_BYTES + entry * ENTRY_BYTES;
+        byte[] term = new byte[buffer.getInt(base + 4)];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(termsStart + buffer.getInt(base));
+        slice.get(term);
+        return term;
+    }
+
+    /**
+     * Decodes the postings of an entry into seqs and messageIds (ascending seq)
+     *
+     * @return number of postings
+     */
+    int readPostings(int entry, long[] seqs, long[] messageIds, int offset) {
+        int base = HEADER_BYTES + entry * ENTRY_BYTES;
+        int count = buffer.getInt(base + 16);
+        int[] position = {postingsStart + buffer.getInt(base + 12)};
+        long seq = 0;
+        long messageId = 0;
+        for (int i = 0; i < count; i++) {
+            seq += readVarLong(buffer, position);
+            long delta = readVarLong(buffer, position);
+            messageId += (delta >>> 1) ^ -(delta & 1);
+            seqs[offset + i] = seq;
+            messageIds[offset + i] = messageId;
+        }
+        return count;
+    }
+
+    private int compareTerm(int entry, byte[] term) {
+        int base = HEADER_BYTES + entry * ENTRY_BYTES;
+        int start = termsStart + buffer.getInt(base);
+        int length = buffer.getInt(base + 4);
+        int common = Math.min(length, term.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (buffer.get(start + i) & 0xFF) - (term[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - term.length;
+    }
+
+    private static long readVarLong(ByteBuffer buffer, int[] position) {
+        long value = 0;
+        int shift = 0;
+        int p = position[0];
+        byte b;
+        do {
+            b = buffer.get(p++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        position[0] = p;
+        return value;
+    }
+
+    /**
+     * Writes a segment: entries are added in (term, conversation) order,
+     * then finish() assembles the file. The three sections are streamed to
+     * temporary files, so memory does not depend on the segment size; the
+     * file is fsynced and renamed, a crash never leaves a partial segment.
+     */
+    static final class Writer {
+        private final Path target;
+        private final Path entriesFile;
+        private final Path termsFile;
+        private final Path postingsFile;
+        private final DataOutputStream entries;
+        private final DataOutputStream terms;
+        private final DataOutputStream postings;
+        private final long bytesPerSecond;     // Write throttle (0 = none)
+        private final long startedNanos = System.nanoTime();
+
+        private byte[] lastTerm;
+        private int lastTermOffset;
+        private long termsBytes;
+        private long postingsBytes;
+        private int entryCount;
+
+        /**
+         * @param target The segment file to create
+         * @param bytesPerSecond Write rate limit (0 = unlimited), for background merges
+         */
+        Writer(Path target, long bytesPerSecond) throws IOException {
+            this.target = target;
+            this.bytesPerSecond = bytesPerSecond;
+            this.entriesFile = Paths.get(target + ".entries.tmp");
+            this.termsFile = Paths.get(target + ".terms.tmp");
+            this.postingsFile = Paths.get(target + ".postings.tmp");
+            this.entries = newStream(entriesFile);
+            this.terms = newStream(termsFile);
+            this.postings = newStream(postingsFile);
+        }
+
+        /**
+         * Adds the postings of one (term, conversation), after the previous one
+         *
+         * @param seqs Ascending, no duplicates
+         */
+        void add(byte[] term, int conversationId, long[] seqs, long[] messageIds, int count) throws IOException {
+            if (lastTerm == null || !java.util.Arrays.equals(lastTerm, term)) {
+                lastTerm = term;
+                lastTermOffset = (int) termsBytes;
+                terms.write(term);
+                termsBytes += term.length;
+            }
+            entries.writeInt(lastTermOffset);
+            entries.writeInt(term.length);
+            entries.writeInt(conversationId);
+            entries.writeInt((int) postingsBytes);
+            entries.writeInt(count);
+            entryCount++;
+
+            long seq = 0;
+            long messageId = 0;
+            for (int i = 0; i < count; i++) {
+                postingsBytes += writeVarLong(postings, seqs[i] - seq);
+                long delta = messageIds[i] - messageId;
+                postingsBytes += writeVarLong(postings, (delta << 1) ^ (delta >> 63));
+                seq = seqs[i];
+                messageId = messageIds[i];
+            }
+            if (termsBytes + postingsBytes + (long) entryCount * ENTRY_BYTES > Integer.MAX_VALUE - HEADER_BYTES) {
+                throw new IOException("Search segment too large: " + target);
+            }
+            throttle();
+        }
+
+        /**
+         * Assembles, fsyncs and renames the segment, then maps it
+         */
+        SearchSegment finish(long messageCount, long minGeneration, long maxGeneration) throws IOException {
+            entries.close();
+            terms.close();
+            postings.close();
+
+            Path temp = Paths.get(target + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(entryCount).putInt((int) termsBytes).putInt((int) postingsBytes);
+                header.putLong(messageCount).putLong(minGeneration).putLong(maxGeneration);
+                header.flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                for (Path section : new Path[] {entriesFile, termsFile, postingsFile}) {
+                    try (FileChannel in = FileChannel.open(section, StandardOpenOption.READ)) {
+                        long position = 0;
+                        long size = in.size();
+                        while (position < size) {
+                            position += in.transferTo(position, size - position, out);
+                        }
+                    }
+                }
+                out.force(true);
+            } finally {
+                deleteTemporaryFiles();
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            return open(target);
+        }
+
+        /**
+         * Drops a segment that will not be finished
+         */
+        void abort() {
+            try {
+                entries.close();
+                terms.close();
+                postings.close();
+            } catch (IOException e) {
+                // Deleted anyway
+            }
+            deleteTemporaryFiles();
+        }
+
+        private void deleteTemporaryFiles() {
+            for (Path section : new Path[] {entriesFile, termsFile, postingsFile}) {
+                try {
+                    Files.deleteIfExists(section);
+                } catch (IOException e) {
+                    System.err.println("[SearchSegment] Cannot delete " + section + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private void throttle() throws IOException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long written = termsBytes + postingsBytes + (long) entryCount * ENTRY_BYTES;
+            long dueNanos = written * 1_000_000_000L / bytesPerSecond;
+            long aheadMs = (dueNanos - (System.nanoTime() - startedNanos)) / 1_000_000;
+            if (aheadMs >= 10) {
+                try {
+                    Thread.sleep(aheadMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+
+        private static DataOutputStream newStream(Path file) throws IOException {
+            OutputStream out = Files.newOutputStream(file);
+            return new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        }
+
+        private static int writeVarLong(DataOutputStream out, long value) throws IOException {
+            int bytes = 1;
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+                bytes++;
+            }
+            out.writeByte((int) value);
+            return bytes;
+        }
+    }
+}
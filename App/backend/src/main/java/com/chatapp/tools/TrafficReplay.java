@@ -0,0 +1,378 @@
+package com.chatapp.tools;
+
+import com.chatapp.server.TrafficCapture;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * =====================================================
+ * TrafficReplay Class
+ * =====================================================
+ * Replays a traffic capture (see TrafficCapture) against a
+ * server: every captured connection is opened again and
+ * its frames are sent at their captured times, at 1x speed
+ * or N times faster.
+ *
+ * The target server runs with its own database. The
+ * captured users must exist in it: --seed-sql prints the
+ * INSERTs for them (all with the replay password, since
+ * captures hold no passwords). Frames still carry the IDs
+ * of the captured database (conversations, users), so the
+ * closest replay is against a copy of it; against another
+ * database those requests fail, and are reported as errors.
+ *
+ * Usage:
+ *   TrafficReplay <capture file> [--url ws://localhost:8080]
+ *                 [--speed 1] [--password replay] [--seed-sql]
+ *   --speed 0 sends every frame as fast as possible.
+ *
+ * At the end it prints the frames sent, the latency of the
+ * responses (matched by requestId), the errors by code and
+ * how far the replay fell behind the captured schedule.
+ * =====================================================
+ */
+public class TrafficReplay {
+    private static final long CLOSE_GRACE_MS = 5000;
+    private static final long CLOSE_DELAY_MS = 1000;
+
+    private final URI url;
+    private final double speed;
+    private final String password;
+
+    private final Map<Integer, Connection> connections = new HashMap<>();
+    private final ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();  // requestId -> send nanos
+    private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+    private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final AtomicLong responses = new AtomicLong();
+    private long framesSent;
+    private long connectionsOpened;
+    private long maxLagNanos;
+
+    /**
+     * One replayed connection. Frames sent before the handshake is done
+     * are queued, like a client that writes as soon as it is connected.
+     */
+    private class Connection extends WebSocketClient {
+        private final List<Object> queued = new ArrayList<>();
+        private boolean open;
+        private boolean closeRequested;
+
+        Connection() {
+            super(url);
+        }
+
+        synchronized void submit(Object frame) {
+            if (!open) {
+                queued.add(frame);
+            } else {
+                write(frame);
+            }
+        }
+
+        synchronized void requestClose() {
+            if (open) {
+                close();
+            } else {
+                closeRequested = true;
+            }
+        }
+
+        @Override
+        public synchronized void onOpen(ServerHandshake handshake) {
+            open = true;
+            for (Object frame : queued) {
+                write(frame);
+            }
+            queued.clear();
+            if (closeRequested) {
+                close();
+            }
+        }
+
+        private void write(Object frame) {
+            if (frame instanceof String) {
+                String text = (String) frame;
+                String requestId = requestIdOf(text);
+                if (requestId != null) {
+                    pending.put(requestId, System.nanoTime());
+                }
+                super.send(text);
+            } else {
+                super.send((ByteBuffer) frame);
+            }
+        }
+
+        @Override
+        public void onMessage(String message) {
+            responses.incrementAndGet();
+            try {
+                JsonElement element = JsonParser.parseString(message);
+                if (!element.isJsonObject()) {
+                    return;
+                }
+                JsonObject object = element.getAsJsonObject();
+                if (object.has("requestId") && !object.get("requestId").isJsonNull()) {
+                    Long sent = pending.remove(object.get("requestId").getAsString());
+                    if (sent != null) {
+                        latencies.add(System.nanoTime() - sent);
+                    }
+                }
+                if (object.has("errorCode") && !object.get("errorCode").isJsonNull()) {
+                    errors.computeIfAbsent(object.get("errorCode").getAsString(), k -> new AtomicLong())
+                          .incrementAndGet();
+                }
+            } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+                // Not a JSON object: counted as a response only
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            errors.computeIfAbsent("CONNECTION", k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    private TrafficReplay(URI url, double speed, String password) {
+        this.url = url;
+        this.speed = speed;
+        this.password = password;
+    }
+
+    /**
+     * Sends the records of a capture on its schedule
+     */
+    private void replay(Path file) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file)) {
+            TrafficCapture.Record record;
+            while ((record = reader.next()) != null) {
+                if (speed > 0) {
+                    long due = startNanos + (long) (record.offsetNanos / speed);
+                    long wait = due - System.nanoTime();
+                    maxLagNanos = Math.max(maxLagNanos, -wait);
+                    while (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        wait = due - System.nanoTime();
+                    }
+                }
+                apply(record);
+            }
+        }
+        // Let the last responses arrive, then close what the capture left open
+        Thread.sleep(CLOSE_GRACE_MS);
+        for (Connection connection : connections.values()) {
+            connection.requestClose();
+        }
+        closer.shutdown();
+        closer.awaitTermination(CLOSE_DELAY_MS, TimeUnit.MILLISECONDS);
+        System.out.println("[TrafficReplay] Replayed in " + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+    }
+
+    private void apply(TrafficCapture.Record record) {
+        switch (record.kind) {
+            case TrafficCapture.KIND_OPEN: {
+                Connection connection = new Connection();
+                connections.put(record.connectionId, connection);
+                connection.connect();
+                connectionsOpened++;
+                break;
+            }
+            case TrafficCapture.KIND_TEXT: {
+                Connection connection = connections.get(record.connectionId);
+                if (connection != null) {
+                    connection.submit(withPassword(new String(record.payload, StandardCharsets.UTF_8)));
+                    framesSent++;
+                }
+                break;
+            }
+            case TrafficCapture.KIND_BINARY: {
+                Connection connection = connections.get(record.connectionId);
+                if (connection != null) {
+                    connection.submit(ByteBuffer.wrap(record.payload));
+                    framesSent++;
+                }
+                break;
+            }
+            case TrafficCapture.KIND_CLOSE: {
+                // Closed a little later, so the last frames are answered
+                Connection connection = connections.remove(record.connectionId);
+                if (connection != null) {
+                    closer.schedule(connection::requestClose, CLOSE_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Puts the replay password back into LOGIN frames
+     */
+    private String withPassword(String frame) {
+        JsonObject object = loginFrame(frame);
+        if (object == null) {
+            return frame;
+        }
+        object.addProperty("password", password);
+        return object.toString();
+    }
+
+    private void report() {
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.println("[TrafficReplay] Connections: " + connectionsOpened + ", frames sent: " + framesSent +
+                           ", responses: " + responses.get());
+        if (sorted.length > 0) {
+            System.out.println("[TrafficReplay] Latency (" + sorted.length + " matched by requestId): p50 " +
+                               millis(sorted[sorted.length / 2]) + " ms, p99 " +
+                               millis(sorted[(int) Math.min(sorted.length - 1, sorted.length * 99L / 100)]) +
+                               " ms, max " + millis(sorted[sorted.length - 1]) + " ms");
+        }
+        if (!errors.isEmpty()) {
+            System.out.println("[TrafficReplay] Errors: " + new TreeMap<>(errors));
+        }
+        if (speed > 0) {
+            System.out.println("[TrafficReplay] Max schedule lag: " + millis(maxLagNanos) + " ms");
+        }
+    }
+
+    /**
+     * Prints the INSERTs creating the users that log in during the capture
+     */
+    private static void printSeedSql(Path file, String password) throws IOException {
+        TreeSet<String> usernames = new TreeSet<>();
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file)) {
+            TrafficCapture.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.kind != TrafficCapture.KIND_TEXT) {
+                    continue;
+                }
+                JsonObject login = loginFrame(new String(record.payload, StandardCharsets.UTF_8));
+                if (login != null && login.has("username") && !login.get("username").isJsonNull()) {
+                    usernames.add(login.get("username").getAsString());
+                }
+            }
+        }
+        for (String username : usernames) {
+            System.out.println("INSERT IGNORE INTO users (username, password) VALUES ('" + sqlQuote(username) +
+                               "', '" + sqlQuote(password) + "');");
+        }
+    }
+
+    private static JsonObject loginFrame(String frame) {
+        if (frame.indexOf("LOGIN") < 0) {
+            return null;
+        }
+        try {
+            JsonElement element = JsonParser.parseString(frame);
+            if (element.isJsonObject()) {
+                JsonObject object = element.getAsJsonObject();
+                JsonElement type = object.get("type");
+                if (type != null && type.isJsonPrimitive() && "LOGIN".equals(type.getAsString())) {
+                    return object;
+                }
+            }
+        } catch (JsonParseException e) {
+            // Not JSON
+        }
+        return null;
+    }
+
+    private static String requestIdOf(String frame) {
+        if (frame.indexOf("\"requestId\"") < 0) {
+            return null;
+        }
+        try {
+            JsonElement element = JsonParser.parseString(frame);
+            if (element.isJsonObject()) {
+                JsonElement requestId = element.getAsJsonObject().get("requestId");
+                if (requestId != null && requestId.isJsonPrimitive()) {
+                    return requestId.getAsString();
+                }
+            }
+        } catch (JsonParseException e) {
+            // Not JSON
+        }
+        return null;
+    }
+
+    private static String sqlQuote(String value) {
+        return value.replace("\\", "\\\\").replace("'", "''");
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1_000_000.0);
+    }
+
+    /**
+     * Main entry point
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TrafficReplay <capture file> [--url ws://localhost:8080] [--speed 1] " +
+                               "[--password replay] [--seed-sql]");
+            System.exit(2);
+        }
+        Path file = Paths.get(args[0]);
+        String url = "ws://localhost:8080";
+        double speed = 1;
+        String password = "replay";
+        boolean seedSql = false;
+        List<String> options = Arrays.asList(args).subList(1, args.length);
+        for (int i = 0; i < options.size(); i++) {
+            String option = options.get(i);
+            if (option.equals("--seed-sql")) {
+                seedSql = true;
+            } else if (i + 1 < options.size() && option.equals("--url")) {
+                url = options.get(++i);
+            } else if (i + 1 < options.size() && option.equals("--speed")) {
+                speed = Double.parseDouble(options.get(++i));
+            } else if (i + 1 < options.size() && option.equals("--password")) {
+                password = options.get(++i);
+            } else {
+                System.err.println("[TrafficReplay] Unknown option: " + option);
+                System.exit(2);
+            }
+        }
+
+        if (seedSql) {
+            printSeedSql(file, password);
+            return;
+        }
+        TrafficReplay replay = new TrafficReplay(new URI(url), speed, password);
+        System.out.println("[TrafficReplay] Replaying " + file + " against " + url +
+                           (speed > 0 ? " at " + speed + "x" : " as fast as possible"));
+        replay.replay(file);
+        replay.report();
+    }
+}
@@ -25,26 +25,90 @@ CREATE TABLE IF NOT EXISTS users (
 -- =====================================================
 -- Table: conversations
 -- =====================================================
--- Stores conversation channels (single chat or group chat)
--- type: 'single' for one-on-one chats, 'group' for group chats
+-- Stores conversation channels (single chat, group chat or
+-- broadcast channel)
+-- type: 'single' for one-on-one chats, 'group' for group chats,
+-- 'channel' for broadcast channels (few writers, any number
+-- of readers)
+-- name: group or channel name (NULL for single conversations)
+-- member_count: number of participants, kept up to date by
+-- the server (the server caches type, name and members in
+-- memory, see ConversationCache)
+-- pair_min_user_id / pair_max_user_id: the two users of a
+-- 'single' conversation, smaller ID first (NULL for groups).
+-- The UNIQUE key enforces "Two users can share only ONE
+-- individual conversation channel" even under concurrent
+-- creation, and makes the lookup a single index probe.
+-- last_seq, last_message_id, last_message_preview,
+-- last_activity: head of a 'channel' (channels have no
+-- inbox rows, see participants.last_read_seq); kept by
+-- the message indexer, 0/NULL for other types.
 -- =====================================================
 CREATE TABLE IF NOT EXISTS conversations (
     id INT AUTO_INCREMENT PRIMARY KEY,
-    type ENUM('single', 'group') NOT NULL DEFAULT 'single',
+    type ENUM('single', 'group', 'channel') NOT NULL DEFAULT 'single',
+    name VARCHAR(100) NULL,
+    member_count INT NOT NULL DEFAULT 0,
+    pair_min_user_id INT NULL,
+    pair_max_user_id INT NULL,
+    retention_days INT NULL,
+    last_seq BIGINT NOT NULL DEFAULT 0,
+    last_message_id BIGINT NOT NULL DEFAULT 0,
+    last_message_preview VARCHAR(100) NULL,
+    last_activity BIGINT NOT NULL DEFAULT 0,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-    INDEX idx_type (type)
+    INDEX idx_type (type),
+    UNIQUE KEY uk_direct_pair (pair_min_user_id, pair_max_user_id)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
 
+-- Upgrading a database created before these columns
+-- existed: run the ones you are missing once (they fail
+-- if the columns exist), then the backfills further down.
+-- ALTER TABLE conversations
+--     ADD COLUMN name VARCHAR(100) NULL AFTER type,
+--     ADD COLUMN member_count INT NOT NULL DEFAULT 0 AFTER name;
+-- ALTER TABLE conversations
+--     ADD COLUMN pair_min_user_id INT NULL AFTER member_count,
+--     ADD COLUMN pair_max_user_id INT NULL AFTER pair_min_user_id,
+--     ADD UNIQUE KEY uk_direct_pair (pair_min_user_id, pair_max_user_id);
+-- ALTER TABLE conversations
+--     MODIFY COLUMN type ENUM('single', 'group', 'channel') NOT NULL DEFAULT 'single',
+--     ADD COLUMN last_seq BIGINT NOT NULL DEFAULT 0 AFTER retention_days,
+--     ADD COLUMN last_message_id BIGINT NOT NULL DEFAULT 0 AFTER last_seq,
+--     ADD COLUMN last_message_preview VARCHAR(100) NULL AFTER last_message_id,
+--     ADD COLUMN last_activity BIGINT NOT NULL DEFAULT 0 AFTER last_message_preview;
+
 -- =====================================================
 -- Table: participants
 -- =====================================================
 -- Junction table linking users to conversations
 -- This table implements the rule: "Two users can share 
 -- only ONE individual conversation channel"
+-- role: in a 'channel', 'admin' members may post and
+-- 'member' rows are readers (subscribers); in a 'group',
+-- only admins may remove other members (the creator is
+-- the first admin); unused for 'single' conversations
+-- last_read_seq: a channel reader's cursor (fan-out on
+-- read): unread = conversations.last_seq - last_read_seq,
+-- so a channel post writes no per-reader row
+-- Upgrading an existing database: run once
+-- ALTER TABLE participants
+--     ADD COLUMN role ENUM('member', 'admin') NOT NULL DEFAULT 'member' AFTER user_id,
+--     ADD COLUMN last_read_seq BIGINT NOT NULL DEFAULT 0 AFTER role;
+-- Groups created before group admins have none; to make
+-- each group's earliest member its admin, run once
+-- UPDATE participants p INNER JOIN (
+--         SELECT q.conversation_id, MIN(q.joined_at) AS first_joined FROM participants q
+--         INNER JOIN conversations c ON c.id = q.conversation_id
+--         WHERE c.type = 'group' GROUP BY q.conversation_id) f
+--     ON f.conversation_id = p.conversation_id AND f.first_joined = p.joined_at
+--     SET p.role = 'admin';
 -- =====================================================
 CREATE TABLE IF NOT EXISTS participants (
     conversation_id INT NOT NULL,
     user_id INT NOT NULL,
+    role ENUM('member', 'admin') NOT NULL DEFAULT 'member',
+    last_read_seq BIGINT NOT NULL DEFAULT 0,
     joined_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     PRIMARY KEY (conversation_id, user_id),
     FOREIGN KEY (conversation_id) REFERENCES conversations(id) ON DELETE CASCADE,
@@ -54,32 +118,174 @@ CREATE TABLE IF NOT EXISTS participants (
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
 
 -- =====================================================
--- Table: messages (Optional - for future message storage)
+-- Table: inbox
+-- =====================================================
+-- Denormalized per-user conversation list ('single' and
+-- 'group' conversations; channels are listed from
+-- participants, see GET_CHANNELS).
+-- One row per (user, conversation), updated incrementally
+-- on every send, so GET_CONVERSATIONS is one indexed read
+-- on idx_user_activity instead of a join across
+-- participants, conversations and messages.
+-- last_activity: epoch millis of the last message (or of
+-- the creation/join time while the conversation is empty)
+-- last_read_message_id: the user's read cursor; every
+-- message with an ID <= this value has been read
+-- (message IDs are time-ordered, see MessageIdGenerator)
+-- last_seq: sequence number of the last message; the
+-- server seeds its per-conversation counter from it
+-- =====================================================
+CREATE TABLE IF NOT EXISTS inbox (
+    user_id INT NOT NULL,
+    conversation_id INT NOT NULL,
+    type ENUM('single', 'group') NOT NULL DEFAULT 'single',
+    title VARCHAR(100) NOT NULL,
+    last_message_preview VARCHAR(100) NULL,
+    last_activity BIGINT NOT NULL DEFAULT 0,
+    last_message_id BIGINT NOT NULL DEFAULT 0,
+    last_seq BIGINT NOT NULL DEFAULT 0,
+    last_read_message_id BIGINT NOT NULL DEFAULT 0,
+    unread_count INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (user_id, conversation_id),
+    FOREIGN KEY (conversation_id) REFERENCES conversations(id) ON DELETE CASCADE,
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE,
+    INDEX idx_user_activity (user_id, last_activity, conversation_id),
+    INDEX idx_conversation_id (conversation_id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Backfill inbox rows for 'single' conversations created
+-- before the inbox table existed (title = other user's name).
+-- Group titles were never stored, so they fall back to
+-- 'Group <id>' until the group is renamed.
+INSERT IGNORE INTO inbox (user_id, conversation_id, type, title, last_activity)
+SELECT p1.user_id, c.id, c.type,
+       IF(c.type = 'single', u.username, CONCAT('Group ', c.id)),
+       UNIX_TIMESTAMP(c.created_at) * 1000
+FROM conversations c
+INNER JOIN participants p1 ON c.id = p1.conversation_id
+LEFT JOIN participants p2 ON c.id = p2.conversation_id
+    AND p2.user_id != p1.user_id AND c.type = 'single'
+LEFT JOIN users u ON u.id = p2.user_id
+WHERE c.type = 'group' OR u.id IS NOT NULL;
+
+-- Backfill conversations.member_count and the group names
+-- (taken from the inbox titles) for existing conversations
+UPDATE conversations c
+SET c.member_count = (SELECT COUNT(*) FROM participants p WHERE p.conversation_id = c.id),
+    c.name = IF(c.type = 'single',
+                NULL,
+                COALESCE(c.name, (SELECT i.title FROM inbox i WHERE i.conversation_id = c.id LIMIT 1)));
+
+-- Backfill the canonical pair of existing 'single' conversations.
+-- If a pair has duplicate conversations (created by the old
+-- check-then-insert race), only the oldest one gets the pair
+-- and is used from now on.
+UPDATE conversations c
+INNER JOIN (
+    SELECT MIN(pc.conversation_id) AS conversation_id, pc.min_user_id, pc.max_user_id
+    FROM (
+        SELECT p.conversation_id, MIN(p.user_id) AS min_user_id, MAX(p.user_id) AS max_user_id
+        FROM participants p
+        INNER JOIN conversations sc ON sc.id = p.conversation_id AND sc.type = 'single'
+        GROUP BY p.conversation_id
+    ) pc
+    GROUP BY pc.min_user_id, pc.max_user_id
+) pairs ON pairs.conversation_id = c.id
+SET c.pair_min_user_id = pairs.min_user_id,
+    c.pair_max_user_id = pairs.max_user_id
+WHERE c.pair_min_user_id IS NULL;
+
+-- =====================================================
+-- Table: messages
 -- =====================================================
--- Uncomment this if you want to store messages in the database
+-- Message history, partitioned by time range on sent_at
+-- (epoch millis). The server (RetentionService) keeps the
+-- partitions itself:
+-- - adds the upcoming ranges by splitting p_future,
+-- - exports partitions older than retention.hotDays to
+--   compressed archive segments, then drops them,
+-- - drops partitions older than retention.defaultDays,
+-- - deletes messages of conversations whose
+--   conversations.retention_days is shorter.
+-- Only recent partitions stay in the table, so it (and
+-- its primary key) stays small enough for the buffer pool.
+-- History is read by (conversation_id, seq) from the
+-- primary key, then from the archive (MessageHistory).
+-- Partitioned tables cannot have foreign keys, and every
+-- unique key must contain sent_at: (conversation_id, seq)
+-- is unique by construction (SequenceAllocator).
+-- attachment_id: SHA-256 (hex) of the attached file in the
+-- server's attachment store (attachments.dir), NULL if the
+-- message has no attachment.
 -- =====================================================
-/*
 CREATE TABLE IF NOT EXISTS messages (
-    id INT AUTO_INCREMENT PRIMARY KEY,
     conversation_id INT NOT NULL,
+    seq BIGINT NOT NULL,
+    message_id BIGINT NOT NULL,
     sender_id INT NOT NULL,
     content TEXT NOT NULL,
-    sent_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-    FOREIGN KEY (conversation_id) REFERENCES conversations(id) ON DELETE CASCADE,
-    FOREIGN KEY (sender_id) REFERENCES users(id) ON DELETE CASCADE,
-    INDEX idx_conversation_id (conversation_id),
-    INDEX idx_sent_at (sent_at)
-) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
-*/
+    attachment_id CHAR(64) NULL,
+    sent_at BIGINT NOT NULL,
+    PRIMARY KEY (conversation_id, seq, sent_at)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4
+PARTITION BY RANGE (sent_at) (
+    PARTITION p_start VALUES LESS THAN (0),
+    PARTITION p_future VALUES LESS THAN MAXVALUE
+);
+
+-- Upgrading a database created before attachments: run once
+-- ALTER TABLE messages ADD COLUMN attachment_id CHAR(64) NULL AFTER content;
+
+-- =====================================================
+-- Table: attachment_access
+-- =====================================================
+-- Who may read an attachment. The store deduplicates
+-- files by hash, so knowing a hash must not be enough:
+-- - a user that uploaded the bytes (user_id set),
+-- - the members of a conversation where a message
+--   referenced it (conversation_id set).
+-- Rows are written when the upload completes and when
+-- the message is sent (before it is delivered), checked
+-- by UPLOAD_START, SEND_MESSAGE and GET_ATTACHMENT_URL.
+-- =====================================================
+CREATE TABLE IF NOT EXISTS attachment_access (
+    attachment_id CHAR(64) NOT NULL,
+    user_id INT NOT NULL DEFAULT 0,
+    conversation_id INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (attachment_id, user_id, conversation_id)
+) ENGINE=InnoDB;
+
+-- =====================================================
+-- Table: message_log_checkpoint
+-- =====================================================
+-- Sent messages are first appended to the server's local
+-- message log (write-ahead log, wal.dir) and acked once
+-- durable there; MessageIndexer then stores them in
+-- messages and inbox, in batches. indexed_lsn is the log
+-- position up to which they are stored, updated in the
+-- same transaction as each batch, so after a crash the
+-- server replays exactly the missing messages.
+-- =====================================================
+CREATE TABLE IF NOT EXISTS message_log_checkpoint (
+    id TINYINT PRIMARY KEY,
+    indexed_lsn BIGINT NOT NULL
+) ENGINE=InnoDB;
 
+-- Per-conversation retention: messages older than
+-- retention_days are deleted (NULL = server default,
+-- retention.defaultDays). A policy can only shorten the
+-- server-wide retention, never extend it.
+-- Upgrading an existing database: run once
+-- ALTER TABLE conversations ADD COLUMN retention_days INT NULL AFTER pair_max_user_id;
 -- =====================================================
 -- Important Database Logic:
 -- =====================================================
 -- To enforce "Two users can share only ONE individual 
--- conversation channel", we need to:
--- 1. Check if a 'single' type conversation exists between
---    two specific users before creating a new one.
--- 2. This logic will be implemented in DatabaseManager.java
---    using a query that checks participants table.
+-- conversation channel":
+-- 1. Every 'single' conversation stores its two users as
+--    (pair_min_user_id, pair_max_user_id), under a UNIQUE key.
+-- 2. DatabaseManager.getOrCreateConversation() probes that
+--    key and creates the conversation with INSERT IGNORE, so
+--    a concurrent duplicate is impossible.
 -- =====================================================
 